@@ -13,22 +13,98 @@ import java.util.Set;
 public class Context
 {
     public static final String MAX_THREADS = "threads.max";
+    
+    public static final String FETCH_THREADS = "threads.fetch";
+    
+    public static final String PARSE_THREADS = "threads.parse";
+    
+    public static final String WRITE_THREADS = "threads.write";
+    
+    public static final String LARGE_FILE_THREADS = "threads.large";
+    
+    public static final String VIRTUAL_THREADS = "threads.virtual";
+    
+    public static final String MAX_QUEUED_FILES = "queue.files.max";
 
     public static final String INPUT_URI = "input.uri";
     
     public static final String DATASTORE_URI = "datastore.uri";
     
+    public static final String DATASTORE_MAX_IN_FLIGHT = "datastore.inflight.max";
+    
+    public static final String DATASTORE_RETRY_QUEUE = "datastore.retry.queue.max";
+    
+    public static final String DATASTORE_LOCAL_DC = "datastore.dc.local";
+    
+    public static final String DATASTORE_LAYOUT = "datastore.layout";
+    
+    public static final String DATASTORE_MIGRATE = "datastore.migrate";
+    
     public static final String INPUT_HANDLER_CLASS = "input.handler.class";
     
     public static final String FILE_HANDLER_CLASS = "file.handler.class";
     
     public static final String FILE_FILTERS = "filters.file";
     
+    public static final String FILE_HANDLER_STREAMING = "file.handler.streaming";
+    
+    public static final String METADATA_DIRECTORIES = "metadata.directories";
+    
+    public static final String METADATA_TAGS = "metadata.tags";
+    
+    public static final String METADATA_EXCLUDED_DIRECTORIES = "metadata.directories.excluded";
+    
+    public static final String METADATA_EXCLUDED_TAGS = "metadata.tags.excluded";
+    
+    public static final String LIST_PREFIXES = "input.list.prefixes";
+    
+    public static final String LIST_DELIMITER = "input.list.delimiter";
+    
+    public static final String LIST_THREADS = "input.list.threads";
+    
+    public static final String LIST_API_VERSION = "input.list.version";
+    
+    public static final String RANGE_SIZE = "input.range.size";
+    
+    public static final String ASYNC_FETCH = "input.async";
+    
+    public static final String LARGE_FILE_SIZE = "input.large.size";
+    
+    public static final String SHORTEST_FIRST = "input.schedule.shortest";
+    
+    public static final String MANIFEST_FILE = "input.manifest.file";
+    
+    public static final String CHECKPOINT_FILE = "input.checkpoint.file";
+    
+    public static final String CHECKPOINT_INTERVAL = "input.checkpoint.interval";
+    
+    public static final String CHECKPOINT_RESUME = "input.checkpoint.resume";
+    
+    public static final String DEDUP_MODE = "input.dedup.mode";
+    
+    public static final String DEDUP_INDEX_FILE = "input.dedup.index.file";
+    
     public static final String OUTPUT_HANDLER_CLASS = "output.handler.class";
+    
+    public static final String OUTPUT_ROW_GROUP_SIZE = "output.rowgroup.size";
+    
+    public static final String OUTPUT_MAX_FILE_SIZE = "output.file.size.max";
+    
+    public static final String OUTPUT_LOG_FORMAT = "output.log.format";
+    
+    public static final String SPOOL_DIRECTORY = "output.spool.directory";
+    
+    public static final String SPOOL_SEGMENT_SIZE = "output.spool.segment.size";
+    
+    public static final String INDEX_FIELDS = "index.fields";
+    
+    public static final String INDEX_SEGMENT_SIZE = "index.segment.size";
 
     public static final String SESSION_PREFIX = "session.context.";
     
     public static final String SESSION = SESSION_PREFIX + "session";
+    
+    public static final String PIPELINE = SESSION_PREFIX + "pipeline";
 
     
     protected LinkedHashMap<String, Object> properties = new LinkedHashMap<String, Object>();
@@ -8,6 +8,7 @@ import java.util.logging.Logger;
 import net.posick.media.metadata.exif.handlers.FileHandler;
 import net.posick.media.metadata.exif.handlers.InputHandler;
 import net.posick.media.metadata.exif.handlers.OutputHandler;
+import net.posick.media.metadata.exif.handlers.StagedOutputHandler;
 
 /**
  * The Indexer is the main component of the Metadata indexing application. It connects the 
@@ -16,6 +17,9 @@ import net.posick.media.metadata.exif.handlers.OutputHandler;
  * The Indexer is distinct from the application Main application class so that it may be used
  * within another application or initiated by a different application entry point, e.g, RESTful endpoint.
  * 
+ * The Indexer creates the {@link Pipeline} of fetch, parse and write stages used by the Handlers. When the
+ * write stage is enabled the OutputHandler is executed by the write stage rather than by the parse stage.
+ * 
  * The Indexer implements the java.util.concurrent.Callable interface so that multiple Indexers
  * can be concurrently executed against different inputs.
  * 
@@ -62,12 +66,29 @@ public class Indexer implements Callable<Integer>
         
         if (inputHandler != null)
         {
+            // Create the stages of the Pipeline, the write stage is placed in front of the OutputHandler
+            Pipeline pipeline = new Pipeline(ctx);
+            ctx.put(Context.PIPELINE, pipeline);
+            OutputHandler output = outputHandler;
+            if (pipeline.getWriteExecutor() != null && outputHandler != null)
+            {
+                output = new StagedOutputHandler(ctx, outputHandler, pipeline.getWriteExecutor());
+            }
+            
             try
             {
                 // Connect the Handlers together
                 inputHandler.setFileHandler(fileHandler);
-                fileHandler.setOutputHandler(outputHandler);
+                fileHandler.setOutputHandler(output);
                 inputHandler.process(inputUri);
+                
+                // Wait for the files fetched to be parsed and written
+                pipeline.awaitCompletion();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                logger.log(Level.SEVERE, String.format("Interrupted while processing \"%s\"", inputUri), e);
+                return EXIT_CODES.INPUT_ERROR;
             } catch (IllegalArgumentException e)
             {
                 logger.log(Level.SEVERE, String.format("Error processing directory listings for \"%s\" - %s: %s", inputUri, e.getClass().getSimpleName(), e.getMessage()), e);
@@ -78,6 +99,30 @@ public class Indexer implements Callable<Integer>
                 return EXIT_CODES.INPUT_ERROR;
             } finally
             {
+                // Close the FileHandler and OutputHandler first so that buffered and asynchronous output is completed, and
+                // acknowledged, before the InputHandler saves the files written
+                if (fileHandler != null)
+                {
+                    try
+                    {
+                        fileHandler.close();
+                    } catch (IOException e)
+                    {
+                        logger.log(Level.WARNING, String.format("Error closing FileHandler - %s: %s",e.getClass().getSimpleName(), e.getMessage()), e);
+                    }
+                }
+                
+                if (output != null)
+                {
+                    try
+                    {
+                        output.close();
+                    } catch (IOException e)
+                    {
+                        logger.log(Level.WARNING, String.format("Error closing OutputHandler - %s: %s",e.getClass().getSimpleName(), e.getMessage()), e);
+                    }
+                }
+                
                 try
                 {
                     inputHandler.close();
@@ -85,6 +130,9 @@ public class Indexer implements Callable<Integer>
                 {
                     logger.log(Level.WARNING, String.format("Error closing InputHandler - %s: %s",e.getClass().getSimpleName(), e.getMessage()), e);
                 }
+                
+                pipeline.shutdown();
+                ctx.remove(Context.PIPELINE);
             }
         } else
         {
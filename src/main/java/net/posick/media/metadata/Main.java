@@ -1,5 +1,6 @@
 package net.posick.media.metadata;
 
+import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
@@ -18,11 +19,18 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import net.posick.media.metadata.exif.MetadataExtractorFileHandler;
+import net.posick.media.metadata.exif.MetadataRecord;
+import net.posick.media.metadata.exif.MetadataSelector;
 import net.posick.media.metadata.exif.handlers.FileHandler;
 import net.posick.media.metadata.exif.handlers.InputHandler;
 import net.posick.media.metadata.exif.handlers.OutputHandler;
+import net.posick.media.metadata.exif.input.ContentIndex;
+import net.posick.media.metadata.exif.input.FileSystemInputHandler;
 import net.posick.media.metadata.exif.input.S3BucketHandler;
 import net.posick.media.metadata.exif.output.CSQLOutputHandler;
+import net.posick.media.metadata.exif.output.ColumnarFileOutputHandler;
+import net.posick.media.metadata.exif.output.LogOutputHandler;
+import net.posick.media.metadata.exif.output.SpoolingOutputHandler;
 
 /**
  * The Main Application class.  Starts the application and returns the resulting exit code.
@@ -34,12 +42,28 @@ public class Main
 {
     private static final int DEFAULT_PROCESSING_THREADS = 10;
     
+    private static final int DEFAULT_LISTING_THREADS = 4;
+    
+    private static final int DEFAULT_WRITE_THREADS = 2;
+    
+    private static final int DEFAULT_LIST_API_VERSION = 2;
+    
+    private static final int DEFAULT_MAX_IN_FLIGHT = 128;
+    
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 60;
+    
     private static final Class<? extends FileHandler<?>> DEFAULT_FILE_HANDLER = MetadataExtractorFileHandler.class;
     
     private static final Class<? extends InputHandler> DEFAULT_INPUT_HANDLER = S3BucketHandler.class;
     
+    private static final Class<? extends InputHandler> DEFAULT_FILE_SYSTEM_INPUT_HANDLER = FileSystemInputHandler.class;
+    
     private static final Class<? extends OutputHandler<?>> DEFAULT_OUTPUT_HANDLER = CSQLOutputHandler.class;
     
+    private static final Class<? extends OutputHandler<?>> DEFAULT_FILE_OUTPUT_HANDLER = ColumnarFileOutputHandler.class;
+    
+    private static final Class<? extends OutputHandler<?>> DEFAULT_LOG_OUTPUT_HANDLER = LogOutputHandler.class;
+    
     private static Logger logger = Logger.getLogger(Main.class.getName());
     
     private static CommandLineParser cliParser = new DefaultParser();
@@ -50,10 +74,45 @@ public class Main
     
     static
     {
-        cliOptions.addOption(Option.builder("i").longOpt("input").hasArg().required().argName("Input URI").desc("Specifies the URI for the input directory listing").build());
+        cliOptions.addOption(Option.builder("i").longOpt("input").hasArg().required().argName("Input URI").desc("Specifies the URI for the input directory listing, an HTTP URI of an S3 bucket or a local directory").build());
         cliOptions.addOption(Option.builder("o").longOpt("output").hasArg().required().argName("Datasource URI").desc("Specifies the output URI to send EXIF metadata to").build());
         cliOptions.addOption(Option.builder("t").longOpt("threads").hasArg().argName("Processing Threads").desc("Specifies the maximum number of processing threads").build());
+        cliOptions.addOption(Option.builder().longOpt("fetch_threads").hasArg().argName("Fetch Threads").desc("Specifies the number of threads retrieving files, defaults to the number of processing threads").build());
+        cliOptions.addOption(Option.builder().longOpt("parse_threads").hasArg().argName("Parse Threads").desc("Specifies the number of threads parsing files, defaults to the number of processors").build());
+        cliOptions.addOption(Option.builder().longOpt("write_threads").hasArg().argName("Write Threads").desc("Specifies the number of threads writing metadata to the output, 0 writes from the parse threads").build());
+        cliOptions.addOption(Option.builder().longOpt("large_file_size").hasArg().argName("Bytes").desc("Specifies the size in bytes from which files are retrieved and parsed by a separate, smaller, pool of threads so that they do not delay smaller files").build());
+        cliOptions.addOption(Option.builder().longOpt("large_threads").hasArg().argName("Threads").desc("Specifies the number of threads retrieving and parsing large files, defaults to a quarter of the fetch threads").build());
+        cliOptions.addOption(Option.builder().longOpt("shortest_first").desc("Specifies that queued files are retrieved smallest first, using the sizes in the S3 listing").build());
+        cliOptions.addOption(Option.builder().longOpt("virtual_threads").desc("Specifies that files are retrieved and metadata is written using virtual threads, requires Java 21 or later").build());
+        cliOptions.addOption(Option.builder("q").longOpt("queue").hasArg().argName("Queued Files").desc("Specifies the maximum number of files queued for processing before the listing is paused").build());
         cliOptions.addOption(Option.builder("f").longOpt("filter").hasArg().argName("Input URI").desc("Specifies a regular expression filter for selecting input files").build());
+        cliOptions.addOption(Option.builder("p").longOpt("prefix").hasArg().argName("Key Prefix").desc("Specifies a key prefix to list, may be specified multiple times to list several prefixes concurrently").build());
+        cliOptions.addOption(Option.builder("d").longOpt("delimiter").hasArg().argName("Delimiter").desc("Specifies the delimiter used to discover common prefixes that are listed concurrently").build());
+        cliOptions.addOption(Option.builder().longOpt("list_threads").hasArg().argName("Listing Threads").desc("Specifies the maximum number of concurrent listing streams").build());
+        cliOptions.addOption(Option.builder().longOpt("list_version").hasArg().argName("List API Version").desc("Specifies the S3 ListObjects API version, 1 (marker) or 2 (continuation token)").build());
+        cliOptions.addOption(Option.builder("r").longOpt("range").hasArg().argName("Range Size").desc("Specifies the size in bytes of the initial HTTP Range request files are read with, defaults to 65536").build());
+        cliOptions.addOption(Option.builder().longOpt("async_fetch").desc("Specifies that the initial window of each file is retrieved using a non-blocking HTTP client with kept alive connections").build());
+        cliOptions.addOption(Option.builder("m").longOpt("manifest").hasArg().argName("Manifest File").desc("Specifies the manifest file used for incremental indexing, files unchanged since they were recorded are skipped").build());
+        cliOptions.addOption(Option.builder().longOpt("checkpoint").hasArg().argName("Checkpoint File").desc("Specifies the checkpoint file the progress of the indexing run is periodically saved to").build());
+        cliOptions.addOption(Option.builder().longOpt("checkpoint_interval").hasArg().argName("Seconds").desc("Specifies the number of seconds between checkpoints, defaults to 60").build());
+        cliOptions.addOption(Option.builder().longOpt("resume").desc("Specifies that an interrupted indexing run is resumed from the checkpoint file").build());
+        cliOptions.addOption(Option.builder().longOpt("dedup").hasArg().argName("etag|header").desc("Specifies that copies of files already indexed are recorded as aliases, identified by their S3 entity tag (etag) or a hash of the start of the file (header)").build());
+        cliOptions.addOption(Option.builder().longOpt("dedup_index").hasArg().argName("Index File").desc("Specifies the file the content index used for deduplication is saved to, so that copies of files indexed by earlier runs are recognized").build());
+        cliOptions.addOption(Option.builder().longOpt("max_inflight").hasArg().argName("Max In Flight").desc("Specifies the maximum number of write requests in flight to the datastore").build());
+        cliOptions.addOption(Option.builder().longOpt("spool").hasArg().argName("Spool Directory").desc("Specifies a local directory the metadata is spooled to before it is written to the output, so that parsing is not slowed by the output and metadata not yet written is written by the next run").build());
+        cliOptions.addOption(Option.builder().longOpt("retry_queue").hasArg().argName("Batches").desc("Specifies the maximum number of batches dropped by an overloaded datastore that are queued to be retried, defaults to 1024").build());
+        cliOptions.addOption(Option.builder().longOpt("local_dc").hasArg().argName("Datacenter").desc("Specifies the local datacenter of the datastore that writes are sent to, defaults to the datacenter of the output host").build());
+        cliOptions.addOption(Option.builder().longOpt("layout").hasArg().argName("wide|map").desc("Specifies the layout of the metadata in the datastore, a row per tag (wide) or a row per directory holding maps of its tags (map), defaults to wide").build());
+        cliOptions.addOption(Option.builder().longOpt("migrate").desc("Specifies that the metadata written to the exif.metadata table by earlier versions is copied to the datastore layout before indexing").build());
+        cliOptions.addOption(Option.builder().longOpt("row_group_size").hasArg().argName("Rows").desc("Specifies the number of rows buffered in each row group before it is written to the columnar output file").build());
+        cliOptions.addOption(Option.builder().longOpt("max_file_size").hasArg().argName("Bytes").desc("Specifies the size in bytes at which columnar output files are rolled over").build());
+        cliOptions.addOption(Option.builder().longOpt("log_format").hasArg().argName("jsonl|binary").desc("Specifies that the metadata is appended to the output file as a log of newline delimited JSON (jsonl) or binary entries").build());
+        cliOptions.addOption(Option.builder().longOpt("index_field").hasArg().argName("Field").desc("Specifies a tag name or alias indexed by the IndexOutputHandler, may be specified multiple times, * indexes every tag").build());
+        cliOptions.addOption(Option.builder().longOpt("stream_directories").desc("Specifies that metadata directories are sent to the output one at a time as they are decoded").build());
+        cliOptions.addOption(Option.builder().longOpt("directory").hasArg().argName("Directory").desc("Specifies a metadata directory to extract, may be specified multiple times. All directories are extracted when no directories or tags are specified").build());
+        cliOptions.addOption(Option.builder().longOpt("tag").hasArg().argName("[Directory:]Tag").desc("Specifies a metadata tag to extract by its decimal or hexadecimal tag identifier, may be specified multiple times").build());
+        cliOptions.addOption(Option.builder().longOpt("exclude_directory").hasArg().argName("Directory").desc("Specifies a metadata directory that is not extracted, may be specified multiple times").build());
+        cliOptions.addOption(Option.builder().longOpt("exclude_tag").hasArg().argName("[Directory:]Tag").desc("Specifies a metadata tag that is not extracted, may be specified multiple times").build());
         cliOptions.addOption(Option.builder().longOpt("file_handler").hasArg().argName("File Handler").desc("Specifies the File Handler to be used to extract the EXIF metadata from the input media files").build());
         cliOptions.addOption(Option.builder().longOpt("input_handler").hasArg().argName("Input Handler").desc("Specifies the Input Handler to be used to read the input media files").build());
         cliOptions.addOption(Option.builder().longOpt("output_handler").hasArg().argName("Output Handler").desc("Specifies the Output Handler to be used to send the processed data to").build());
@@ -111,11 +170,46 @@ public class Main
         try
         {
             int threads = DEFAULT_PROCESSING_THREADS;
+            int fetchThreads = -1;
+            int parseThreads = Runtime.getRuntime().availableProcessors();
+            int writeThreads = DEFAULT_WRITE_THREADS;
+            boolean virtualThreads = false;
+            long largeFileSize = 0;
+            int largeThreads = -1;
+            boolean shortestFirst = false;
+            int listThreads = DEFAULT_LISTING_THREADS;
+            int maxQueued = -1;
+            int listVersion = DEFAULT_LIST_API_VERSION;
+            int rangeSize = 0;
+            boolean asyncFetch = false;
+            int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+            int retryQueue = 0;
+            String spoolDirectory = null;
+            String localDc = null;
+            String layout = null;
+            boolean migrate = false;
+            int rowGroupSize = 0;
+            long maxFileSize = 0;
+            String logFormat = null;
+            boolean streamDirectories = false;
+            String delimiter = null;
+            String manifestFile = null;
+            String checkpointFile = null;
+            int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+            boolean resume = false;
+            String dedupMode = null;
+            String dedupIndexFile = null;
+            List<String> prefixes = new ArrayList<>();
+            List<String> directories = new ArrayList<>();
+            List<String> tags = new ArrayList<>();
+            List<String> excludedDirectories = new ArrayList<>();
+            List<String> excludedTags = new ArrayList<>();
+            List<String> indexFields = new ArrayList<>();
             String inputUri = null;
             String outputUri = null;
             Class<? extends FileHandler> fileHandlerClass = DEFAULT_FILE_HANDLER;
-            Class<? extends InputHandler> inputHandlerClass = DEFAULT_INPUT_HANDLER;
-            Class<? extends OutputHandler<?>> outputHandlerClass = DEFAULT_OUTPUT_HANDLER;
+            Class<? extends InputHandler> inputHandlerClass = null;
+            Class<? extends OutputHandler<?>> outputHandlerClass = null;
             List<Pattern> filters = new ArrayList<>();
             
             // Using the Apache Commons Command Line Interface API to parse command line  
@@ -157,6 +251,337 @@ public class Main
                             throw new ParseException(String.format("Invalid threads argument \"%s\" - threads must be a positive whole number greater than 0", temp));
                         }
                         break;
+                    case "fetch_threads":
+                        temp = option.getValue();
+                        try
+                        {
+                            fetchThreads = Integer.parseInt(temp);
+                        } catch (NumberFormatException e)
+                        {
+                            fetchThreads = -1;
+                        }
+                        if (fetchThreads < 1)
+                        {
+                            throw new ParseException(String.format("Invalid fetch_threads argument \"%s\" - fetch_threads must be a positive whole number greater than 0", temp));
+                        }
+                        break;
+                    case "parse_threads":
+                        temp = option.getValue();
+                        try
+                        {
+                            parseThreads = Integer.parseInt(temp);
+                        } catch (NumberFormatException e)
+                        {
+                            parseThreads = -1;
+                        }
+                        if (parseThreads < 1)
+                        {
+                            throw new ParseException(String.format("Invalid parse_threads argument \"%s\" - parse_threads must be a positive whole number greater than 0", temp));
+                        }
+                        break;
+                    case "write_threads":
+                        temp = option.getValue();
+                        try
+                        {
+                            writeThreads = Integer.parseInt(temp);
+                        } catch (NumberFormatException e)
+                        {
+                            writeThreads = -1;
+                        }
+                        if (writeThreads < 0)
+                        {
+                            throw new ParseException(String.format("Invalid write_threads argument \"%s\" - write_threads must be a positive whole number or 0", temp));
+                        }
+                        break;
+                    case "virtual_threads":
+                        virtualThreads = true;
+                        break;
+                    case "large_file_size":
+                        temp = option.getValue();
+                        try
+                        {
+                            largeFileSize = Long.parseLong(temp);
+                        } catch (NumberFormatException e)
+                        {
+                            largeFileSize = -1;
+                        }
+                        if (largeFileSize < 1)
+                        {
+                            throw new ParseException(String.format("Invalid large_file_size argument \"%s\" - large_file_size must be a positive whole number greater than 0", temp));
+                        }
+                        break;
+                    case "large_threads":
+                        temp = option.getValue();
+                        try
+                        {
+                            largeThreads = Integer.parseInt(temp);
+                        } catch (NumberFormatException e)
+                        {
+                            largeThreads = -1;
+                        }
+                        if (largeThreads < 1)
+                        {
+                            throw new ParseException(String.format("Invalid large_threads argument \"%s\" - large_threads must be a positive whole number greater than 0", temp));
+                        }
+                        break;
+                    case "shortest_first":
+                        shortestFirst = true;
+                        break;
+                    case "queue":
+                        temp = option.getValue();
+                        try
+                        {
+                            maxQueued = Integer.parseInt(temp);
+                        } catch (NumberFormatException e)
+                        {
+                            maxQueued = -1;
+                        }
+                        if (maxQueued < 1)
+                        {
+                            throw new ParseException(String.format("Invalid queue argument \"%s\" - queue must be a positive whole number greater than 0", temp));
+                        }
+                        break;
+                    case "prefix":
+                        temp = option.getValue();
+                        if (temp == null)
+                        {
+                            throw new ParseException("Invalid prefix argument - prefix cannot be empty");
+                        }
+                        prefixes.add(temp);
+                        break;
+                    case "directory":
+                        temp = option.getValue();
+                        if (temp == null || temp.trim().length() == 0)
+                        {
+                            throw new ParseException("Invalid directory argument - directory cannot be empty");
+                        }
+                        directories.add(temp.trim());
+                        break;
+                    case "exclude_directory":
+                        temp = option.getValue();
+                        if (temp == null || temp.trim().length() == 0)
+                        {
+                            throw new ParseException("Invalid exclude_directory argument - directory cannot be empty");
+                        }
+                        excludedDirectories.add(temp.trim());
+                        break;
+                    case "tag":
+                        temp = option.getValue();
+                        try
+                        {
+                            MetadataSelector.parseTagId(temp);
+                        } catch (IllegalArgumentException e)
+                        {
+                            throw new ParseException(e.getMessage());
+                        }
+                        tags.add(temp.trim());
+                        break;
+                    case "exclude_tag":
+                        temp = option.getValue();
+                        try
+                        {
+                            MetadataSelector.parseTagId(temp);
+                        } catch (IllegalArgumentException e)
+                        {
+                            throw new ParseException(e.getMessage());
+                        }
+                        excludedTags.add(temp.trim());
+                        break;
+                    case "delimiter":
+                        delimiter = option.getValue();
+                        if (delimiter == null || delimiter.length() == 0)
+                        {
+                            throw new ParseException(String.format("Invalid delimiter argument \"%s\" - delimiter cannot be empty", delimiter));
+                        }
+                        break;
+                    case "list_threads":
+                        temp = option.getValue();
+                        try
+                        {
+                            listThreads = Integer.parseInt(temp);
+                        } catch (NumberFormatException e)
+                        {
+                            listThreads = -1;
+                        }
+                        if (listThreads < 1)
+                        {
+                            throw new ParseException(String.format("Invalid list_threads argument \"%s\" - list_threads must be a positive whole number greater than 0", temp));
+                        }
+                        break;
+                    case "list_version":
+                        temp = option.getValue();
+                        try
+                        {
+                            listVersion = Integer.parseInt(temp);
+                        } catch (NumberFormatException e)
+                        {
+                            listVersion = -1;
+                        }
+                        if (listVersion != 1 && listVersion != 2)
+                        {
+                            throw new ParseException(String.format("Invalid list_version argument \"%s\" - list_version must be 1 or 2", temp));
+                        }
+                        break;
+                    case "range":
+                        temp = option.getValue();
+                        try
+                        {
+                            rangeSize = Integer.parseInt(temp);
+                        } catch (NumberFormatException e)
+                        {
+                            rangeSize = -1;
+                        }
+                        if (rangeSize < 1)
+                        {
+                            throw new ParseException(String.format("Invalid range argument \"%s\" - range must be a positive whole number greater than 0", temp));
+                        }
+                        break;
+                    case "async_fetch":
+                        asyncFetch = true;
+                        break;
+                    case "manifest":
+                        manifestFile = option.getValue();
+                        if (manifestFile == null || manifestFile.length() == 0)
+                        {
+                            throw new ParseException(String.format("Invalid manifest argument \"%s\" - manifest cannot be empty", manifestFile));
+                        }
+                        break;
+                    case "checkpoint":
+                        checkpointFile = option.getValue();
+                        if (checkpointFile == null || checkpointFile.length() == 0)
+                        {
+                            throw new ParseException(String.format("Invalid checkpoint argument \"%s\" - checkpoint cannot be empty", checkpointFile));
+                        }
+                        break;
+                    case "checkpoint_interval":
+                        temp = option.getValue();
+                        try
+                        {
+                            checkpointInterval = Integer.parseInt(temp);
+                        } catch (NumberFormatException e)
+                        {
+                            checkpointInterval = -1;
+                        }
+                        if (checkpointInterval < 1)
+                        {
+                            throw new ParseException(String.format("Invalid checkpoint_interval argument \"%s\" - checkpoint_interval must be a positive whole number greater than 0", temp));
+                        }
+                        break;
+                    case "resume":
+                        resume = true;
+                        break;
+                    case "dedup":
+                        dedupMode = option.getValue();
+                        if (!ContentIndex.isValidMode(dedupMode))
+                        {
+                            throw new ParseException(String.format("Invalid dedup argument \"%s\" - dedup must be \"%s\" or \"%s\"", dedupMode, ContentIndex.MODE_ETAG, ContentIndex.MODE_HEADER));
+                        }
+                        break;
+                    case "dedup_index":
+                        dedupIndexFile = option.getValue();
+                        if (dedupIndexFile == null || dedupIndexFile.length() == 0)
+                        {
+                            throw new ParseException(String.format("Invalid dedup_index argument \"%s\" - dedup_index cannot be empty", dedupIndexFile));
+                        }
+                        break;
+                    case "max_inflight":
+                        temp = option.getValue();
+                        try
+                        {
+                            maxInFlight = Integer.parseInt(temp);
+                        } catch (NumberFormatException e)
+                        {
+                            maxInFlight = -1;
+                        }
+                        if (maxInFlight < 1)
+                        {
+                            throw new ParseException(String.format("Invalid max_inflight argument \"%s\" - max_inflight must be a positive whole number greater than 0", temp));
+                        }
+                        break;
+                    case "spool":
+                        spoolDirectory = option.getValue();
+                        if (spoolDirectory == null || spoolDirectory.length() == 0)
+                        {
+                            throw new ParseException(String.format("Invalid spool argument \"%s\" - spool cannot be empty", spoolDirectory));
+                        }
+                        break;
+                    case "retry_queue":
+                        temp = option.getValue();
+                        try
+                        {
+                            retryQueue = Integer.parseInt(temp);
+                        } catch (NumberFormatException e)
+                        {
+                            retryQueue = -1;
+                        }
+                        if (retryQueue < 1)
+                        {
+                            throw new ParseException(String.format("Invalid retry_queue argument \"%s\" - retry_queue must be a positive whole number greater than 0", temp));
+                        }
+                        break;
+                    case "local_dc":
+                        localDc = option.getValue();
+                        if (localDc == null || localDc.length() == 0)
+                        {
+                            throw new ParseException(String.format("Invalid local_dc argument \"%s\" - local_dc cannot be empty", localDc));
+                        }
+                        break;
+                    case "layout":
+                        layout = option.getValue();
+                        if (!CSQLOutputHandler.isValidLayout(layout))
+                        {
+                            throw new ParseException(String.format("Invalid layout argument \"%s\" - layout must be \"%s\" or \"%s\"", layout, CSQLOutputHandler.LAYOUT_WIDE, CSQLOutputHandler.LAYOUT_MAP));
+                        }
+                        break;
+                    case "migrate":
+                        migrate = true;
+                        break;
+                    case "row_group_size":
+                        temp = option.getValue();
+                        try
+                        {
+                            rowGroupSize = Integer.parseInt(temp);
+                        } catch (NumberFormatException e)
+                        {
+                            rowGroupSize = -1;
+                        }
+                        if (rowGroupSize < 1)
+                        {
+                            throw new ParseException(String.format("Invalid row_group_size argument \"%s\" - row_group_size must be a positive whole number greater than 0", temp));
+                        }
+                        break;
+                    case "max_file_size":
+                        temp = option.getValue();
+                        try
+                        {
+                            maxFileSize = Long.parseLong(temp);
+                        } catch (NumberFormatException e)
+                        {
+                            maxFileSize = -1;
+                        }
+                        if (maxFileSize < 1)
+                        {
+                            throw new ParseException(String.format("Invalid max_file_size argument \"%s\" - max_file_size must be a positive whole number greater than 0", temp));
+                        }
+                        break;
+                    case "log_format":
+                        logFormat = option.getValue();
+                        if (!LogOutputHandler.isValidFormat(logFormat))
+                        {
+                            throw new ParseException(String.format("Invalid log_format argument \"%s\" - log_format must be \"%s\" or \"%s\"", logFormat, LogOutputHandler.FORMAT_JSON, LogOutputHandler.FORMAT_BINARY));
+                        }
+                        break;
+                    case "index_field":
+                        temp = option.getValue();
+                        if (temp == null || temp.trim().length() == 0)
+                        {
+                            throw new ParseException("Invalid index_field argument - field cannot be empty");
+                        }
+                        indexFields.add(temp.trim());
+                        break;
+                    case "stream_directories":
+                        streamDirectories = true;
+                        break;
                     case "filter":
                         temp = option.getValue();
                         if (temp == null || temp.length() == 0)
@@ -241,9 +666,9 @@ public class Main
                             {
                                 Class<?> clazz = Class.forName(temp);
                                 
-                                if (InputHandler.class.isAssignableFrom(clazz))
+                                if (OutputHandler.class.isAssignableFrom(clazz))
                                 {
-                                    inputHandlerClass = (Class<InputHandler>) clazz;
+                                    outputHandlerClass = (Class<OutputHandler<?>>) clazz;
                                 } else
                                 {
                                     throw new ParseException(stdError);
@@ -257,15 +682,129 @@ public class Main
                 }
             }
             
+            if (resume && checkpointFile == null)
+            {
+                throw new ParseException("Invalid resume argument - resume requires a checkpoint file");
+            }
+            
+            if (dedupIndexFile != null && dedupMode == null)
+            {
+                throw new ParseException("Invalid dedup_index argument - dedup_index requires a dedup mode");
+            }
+            
+            // Input URIs that are not HTTP URIs are read from the file system unless an Input Handler is specified
+            if (inputHandlerClass == null)
+            {
+                String scheme = inputUri != null && inputUri.indexOf(':') > 1 ? inputUri.substring(0, inputUri.indexOf(':')).toLowerCase() : "";
+                inputHandlerClass = scheme.equals("http") || scheme.equals("https") ? DEFAULT_INPUT_HANDLER : DEFAULT_FILE_SYSTEM_INPUT_HANDLER;
+            }
+            
+            // File URIs are written to local columnar files, or to a log when the URI is a log file or a log format is
+            // specified, unless an Output Handler is specified
+            if (outputHandlerClass == null)
+            {
+                String uri = outputUri != null ? outputUri.toLowerCase() : "";
+                if (!uri.startsWith("file:"))
+                {
+                    outputHandlerClass = DEFAULT_OUTPUT_HANDLER;
+                } else if (logFormat != null || uri.endsWith(".jsonl") || uri.endsWith(".log"))
+                {
+                    outputHandlerClass = DEFAULT_LOG_OUTPUT_HANDLER;
+                } else
+                {
+                    outputHandlerClass = DEFAULT_FILE_OUTPUT_HANDLER;
+                }
+            }
+            
             // Populate the application Context. The application Context is used to pass information through the
             // application in a flexible way and acts as a session context during execution.
             ctx.put(Context.MAX_THREADS, threads);
+            ctx.put(Context.FETCH_THREADS, fetchThreads > 0 ? fetchThreads : threads);
+            ctx.put(Context.PARSE_THREADS, parseThreads);
+            ctx.put(Context.WRITE_THREADS, writeThreads);
+            ctx.put(Context.VIRTUAL_THREADS, virtualThreads);
+            if (largeFileSize > 0)
+            {
+                ctx.put(Context.LARGE_FILE_SIZE, largeFileSize);
+                if (largeThreads > 0)
+                {
+                    ctx.put(Context.LARGE_FILE_THREADS, largeThreads);
+                }
+            }
+            ctx.put(Context.SHORTEST_FIRST, shortestFirst);
+            if (maxQueued > 0)
+            {
+                ctx.put(Context.MAX_QUEUED_FILES, maxQueued);
+            }
             ctx.put(Context.INPUT_URI, inputUri);
             ctx.put(Context.DATASTORE_URI, outputUri);
-            ctx.put(Context.INPUT_HANDLER_CLASS, fileHandlerClass);
+            ctx.put(Context.DATASTORE_MAX_IN_FLIGHT, maxInFlight);
+            if (retryQueue > 0)
+            {
+                ctx.put(Context.DATASTORE_RETRY_QUEUE, retryQueue);
+            }
+            if (localDc != null)
+            {
+                ctx.put(Context.DATASTORE_LOCAL_DC, localDc);
+            }
+            if (layout != null)
+            {
+                ctx.put(Context.DATASTORE_LAYOUT, layout);
+            }
+            ctx.put(Context.DATASTORE_MIGRATE, migrate);
+            ctx.put(Context.INPUT_HANDLER_CLASS, inputHandlerClass);
             ctx.put(Context.FILE_HANDLER_CLASS, fileHandlerClass);
             ctx.put(Context.FILE_FILTERS, filters);
-            ctx.put(Context.OUTPUT_HANDLER_CLASS, fileHandlerClass);
+            ctx.put(Context.FILE_HANDLER_STREAMING, streamDirectories);
+            ctx.put(Context.METADATA_DIRECTORIES, directories);
+            ctx.put(Context.METADATA_TAGS, tags);
+            ctx.put(Context.METADATA_EXCLUDED_DIRECTORIES, excludedDirectories);
+            ctx.put(Context.METADATA_EXCLUDED_TAGS, excludedTags);
+            ctx.put(Context.LIST_PREFIXES, prefixes);
+            ctx.put(Context.LIST_DELIMITER, delimiter);
+            ctx.put(Context.LIST_THREADS, listThreads);
+            ctx.put(Context.LIST_API_VERSION, listVersion);
+            ctx.put(Context.RANGE_SIZE, rangeSize);
+            ctx.put(Context.ASYNC_FETCH, asyncFetch);
+            if (manifestFile != null)
+            {
+                ctx.put(Context.MANIFEST_FILE, manifestFile);
+            }
+            if (checkpointFile != null)
+            {
+                ctx.put(Context.CHECKPOINT_FILE, checkpointFile);
+                ctx.put(Context.CHECKPOINT_INTERVAL, checkpointInterval);
+                ctx.put(Context.CHECKPOINT_RESUME, resume);
+            }
+            if (dedupMode != null)
+            {
+                ctx.put(Context.DEDUP_MODE, dedupMode);
+                if (dedupIndexFile != null)
+                {
+                    ctx.put(Context.DEDUP_INDEX_FILE, dedupIndexFile);
+                }
+            }
+            ctx.put(Context.OUTPUT_HANDLER_CLASS, outputHandlerClass);
+            if (rowGroupSize > 0)
+            {
+                ctx.put(Context.OUTPUT_ROW_GROUP_SIZE, rowGroupSize);
+            }
+            if (maxFileSize > 0)
+            {
+                ctx.put(Context.OUTPUT_MAX_FILE_SIZE, maxFileSize);
+            }
+            if (logFormat != null)
+            {
+                ctx.put(Context.OUTPUT_LOG_FORMAT, logFormat);
+            }
+            if (spoolDirectory != null)
+            {
+                ctx.put(Context.SPOOL_DIRECTORY, spoolDirectory);
+            }
+            if (!indexFields.isEmpty())
+            {
+                ctx.put(Context.INDEX_FIELDS, indexFields);
+            }
             
             if (outputHandlerClass != null)
             {
@@ -276,6 +815,12 @@ public class Main
                 {
                     throw new ParseException(String.format("Invalid Handler \"%s\": %s", outputHandlerClass.getName(), e.getMessage()));
                 }
+                
+                // The metadata is spooled to disk and written to the Output Handler by the spool's drainer
+                if (spoolDirectory != null)
+                {
+                    outputHandler = new SpoolingOutputHandler(ctx, (OutputHandler<MetadataRecord>) outputHandler);
+                }
             } else
             {
                 throw new ParseException(String.format("Invalid Output Handler specified. The Output Handler must extend \"%s\" and implement a constructor that accepts a single Context argument", OutputHandler.class.getName()));
@@ -313,6 +858,10 @@ public class Main
             logger.log(Level.SEVERE, "Error parsing command line: " + e.getMessage(), e);
             formatter.printHelp("Indexer", cliOptions);
             System.exit(EXIT_CODES.CONFIG_ERROR);
+        } catch (IOException e)
+        {
+            logger.log(Level.SEVERE, "Error occurred: " + e.getMessage(), e);
+            System.exit(EXIT_CODES.INITIALIZATION_ERROR);
         } catch (InvocationTargetException ie)
         {
             Throwable e = ie.getTargetException();
@@ -0,0 +1,323 @@
+package net.posick.media.metadata;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.posick.utils.BoundedExecutor;
+
+/**
+ * The Pipeline contains the executors of the stages of the indexing process. Files are fetched by the fetch
+ * stage, parsed by the parse stage and the parsed metadata is written to the output by the write stage. Each
+ * stage has its own, independently sized, pool of threads and a bounded queue between it and the previous stage,
+ * so that blocking I/O in the fetch and write stages does not starve the CPU bound parse stage and a slow stage
+ * applies backpressure to the stages before it.
+ *
+ * When a large file size is configured, files of at least that size are retrieved and parsed by a separate large
+ * file stage with its own, smaller, pool of threads, so that a few very large files, e.g., videos, cannot occupy
+ * the fetch and parse stages while many small files wait behind them.
+ *
+ * When virtual threads are enabled, and supported by the Java runtime, the blocking fetch and write stages
+ * execute each task on its own virtual thread. The number of threads of these stages then limits the number of
+ * tasks executing concurrently rather than the number of platform threads, so that tens of thousands of
+ * blocking requests may be in flight with a small memory footprint. The CPU bound parse stage always uses
+ * platform threads.
+ *
+ * The Pipeline is created by the {@link Indexer} and made available to the Handlers through the Context using
+ * the {@link Context#PIPELINE} session key.
+ *
+ * @author posicks
+ */
+public class Pipeline
+{
+    public static final int DEFAULT_QUEUED_TASKS_PER_THREAD = 4;
+
+    private static Logger logger = Logger.getLogger(Pipeline.class.getName());
+
+    private BoundedExecutor fetchExecutor;
+
+    private BoundedExecutor parseExecutor;
+
+    private BoundedExecutor writeExecutor;
+
+    private BoundedExecutor largeFileExecutor;
+
+
+    /**
+     * Creates the Pipeline executors sized using the Context.
+     *
+     * @param ctx The application Context
+     */
+    public Pipeline(Context ctx)
+    {
+        int maxThreads = ctx.get(Context.MAX_THREADS);
+        int fetchThreads = ctx.get(Context.FETCH_THREADS, maxThreads);
+        int parseThreads = ctx.get(Context.PARSE_THREADS, Runtime.getRuntime().availableProcessors());
+        int writeThreads = ctx.get(Context.WRITE_THREADS, 0);
+        Integer maxQueued = ctx.get(Context.MAX_QUEUED_FILES);
+        boolean virtual = ctx.get(Context.VIRTUAL_THREADS, false);
+
+        fetchExecutor = virtual ? newVirtualStageExecutor("fetch", fetchThreads, maxQueued) : null;
+        if (fetchExecutor == null)
+        {
+            fetchExecutor = newStageExecutor("fetch", fetchThreads, maxQueued);
+        }
+        parseExecutor = newStageExecutor("parse", parseThreads, maxQueued);
+        if (writeThreads > 0)
+        {
+            writeExecutor = virtual ? newVirtualStageExecutor("write", writeThreads, maxQueued) : null;
+            if (writeExecutor == null)
+            {
+                writeExecutor = newStageExecutor("write", writeThreads, maxQueued);
+            }
+        }
+
+        int largeFileThreads = getLargeFileThreads(ctx);
+        if (largeFileThreads > 0)
+        {
+            largeFileExecutor = newStageExecutor("large", largeFileThreads, maxQueued);
+        }
+
+        if (logger.isLoggable(Level.FINE))
+        {
+            logger.logp(Level.FINE, getClass().getName(), "<init>", String.format("Pipeline stages - fetch: %d, parse: %d, write: %d, large files: %d threads", fetchThreads, parseThreads, writeThreads, largeFileThreads));
+        }
+    }
+
+
+    /**
+     * @param ctx The application Context
+     * @return The number of threads of the large file stage, 0 if large files are not separated from other files
+     */
+    public static int getLargeFileThreads(Context ctx)
+    {
+        if (ctx.get(Context.LARGE_FILE_SIZE, (Number) 0L).longValue() <= 0)
+        {
+            return 0;
+        }
+        int fetchThreads = ctx.get(Context.FETCH_THREADS, (Integer) ctx.get(Context.MAX_THREADS));
+        return ctx.get(Context.LARGE_FILE_THREADS, Math.max(1, fetchThreads / 4));
+    }
+
+
+    /**
+     * Creates the executor of a stage.
+     *
+     * @param name The name of the stage
+     * @param threads The number of threads that execute the stage
+     * @param maxQueued The maximum number of tasks queued for the stage, or null to use the default
+     * @return The executor of the stage
+     */
+    private static BoundedExecutor newStageExecutor(final String name, int threads, Integer maxQueued)
+    {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory threadFactory = (Runnable r) ->
+        {
+            Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setUncaughtExceptionHandler((Thread t, Throwable e) ->
+            {
+                logger.log(Level.WARNING, String.format("Error occurred in %s stage: %s - %s", name, e.getClass().getSimpleName(), e.getMessage()), e);
+            });
+            return thread;
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(threads, threadFactory);
+        return new BoundedExecutor(executor, maxQueued != null ? maxQueued : threads * DEFAULT_QUEUED_TASKS_PER_THREAD);
+    }
+
+
+    /**
+     * Creates the executor of a stage that executes each task on a new virtual thread. The number of tasks executing
+     * concurrently is limited to the concurrency of the stage, tasks queued beyond it wait on their virtual thread
+     * until a task completes. The number of tasks queued or executing is bounded as for a stage using platform threads.
+     *
+     * Virtual threads are created using reflection so that the application can still be built for and executed
+     * by Java runtimes that do not support virtual threads.
+     *
+     * @param name The name of the stage
+     * @param concurrency The maximum number of tasks executing concurrently
+     * @param maxQueued The maximum number of tasks queued for the stage, or null to use the default
+     * @return The executor of the stage, or null if virtual threads are not supported by the Java runtime
+     */
+    private static BoundedExecutor newVirtualStageExecutor(String name, int concurrency, Integer maxQueued)
+    {
+        try
+        {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            ExecutorService executor = new ConcurrencyLimitedExecutor((ExecutorService) method.invoke(null), concurrency);
+            return new BoundedExecutor(executor, maxQueued != null ? Math.max(concurrency, maxQueued) : concurrency * DEFAULT_QUEUED_TASKS_PER_THREAD);
+        } catch (ReflectiveOperationException | RuntimeException e)
+        {
+            logger.log(Level.WARNING, String.format("Virtual threads are not supported by this Java runtime, the %s stage will use platform threads - %s: %s", name, e.getClass().getSimpleName(), e.getMessage()));
+            return null;
+        }
+    }
+
+
+    /**
+     * The ConcurrencyLimitedExecutor limits the number of tasks of the wrapped ExecutorService that execute
+     * concurrently. Each task acquires a permit on the thread executing it before it runs, so tasks beyond the limit
+     * wait on their, virtual, thread rather than in a queue.
+     *
+     * @author posicks
+     */
+    private static class ConcurrencyLimitedExecutor extends AbstractExecutorService
+    {
+        private final ExecutorService executor;
+
+        private final Semaphore permits;
+
+
+        ConcurrencyLimitedExecutor(ExecutorService executor, int concurrency)
+        {
+            this.executor = executor;
+            this.permits = new Semaphore(concurrency);
+        }
+
+
+        @Override
+        public void execute(final Runnable task)
+        {
+            executor.execute(() ->
+            {
+                try
+                {
+                    permits.acquire();
+                } catch (InterruptedException e)
+                {
+                    // The stage is shutting down
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                try
+                {
+                    task.run();
+                } finally
+                {
+                    permits.release();
+                }
+            });
+        }
+
+
+        @Override
+        public void shutdown()
+        {
+            executor.shutdown();
+        }
+
+
+        @Override
+        public List<Runnable> shutdownNow()
+        {
+            return executor.shutdownNow();
+        }
+
+
+        @Override
+        public boolean isShutdown()
+        {
+            return executor.isShutdown();
+        }
+
+
+        @Override
+        public boolean isTerminated()
+        {
+            return executor.isTerminated();
+        }
+
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit)
+        throws InterruptedException
+        {
+            return executor.awaitTermination(timeout, unit);
+        }
+    }
+
+
+    /**
+     * @return The executor of the fetch stage
+     */
+    public BoundedExecutor getFetchExecutor()
+    {
+        return fetchExecutor;
+    }
+
+
+    /**
+     * @return The executor of the parse stage
+     */
+    public BoundedExecutor getParseExecutor()
+    {
+        return parseExecutor;
+    }
+
+
+    /**
+     * @return The executor of the write stage, or null if the output is written by the parse stage
+     */
+    public BoundedExecutor getWriteExecutor()
+    {
+        return writeExecutor;
+    }
+
+
+    /**
+     * @return The executor of the large file stage, which both retrieves and parses large files, or null if large
+     * files are not separated from other files
+     */
+    public BoundedExecutor getLargeFileExecutor()
+    {
+        return largeFileExecutor;
+    }
+
+
+    /**
+     * Waits until all tasks of all stages have completed. The stages are waited for in order, so that
+     * tasks submitted by a stage to the next stage are complete when this method returns.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitCompletion()
+    throws InterruptedException
+    {
+        fetchExecutor.awaitCompletion();
+        if (largeFileExecutor != null)
+        {
+            largeFileExecutor.awaitCompletion();
+        }
+        parseExecutor.awaitCompletion();
+        if (writeExecutor != null)
+        {
+            writeExecutor.awaitCompletion();
+        }
+    }
+
+
+    /**
+     * Shuts down the executors of all stages.
+     */
+    public void shutdown()
+    {
+        fetchExecutor.shutdown();
+        if (largeFileExecutor != null)
+        {
+            largeFileExecutor.shutdown();
+        }
+        parseExecutor.shutdown();
+        if (writeExecutor != null)
+        {
+            writeExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package net.posick.media.metadata;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import net.posick.media.metadata.exif.index.GeoArea;
+import net.posick.media.metadata.exif.index.MetadataIndex;
+import net.posick.media.metadata.exif.index.Predicate;
+
+/**
+ * The Query Application class. Finds the files in a metadata index that match the predicates specified on the
+ * command line, e.g., "Make=Canon" "ISO>3200", optionally within a geographic area, and prints their keys.
+ *
+ * @author posicks
+ */
+public class Query
+{
+    private static Logger logger = Logger.getLogger(Query.class.getName());
+
+    private static CommandLineParser cliParser = new DefaultParser();
+
+    private static HelpFormatter formatter = new HelpFormatter();
+
+    private static Options cliOptions = new Options();
+
+    static
+    {
+        cliOptions.addOption(Option.builder("i").longOpt("index").hasArg().required().argName("Index Directory").desc("Specifies the directory of the metadata index, a local directory or a file: URI").build());
+        cliOptions.addOption(Option.builder("l").longOpt("limit").hasArg().argName("Results").desc("Specifies the maximum number of keys printed").build());
+        cliOptions.addOption(Option.builder().longOpt("bbox").hasArg().argName("South,West,North,East").desc("Specifies that only files whose GPS location is within the bounding box, in decimal degrees, are matched").build());
+        cliOptions.addOption(Option.builder().longOpt("near").hasArg().argName("Latitude,Longitude,Kilometres").desc("Specifies that only files whose GPS location is within the distance of the location are matched").build());
+        cliOptions.addOption(Option.builder("c").longOpt("count").desc("Specifies that the number of matching files is printed rather than their keys").build());
+    }
+
+
+    /**
+     * The applications main method.
+     *
+     * @param args The command line arguments
+     */
+    public static void main(String[] args)
+    {
+        String indexUri = null;
+        int limit = 0;
+        boolean count = false;
+        List<Predicate> predicates = new ArrayList<>();
+        GeoArea area = null;
+
+        try
+        {
+            CommandLine cmdLine = cliParser.parse(cliOptions, args);
+            String temp;
+            for (Option option : cmdLine.getOptions())
+            {
+                switch (option.getLongOpt())
+                {
+                    case "index":
+                        indexUri = option.getValue();
+                        if (indexUri == null || indexUri.length() == 0)
+                        {
+                            throw new ParseException(String.format("Invalid index argument \"%s\" - index cannot be empty", indexUri));
+                        }
+                        break;
+                    case "limit":
+                        temp = option.getValue();
+                        try
+                        {
+                            limit = Integer.parseInt(temp);
+                        } catch (NumberFormatException e)
+                        {
+                            limit = -1;
+                        }
+                        if (limit < 1)
+                        {
+                            throw new ParseException(String.format("Invalid limit argument \"%s\" - limit must be a positive whole number greater than 0", temp));
+                        }
+                        break;
+                    case "count":
+                        count = true;
+                        break;
+                    case "bbox":
+                    case "near":
+                        if (area != null)
+                        {
+                            throw new ParseException(String.format("Invalid %s argument - only one of bbox or near may be specified", option.getLongOpt()));
+                        }
+                        try
+                        {
+                            area = GeoArea.parse(option.getValue(), option.getLongOpt().equals("near"));
+                        } catch (IllegalArgumentException e)
+                        {
+                            throw new ParseException(e.getMessage());
+                        }
+                        break;
+                }
+            }
+
+            // Predicates may be separated by "and", e.g., Make=Canon and ISO>3200
+            for (String arg : cmdLine.getArgs())
+            {
+                if (!arg.equalsIgnoreCase("and"))
+                {
+                    try
+                    {
+                        predicates.add(Predicate.parse(arg));
+                    } catch (IllegalArgumentException e)
+                    {
+                        throw new ParseException(e.getMessage());
+                    }
+                }
+            }
+        } catch (ParseException e)
+        {
+            logger.log(Level.SEVERE, "Error parsing command line: " + e.getMessage(), e);
+            formatter.printHelp("Query [options] <predicate>...", cliOptions);
+            System.exit(EXIT_CODES.CONFIG_ERROR);
+        }
+
+        Path directory = indexUri.startsWith("file:") ? Paths.get(URI.create(indexUri)) : Paths.get(indexUri);
+        int exitCode = EXIT_CODES.OK;
+        long start = System.nanoTime();
+        try (MetadataIndex index = new MetadataIndex(directory))
+        {
+            long matches;
+            if (count)
+            {
+                matches = index.count(predicates, area);
+                System.out.println(matches);
+            } else
+            {
+                List<String> keys = index.search(predicates, area, limit);
+                for (String key : keys)
+                {
+                    System.out.println(key);
+                }
+                matches = keys.size();
+            }
+            if (logger.isLoggable(Level.INFO))
+            {
+                logger.logp(Level.INFO, Query.class.getName(), "main", String.format("%d file(s) matched %s%s in %d segment(s) in %d ms", matches, predicates, area != null ? " within " + area : "", index.getSegmentCount(), (System.nanoTime() - start) / 1000000));
+            }
+        } catch (IOException e)
+        {
+            logger.log(Level.SEVERE, String.format("Error reading index \"%s\": %s", directory, e.getMessage()), e);
+            exitCode = EXIT_CODES.INPUT_ERROR;
+        }
+
+        System.exit(exitCode);
+    }
+}
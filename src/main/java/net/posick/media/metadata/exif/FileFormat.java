@@ -0,0 +1,188 @@
+package net.posick.media.metadata.exif;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import com.drew.imaging.FileType;
+import com.drew.imaging.FileTypeDetector;
+
+import net.posick.media.metadata.exif.handlers.FileHandler;
+
+/**
+ * The FileFormat is the format of a media file, detected from the magic bytes at the start of the file.
+ *
+ * The formats detected by the Metadata Extractor library are extended with the ISO base media file formats (HEIF,
+ * MP4 and QuickTime), which are identified by the brand of their "ftyp" box, or for older QuickTime files by the
+ * type of their first atom.
+ *
+ * @author posicks
+ */
+public enum FileFormat
+{
+    JPEG(true),
+    TIFF(true),
+    TIFF_RAW(true),
+    RAF(true),
+    CRW(false),
+    PSD(true),
+    PNG(true),
+    BMP(true),
+    GIF(true),
+    ICO(true),
+    PCX(true),
+    WEBP(true),
+    HEIF(false),
+    MP4(false),
+    QUICKTIME(false),
+    UNKNOWN(false);
+
+
+    private static final int ISO_BASE_MEDIA_HEADER_LENGTH = 12;
+
+    private boolean supported;
+
+
+    private FileFormat(boolean supported)
+    {
+        this.supported = supported;
+    }
+
+
+    /**
+     * @return true if metadata can be read from files of this format
+     */
+    public boolean isSupported()
+    {
+        return supported;
+    }
+
+
+    /**
+     * Detects the format of the file from its magic bytes. The stream is reset to the start of the file.
+     *
+     * @param in The stream containing the file, positioned at the start of the file
+     * @return The format of the file
+     * @throws IOException
+     */
+    public static FileFormat detect(BufferedInputStream in)
+    throws IOException
+    {
+        byte[] header = new byte[FileHandler.HEADER_LENGTH];
+        in.mark(header.length);
+        int length = 0;
+        int read;
+        while (length < header.length && (read = in.read(header, length, header.length - length)) > 0)
+        {
+            length += read;
+        }
+        in.reset();
+        return detect(header, length);
+    }
+
+
+    /**
+     * Detects the format of the file from its magic bytes.
+     *
+     * @param header The first bytes of the file
+     * @param length The number of bytes in the header
+     * @return The format of the file
+     */
+    public static FileFormat detect(byte[] header, int length)
+    {
+        if (length >= ISO_BASE_MEDIA_HEADER_LENGTH)
+        {
+            FileFormat format = detectIsoBaseMediaFormat(header);
+            if (format != null)
+            {
+                return format;
+            }
+        }
+
+        FileType fileType;
+        try
+        {
+            fileType = FileTypeDetector.detectFileType(new BufferedInputStream(new ByteArrayInputStream(header, 0, length)));
+        } catch (IOException e)
+        {
+            return UNKNOWN;
+        }
+
+        switch (fileType)
+        {
+            case Jpeg:
+                return JPEG;
+            case Tiff:
+                return TIFF;
+            case Arw:
+            case Cr2:
+            case Nef:
+            case Orf:
+            case Rw2:
+                return TIFF_RAW;
+            case Raf:
+                return RAF;
+            case Crw:
+                return CRW;
+            case Psd:
+                return PSD;
+            case Png:
+                return PNG;
+            case Bmp:
+                return BMP;
+            case Gif:
+                return GIF;
+            case Ico:
+                return ICO;
+            case Pcx:
+                return PCX;
+            case Riff:
+                // Only WebP files are read from RIFF containers, other RIFF files (e.g., AVI and WAV) are not supported
+                return length >= 12 && "WEBP".equals(new String(header, 8, 4, StandardCharsets.ISO_8859_1)) ? WEBP : UNKNOWN;
+            default:
+                return UNKNOWN;
+        }
+    }
+
+
+    /**
+     * @param header The first bytes of the file
+     * @return The ISO base media file format of the file, or null if the file is not an ISO base media file
+     */
+    private static FileFormat detectIsoBaseMediaFormat(byte[] header)
+    {
+        String type = new String(header, 4, 4, StandardCharsets.ISO_8859_1);
+        switch (type)
+        {
+            case "ftyp":
+                String brand = new String(header, 8, 4, StandardCharsets.ISO_8859_1);
+                switch (brand)
+                {
+                    case "heic":
+                    case "heix":
+                    case "heim":
+                    case "heis":
+                    case "hevc":
+                    case "hevx":
+                    case "mif1":
+                    case "msf1":
+                    case "avif":
+                        return HEIF;
+                    case "qt  ":
+                        return QUICKTIME;
+                    default:
+                        return MP4;
+                }
+            case "moov":
+            case "mdat":
+            case "wide":
+            case "free":
+            case "skip":
+            case "pnot":
+                return QUICKTIME;
+            default:
+                return null;
+        }
+    }
+}
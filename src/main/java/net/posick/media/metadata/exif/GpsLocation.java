@@ -0,0 +1,180 @@
+package net.posick.media.metadata.exif;
+
+import java.util.Locale;
+
+import com.drew.lang.GeoLocation;
+import com.drew.lang.Rational;
+import com.drew.metadata.exif.GpsDirectory;
+
+/**
+ * A GpsLocation is the location recorded in the GPS directory of a file, decoded from degrees, minutes, seconds and
+ * hemisphere references into signed decimal degrees, and the altitude in metres relative to sea level.
+ *
+ * The decoded location is added to the GPS directory of the {@link MetadataRecord} as the Latitude, Longitude and
+ * Altitude tags, whose values are doubles, so that every OutputHandler receives the location as numbers rather than
+ * only as the text descriptions of the raw tags. The decoded tags have negative tag identifiers, which are not used
+ * by the GPS directory.
+ *
+ * @author posicks
+ */
+public class GpsLocation
+{
+    public static final String DIRECTORY = "GPS";
+
+    public static final int TAG_LATITUDE = -1;
+
+    public static final int TAG_LONGITUDE = -2;
+
+    public static final int TAG_ALTITUDE = -3;
+
+    private final double latitude;
+
+    private final double longitude;
+
+    private final double altitude;
+
+
+    /**
+     * Creates a GpsLocation.
+     *
+     * @param latitude The latitude in decimal degrees, positive north of the equator
+     * @param longitude The longitude in decimal degrees, positive east of the prime meridian
+     * @param altitude The altitude in metres relative to sea level, or NaN if not known
+     */
+    public GpsLocation(double latitude, double longitude, double altitude)
+    {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.altitude = altitude;
+    }
+
+
+    /**
+     * @param directory The GPS directory of a file
+     * @return The location recorded in the directory, or null if the directory does not record a valid location
+     */
+    public static GpsLocation fromDirectory(GpsDirectory directory)
+    {
+        GeoLocation location = directory.getGeoLocation();
+        if (location == null || location.isZero() || !isValid(location.getLatitude(), location.getLongitude()))
+        {
+            // Receivers without a fix often record 0, 0
+            return null;
+        }
+
+        double altitude = Double.NaN;
+        Rational value = directory.getRational(GpsDirectory.TAG_ALTITUDE);
+        if (value != null && value.getDenominator() != 0)
+        {
+            altitude = value.doubleValue();
+            Integer reference = directory.getInteger(GpsDirectory.TAG_ALTITUDE_REF);
+            if (reference != null && reference == 1)
+            {
+                // Below sea level
+                altitude = -altitude;
+            }
+        }
+        return new GpsLocation(location.getLatitude(), location.getLongitude(), altitude);
+    }
+
+
+    /**
+     * @param record The metadata of a file
+     * @return The location decoded into the GPS directory of the record, or null if the record has no location
+     */
+    public static GpsLocation fromRecord(MetadataRecord record)
+    {
+        for (int directory = 0; directory < record.getDirectoryCount(); directory++ )
+        {
+            if (!DIRECTORY.equals(record.getDirectoryName(directory)))
+            {
+                continue;
+            }
+
+            double latitude = Double.NaN;
+            double longitude = Double.NaN;
+            double altitude = Double.NaN;
+            int end = record.getTagEnd(directory);
+            for (int index = record.getTagStart(directory); index < end; index++ )
+            {
+                if (record.getType(index) != MetadataRecord.TYPE_DOUBLE)
+                {
+                    continue;
+                }
+                switch (record.getTagId(index))
+                {
+                    case TAG_LATITUDE:
+                        latitude = record.getDouble(index);
+                        break;
+                    case TAG_LONGITUDE:
+                        longitude = record.getDouble(index);
+                        break;
+                    case TAG_ALTITUDE:
+                        altitude = record.getDouble(index);
+                        break;
+                }
+            }
+            if (isValid(latitude, longitude))
+            {
+                return new GpsLocation(latitude, longitude, altitude);
+            }
+        }
+        return null;
+    }
+
+
+    private static boolean isValid(double latitude, double longitude)
+    {
+        return latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180;
+    }
+
+
+    /**
+     * Adds the decoded location to the current directory of the record.
+     *
+     * @param record The record
+     */
+    public void addTags(MetadataRecord record)
+    {
+        record.addTag(TAG_LATITUDE, "Latitude", String.format(Locale.ROOT, "%.6f", latitude), latitude);
+        record.addTag(TAG_LONGITUDE, "Longitude", String.format(Locale.ROOT, "%.6f", longitude), longitude);
+        if (!Double.isNaN(altitude))
+        {
+            record.addTag(TAG_ALTITUDE, "Altitude", String.format(Locale.ROOT, "%.1f metres", altitude), altitude);
+        }
+    }
+
+
+    /**
+     * @return The latitude in decimal degrees, positive north of the equator
+     */
+    public double getLatitude()
+    {
+        return latitude;
+    }
+
+
+    /**
+     * @return The longitude in decimal degrees, positive east of the prime meridian
+     */
+    public double getLongitude()
+    {
+        return longitude;
+    }
+
+
+    /**
+     * @return The altitude in metres relative to sea level, or NaN if not known
+     */
+    public double getAltitude()
+    {
+        return altitude;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.ROOT, "%.6f, %.6f", latitude, longitude);
+    }
+}
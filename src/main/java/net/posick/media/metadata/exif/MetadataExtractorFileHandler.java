@@ -1,35 +1,87 @@
 package net.posick.media.metadata.exif;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Level;
 
-import com.drew.imaging.ImageMetadataReader;
 import com.drew.imaging.ImageProcessingException;
+import com.drew.imaging.bmp.BmpMetadataReader;
+import com.drew.imaging.gif.GifMetadataReader;
+import com.drew.imaging.ico.IcoMetadataReader;
+import com.drew.imaging.jpeg.JpegMetadataReader;
+import com.drew.imaging.jpeg.JpegSegmentMetadataReader;
+import com.drew.imaging.pcx.PcxMetadataReader;
+import com.drew.imaging.png.PngMetadataReader;
+import com.drew.imaging.psd.PsdMetadataReader;
+import com.drew.imaging.raf.RafMetadataReader;
+import com.drew.imaging.tiff.TiffMetadataReader;
+import com.drew.imaging.webp.WebpMetadataReader;
 import com.drew.metadata.Directory;
 import com.drew.metadata.Metadata;
 import com.drew.metadata.Tag;
+import com.drew.metadata.exif.GpsDirectory;
 
 import net.posick.media.metadata.Context;
 import net.posick.media.metadata.exif.handlers.FileHandler;
+import net.posick.media.metadata.exif.handlers.OutputHandler;
 
 /**
  * The MetadataExtractorFileHandler is an implementation of the FileHandler that uses the 
  * Metadata Extractor library (https://drewnoakes.com/code/exif/) to parse EXIF metadata from
- * the provided input file/stream and sends that metadata to the registered OutputHandler.
+ * the provided input file/stream and sends that metadata to the registered OutputHandler as a
+ * {@link MetadataRecord}.
+ * 
+ * By default the metadata of all directories of a file is sent to the OutputHandler once, after the file
+ * has been parsed. When streaming is enabled each directory is sent to the OutputHandler on its own, as
+ * soon as it has been converted, so that every directory is still written exactly once. Streaming is disabled for
+ * OutputHandlers that need all of the metadata of a file at once, see {@link OutputHandler#supportsStreaming()}.
+ * 
+ * Only the directories and tags selected by the {@link MetadataSelector} are converted. The JPEG segments that do
+ * not contain selected directories are skipped without being decoded.
+ * 
+ * The format of each file is detected from its magic bytes (see {@link FileFormat}) and the file is read by the
+ * reader for that format. Files whose format is not supported are rejected by {@link #accepts(String, byte[], int)}
+ * so that they are skipped before more than their first window is retrieved.
+ * 
+ * The coordinates of the GPS directory are also decoded into signed decimal degrees, see {@link GpsLocation}.
  * 
  * @author posicks
  */
-public class MetadataExtractorFileHandler extends FileHandler<Map<String, Map<Integer, Map<String, Object>>>>
+public class MetadataExtractorFileHandler extends FileHandler<MetadataRecord>
 {
+    private boolean streaming;
+    
+    private MetadataSelector selector;
+    
+    
     /* (non-Javadoc)
      * @see net.posick.media.metadata.exif.handlers.AbstractHandler
      */
     public MetadataExtractorFileHandler(Context ctx)
     {
         super(ctx);
+        this.streaming = ctx.get(Context.FILE_HANDLER_STREAMING, false);
+        this.selector = new MetadataSelector(ctx);
+    }
+    
+    
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.FileHandler#setOutputHandler(net.posick.media.metadata.exif.handlers.OutputHandler)
+     */
+    @Override
+    public void setOutputHandler(OutputHandler<MetadataRecord> outputHandler)
+    {
+        super.setOutputHandler(outputHandler);
+        boolean requested = ctx.get(Context.FILE_HANDLER_STREAMING, false);
+        this.streaming = requested && outputHandler != null && outputHandler.supportsStreaming();
+        if (requested && !streaming)
+        {
+            logger.logp(Level.INFO, getClass().getName(), "setOutputHandler", "Directories are not streamed, the output needs all of the metadata of a file at once");
+        }
     }
     
     
@@ -37,35 +89,70 @@ public class MetadataExtractorFileHandler extends FileHandler<Map<String, Map<In
      * @see net.posick.media.metadata.exif.handlers.FileHandler#process(java.lang.String, java.io.InputStream)
      */
     @Override
-    public void process(String key, InputStream in)
+    public CompletableFuture<Void> process(String key, InputStream in)
     throws IOException
     {
-        String datastoreUri = ctx.get(Context.DATASTORE_URI);
         try
         {
-            Map<String, Map<Integer, Map<String, Object>>> metadataMap = new LinkedHashMap<>();
-            Metadata metadata = ImageMetadataReader.readMetadata(in);
-    
-            for (Directory directory : metadata.getDirectories())
+            Metadata metadata = readMetadata(key, in);
+            if (metadata == null)
             {
-                Map<Integer, Map<String, Object>> directoryMap = new LinkedHashMap<>();
-                metadataMap.put(directory.getName(), directoryMap);
-                
-                for (Tag tag : directory.getTags())
+                return CompletableFuture.completedFuture(null);
+            }
+            
+            List<CompletableFuture<Void>> writes = new ArrayList<>(1);
+            MetadataRecord record = null;
+            if (!streaming)
+            {
+                // Size the record so that it holds all of the tags of the file without growing
+                int directoryCount = 0;
+                int tagCount = 0;
+                for (Directory directory : metadata.getDirectories())
                 {
-                    LinkedHashMap<String, Object> valueMap = new LinkedHashMap<>();
-                    valueMap.put("TagName", tag.getTagName());
-                    valueMap.put("Description", tag.getDescription());
-                    valueMap.put("Value", directory.getObject(tag.getTagType()));
-                    directoryMap.put(tag.getTagType(), valueMap);
+                    directoryCount++ ;
+                    tagCount += directory.getTagCount();
                 }
-                
-                try
-                {
-                    outputHandler.output(key, metadataMap);
-                } catch (Exception e)
+                // The decoded GPS location adds up to 3 tags
+                tagCount += 3;
+                record = new MetadataRecord(directoryCount, tagCount);
+            }
+            
+            for (Directory directory : metadata.getDirectories())
+            {
+                MetadataSelector.Selection selection = selector.select(directory.getName());
+                if (selection != null)
                 {
-                    logger.log(Level.WARNING, String.format("Error writing metadata to output \"%s\": %s - %s", datastoreUri, e.getClass().getSimpleName(), e.getMessage()), e);
+                    if (streaming)
+                    {
+                        // Each directory is sent to the OutputHandler on its own as soon as it has been converted
+                        record = new MetadataRecord(1, directory.getTagCount() + 3);
+                    }
+                    
+                    record.addDirectory(directory.getName());
+                    for (Tag tag : directory.getTags())
+                    {
+                        // Unselected tags are skipped before their descriptions are formatted
+                        int tagType = tag.getTagType();
+                        if (selection.isSelected(tagType))
+                        {
+                            record.addTag(tagType, tag.getTagName(), tag.getDescription(), directory.getObject(tagType));
+                        }
+                    }
+                    
+                    // The location is decoded into doubles when the raw coordinates are selected
+                    if (directory instanceof GpsDirectory && selection.isSelected(GpsDirectory.TAG_LATITUDE) && selection.isSelected(GpsDirectory.TAG_LONGITUDE))
+                    {
+                        GpsLocation location = GpsLocation.fromDirectory((GpsDirectory) directory);
+                        if (location != null)
+                        {
+                            location.addTags(record);
+                        }
+                    }
+                    
+                    if (streaming)
+                    {
+                        writes.add(outputHandler.write(key, record));
+                    }
                 }
                 
                 if (directory.hasErrors())
@@ -76,9 +163,83 @@ public class MetadataExtractorFileHandler extends FileHandler<Map<String, Map<In
                     }
                 }
             }
+            
+            if (!streaming && record.getDirectoryCount() > 0)
+            {
+                writes.add(outputHandler.write(key, record));
+            }
+            return writes.size() == 1 ? writes.get(0) : CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()]));
         } catch (ImageProcessingException e)
         {
-            logger.log(Level.WARNING, String.format("Error processing file \"%s\":", key), e);
+            throw new IOException(String.format("Error processing file \"%s\" - %s", key, e.getMessage()), e);
+        }
+    }
+    
+    
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.FileHandler#accepts(java.lang.String, byte[], int)
+     */
+    @Override
+    public boolean accepts(String key, byte[] header, int length)
+    {
+        FileFormat format = FileFormat.detect(header, length);
+        if (!format.isSupported())
+        {
+            if (logger.isLoggable(Level.FINE))
+            {
+                logger.logp(Level.FINE, getClass().getName(), "accepts", String.format("Skipping file \"%s\", the %s format is not supported", key, format));
+            }
+            return false;
+        }
+        return true;
+    }
+    
+    
+    /**
+     * Reads the metadata of the file using the reader for the format of the file, detected from its magic bytes.
+     * JPEG files are read using only the segment readers that produce the selected directories.
+     * 
+     * @param key The unique key for the file
+     * @param in The InputStream containing the file contents
+     * @return The metadata of the file, or null if the format of the file is not supported
+     * @throws ImageProcessingException
+     * @throws IOException
+     */
+    private Metadata readMetadata(String key, InputStream in)
+    throws ImageProcessingException, IOException
+    {
+        BufferedInputStream bufferedIn = in instanceof BufferedInputStream ? (BufferedInputStream) in : new BufferedInputStream(in);
+        FileFormat format = FileFormat.detect(bufferedIn);
+        switch (format)
+        {
+            case JPEG:
+                Iterable<JpegSegmentMetadataReader> readers = selector.getJpegSegmentReaders();
+                return JpegMetadataReader.readMetadata(bufferedIn, readers != null ? readers : JpegMetadataReader.ALL_READERS);
+            case TIFF:
+            case TIFF_RAW:
+                return TiffMetadataReader.readMetadata(bufferedIn);
+            case RAF:
+                return RafMetadataReader.readMetadata(bufferedIn);
+            case PSD:
+                return PsdMetadataReader.readMetadata(bufferedIn);
+            case PNG:
+                return PngMetadataReader.readMetadata(bufferedIn);
+            case BMP:
+                return BmpMetadataReader.readMetadata(bufferedIn);
+            case GIF:
+                return GifMetadataReader.readMetadata(bufferedIn);
+            case ICO:
+                return IcoMetadataReader.readMetadata(bufferedIn);
+            case PCX:
+                return PcxMetadataReader.readMetadata(bufferedIn);
+            case WEBP:
+                return WebpMetadataReader.readMetadata(bufferedIn);
+            default:
+                if (logger.isLoggable(Level.FINE))
+                {
+                    logger.logp(Level.FINE, getClass().getName(), "readMetadata", String.format("Skipping file \"%s\", the %s format is not supported", key, format));
+                }
+                return null;
         }
     }
 }
@@ -0,0 +1,403 @@
+package net.posick.media.metadata.exif;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.drew.lang.Rational;
+
+/**
+ * The MetadataRecord is a compact, array backed, container for the metadata of a file, exchanged between the
+ * FileHandler and the OutputHandler.
+ *
+ * The tags of all directories are stored in parallel arrays indexed by the position of the tag in the record, the
+ * tags of a directory occupy a contiguous range of positions. Numeric and boolean values are stored unboxed in a
+ * primitive array, strings, arrays and other values are stored by reference. The type of each value, including the
+ * element type of arrays, is determined once when the tag is added so that consumers of the record dispatch on the
+ * type without inspecting the class of the value. Directory and tag names are interned so that records share a
+ * single instance of each name rather than each record holding its own copies.
+ *
+ * A MetadataRecord is populated by a single thread and must not be modified once it has been sent to the
+ * OutputHandler.
+ *
+ * @author posicks
+ */
+public class MetadataRecord
+{
+    public static final byte TYPE_NULL = 0;
+
+    public static final byte TYPE_INT = 1;
+
+    public static final byte TYPE_LONG = 2;
+
+    public static final byte TYPE_DOUBLE = 3;
+
+    public static final byte TYPE_BOOLEAN = 4;
+
+    public static final byte TYPE_STRING = 5;
+
+    public static final byte TYPE_OBJECT = 6;
+
+    public static final byte TYPE_RATIONAL = 7;
+
+    public static final byte TYPE_BYTE_ARRAY = 8;
+
+    public static final byte TYPE_SHORT_ARRAY = 9;
+
+    public static final byte TYPE_INT_ARRAY = 10;
+
+    public static final byte TYPE_LONG_ARRAY = 11;
+
+    public static final byte TYPE_FLOAT_ARRAY = 12;
+
+    public static final byte TYPE_DOUBLE_ARRAY = 13;
+
+    public static final byte TYPE_RATIONAL_ARRAY = 14;
+
+    public static final byte TYPE_OBJECT_ARRAY = 15;
+
+    private static final int MAX_INTERNED_NAMES = 8192;
+
+    private static final Map<String, String> names = new ConcurrentHashMap<>();
+
+    private int directoryCount = 0;
+
+    private String[] directoryNames;
+
+    private int[] directoryStarts;
+
+    private int size = 0;
+
+    private int[] tagIds;
+
+    private String[] tagNames;
+
+    private String[] descriptions;
+
+    private byte[] types;
+
+    private long[] primitiveValues;
+
+    private Object[] objectValues;
+
+
+    /**
+     * Creates an empty MetadataRecord.
+     */
+    public MetadataRecord()
+    {
+        this(4, 32);
+    }
+
+
+    /**
+     * Creates an empty MetadataRecord sized to hold the specified number of directories and tags without growing.
+     *
+     * @param directoryCapacity The expected number of directories
+     * @param tagCapacity The expected number of tags of all directories
+     */
+    public MetadataRecord(int directoryCapacity, int tagCapacity)
+    {
+        directoryCapacity = Math.max(directoryCapacity, 1);
+        tagCapacity = Math.max(tagCapacity, 1);
+        directoryNames = new String[directoryCapacity];
+        directoryStarts = new int[directoryCapacity];
+        tagIds = new int[tagCapacity];
+        tagNames = new String[tagCapacity];
+        descriptions = new String[tagCapacity];
+        types = new byte[tagCapacity];
+        primitiveValues = new long[tagCapacity];
+        objectValues = new Object[tagCapacity];
+    }
+
+
+    /**
+     * Returns the shared instance of the name. The number of shared names is capped so that generated names
+     * (e.g., names of unknown tags) cannot grow the table without bound.
+     *
+     * @param name The directory or tag name
+     * @return The shared instance of the name
+     */
+    static String intern(String name)
+    {
+        if (name == null)
+        {
+            return null;
+        }
+        String shared = names.get(name);
+        if (shared != null)
+        {
+            return shared;
+        }
+        if (names.size() >= MAX_INTERNED_NAMES)
+        {
+            return name;
+        }
+        shared = names.putIfAbsent(name, name);
+        return shared != null ? shared : name;
+    }
+
+
+    /**
+     * Starts a new directory, the tags added after this call belong to the directory.
+     *
+     * @param name The name of the directory
+     */
+    public void addDirectory(String name)
+    {
+        if (directoryCount == directoryNames.length)
+        {
+            int capacity = directoryCount * 2;
+            directoryNames = Arrays.copyOf(directoryNames, capacity);
+            directoryStarts = Arrays.copyOf(directoryStarts, capacity);
+        }
+        directoryNames[directoryCount] = intern(name);
+        directoryStarts[directoryCount] = size;
+        directoryCount++ ;
+    }
+
+
+    /**
+     * Adds a tag to the current directory.
+     *
+     * @param tagId The tag identifier
+     * @param tagName The name of the tag
+     * @param description The human readable description of the value
+     * @param value The value of the tag, may be null
+     */
+    public void addTag(int tagId, String tagName, String description, Object value)
+    {
+        if (directoryCount == 0)
+        {
+            throw new IllegalStateException("A directory must be added before its tags");
+        }
+
+        if (size == tagIds.length)
+        {
+            int capacity = size * 2;
+            tagIds = Arrays.copyOf(tagIds, capacity);
+            tagNames = Arrays.copyOf(tagNames, capacity);
+            descriptions = Arrays.copyOf(descriptions, capacity);
+            types = Arrays.copyOf(types, capacity);
+            primitiveValues = Arrays.copyOf(primitiveValues, capacity);
+            objectValues = Arrays.copyOf(objectValues, capacity);
+        }
+
+        tagIds[size] = tagId;
+        tagNames[size] = intern(tagName);
+        descriptions[size] = description;
+        if (value == null)
+        {
+            types[size] = TYPE_NULL;
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+        {
+            types[size] = TYPE_INT;
+            primitiveValues[size] = ((Number) value).intValue();
+        } else if (value instanceof Long)
+        {
+            types[size] = TYPE_LONG;
+            primitiveValues[size] = (Long) value;
+        } else if (value instanceof Double || value instanceof Float)
+        {
+            types[size] = TYPE_DOUBLE;
+            primitiveValues[size] = Double.doubleToRawLongBits(((Number) value).doubleValue());
+        } else if (value instanceof Boolean)
+        {
+            types[size] = TYPE_BOOLEAN;
+            primitiveValues[size] = (Boolean) value ? 1 : 0;
+        } else
+        {
+            types[size] = typeOf(value);
+            objectValues[size] = value;
+        }
+        size++ ;
+    }
+
+
+    /**
+     * @param value A value that is not stored as a primitive
+     * @return The type of the value
+     */
+    private static byte typeOf(Object value)
+    {
+        if (value instanceof String)
+        {
+            return TYPE_STRING;
+        } else if (value instanceof Rational)
+        {
+            return TYPE_RATIONAL;
+        } else if (!value.getClass().isArray())
+        {
+            return TYPE_OBJECT;
+        } else if (value instanceof byte[])
+        {
+            return TYPE_BYTE_ARRAY;
+        } else if (value instanceof short[])
+        {
+            return TYPE_SHORT_ARRAY;
+        } else if (value instanceof int[])
+        {
+            return TYPE_INT_ARRAY;
+        } else if (value instanceof long[])
+        {
+            return TYPE_LONG_ARRAY;
+        } else if (value instanceof float[])
+        {
+            return TYPE_FLOAT_ARRAY;
+        } else if (value instanceof double[])
+        {
+            return TYPE_DOUBLE_ARRAY;
+        } else if (value instanceof Rational[])
+        {
+            return TYPE_RATIONAL_ARRAY;
+        } else
+        {
+            // Object arrays, arrays of arrays and char arrays
+            return TYPE_OBJECT_ARRAY;
+        }
+    }
+
+
+    /**
+     * @return The number of directories in the record
+     */
+    public int getDirectoryCount()
+    {
+        return directoryCount;
+    }
+
+
+    /**
+     * @param directory The index of the directory
+     * @return The name of the directory
+     */
+    public String getDirectoryName(int directory)
+    {
+        return directoryNames[directory];
+    }
+
+
+    /**
+     * @param directory The index of the directory
+     * @return The position of the first tag of the directory
+     */
+    public int getTagStart(int directory)
+    {
+        return directoryStarts[directory];
+    }
+
+
+    /**
+     * @param directory The index of the directory
+     * @return The position following the last tag of the directory
+     */
+    public int getTagEnd(int directory)
+    {
+        return directory + 1 < directoryCount ? directoryStarts[directory + 1] : size;
+    }
+
+
+    /**
+     * @return The number of tags of all directories in the record
+     */
+    public int size()
+    {
+        return size;
+    }
+
+
+    /**
+     * @param index The position of the tag
+     * @return The tag identifier
+     */
+    public int getTagId(int index)
+    {
+        return tagIds[index];
+    }
+
+
+    /**
+     * @param index The position of the tag
+     * @return The name of the tag
+     */
+    public String getTagName(int index)
+    {
+        return tagNames[index];
+    }
+
+
+    /**
+     * @param index The position of the tag
+     * @return The human readable description of the value
+     */
+    public String getDescription(int index)
+    {
+        return descriptions[index];
+    }
+
+
+    /**
+     * @param index The position of the tag
+     * @return The type of the value, one of the TYPE_ constants
+     */
+    public byte getType(int index)
+    {
+        return types[index];
+    }
+
+
+    /**
+     * @param index The position of the tag
+     * @return The value of a TYPE_INT, TYPE_LONG or TYPE_BOOLEAN tag
+     */
+    public long getLong(int index)
+    {
+        return primitiveValues[index];
+    }
+
+
+    /**
+     * @param index The position of the tag
+     * @return The value of a TYPE_DOUBLE tag
+     */
+    public double getDouble(int index)
+    {
+        return Double.longBitsToDouble(primitiveValues[index]);
+    }
+
+
+    /**
+     * @param index The position of the tag
+     * @return The value of a tag that is not stored as a primitive, i.e., a string, rational, array or object
+     */
+    public Object getObject(int index)
+    {
+        return objectValues[index];
+    }
+
+
+    /**
+     * Returns the value of the tag, boxing primitive values.
+     *
+     * @param index The position of the tag
+     * @return The value of the tag, or null
+     */
+    public Object getValue(int index)
+    {
+        switch (types[index])
+        {
+            case TYPE_INT:
+                return (int) primitiveValues[index];
+            case TYPE_LONG:
+                return primitiveValues[index];
+            case TYPE_DOUBLE:
+                return getDouble(index);
+            case TYPE_BOOLEAN:
+                return primitiveValues[index] != 0;
+            case TYPE_NULL:
+                return null;
+            default:
+                return objectValues[index];
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package net.posick.media.metadata.exif;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.drew.lang.Rational;
+
+/**
+ * The MetadataRecordCodec encodes the metadata of a file, a key and its {@link MetadataRecord}, into a compact binary
+ * form and decodes it back, so that metadata can be captured and later replayed into an OutputHandler.
+ *
+ * The record is the key, the number of directories and each directory as its name, its number of tags and its tags.
+ * A tag is its identifier, name, description, type and value. Integer, long and boolean values are zig-zag encoded
+ * variable length integers, doubles are 8 bytes, rationals are a numerator and a denominator, arrays are the binary
+ * form of the {@link ValueCodec} and other values are text. Strings are prefixed with their length plus one, a length
+ * of 0 is a null string. Values encoded as text are decoded as strings.
+ *
+ * A MetadataRecordCodec is not thread safe, each thread must use its own MetadataRecordCodec.
+ *
+ * @author posicks
+ */
+public class MetadataRecordCodec
+{
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+
+    /**
+     * The buffer records are encoded to, the internal array is exposed to avoid copying the encoded record.
+     */
+    private static class Buffer extends ByteArrayOutputStream
+    {
+        public Buffer()
+        {
+            super(4096);
+        }
+
+
+        public ByteBuffer toByteBuffer()
+        {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+
+
+    private Buffer buffer = new Buffer();
+
+    private ValueCodec valueCodec = new ValueCodec();
+
+
+    /**
+     * Encodes the metadata of a file. The returned buffer is only valid until the next record is encoded.
+     *
+     * @param key The unique key for the file
+     * @param record The metadata of the file
+     * @return The encoded record
+     */
+    public ByteBuffer encode(String key, MetadataRecord record)
+    {
+        reset();
+        writeString(key);
+        writeVarint(record.getDirectoryCount());
+        for (int directory = 0; directory < record.getDirectoryCount(); directory++ )
+        {
+            int start = record.getTagStart(directory);
+            int end = record.getTagEnd(directory);
+            writeString(record.getDirectoryName(directory));
+            writeVarint(end - start);
+            for (int index = start; index < end; index++ )
+            {
+                writeVarint(zigZag(record.getTagId(index)));
+                writeString(record.getTagName(index));
+                writeString(record.getDescription(index));
+                writeValue(record, index);
+            }
+        }
+        return buffer.toByteBuffer();
+    }
+
+
+    private void reset()
+    {
+        if (buffer.size() > MAX_RETAINED_CAPACITY)
+        {
+            // Do not retain the buffer of an unusually large record
+            buffer = new Buffer();
+        }
+        buffer.reset();
+    }
+
+
+    private void writeValue(MetadataRecord record, int index)
+    {
+        byte type = valueCodec.encode(record, index);
+        buffer.write(type);
+        switch (type)
+        {
+            case MetadataRecord.TYPE_NULL:
+                break;
+            case MetadataRecord.TYPE_INT:
+            case MetadataRecord.TYPE_LONG:
+            case MetadataRecord.TYPE_BOOLEAN:
+                writeVarint(zigZag(record.getLong(index)));
+                break;
+            case MetadataRecord.TYPE_DOUBLE:
+                writeLong(Double.doubleToRawLongBits(record.getDouble(index)));
+                break;
+            case MetadataRecord.TYPE_RATIONAL:
+                Rational rational = (Rational) record.getObject(index);
+                writeVarint(zigZag(rational.getNumerator()));
+                writeVarint(zigZag(rational.getDenominator()));
+                break;
+            default:
+                ByteBuffer binary = valueCodec.getBinary();
+                if (binary != null)
+                {
+                    writeVarint(binary.remaining());
+                    buffer.write(binary.array(), binary.arrayOffset() + binary.position(), binary.remaining());
+                } else
+                {
+                    writeString(valueCodec.getText());
+                }
+                break;
+        }
+    }
+
+
+    private static long zigZag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+
+    private void writeVarint(long value)
+    {
+        while ((value & ~0x7FL) != 0)
+        {
+            buffer.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.write((int) value);
+    }
+
+
+    private void writeLong(long value)
+    {
+        for (int shift = 56; shift >= 0; shift -= 8)
+        {
+            buffer.write((int) (value >>> shift));
+        }
+    }
+
+
+    private void writeString(String value)
+    {
+        if (value == null)
+        {
+            writeVarint(0);
+        } else
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length + 1L);
+            buffer.write(bytes, 0, bytes.length);
+        }
+    }
+
+
+    /**
+     * A decoded record.
+     *
+     * @author posicks
+     */
+    public static class Decoded
+    {
+        private final String key;
+
+        private final MetadataRecord record;
+
+
+        private Decoded(String key, MetadataRecord record)
+        {
+            this.key = key;
+            this.record = record;
+        }
+
+
+        public String getKey()
+        {
+            return key;
+        }
+
+
+        public MetadataRecord getRecord()
+        {
+            return record;
+        }
+    }
+
+
+    /**
+     * Decodes a record encoded by {@link #encode(String, MetadataRecord)}.
+     *
+     * @param in The encoded record, positioned at the start of the record
+     * @return The decoded record
+     * @throws IOException if the record is malformed
+     */
+    public static Decoded decode(ByteBuffer in)
+    throws IOException
+    {
+        try
+        {
+            String key = readString(in);
+            int directoryCount = (int) readVarint(in);
+            MetadataRecord record = new MetadataRecord(directoryCount, directoryCount * 16);
+            for (int directory = 0; directory < directoryCount; directory++ )
+            {
+                record.addDirectory(readString(in));
+                int tagCount = (int) readVarint(in);
+                for (int index = 0; index < tagCount; index++ )
+                {
+                    int tagId = (int) unZigZag(readVarint(in));
+                    String tagName = readString(in);
+                    String description = readString(in);
+                    record.addTag(tagId, tagName, description, readValue(in));
+                }
+            }
+            return new Decoded(key, record);
+        } catch (RuntimeException e)
+        {
+            throw new IOException(String.format("Malformed metadata record - %s: %s", e.getClass().getSimpleName(), e.getMessage()), e);
+        }
+    }
+
+
+    private static Object readValue(ByteBuffer in)
+    {
+        byte type = in.get();
+        switch (type)
+        {
+            case MetadataRecord.TYPE_NULL:
+                return null;
+            case MetadataRecord.TYPE_INT:
+                return (int) unZigZag(readVarint(in));
+            case MetadataRecord.TYPE_LONG:
+                return unZigZag(readVarint(in));
+            case MetadataRecord.TYPE_BOOLEAN:
+                return unZigZag(readVarint(in)) != 0;
+            case MetadataRecord.TYPE_DOUBLE:
+                return Double.longBitsToDouble(in.getLong());
+            case MetadataRecord.TYPE_RATIONAL:
+                return new Rational(unZigZag(readVarint(in)), unZigZag(readVarint(in)));
+            case MetadataRecord.TYPE_BYTE_ARRAY:
+            case MetadataRecord.TYPE_SHORT_ARRAY:
+            case MetadataRecord.TYPE_INT_ARRAY:
+            case MetadataRecord.TYPE_LONG_ARRAY:
+            case MetadataRecord.TYPE_FLOAT_ARRAY:
+            case MetadataRecord.TYPE_DOUBLE_ARRAY:
+            case MetadataRecord.TYPE_RATIONAL_ARRAY:
+                int length = (int) readVarint(in);
+                ByteBuffer binary = in.slice();
+                binary.limit(length);
+                in.position(in.position() + length);
+                return ValueCodec.decode(type, binary);
+            default:
+                return readString(in);
+        }
+    }
+
+
+    private static long unZigZag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+
+    private static long readVarint(ByteBuffer in)
+    {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+
+    private static String readString(ByteBuffer in)
+    {
+        int length = (int) readVarint(in);
+        if (length == 0)
+        {
+            return null;
+        }
+        byte[] bytes = new byte[length - 1];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,349 @@
+package net.posick.media.metadata.exif;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.drew.imaging.jpeg.JpegMetadataReader;
+import com.drew.imaging.jpeg.JpegSegmentMetadataReader;
+import com.drew.metadata.adobe.AdobeJpegReader;
+import com.drew.metadata.exif.ExifReader;
+import com.drew.metadata.icc.IccReader;
+import com.drew.metadata.iptc.IptcReader;
+import com.drew.metadata.jfif.JfifReader;
+import com.drew.metadata.jfxx.JfxxReader;
+import com.drew.metadata.jpeg.JpegCommentReader;
+import com.drew.metadata.jpeg.JpegReader;
+import com.drew.metadata.photoshop.DuckyReader;
+import com.drew.metadata.photoshop.PhotoshopReader;
+import com.drew.metadata.xmp.XmpReader;
+
+import net.posick.media.metadata.Context;
+
+/**
+ * The MetadataSelector selects the metadata directories and tags that are extracted from the files.
+ *
+ * Directories and tags are selected using allow lists and deny lists. When neither a directory nor a tag allow list
+ * is specified all directories and tags are selected, otherwise a tag is selected if its directory is in the
+ * directory allow list or the tag is in the tag allow list. Tags are specified as "[Directory:]Tag", where the tag
+ * is the decimal or hexadecimal (0x prefixed) tag identifier, tags specified without a directory match the tag in
+ * any directory. The deny lists take precedence over the allow lists. Directory names are matched ignoring case.
+ *
+ * The selection is pushed down into the extraction of JPEG files, only the JPEG segment readers that produce the
+ * selected directories are used so that the other segments are skipped rather than decoded.
+ *
+ * @author posicks
+ */
+public class MetadataSelector
+{
+    /**
+     * The tags selected from a single directory.
+     *
+     * @author posicks
+     */
+    public static class Selection
+    {
+        private final boolean allTags;
+
+        private final int[] included;
+
+        private final int[] excluded;
+
+
+        private Selection(boolean allTags, int[] included, int[] excluded)
+        {
+            this.allTags = allTags;
+            this.included = included;
+            this.excluded = excluded;
+        }
+
+
+        /**
+         * @param tagId The tag identifier
+         * @return true if the tag is selected
+         */
+        public boolean isSelected(int tagId)
+        {
+            if (excluded.length > 0 && Arrays.binarySearch(excluded, tagId) >= 0)
+            {
+                return false;
+            }
+            return allTags || Arrays.binarySearch(included, tagId) >= 0;
+        }
+    }
+
+
+    private static final String ANY_DIRECTORY = "";
+
+    private static final Selection NONE = new Selection(false, new int[0], new int[0]);
+
+    private Set<String> directories = new HashSet<>();
+
+    private Set<String> excludedDirectories = new HashSet<>();
+
+    private Map<String, Set<Integer>> tags = new HashMap<>();
+
+    private Map<String, Set<Integer>> excludedTags = new HashMap<>();
+
+    private Map<String, Selection> selections = new ConcurrentHashMap<>();
+
+    private List<JpegSegmentMetadataReader> jpegSegmentReaders;
+
+
+    /**
+     * Creates the MetadataSelector configured by the Context.
+     *
+     * @param ctx The application Context
+     * @throws IllegalArgumentException if a tag is not a valid "[Directory:]Tag" specification
+     */
+    public MetadataSelector(Context ctx)
+    {
+        for (String directory : ctx.get(Context.METADATA_DIRECTORIES, Collections.<String>emptyList()))
+        {
+            directories.add(directory.toLowerCase(Locale.ROOT));
+        }
+        for (String directory : ctx.get(Context.METADATA_EXCLUDED_DIRECTORIES, Collections.<String>emptyList()))
+        {
+            excludedDirectories.add(directory.toLowerCase(Locale.ROOT));
+        }
+        for (String tag : ctx.get(Context.METADATA_TAGS, Collections.<String>emptyList()))
+        {
+            addTag(tags, tag);
+        }
+        for (String tag : ctx.get(Context.METADATA_EXCLUDED_TAGS, Collections.<String>emptyList()))
+        {
+            addTag(excludedTags, tag);
+        }
+        this.jpegSegmentReaders = selectJpegSegmentReaders();
+    }
+
+
+    /**
+     * Parses the tag identifier of a "[Directory:]Tag" specification.
+     *
+     * @param tag The tag specification
+     * @return The tag identifier
+     * @throws IllegalArgumentException if the specification is not valid
+     */
+    public static int parseTagId(String tag)
+    {
+        String id = tag.substring(tag.lastIndexOf(':') + 1).trim();
+        try
+        {
+            if (id.startsWith("0x") || id.startsWith("0X"))
+            {
+                return Integer.parseInt(id.substring(2), 16);
+            }
+            return Integer.parseInt(id);
+        } catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException(String.format("Invalid tag \"%s\" - tags must be specified as [Directory:]Tag, where Tag is a decimal or hexadecimal tag identifier", tag));
+        }
+    }
+
+
+    private static void addTag(Map<String, Set<Integer>> tagMap, String tag)
+    {
+        int index = tag.lastIndexOf(':');
+        String directory = index > 0 ? tag.substring(0, index).trim().toLowerCase(Locale.ROOT) : ANY_DIRECTORY;
+        Set<Integer> tagIds = tagMap.get(directory);
+        if (tagIds == null)
+        {
+            tagIds = new HashSet<>();
+            tagMap.put(directory, tagIds);
+        }
+        tagIds.add(parseTagId(tag));
+    }
+
+
+    private static int[] toSortedArray(Set<Integer> first, Set<Integer> second)
+    {
+        Set<Integer> union = new HashSet<>();
+        if (first != null)
+        {
+            union.addAll(first);
+        }
+        if (second != null)
+        {
+            union.addAll(second);
+        }
+        int[] array = new int[union.size()];
+        int index = 0;
+        for (Integer value : union)
+        {
+            array[index++ ] = value;
+        }
+        Arrays.sort(array);
+        return array;
+    }
+
+
+    /**
+     * @return true if every directory and tag is selected
+     */
+    public boolean isSelectingAll()
+    {
+        return directories.isEmpty() && tags.isEmpty() && excludedDirectories.isEmpty() && excludedTags.isEmpty();
+    }
+
+
+    /**
+     * Returns the tags selected from the directory.
+     *
+     * @param directoryName The name of the directory
+     * @return The tags selected from the directory, or null if no tags of the directory are selected
+     */
+    public Selection select(String directoryName)
+    {
+        Selection selection = selections.get(directoryName);
+        if (selection == null)
+        {
+            String name = directoryName.toLowerCase(Locale.ROOT);
+            int[] excluded = toSortedArray(excludedTags.get(ANY_DIRECTORY), excludedTags.get(name));
+            if (excludedDirectories.contains(name))
+            {
+                selection = NONE;
+            } else if ((directories.isEmpty() && tags.isEmpty()) || directories.contains(name))
+            {
+                selection = new Selection(true, new int[0], excluded);
+            } else
+            {
+                int[] included = toSortedArray(tags.get(ANY_DIRECTORY), tags.get(name));
+                selection = included.length > 0 ? new Selection(false, included, excluded) : NONE;
+            }
+            selections.put(directoryName, selection);
+        }
+        return selection != NONE ? selection : null;
+    }
+
+
+    /**
+     * @return The JPEG segment readers that produce the selected directories, or null if all readers are required
+     */
+    public Iterable<JpegSegmentMetadataReader> getJpegSegmentReaders()
+    {
+        return jpegSegmentReaders;
+    }
+
+
+    /**
+     * Determines the JPEG segment readers that produce the selected directories.
+     *
+     * @return The JPEG segment readers, or null if all readers are required
+     */
+    private List<JpegSegmentMetadataReader> selectJpegSegmentReaders()
+    {
+        Set<Class<? extends JpegSegmentMetadataReader>> readerClasses = new LinkedHashSet<>();
+        if (directories.isEmpty() && tags.isEmpty())
+        {
+            if (excludedDirectories.isEmpty())
+            {
+                return null;
+            }
+
+            // Exclude the readers that only produce excluded directories
+            for (JpegSegmentMetadataReader reader : JpegMetadataReader.ALL_READERS)
+            {
+                readerClasses.add(reader.getClass());
+            }
+            for (String name : excludedDirectories)
+            {
+                List<Class<? extends JpegSegmentMetadataReader>> producers = getJpegSegmentReaderClasses(name);
+                if (producers != null && producers.size() == 1 && isSingleDirectoryReader(producers.get(0)))
+                {
+                    readerClasses.remove(producers.get(0));
+                }
+            }
+        } else
+        {
+            if (tags.containsKey(ANY_DIRECTORY))
+            {
+                // Tags of any directory may be produced by any reader
+                return null;
+            }
+
+            Set<String> names = new HashSet<>(directories);
+            names.addAll(tags.keySet());
+            for (String name : names)
+            {
+                List<Class<? extends JpegSegmentMetadataReader>> producers = getJpegSegmentReaderClasses(name);
+                if (producers == null)
+                {
+                    // The reader producing the directory is not known, so no readers can be excluded
+                    return null;
+                }
+                readerClasses.addAll(producers);
+            }
+        }
+
+        List<JpegSegmentMetadataReader> readers = new ArrayList<>();
+        for (Class<? extends JpegSegmentMetadataReader> readerClass : readerClasses)
+        {
+            try
+            {
+                readers.add(readerClass.getDeclaredConstructor().newInstance());
+            } catch (ReflectiveOperationException e)
+            {
+                return null;
+            }
+        }
+        return Collections.unmodifiableList(readers);
+    }
+
+
+    private static boolean isSingleDirectoryReader(Class<? extends JpegSegmentMetadataReader> readerClass)
+    {
+        // The Exif and Photoshop readers produce several directories, including directories embedded in their segments
+        return readerClass != ExifReader.class && readerClass != PhotoshopReader.class;
+    }
+
+
+    /**
+     * @param name The lower case name of a directory
+     * @return The classes of the JPEG segment readers that produce the directory, or null if not known
+     */
+    private static List<Class<? extends JpegSegmentMetadataReader>> getJpegSegmentReaderClasses(String name)
+    {
+        switch (name)
+        {
+            case "exif ifd0":
+            case "exif subifd":
+            case "exif thumbnail":
+            case "interoperability":
+            case "gps":
+                return Collections.<Class<? extends JpegSegmentMetadataReader>>singletonList(ExifReader.class);
+            case "xmp":
+                return Collections.<Class<? extends JpegSegmentMetadataReader>>singletonList(XmpReader.class);
+            case "iptc":
+                // IPTC data is usually embedded in the Photoshop segment
+                return Arrays.<Class<? extends JpegSegmentMetadataReader>>asList(IptcReader.class, PhotoshopReader.class);
+            case "photoshop":
+                return Collections.<Class<? extends JpegSegmentMetadataReader>>singletonList(PhotoshopReader.class);
+            case "ducky":
+                return Collections.<Class<? extends JpegSegmentMetadataReader>>singletonList(DuckyReader.class);
+            case "icc profile":
+                return Collections.<Class<? extends JpegSegmentMetadataReader>>singletonList(IccReader.class);
+            case "jfif":
+                return Collections.<Class<? extends JpegSegmentMetadataReader>>singletonList(JfifReader.class);
+            case "jfxx":
+                return Collections.<Class<? extends JpegSegmentMetadataReader>>singletonList(JfxxReader.class);
+            case "jpeg":
+                return Collections.<Class<? extends JpegSegmentMetadataReader>>singletonList(JpegReader.class);
+            case "jpegcomment":
+                return Collections.<Class<? extends JpegSegmentMetadataReader>>singletonList(JpegCommentReader.class);
+            case "adobe jpeg":
+                return Collections.<Class<? extends JpegSegmentMetadataReader>>singletonList(AdobeJpegReader.class);
+            default:
+                // The maker note directories are decoded by the Exif reader
+                return name.endsWith("makernote") ? Collections.<Class<? extends JpegSegmentMetadataReader>>singletonList(ExifReader.class) : null;
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package net.posick.media.metadata.exif;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+
+import com.drew.lang.Rational;
+
+/**
+ * The ValueCodec encodes the values of a {@link MetadataRecord} for storage, dispatching once on the type recorded
+ * for each value.
+ *
+ * Scalar values are encoded as text. The text of numbers and booleans is only built when {@link #getText()} is
+ * called, as most outputs store them in their binary form. Byte arrays are stored as is, without copying, and arrays
+ * of numbers and rationals are packed into a binary buffer of fixed width big endian elements (a rational is a
+ * numerator followed by a denominator), so that large arrays such as maker notes, ICC profiles and thumbnails are
+ * stored compactly rather than as decimal text. Other arrays, including nested arrays, are encoded as text using a
+ * builder that is reused for every value encoded by the codec.
+ *
+ * Each packed array is given a new buffer rather than one reused by the codec, as outputs such as the
+ * ColumnarFileOutputHandler and the CSQLOutputHandler hold the binary encoding by reference until it is written.
+ *
+ * The binary encoding of a value is described by the type of the value, see {@link #decode(byte, ByteBuffer)}.
+ *
+ * A ValueCodec is not thread safe, each thread must use its own ValueCodec.
+ *
+ * @author posicks
+ */
+public class ValueCodec
+{
+    private static final int MAX_TEXT_CAPACITY = 64 * 1024;
+
+    private StringBuilder builder = new StringBuilder(256);
+
+    private byte type;
+
+    private String text;
+
+    private long longValue;
+
+    private double doubleValue;
+
+    private ByteBuffer binary;
+
+
+    /**
+     * Encodes the value of a tag. The encoded value is available from {@link #getText()} or {@link #getBinary()}
+     * until the next value is encoded.
+     *
+     * @param record The record containing the tag
+     * @param index The position of the tag in the record
+     * @return The type of the value
+     */
+    public byte encode(MetadataRecord record, int index)
+    {
+        type = record.getType(index);
+        text = null;
+        binary = null;
+        switch (type)
+        {
+            case MetadataRecord.TYPE_NULL:
+                break;
+            case MetadataRecord.TYPE_INT:
+            case MetadataRecord.TYPE_LONG:
+            case MetadataRecord.TYPE_BOOLEAN:
+                // The text is built by getText()
+                longValue = record.getLong(index);
+                break;
+            case MetadataRecord.TYPE_DOUBLE:
+                doubleValue = record.getDouble(index);
+                break;
+            case MetadataRecord.TYPE_STRING:
+            case MetadataRecord.TYPE_RATIONAL:
+            case MetadataRecord.TYPE_OBJECT:
+                text = record.getObject(index).toString();
+                break;
+            case MetadataRecord.TYPE_BYTE_ARRAY:
+                binary = ByteBuffer.wrap((byte[]) record.getObject(index));
+                break;
+            case MetadataRecord.TYPE_SHORT_ARRAY:
+            {
+                short[] values = (short[]) record.getObject(index);
+                binary = ByteBuffer.allocate(values.length * 2);
+                binary.asShortBuffer().put(values);
+                break;
+            }
+            case MetadataRecord.TYPE_INT_ARRAY:
+            {
+                int[] values = (int[]) record.getObject(index);
+                binary = ByteBuffer.allocate(values.length * 4);
+                binary.asIntBuffer().put(values);
+                break;
+            }
+            case MetadataRecord.TYPE_LONG_ARRAY:
+            {
+                long[] values = (long[]) record.getObject(index);
+                binary = ByteBuffer.allocate(values.length * 8);
+                binary.asLongBuffer().put(values);
+                break;
+            }
+            case MetadataRecord.TYPE_FLOAT_ARRAY:
+            {
+                float[] values = (float[]) record.getObject(index);
+                binary = ByteBuffer.allocate(values.length * 4);
+                binary.asFloatBuffer().put(values);
+                break;
+            }
+            case MetadataRecord.TYPE_DOUBLE_ARRAY:
+            {
+                double[] values = (double[]) record.getObject(index);
+                binary = ByteBuffer.allocate(values.length * 8);
+                binary.asDoubleBuffer().put(values);
+                break;
+            }
+            case MetadataRecord.TYPE_RATIONAL_ARRAY:
+            {
+                Rational[] values = (Rational[]) record.getObject(index);
+                binary = ByteBuffer.allocate(values.length * 16);
+                for (Rational value : values)
+                {
+                    binary.putLong(value != null ? value.getNumerator() : 0);
+                    binary.putLong(value != null ? value.getDenominator() : 0);
+                }
+                binary.flip();
+                break;
+            }
+            default:
+                text = toText(record.getObject(index));
+                break;
+        }
+        return type;
+    }
+
+
+    /**
+     * @return The type of the last value encoded
+     */
+    public byte getType()
+    {
+        return type;
+    }
+
+
+    /**
+     * @return The text encoding of the last value encoded, or null if the value was encoded as binary or is null
+     */
+    public String getText()
+    {
+        if (text == null)
+        {
+            switch (type)
+            {
+                case MetadataRecord.TYPE_INT:
+                case MetadataRecord.TYPE_LONG:
+                    text = Long.toString(longValue);
+                    break;
+                case MetadataRecord.TYPE_DOUBLE:
+                    text = Double.toString(doubleValue);
+                    break;
+                case MetadataRecord.TYPE_BOOLEAN:
+                    text = longValue != 0 ? "true" : "false";
+                    break;
+            }
+        }
+        return text;
+    }
+
+
+    /**
+     * @return The binary encoding of the last value encoded, or null if the value was encoded as text or is null
+     */
+    public ByteBuffer getBinary()
+    {
+        return binary;
+    }
+
+
+    /**
+     * Encodes an array as text, recursing into nested arrays.
+     *
+     * @param array The array
+     * @return The text encoding of the array
+     */
+    private String toText(Object array)
+    {
+        if (builder.capacity() > MAX_TEXT_CAPACITY)
+        {
+            // Do not retain the builder of an unusually large value
+            builder = new StringBuilder(256);
+        }
+        builder.setLength(0);
+        if (array instanceof char[])
+        {
+            builder.append((char[]) array);
+        } else
+        {
+            appendArray(array);
+        }
+        return builder.toString();
+    }
+
+
+    private void appendArray(Object array)
+    {
+        builder.append('[');
+        int length = Array.getLength(array);
+        for (int index = 0; index < length; index++ )
+        {
+            if (index > 0)
+            {
+                builder.append(", ");
+            }
+            Object element = Array.get(array, index);
+            if (element != null && element.getClass().isArray())
+            {
+                appendArray(element);
+            } else
+            {
+                builder.append(element);
+            }
+        }
+        builder.append(']');
+    }
+
+
+    /**
+     * Decodes a value encoded as binary.
+     *
+     * @param type The type of the value
+     * @param binary The binary encoding of the value
+     * @return The decoded array, or null if values of the type are not encoded as binary
+     */
+    public static Object decode(byte type, ByteBuffer binary)
+    {
+        ByteBuffer buffer = binary.duplicate();
+        switch (type)
+        {
+            case MetadataRecord.TYPE_BYTE_ARRAY:
+            {
+                byte[] values = new byte[buffer.remaining()];
+                buffer.get(values);
+                return values;
+            }
+            case MetadataRecord.TYPE_SHORT_ARRAY:
+            {
+                short[] values = new short[buffer.remaining() / 2];
+                buffer.asShortBuffer().get(values);
+                return values;
+            }
+            case MetadataRecord.TYPE_INT_ARRAY:
+            {
+                int[] values = new int[buffer.remaining() / 4];
+                buffer.asIntBuffer().get(values);
+                return values;
+            }
+            case MetadataRecord.TYPE_LONG_ARRAY:
+            {
+                long[] values = new long[buffer.remaining() / 8];
+                buffer.asLongBuffer().get(values);
+                return values;
+            }
+            case MetadataRecord.TYPE_FLOAT_ARRAY:
+            {
+                float[] values = new float[buffer.remaining() / 4];
+                buffer.asFloatBuffer().get(values);
+                return values;
+            }
+            case MetadataRecord.TYPE_DOUBLE_ARRAY:
+            {
+                double[] values = new double[buffer.remaining() / 8];
+                buffer.asDoubleBuffer().get(values);
+                return values;
+            }
+            case MetadataRecord.TYPE_RATIONAL_ARRAY:
+            {
+                Rational[] values = new Rational[buffer.remaining() / 16];
+                for (int index = 0; index < values.length; index++ )
+                {
+                    values[index] = new Rational(buffer.getLong(), buffer.getLong());
+                }
+                return values;
+            }
+            default:
+                return null;
+        }
+    }
+}
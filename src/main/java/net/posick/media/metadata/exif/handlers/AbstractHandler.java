@@ -2,6 +2,8 @@ package net.posick.media.metadata.exif.handlers;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Logger;
 
 import net.posick.media.metadata.Context;
@@ -31,6 +33,28 @@ public abstract class AbstractHandler implements Closeable
     }
     
     
+    /**
+     * @param error The cause of the failure
+     * @return A CompletableFuture completed exceptionally with the error
+     */
+    protected static CompletableFuture<Void> failedFuture(Throwable error)
+    {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(error);
+        return future;
+    }
+    
+    
+    /**
+     * @param error The error a CompletableFuture was completed with
+     * @return The cause of the error if the error is a CompletionException wrapping it, otherwise the error
+     */
+    protected static Throwable unwrap(Throwable error)
+    {
+        return error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+    }
+    
+    
     /* (non-Javadoc)
      * @see java.io.Closeable#close()
      */
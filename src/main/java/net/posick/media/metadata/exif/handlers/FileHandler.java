@@ -2,6 +2,7 @@ package net.posick.media.metadata.exif.handlers;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
 
 import net.posick.media.metadata.Context;
 
@@ -15,6 +16,11 @@ import net.posick.media.metadata.Context;
  */
 public abstract class FileHandler<T> extends AbstractHandler
 {
+    /**
+     * The number of bytes at the start of a file passed to {@link #accepts(String, byte[], int)}
+     */
+    public static final int HEADER_LENGTH = 32;
+    
     protected OutputHandler<T> outputHandler;
     
     
@@ -38,14 +44,75 @@ public abstract class FileHandler<T> extends AbstractHandler
     }
     
     
+    /**
+     * The accepts method is executed by the InputHandler with the first bytes of each input file, before the rest of
+     * the file is retrieved. Files that are not accepted are skipped without being passed to
+     * {@link #process(String, InputStream)}. By default all files are accepted.
+     * 
+     * @param key The unique key for the file. May be the file name or a UUID
+     * @param header The first bytes of the file
+     * @param length The number of bytes in the header, at most {@link #HEADER_LENGTH}
+     * @return true if the file is to be processed
+     */
+    public boolean accepts(String key, byte[] header, int length)
+    {
+        return true;
+    }
+    
+    
     /**
      * The process method is executed by the InputHandler for each input file/stream. This is where the magic happens 
      * and calls the OutputHandler's {@link OutputHandler#output(String, Object)} method.
      * 
+     * Each piece of metadata of a file must be sent to the OutputHandler exactly once. A FileHandler either calls
+     * the OutputHandler once with all of the metadata of the file, or, when streaming, calls it once per disjoint
+     * part of the metadata (e.g., once per directory) as each part is decoded.
+     * 
+     * The metadata is sent using {@link OutputHandler#write(String, Object)}, so that the file is only recorded as
+     * indexed once all of its metadata has been written.
+     * 
      * @param key The unique key for the file. May be the file name or a UUID
      * @param in The InputStream containing the file contents
-     * @throws IOException
+     * @return A CompletableFuture completed once the metadata of the file has been written, or completed exceptionally
+     *         if the metadata could not be written
+     * @throws IOException if the file could not be read or parsed
      */
-    public abstract void process(String key, InputStream in)
+    public abstract CompletableFuture<Void> process(String key, InputStream in)
     throws IOException;
-}
+    
+    
+    /**
+     * The alias method is executed by the InputHandler for a file that is a byte identical copy of a file that has
+     * already been processed, instead of {@link #process(String, InputStream)}. The alias is sent to the
+     * OutputHandler's {@link OutputHandler#writeAlias(String, String)} method.
+     * 
+     * @param key The unique key for the copy
+     * @param canonicalKey The unique key for the file that was processed
+     * @return A CompletableFuture completed once the alias has been written, or completed exceptionally if the alias
+     *         could not be written
+     */
+    public CompletableFuture<Void> alias(String key, String canonicalKey)
+    {
+        if (outputHandler != null)
+        {
+            return outputHandler.writeAlias(key, canonicalKey);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+    
+    
+    /**
+     * Flushes the OutputHandler, so that the metadata sent to it is acknowledged without waiting for it to be closed,
+     * see {@link OutputHandler#flush()}.
+     * 
+     * @throws IOException
+     */
+    public void flush()
+    throws IOException
+    {
+        if (outputHandler != null)
+        {
+            outputHandler.flush();
+        }
+    }
+}
\ No newline at end of file
@@ -1,6 +1,7 @@
 package net.posick.media.metadata.exif.handlers;
 
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 import net.posick.media.metadata.Context;
 
@@ -26,10 +27,101 @@ public abstract class OutputHandler<T> extends AbstractHandler
      * 
      * The output method is executed by the FileHandler to send its data to the output, usually a datastore.
      * 
+     * The data sent for a key never repeats data previously sent for the same key, a FileHandler sends either all of
+     * the data of a file in one call or disjoint parts of it in several calls.
+     * 
      * @param key The unique key for the file. May be the file name or a UUID
      * @param data The data produced by the FileHandler 
      * @throws IOException
      */
     public abstract void output(String key, T data)
     throws IOException;
-}
+    
+    
+    /**
+     * The outputAlias method is executed to record that the file is a byte identical copy of a file that has already
+     * been sent to the output, so that the metadata of the copy is not parsed and written again. The metadata of the
+     * copy is that of the canonical file.
+     * 
+     * By default aliases are not recorded.
+     * 
+     * @param key The unique key for the copy
+     * @param canonicalKey The unique key for the file whose metadata was sent to the output
+     * @throws IOException
+     */
+    public void outputAlias(String key, String canonicalKey)
+    throws IOException
+    {
+    }
+    
+    
+    /**
+     * The write method sends the data to the output as {@link #output(String, Object)} does, and acknowledges the
+     * write once the data has been written to the output, so that the caller only records the file as indexed once
+     * its metadata can no longer be lost, e.g., in the manifest.
+     * 
+     * By default the data is written by output, so the write is acknowledged when output returns. OutputHandlers that
+     * buffer the data or write it asynchronously acknowledge the write once the data has been written.
+     * 
+     * @param key The unique key for the file. May be the file name or a UUID
+     * @param data The data produced by the FileHandler
+     * @return A CompletableFuture completed once the data has been written, or completed exceptionally if the data
+     *         could not be written
+     */
+    public CompletableFuture<Void> write(String key, T data)
+    {
+        try
+        {
+            output(key, data);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException | RuntimeException e)
+        {
+            return failedFuture(e);
+        }
+    }
+    
+    
+    /**
+     * The writeAlias method records the alias as {@link #outputAlias(String, String)} does, and acknowledges the
+     * write once the alias has been written to the output, see {@link #write(String, Object)}.
+     * 
+     * @param key The unique key for the copy
+     * @param canonicalKey The unique key for the file whose metadata was sent to the output
+     * @return A CompletableFuture completed once the alias has been written, or completed exceptionally if the alias
+     *         could not be written
+     */
+    public CompletableFuture<Void> writeAlias(String key, String canonicalKey)
+    {
+        try
+        {
+            outputAlias(key, canonicalKey);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException | RuntimeException e)
+        {
+            return failedFuture(e);
+        }
+    }
+    
+    
+    /**
+     * The flush method writes the data buffered by the OutputHandler, so that the writes made before flush are
+     * acknowledged without waiting for the OutputHandler to be closed. By default no data is buffered.
+     * 
+     * @throws IOException
+     */
+    public void flush()
+    throws IOException
+    {
+    }
+    
+    
+    /**
+     * @return true if the OutputHandler accepts the metadata of a file in several parts, e.g., one directory at a time
+     *         when the FileHandler streams the directories as they are decoded. OutputHandlers that need all of the
+     *         metadata of a file at once return false. By default the parts are accepted.
+     */
+    public boolean supportsStreaming()
+    {
+        return true;
+    }
+}
\ No newline at end of file
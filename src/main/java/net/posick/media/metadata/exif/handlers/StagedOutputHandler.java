@@ -0,0 +1,201 @@
+package net.posick.media.metadata.exif.handlers;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+
+import net.posick.media.metadata.Context;
+import net.posick.utils.BoundedExecutor;
+
+/**
+ * The StagedOutputHandler is an OutputHandler that hands the data to the write stage of the
+ * {@link net.posick.media.metadata.Pipeline}, where it is sent to the wrapped OutputHandler. The calling
+ * (parse) thread only blocks when the queue of the write stage is full. Writes are acknowledged once the wrapped
+ * OutputHandler acknowledges them.
+ *
+ * @param <T> The data type to be exchanged between the FileHandler and the OutputHandler
+ *
+ * @author posicks
+ */
+public class StagedOutputHandler<T> extends OutputHandler<T>
+{
+    /**
+     * A write to the wrapped OutputHandler.
+     */
+    private interface Write
+    {
+        CompletableFuture<Void> run();
+    }
+
+
+    private OutputHandler<T> outputHandler;
+
+    private BoundedExecutor writeExecutor;
+
+
+    /**
+     * @param ctx The application Context
+     * @param outputHandler The OutputHandler executed by the write stage
+     * @param writeExecutor The executor of the write stage
+     */
+    public StagedOutputHandler(Context ctx, OutputHandler<T> outputHandler, BoundedExecutor writeExecutor)
+    {
+        super(ctx);
+        this.outputHandler = outputHandler;
+        this.writeExecutor = writeExecutor;
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#output(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public void output(final String key, final T data)
+    throws IOException
+    {
+        execute(key, () -> outputHandler.write(key, data));
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#outputAlias(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void outputAlias(final String key, final String canonicalKey)
+    throws IOException
+    {
+        execute(key, () -> outputHandler.writeAlias(key, canonicalKey));
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#write(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public CompletableFuture<Void> write(final String key, final T data)
+    {
+        try
+        {
+            return execute(key, () -> outputHandler.write(key, data));
+        } catch (IOException e)
+        {
+            return failedFuture(e);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#writeAlias(java.lang.String, java.lang.String)
+     */
+    @Override
+    public CompletableFuture<Void> writeAlias(final String key, final String canonicalKey)
+    {
+        try
+        {
+            return execute(key, () -> outputHandler.writeAlias(key, canonicalKey));
+        } catch (IOException e)
+        {
+            return failedFuture(e);
+        }
+    }
+
+
+    /**
+     * Hands the write to the write stage, blocking while the queue of the write stage is full.
+     *
+     * @param key The unique key for the file
+     * @param write The write executed by the write stage
+     * @return A CompletableFuture completed once the wrapped OutputHandler acknowledges the write
+     * @throws IOException if the write could not be handed to the write stage
+     */
+    private CompletableFuture<Void> execute(String key, Write write)
+    throws IOException
+    {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        try
+        {
+            writeExecutor.execute(() ->
+            {
+                CompletableFuture<Void> result;
+                try
+                {
+                    result = write.run();
+                } catch (RuntimeException e)
+                {
+                    result = failedFuture(e);
+                }
+                result.whenComplete((ignored, failure) ->
+                {
+                    if (failure != null)
+                    {
+                        Throwable error = unwrap(failure);
+                        logger.log(Level.WARNING, String.format("Error writing metadata to output \"%s\": %s - %s", ctx.get(Context.DATASTORE_URI), error.getClass().getSimpleName(), error.getMessage()), error);
+                        written.completeExceptionally(error);
+                    } else
+                    {
+                        written.complete(null);
+                    }
+                });
+            });
+            return written;
+        } catch (RejectedExecutionException e)
+        {
+            if (Thread.currentThread().isInterrupted())
+            {
+                throw new InterruptedIOException("Interrupted while waiting to write metadata for \"" + key + "\"");
+            }
+            throw new IOException(String.format("Unable to write metadata for \"%s\" - %s", key, e.getMessage()), e);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#supportsStreaming()
+     */
+    @Override
+    public boolean supportsStreaming()
+    {
+        return outputHandler.supportsStreaming();
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#flush()
+     */
+    @Override
+    public void flush()
+    throws IOException
+    {
+        try
+        {
+            writeExecutor.awaitCompletion();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the write stage");
+        }
+        outputHandler.flush();
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.AbstractHandler#close()
+     */
+    @Override
+    public void close()
+    throws IOException
+    {
+        try
+        {
+            writeExecutor.awaitCompletion();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        } finally
+        {
+            outputHandler.close();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package net.posick.media.metadata.exif.index;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A GeoArea selects the files whose GPS location is within a bounding box or within a distance of a location.
+ *
+ * The area is searched by covering its bounding box with geohash cells, see {@link GeoHash}, and then comparing the
+ * locations within the cells with the area. Bounding boxes whose west bound is east of their east bound cross the
+ * antimeridian.
+ *
+ * @author posicks
+ */
+public class GeoArea
+{
+    /**
+     * The mean radius of the Earth in metres
+     */
+    public static final double EARTH_RADIUS = 6371008.8;
+
+    private final double south;
+
+    private final double west;
+
+    private final double north;
+
+    private final double east;
+
+    private final double latitude;
+
+    private final double longitude;
+
+    private final double radius;
+
+
+    private GeoArea(double south, double west, double north, double east, double latitude, double longitude, double radius)
+    {
+        this.south = south;
+        this.west = west;
+        this.north = north;
+        this.east = east;
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.radius = radius;
+    }
+
+
+    /**
+     * @param south The southern bound in decimal degrees
+     * @param west The western bound in decimal degrees
+     * @param north The northern bound in decimal degrees
+     * @param east The eastern bound in decimal degrees
+     * @return The area within the bounding box
+     * @throws IllegalArgumentException if the bounds are not valid
+     */
+    public static GeoArea boundingBox(double south, double west, double north, double east)
+    {
+        if (!(south >= -90 && north <= 90 && south <= north && west >= -180 && west <= 180 && east >= -180 && east <= 180))
+        {
+            throw new IllegalArgumentException(String.format("Invalid bounding box %s,%s,%s,%s - the bounds must be south,west,north,east in decimal degrees", south, west, north, east));
+        }
+        return new GeoArea(south, west, north, east, Double.NaN, Double.NaN, Double.NaN);
+    }
+
+
+    /**
+     * @param latitude The latitude of the center in decimal degrees
+     * @param longitude The longitude of the center in decimal degrees
+     * @param radius The radius in metres
+     * @return The area within the radius of the center
+     * @throws IllegalArgumentException if the center or radius is not valid
+     */
+    public static GeoArea circle(double latitude, double longitude, double radius)
+    {
+        if (!(latitude >= -90 && latitude <= 90 && longitude >= -180 && longitude <= 180 && radius >= 0))
+        {
+            throw new IllegalArgumentException(String.format("Invalid area %s,%s within %s metres", latitude, longitude, radius));
+        }
+
+        double distance = Math.toDegrees(radius / EARTH_RADIUS);
+        double south = latitude - distance;
+        double north = latitude + distance;
+        double west;
+        double east;
+        if (south <= -90 || north >= 90 || distance >= 180)
+        {
+            // The area contains a pole
+            south = Math.max(south, -90);
+            north = Math.min(north, 90);
+            west = -180;
+            east = 180;
+        } else
+        {
+            double longitudeDistance = Math.toDegrees(Math.asin(Math.min(1, Math.sin(radius / EARTH_RADIUS) / Math.cos(Math.toRadians(latitude)))));
+            west = normalizeLongitude(longitude - longitudeDistance);
+            east = normalizeLongitude(longitude + longitudeDistance);
+            if (longitudeDistance >= 90)
+            {
+                west = -180;
+                east = 180;
+            }
+        }
+        return new GeoArea(south, west, north, east, latitude, longitude, radius);
+    }
+
+
+    /**
+     * Parses a bounding box, "south,west,north,east", or a circle, "latitude,longitude,radius" with the radius in
+     * kilometres.
+     *
+     * @param value The area
+     * @param circle true if the area is a circle
+     * @return The area
+     * @throws IllegalArgumentException if the area is not valid
+     */
+    public static GeoArea parse(String value, boolean circle)
+    {
+        String[] parts = value.split(",");
+        if (parts.length != (circle ? 3 : 4))
+        {
+            throw new IllegalArgumentException(String.format("Invalid area \"%s\" - the area must be %s", value, circle ? "latitude,longitude,kilometres" : "south,west,north,east"));
+        }
+        double[] values = new double[parts.length];
+        for (int index = 0; index < parts.length; index++ )
+        {
+            try
+            {
+                values[index] = Double.parseDouble(parts[index].trim());
+            } catch (NumberFormatException e)
+            {
+                throw new IllegalArgumentException(String.format("Invalid area \"%s\" - \"%s\" is not a number", value, parts[index]));
+            }
+        }
+        return circle ? circle(values[0], values[1], values[2] * 1000) : boundingBox(values[0], values[1], values[2], values[3]);
+    }
+
+
+    private static double normalizeLongitude(double longitude)
+    {
+        return longitude < -180 ? longitude + 360 : longitude > 180 ? longitude - 360 : longitude;
+    }
+
+
+    /**
+     * @param latitude1 The latitude of the first location in decimal degrees
+     * @param longitude1 The longitude of the first location in decimal degrees
+     * @param latitude2 The latitude of the second location in decimal degrees
+     * @param longitude2 The longitude of the second location in decimal degrees
+     * @return The great circle distance between the locations in metres
+     */
+    public static double distance(double latitude1, double longitude1, double latitude2, double longitude2)
+    {
+        double latitudeDelta = Math.toRadians(latitude2 - latitude1);
+        double longitudeDelta = Math.toRadians(longitude2 - longitude1);
+        double a = Math.sin(latitudeDelta / 2) * Math.sin(latitudeDelta / 2) + Math.cos(Math.toRadians(latitude1)) * Math.cos(Math.toRadians(latitude2)) * Math.sin(longitudeDelta / 2) * Math.sin(longitudeDelta / 2);
+        return 2 * EARTH_RADIUS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+
+    /**
+     * @param latitude The latitude in decimal degrees
+     * @param longitude The longitude in decimal degrees
+     * @return true if the location is within the area
+     */
+    public boolean contains(double latitude, double longitude)
+    {
+        if (latitude < south || latitude > north)
+        {
+            return false;
+        }
+        if (!Double.isNaN(radius))
+        {
+            return distance(this.latitude, this.longitude, latitude, longitude) <= radius;
+        }
+        return west <= east ? longitude >= west && longitude <= east : longitude >= west || longitude <= east;
+    }
+
+
+    /**
+     * @return The bounding boxes of the area, each the south, west, north and east bounds, split at the antimeridian
+     */
+    List<double[]> getBoxes()
+    {
+        if (west <= east)
+        {
+            return Collections.singletonList(new double[] {south, west, north, east});
+        }
+        List<double[]> boxes = new ArrayList<>(2);
+        boxes.add(new double[] {south, west, north, 180});
+        boxes.add(new double[] {south, -180, north, east});
+        return boxes;
+    }
+
+
+    /**
+     * Returns the geohash cells of the specified length covering the area, e.g., to query the cells of the
+     * exif.metadata_geo table. The number of cells grows with the area, so short cells are used for large areas.
+     *
+     * @param characters The number of characters of the cells, 1 to 10
+     * @return The base 32 geohashes of the cells
+     */
+    public List<String> getCells(int characters)
+    {
+        return GeoHash.cells(getBoxes(), characters);
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return Double.isNaN(radius) ? String.format("[%s,%s,%s,%s]", south, west, north, east) : String.format("[%s,%s within %s m]", latitude, longitude, radius);
+    }
+}
@@ -0,0 +1,180 @@
+package net.posick.media.metadata.exif.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The GeoHash encodes locations as geohashes, the cells of a grid that recursively halves the longitude and latitude
+ * ranges, interleaving a bit of the longitude and a bit of the latitude at each level, so that locations that are
+ * close together share a prefix and the locations within an area are found by scanning a few ranges of sorted
+ * geohashes.
+ *
+ * Geohashes are 52 bit numbers, 26 bits of longitude and latitude (a cell of about 0.6 metres), or base 32 strings
+ * of up to 10 characters.
+ *
+ * @author posicks
+ */
+public class GeoHash
+{
+    public static final int BITS = 52;
+
+    private static final int DIMENSION_BITS = BITS / 2;
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    private static final int MAX_CELLS = 64;
+
+
+    private GeoHash()
+    {
+    }
+
+
+    /**
+     * @param latitude The latitude in decimal degrees
+     * @param longitude The longitude in decimal degrees
+     * @return The 52 bit geohash of the location
+     */
+    public static long encode(double latitude, double longitude)
+    {
+        return interleave(longitudeCell(longitude), latitudeCell(latitude), DIMENSION_BITS);
+    }
+
+
+    /**
+     * @param latitude The latitude in decimal degrees
+     * @param longitude The longitude in decimal degrees
+     * @param characters The number of characters, 1 to 10
+     * @return The base 32 geohash of the location
+     */
+    public static String toString(double latitude, double longitude, int characters)
+    {
+        return toString(encode(latitude, longitude), characters);
+    }
+
+
+    /**
+     * @param hash A 52 bit geohash
+     * @param characters The number of characters, 1 to 10
+     * @return The base 32 geohash
+     */
+    public static String toString(long hash, int characters)
+    {
+        if (characters < 1 || characters * 5 > BITS)
+        {
+            throw new IllegalArgumentException(String.format("Invalid geohash length %d", characters));
+        }
+        char[] chars = new char[characters];
+        for (int index = 0; index < characters; index++ )
+        {
+            chars[index] = BASE32[(int) (hash >>> (BITS - 5 * (index + 1))) & 0x1F];
+        }
+        return new String(chars);
+    }
+
+
+    private static long longitudeCell(double longitude)
+    {
+        long cell = (long) ((longitude + 180) / 360 * (1L << DIMENSION_BITS));
+        return Math.max(0, Math.min(cell, (1L << DIMENSION_BITS) - 1));
+    }
+
+
+    private static long latitudeCell(double latitude)
+    {
+        long cell = (long) ((latitude + 90) / 180 * (1L << DIMENSION_BITS));
+        return Math.max(0, Math.min(cell, (1L << DIMENSION_BITS) - 1));
+    }
+
+
+    private static long interleave(long longitudeCell, long latitudeCell, int bits)
+    {
+        long hash = 0;
+        for (int bit = bits - 1; bit >= 0; bit-- )
+        {
+            hash = (hash << 2) | (((longitudeCell >>> bit) & 1) << 1) | ((latitudeCell >>> bit) & 1);
+        }
+        return hash;
+    }
+
+
+    /**
+     * Covers the bounding boxes with at most 64 cells of the same size per box, the smallest cells for which that is
+     * possible.
+     *
+     * @param boxes The bounding boxes, each the south, west, north and east bounds, not crossing the antimeridian
+     * @return The ranges of the 52 bit geohashes of the cells, as pairs of the first and last geohash, sorted and
+     *         merged
+     */
+    static long[] cover(List<double[]> boxes)
+    {
+        List<long[]> ranges = new ArrayList<>();
+        for (double[] box : boxes)
+        {
+            long south = latitudeCell(box[0]);
+            long west = longitudeCell(box[1]);
+            long north = latitudeCell(box[2]);
+            long east = longitudeCell(box[3]);
+
+            int bits = DIMENSION_BITS;
+            while (bits > 0 && ((east >>> (DIMENSION_BITS - bits)) - (west >>> (DIMENSION_BITS - bits)) + 1) * ((north >>> (DIMENSION_BITS - bits)) - (south >>> (DIMENSION_BITS - bits)) + 1) > MAX_CELLS)
+            {
+                bits-- ;
+            }
+
+            int shift = DIMENSION_BITS - bits;
+            long span = 1L << (2 * shift);
+            for (long x = west >>> shift; x <= east >>> shift; x++ )
+            {
+                for (long y = south >>> shift; y <= north >>> shift; y++ )
+                {
+                    long start = interleave(x, y, bits) << (2 * shift);
+                    ranges.add(new long[] {start, start + span - 1});
+                }
+            }
+        }
+
+        long[][] sorted = ranges.toArray(new long[ranges.size()][]);
+        Arrays.sort(sorted, (a, b) -> Long.compare(a[0], b[0]));
+        long[] merged = new long[sorted.length * 2];
+        int count = 0;
+        for (long[] range : sorted)
+        {
+            if (count > 0 && range[0] <= merged[count - 1] + 1)
+            {
+                merged[count - 1] = Math.max(merged[count - 1], range[1]);
+            } else
+            {
+                merged[count++ ] = range[0];
+                merged[count++ ] = range[1];
+            }
+        }
+        return Arrays.copyOf(merged, count);
+    }
+
+
+    /**
+     * @param boxes The bounding boxes, each the south, west, north and east bounds, not crossing the antimeridian
+     * @param characters The number of characters of the cells
+     * @return The base 32 geohashes of the cells of the specified length covering the bounding boxes
+     */
+    static List<String> cells(List<double[]> boxes, int characters)
+    {
+        int shift = BITS - 5 * characters;
+        List<String> cells = new ArrayList<>();
+        long[] ranges = cover(boxes);
+        for (int index = 0; index < ranges.length; index += 2)
+        {
+            for (long cell = ranges[index] >>> shift; cell <= ranges[index + 1] >>> shift; cell++ )
+            {
+                String name = toString(cell << shift, characters);
+                if (cells.isEmpty() || !cells.get(cells.size() - 1).equals(name))
+                {
+                    cells.add(name);
+                }
+            }
+        }
+        return cells;
+    }
+}
@@ -0,0 +1,215 @@
+package net.posick.media.metadata.exif.index;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.drew.lang.Rational;
+
+import net.posick.media.metadata.exif.MetadataRecord;
+
+/**
+ * The IndexFields names the fields of the metadata index and converts the values of tags to the terms and numbers
+ * that are indexed.
+ *
+ * A field is a tag name, regardless of the directory it is in, normalized to lower case letters and digits, so that
+ * "Date/Time Original", "DateTimeOriginal" and "datetimeoriginal" all name the same field. Short aliases are
+ * provided for commonly queried tags whose names are long, e.g., "ISO" for "ISO Speed Ratings".
+ *
+ * Numeric and rational values are indexed as numbers, date and time values ("yyyy:MM:dd HH:mm:ss") of the fields
+ * whose names start with "datetime" as the number of milliseconds since the epoch, treating the local time recorded
+ * as UTC, and other text values as lower case terms.
+ *
+ * @author posicks
+ */
+public class IndexFields
+{
+    /**
+     * The field that selects every tag to be indexed
+     */
+    public static final String ALL_FIELDS = "*";
+
+    /**
+     * The fields indexed by default
+     */
+    public static final Set<String> DEFAULT_FIELDS = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+        "make", "model", "lensmodel", "isospeedratings", "focallength", "fnumber", "exposuretime",
+        "datetimeoriginal", "exifimagewidth", "exifimageheight", "altitude")));
+
+    private static final int MAX_TERM_LENGTH = 256;
+
+    private static final Map<String, String> ALIASES = new HashMap<>();
+
+    static
+    {
+        ALIASES.put("iso", "isospeedratings");
+        ALIASES.put("aperture", "fnumber");
+        ALIASES.put("shutter", "exposuretime");
+        ALIASES.put("shutterspeed", "exposuretime");
+        ALIASES.put("lens", "lensmodel");
+        ALIASES.put("date", "datetimeoriginal");
+        ALIASES.put("taken", "datetimeoriginal");
+        ALIASES.put("width", "exifimagewidth");
+        ALIASES.put("height", "exifimageheight");
+    }
+
+
+    private IndexFields()
+    {
+    }
+
+
+    /**
+     * @param name A tag name or alias
+     * @return The field named
+     */
+    public static String getField(String name)
+    {
+        StringBuilder builder = new StringBuilder(name.length());
+        for (int index = 0; index < name.length(); index++ )
+        {
+            char c = name.charAt(index);
+            if (Character.isLetterOrDigit(c))
+            {
+                builder.append(Character.toLowerCase(c));
+            }
+        }
+        String field = builder.toString();
+        String alias = ALIASES.get(field);
+        return alias != null ? alias : field;
+    }
+
+
+    /**
+     * @param field The field
+     * @return true if the values of the field are dates and times
+     */
+    public static boolean isDateField(String field)
+    {
+        return field.startsWith("datetime");
+    }
+
+
+    /**
+     * @param value A text value
+     * @return The term indexed for the value, or null if the value is not indexed
+     */
+    public static String getTerm(String value)
+    {
+        String term = value.trim();
+        if (term.isEmpty() || term.length() > MAX_TERM_LENGTH)
+        {
+            return null;
+        }
+        return term.toLowerCase(Locale.ROOT);
+    }
+
+
+    /**
+     * @param field The field of the tag
+     * @param record The record containing the tag
+     * @param index The position of the tag in the record
+     * @return The number indexed for the value of the tag, or NaN if the value is not indexed as a number
+     */
+    public static double getNumber(String field, MetadataRecord record, int index)
+    {
+        switch (record.getType(index))
+        {
+            case MetadataRecord.TYPE_INT:
+            case MetadataRecord.TYPE_LONG:
+            case MetadataRecord.TYPE_BOOLEAN:
+                return record.getLong(index);
+            case MetadataRecord.TYPE_DOUBLE:
+                return record.getDouble(index);
+            case MetadataRecord.TYPE_RATIONAL:
+                Rational rational = (Rational) record.getObject(index);
+                return rational.getDenominator() != 0 ? rational.doubleValue() : Double.NaN;
+            case MetadataRecord.TYPE_STRING:
+                if (isDateField(field))
+                {
+                    long[] range = parseDate((String) record.getObject(index));
+                    return range != null && range[2] == 6 ? range[0] : Double.NaN;
+                }
+                return Double.NaN;
+            default:
+                return Double.NaN;
+        }
+    }
+
+
+    /**
+     * Parses a date and time of any precision from a year ("2016") to a second ("2016:01:31 12:00:00"), the fields
+     * may be separated by any characters other than digits.
+     *
+     * @param value The date and time
+     * @return The start (inclusive) and end (exclusive) of the period in milliseconds since the epoch and the number
+     *         of fields parsed, or null if the value is not a valid date
+     */
+    public static long[] parseDate(String value)
+    {
+        int[] fields = {0, 1, 1, 0, 0, 0};
+        int count = 0;
+        int index = 0;
+        int length = value.length();
+        while (index < length && count < fields.length)
+        {
+            while (index < length && !Character.isDigit(value.charAt(index)))
+            {
+                index++ ;
+            }
+            int start = index;
+            while (index < length && Character.isDigit(value.charAt(index)) && index - start < 9)
+            {
+                index++ ;
+            }
+            if (start == index)
+            {
+                break;
+            }
+            fields[count++ ] = Integer.parseInt(value.substring(start, index));
+        }
+        if (count == 0)
+        {
+            return null;
+        }
+
+        try
+        {
+            LocalDateTime start = LocalDateTime.of(fields[0], fields[1], fields[2], fields[3], fields[4], fields[5]);
+            LocalDateTime end;
+            switch (count)
+            {
+                case 1:
+                    end = start.plusYears(1);
+                    break;
+                case 2:
+                    end = start.plusMonths(1);
+                    break;
+                case 3:
+                    end = start.plusDays(1);
+                    break;
+                case 4:
+                    end = start.plusHours(1);
+                    break;
+                case 5:
+                    end = start.plusMinutes(1);
+                    break;
+                default:
+                    end = start.plusSeconds(1);
+                    break;
+            }
+            return new long[] {start.toInstant(ZoneOffset.UTC).toEpochMilli(), end.toInstant(ZoneOffset.UTC).toEpochMilli(), count};
+        } catch (DateTimeException e)
+        {
+            // e.g., "0000:00:00 00:00:00" recorded by cameras whose clock was not set
+            return null;
+        }
+    }
+}
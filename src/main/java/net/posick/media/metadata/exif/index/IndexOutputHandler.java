@@ -0,0 +1,693 @@
+package net.posick.media.metadata.exif.index;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import net.posick.media.metadata.Context;
+import net.posick.media.metadata.exif.GpsLocation;
+import net.posick.media.metadata.exif.MetadataRecord;
+import net.posick.media.metadata.exif.handlers.OutputHandler;
+
+/**
+ * The IndexOutputHandler is an OutputHandler that builds an embedded, on-disk index of the metadata, so that files
+ * can be found by the values of their tags, e.g., "Make=Canon ISO>3200", without scanning the datastore. The index
+ * is queried using {@link MetadataIndex}.
+ *
+ * The index holds inverted postings, the files with each term, for the text values of the indexed fields and sorted
+ * columns of the numeric values, including dates, for range predicates. The GPS locations decoded by the FileHandler
+ * (see {@link GpsLocation}) are indexed by geohash for area queries. The fields indexed are specified by their
+ * tag names, see {@link IndexFields}. The files are buffered in memory until the segment size is reached, then
+ * written as an immutable segment file by the thread that filled the segment, while the other threads continue to
+ * add files to the next segment. Segments are written with a ".part" suffix that is removed once the segment is
+ * complete, so that the index can be queried while it is being built. Writes are acknowledged once the segment
+ * holding the file has been written. Each run adds segments to the index.
+ *
+ * The datastore URI is the directory of the index.
+ *
+ * @author posicks
+ */
+public class IndexOutputHandler extends OutputHandler<MetadataRecord>
+{
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String PART_EXTENSION = ".part";
+
+    private static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+
+
+    /**
+     * A growable list of file numbers.
+     *
+     * @author posicks
+     */
+    private static class DocumentList
+    {
+        private int[] documents = new int[4];
+
+        private int size;
+
+
+        public void add(int document)
+        {
+            if (size > 0 && documents[size - 1] == document)
+            {
+                return;
+            }
+            if (size == documents.length)
+            {
+                documents = Arrays.copyOf(documents, size * 2);
+            }
+            documents[size++ ] = document;
+        }
+
+
+        /**
+         * @return The file numbers in ascending order without duplicates
+         */
+        public int[] toSortedArray()
+        {
+            int[] sorted = Arrays.copyOf(documents, size);
+            Arrays.sort(sorted);
+            int count = 0;
+            for (int index = 0; index < sorted.length; index++ )
+            {
+                if (index == 0 || sorted[index] != sorted[count - 1])
+                {
+                    sorted[count++ ] = sorted[index];
+                }
+            }
+            return count < sorted.length ? Arrays.copyOf(sorted, count) : sorted;
+        }
+    }
+
+
+    /**
+     * A growable list of the numeric values of a field and the files they are from.
+     *
+     * @author posicks
+     */
+    private static class NumberList
+    {
+        private double[] values = new double[16];
+
+        private int[] documents = new int[16];
+
+        private int size;
+
+
+        public void add(double value, int document)
+        {
+            if (size == values.length)
+            {
+                values = Arrays.copyOf(values, size * 2);
+                documents = Arrays.copyOf(documents, size * 2);
+            }
+            values[size] = value;
+            documents[size++ ] = document;
+        }
+    }
+
+
+    /**
+     * A growable list of the GPS locations of files.
+     *
+     * @author posicks
+     */
+    private static class LocationList
+    {
+        private long[] hashes = new long[16];
+
+        private double[] coordinates = new double[32];
+
+        private int[] documents = new int[16];
+
+        private int size;
+
+
+        public void add(GpsLocation location, int document)
+        {
+            if (size == hashes.length)
+            {
+                hashes = Arrays.copyOf(hashes, size * 2);
+                coordinates = Arrays.copyOf(coordinates, size * 4);
+                documents = Arrays.copyOf(documents, size * 2);
+            }
+            hashes[size] = GeoHash.encode(location.getLatitude(), location.getLongitude());
+            coordinates[size * 2] = location.getLatitude();
+            coordinates[size * 2 + 1] = location.getLongitude();
+            documents[size++ ] = document;
+        }
+    }
+
+
+    /**
+     * The in memory index of the files of a segment that has not been written.
+     *
+     * @author posicks
+     */
+    private static class SegmentBuilder
+    {
+        private List<String> keys = new ArrayList<>();
+
+        private Map<String, Integer> documents = new HashMap<>();
+
+        private List<String[]> aliases = new ArrayList<>();
+
+        private Map<String, Map<String, DocumentList>> terms = new HashMap<>();
+
+        private Map<String, NumberList> numbers = new HashMap<>();
+
+        private LocationList locations = new LocationList();
+
+        private List<CompletableFuture<Void>> acknowledgements = new ArrayList<>();
+
+
+        /**
+         * Adds the values and location of a file. The values of a file sent in several parts are added to the same
+         * file number.
+         */
+        public void add(String key, List<String> fields, List<Object> values, GpsLocation location)
+        {
+            Integer document = documents.get(key);
+            if (document == null)
+            {
+                document = keys.size();
+                keys.add(key);
+                documents.put(key, document);
+            }
+
+            for (int index = 0; index < fields.size(); index++ )
+            {
+                String field = fields.get(index);
+                Object value = values.get(index);
+                if (value instanceof String)
+                {
+                    Map<String, DocumentList> fieldTerms = terms.get(field);
+                    if (fieldTerms == null)
+                    {
+                        fieldTerms = new HashMap<>();
+                        terms.put(field, fieldTerms);
+                    }
+                    DocumentList postings = fieldTerms.get(value);
+                    if (postings == null)
+                    {
+                        postings = new DocumentList();
+                        fieldTerms.put((String) value, postings);
+                    }
+                    postings.add(document);
+                } else
+                {
+                    NumberList fieldNumbers = numbers.get(field);
+                    if (fieldNumbers == null)
+                    {
+                        fieldNumbers = new NumberList();
+                        numbers.put(field, fieldNumbers);
+                    }
+                    fieldNumbers.add((Double) value, document);
+                }
+            }
+
+            if (location != null)
+            {
+                locations.add(location, document);
+            }
+        }
+
+
+        public void addAlias(String key, String canonicalKey)
+        {
+            aliases.add(new String[] {key, canonicalKey});
+        }
+
+
+        public int size()
+        {
+            return keys.size() + aliases.size();
+        }
+
+
+        public void write(Path file)
+        throws IOException
+        {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+            {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+                out.writeInt(IndexSegment.MAGIC);
+                out.writeInt(IndexSegment.VERSION);
+
+                // Keys
+                byte[][] encodedKeys = new byte[keys.size()][];
+                int offset = 0;
+                out.writeInt(offset);
+                for (int index = 0; index < encodedKeys.length; index++ )
+                {
+                    encodedKeys[index] = keys.get(index).getBytes(StandardCharsets.UTF_8);
+                    offset += encodedKeys[index].length;
+                    out.writeInt(offset);
+                }
+                for (byte[] key : encodedKeys)
+                {
+                    out.write(key);
+                }
+
+                // Postings, the directory of the terms of each field is recorded for the footer
+                Set<String> names = new HashSet<>(terms.keySet());
+                names.addAll(numbers.keySet());
+                Map<String, long[]> termOffsets = new HashMap<>();
+                Map<String, int[]> termCounts = new HashMap<>();
+                Map<String, String[]> sortedTerms = new HashMap<>();
+                for (Map.Entry<String, Map<String, DocumentList>> entry : terms.entrySet())
+                {
+                    Map<String, DocumentList> fieldTerms = new TreeMap<>(entry.getValue());
+                    String[] termNames = fieldTerms.keySet().toArray(new String[fieldTerms.size()]);
+                    long[] offsets = new long[termNames.length];
+                    int[] counts = new int[termNames.length];
+                    for (int index = 0; index < termNames.length; index++ )
+                    {
+                        int[] postings = fieldTerms.get(termNames[index]).toSortedArray();
+                        offsets[index] = out.size();
+                        counts[index] = postings.length;
+                        int previous = 0;
+                        for (int document : postings)
+                        {
+                            writeVarint(out, document - previous);
+                            previous = document;
+                        }
+                    }
+                    sortedTerms.put(entry.getKey(), termNames);
+                    termOffsets.put(entry.getKey(), offsets);
+                    termCounts.put(entry.getKey(), counts);
+                }
+
+                // Numbers, sorted by value
+                Map<String, Long> numberOffsets = new HashMap<>();
+                for (Map.Entry<String, NumberList> entry : numbers.entrySet())
+                {
+                    final NumberList list = entry.getValue();
+                    Integer[] order = new Integer[list.size];
+                    for (int index = 0; index < order.length; index++ )
+                    {
+                        order[index] = index;
+                    }
+                    Arrays.sort(order, (a, b) -> Double.compare(list.values[a], list.values[b]));
+                    numberOffsets.put(entry.getKey(), (long) out.size());
+                    for (int index : order)
+                    {
+                        out.writeDouble(list.values[index]);
+                        out.writeInt(list.documents[index]);
+                    }
+                }
+
+                // Locations, sorted by geohash
+                long locationOffset = out.size();
+                Integer[] order = new Integer[locations.size];
+                for (int index = 0; index < order.length; index++ )
+                {
+                    order[index] = index;
+                }
+                Arrays.sort(order, (a, b) -> Long.compare(locations.hashes[a], locations.hashes[b]));
+                for (int index : order)
+                {
+                    out.writeLong(locations.hashes[index]);
+                    out.writeDouble(locations.coordinates[index * 2]);
+                    out.writeDouble(locations.coordinates[index * 2 + 1]);
+                    out.writeInt(locations.documents[index]);
+                }
+
+                // Footer
+                long footerOffset = out.size();
+                out.writeInt(keys.size());
+                out.writeInt(aliases.size());
+                for (String[] alias : aliases)
+                {
+                    out.writeUTF(alias[0]);
+                    out.writeUTF(alias[1]);
+                }
+                out.writeInt(names.size());
+                for (String name : names)
+                {
+                    out.writeUTF(name);
+                    String[] termNames = sortedTerms.get(name);
+                    if (termNames != null)
+                    {
+                        long[] offsets = termOffsets.get(name);
+                        int[] counts = termCounts.get(name);
+                        out.writeInt(termNames.length);
+                        for (int index = 0; index < termNames.length; index++ )
+                        {
+                            out.writeUTF(termNames[index]);
+                            out.writeInt(counts[index]);
+                            out.writeLong(offsets[index]);
+                        }
+                    } else
+                    {
+                        out.writeInt(0);
+                    }
+                    NumberList list = numbers.get(name);
+                    out.writeInt(list != null ? list.size : 0);
+                    out.writeLong(list != null ? numberOffsets.get(name) : 0);
+                }
+                out.writeInt(locations.size);
+                out.writeLong(locationOffset);
+                out.writeLong(footerOffset);
+                out.writeInt(IndexSegment.MAGIC);
+                out.flush();
+                if (out.size() == Integer.MAX_VALUE)
+                {
+                    // DataOutputStream counts up to Integer.MAX_VALUE, the offsets of a larger segment are wrong
+                    throw new IOException("Index segment too large, reduce the segment size");
+                }
+                channel.force(false);
+            }
+        }
+
+
+        private static void writeVarint(DataOutputStream out, int value)
+        throws IOException
+        {
+            while ((value & ~0x7F) != 0)
+            {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+
+    private Path directory;
+
+    private Set<String> indexedFields;
+
+    private int segmentSize;
+
+    private AtomicInteger segmentSequence = new AtomicInteger();
+
+    private Map<String, String> fieldNames = new ConcurrentHashMap<>();
+
+    private final Object lock = new Object();
+
+    private SegmentBuilder segment = new SegmentBuilder();
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler
+     */
+    public IndexOutputHandler(Context ctx)
+    throws IOException
+    {
+        super(ctx);
+        String uri = ctx.get(Context.DATASTORE_URI);
+        this.directory = uri.startsWith("file:") ? Paths.get(URI.create(uri)) : Paths.get(uri);
+        Files.createDirectories(directory);
+        this.segmentSize = ctx.get(Context.INDEX_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE);
+
+        Collection<String> fields = ctx.get(Context.INDEX_FIELDS, Collections.<String>emptyList());
+        if (fields.isEmpty())
+        {
+            indexedFields = IndexFields.DEFAULT_FIELDS;
+        } else if (!fields.contains(IndexFields.ALL_FIELDS))
+        {
+            indexedFields = new HashSet<>();
+            for (String field : fields)
+            {
+                indexedFields.add(IndexFields.getField(field));
+            }
+        }
+
+        // Continue the numbering of the segments of earlier runs
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + IndexSegment.FILE_EXTENSION))
+        {
+            for (Path file : files)
+            {
+                String name = file.getFileName().toString();
+                try
+                {
+                    int sequence = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - IndexSegment.FILE_EXTENSION.length()));
+                    if (sequence >= segmentSequence.get())
+                    {
+                        segmentSequence.set(sequence + 1);
+                    }
+                } catch (NumberFormatException e)
+                {
+                    // Not a segment written by this handler
+                }
+            }
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#output(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public void output(String key, MetadataRecord data)
+    throws IOException
+    {
+        add(key, data, null);
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#write(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public CompletableFuture<Void> write(String key, MetadataRecord data)
+    {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        try
+        {
+            add(key, data, written);
+        } catch (IOException | RuntimeException e)
+        {
+            written.completeExceptionally(e);
+        }
+        return written;
+    }
+
+
+    /**
+     * Adds the file to the segment being built, writing the segment once it is full.
+     *
+     * @param key The key of the file
+     * @param data The metadata of the file
+     * @param written The acknowledgement completed once the segment has been written, or null
+     * @throws IOException
+     */
+    private void add(String key, MetadataRecord data, CompletableFuture<Void> written)
+    throws IOException
+    {
+        // The values are extracted before taking the lock, so that only adding them to the segment is serialized
+        List<String> fields = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+        for (int index = 0; index < data.size(); index++ )
+        {
+            String tagName = data.getTagName(index);
+            if (tagName == null)
+            {
+                continue;
+            }
+            String field = fieldNames.get(tagName);
+            if (field == null)
+            {
+                field = IndexFields.getField(tagName);
+                fieldNames.put(tagName, field);
+            }
+            if (indexedFields != null && !indexedFields.contains(field))
+            {
+                continue;
+            }
+
+            double number = IndexFields.getNumber(field, data, index);
+            if (!Double.isNaN(number))
+            {
+                fields.add(field);
+                values.add(number);
+            } else if (data.getType(index) == MetadataRecord.TYPE_STRING && !IndexFields.isDateField(field))
+            {
+                String term = IndexFields.getTerm((String) data.getObject(index));
+                if (term != null)
+                {
+                    fields.add(field);
+                    values.add(term);
+                }
+            }
+        }
+
+        GpsLocation location = GpsLocation.fromRecord(data);
+
+        SegmentBuilder full = null;
+        synchronized (lock)
+        {
+            segment.add(key, fields, values, location);
+            if (written != null)
+            {
+                segment.acknowledgements.add(written);
+            }
+            if (segment.size() >= segmentSize)
+            {
+                full = segment;
+                segment = new SegmentBuilder();
+            }
+        }
+        if (full != null)
+        {
+            writeSegment(full);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#outputAlias(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void outputAlias(String key, String canonicalKey)
+    throws IOException
+    {
+        addAlias(key, canonicalKey, null);
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#writeAlias(java.lang.String, java.lang.String)
+     */
+    @Override
+    public CompletableFuture<Void> writeAlias(String key, String canonicalKey)
+    {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        try
+        {
+            addAlias(key, canonicalKey, written);
+        } catch (IOException | RuntimeException e)
+        {
+            written.completeExceptionally(e);
+        }
+        return written;
+    }
+
+
+    private void addAlias(String key, String canonicalKey, CompletableFuture<Void> written)
+    throws IOException
+    {
+        SegmentBuilder full = null;
+        synchronized (lock)
+        {
+            segment.addAlias(key, canonicalKey);
+            if (written != null)
+            {
+                segment.acknowledgements.add(written);
+            }
+            if (segment.size() >= segmentSize)
+            {
+                full = segment;
+                segment = new SegmentBuilder();
+            }
+        }
+        if (full != null)
+        {
+            writeSegment(full);
+        }
+    }
+
+
+    private void writeSegment(SegmentBuilder builder)
+    throws IOException
+    {
+        Path file = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, segmentSequence.getAndIncrement(), IndexSegment.FILE_EXTENSION));
+        Path partFile = file.resolveSibling(file.getFileName() + PART_EXTENSION);
+        try
+        {
+            builder.write(partFile);
+            Files.move(partFile, file, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e)
+        {
+            for (CompletableFuture<Void> written : builder.acknowledgements)
+            {
+                written.completeExceptionally(e);
+            }
+            Files.deleteIfExists(partFile);
+            throw e;
+        }
+        for (CompletableFuture<Void> written : builder.acknowledgements)
+        {
+            written.complete(null);
+        }
+        if (logger.isLoggable(Level.FINE))
+        {
+            logger.logp(Level.FINE, LOG_CLASS_NAME, "writeSegment", String.format("Wrote %d files and %d aliases to index segment \"%s\"", builder.keys.size(), builder.aliases.size(), file));
+        }
+    }
+
+
+    /**
+     * The metadata of a file is added to a single segment, as a query matching several fields of a file only finds
+     * the file if all of the fields are in the same segment. Parts of a file may be added to different segments.
+     *
+     * @return false
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#supportsStreaming()
+     */
+    @Override
+    public boolean supportsStreaming()
+    {
+        return false;
+    }
+
+
+    /**
+     * Writes the files added since the last segment was written as a segment, so that their writes are acknowledged.
+     *
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#flush()
+     */
+    @Override
+    public void flush()
+    throws IOException
+    {
+        SegmentBuilder last;
+        synchronized (lock)
+        {
+            last = segment;
+            segment = new SegmentBuilder();
+        }
+        if (last.size() > 0)
+        {
+            writeSegment(last);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close()
+    throws IOException
+    {
+        // The OutputHandler is closed once all files have been processed, so no thread is adding files
+        flush();
+    }
+}
@@ -0,0 +1,394 @@
+package net.posick.media.metadata.exif.index;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An IndexSegment is an immutable file of the metadata index, holding the index of a batch of files. The segment is
+ * memory mapped, only its footer, the directory of the fields and terms, is read into memory when it is opened.
+ *
+ * A segment starts with the magic number 0x4D4D4958 ("MMIX") and the format version as 32 bit integers. The keys of
+ * the files follow, numbered in the order they are stored, as a table of the 32 bit offsets of the start of each
+ * key, and of the end of the last key, followed by the UTF-8 encoded keys. The postings of each term follow, the
+ * ascending numbers of the files whose field has the term, each encoded as the difference from the previous number
+ * as an unsigned variable length integer (7 bits per byte, least significant group first). The numbers of each
+ * field follow, as pairs of a 64 bit floating point value and the 32 bit number of the file, sorted by value. The
+ * GPS locations of the files follow, each the 64 bit geohash of the location (see {@link GeoHash}), the latitude and
+ * longitude as 64 bit floating point values and the 32 bit number of the file, sorted by geohash.
+ *
+ * The footer is the number of files, the aliases (the count followed by each alias and canonical key) and the fields
+ * (the count followed by each name, its terms and its numbers), followed by the number of locations and the 64 bit
+ * offset of the first location. The terms are the count followed by each term, in
+ * ascending order, the number of files with the term and the 64 bit offset of its postings, the numbers are the
+ * count and the 64 bit offset of the first pair. Strings in the footer are modified UTF-8, as written by
+ * {@link java.io.DataOutputStream#writeUTF(String)}. The segment ends with the 64 bit offset of the footer and the
+ * magic number.
+ *
+ * @author posicks
+ */
+class IndexSegment implements Closeable
+{
+    static final int MAGIC = 0x4D4D4958;
+
+    static final int VERSION = 2;
+
+    static final String FILE_EXTENSION = ".mmi";
+
+    static final int NUMBER_LENGTH = 12;
+
+    static final int LOCATION_LENGTH = 28;
+
+
+    /**
+     * The directory of the terms and numbers of a field.
+     *
+     * @author posicks
+     */
+    private static class Field
+    {
+        private String[] terms;
+
+        private int[] counts;
+
+        private long[] offsets;
+
+        private int numberCount;
+
+        private long numberOffset;
+    }
+
+
+    private Path file;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    private int documentCount;
+
+    private List<String[]> aliases;
+
+    private Map<String, Field> fields = new HashMap<>();
+
+    private int locationCount;
+
+    private long locationOffset;
+
+
+    /**
+     * Opens the segment.
+     *
+     * @param file The segment file
+     * @throws IOException if the file is not a complete index segment
+     */
+    IndexSegment(Path file)
+    throws IOException
+    {
+        this.file = file;
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try
+        {
+            long size = channel.size();
+            if (size < 20 || size > Integer.MAX_VALUE)
+            {
+                throw new IOException(String.format("\"%s\" is not an index segment", file));
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC)
+            {
+                throw new IOException(String.format("\"%s\" is not an index segment", file));
+            }
+            int version = buffer.getInt(4);
+            if (version < 1 || version > VERSION)
+            {
+                throw new IOException(String.format("Unsupported index segment version %d in \"%s\"", version, file));
+            }
+            if (buffer.getInt((int) size - 4) != MAGIC)
+            {
+                throw new IOException(String.format("\"%s\" is incomplete, the footer is missing", file));
+            }
+            readFooter((int) buffer.getLong((int) size - 12), (int) size - 12, version);
+        } catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    private void readFooter(int start, int end, int version)
+    throws IOException
+    {
+        byte[] footer = new byte[end - start];
+        ByteBuffer view = buffer.duplicate();
+        view.position(start);
+        view.get(footer);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(footer));
+        documentCount = in.readInt();
+        int aliasCount = in.readInt();
+        aliases = new ArrayList<>(aliasCount);
+        for (int index = 0; index < aliasCount; index++ )
+        {
+            aliases.add(new String[] {in.readUTF(), in.readUTF()});
+        }
+
+        int fieldCount = in.readInt();
+        for (int index = 0; index < fieldCount; index++ )
+        {
+            String name = in.readUTF();
+            Field field = new Field();
+            int termCount = in.readInt();
+            field.terms = new String[termCount];
+            field.counts = new int[termCount];
+            field.offsets = new long[termCount];
+            for (int term = 0; term < termCount; term++ )
+            {
+                field.terms[term] = in.readUTF();
+                field.counts[term] = in.readInt();
+                field.offsets[term] = in.readLong();
+            }
+            field.numberCount = in.readInt();
+            field.numberOffset = in.readLong();
+            fields.put(name, field);
+        }
+
+        if (version > 1)
+        {
+            locationCount = in.readInt();
+            locationOffset = in.readLong();
+        }
+    }
+
+
+    /**
+     * @return The segment file
+     */
+    Path getFile()
+    {
+        return file;
+    }
+
+
+    /**
+     * @return The number of files in the segment
+     */
+    int getDocumentCount()
+    {
+        return documentCount;
+    }
+
+
+    /**
+     * @return The aliases in the segment, each an alias and its canonical key
+     */
+    List<String[]> getAliases()
+    {
+        return aliases;
+    }
+
+
+    /**
+     * @param document The number of the file
+     * @return The key of the file
+     */
+    String getKey(int document)
+    {
+        int table = 8;
+        int data = table + (documentCount + 1) * 4;
+        int start = buffer.getInt(table + document * 4);
+        int end = buffer.getInt(table + (document + 1) * 4);
+        byte[] key = new byte[end - start];
+        ByteBuffer view = buffer.duplicate();
+        view.position(data + start);
+        view.get(key);
+        return new String(key, StandardCharsets.UTF_8);
+    }
+
+
+    /**
+     * @param predicates The predicates, all of which must match
+     * @param area The area the location of the files must be within, or null to match files regardless of location
+     * @return The numbers of the files matching the predicates
+     */
+    BitSet match(List<Predicate> predicates, GeoArea area)
+    {
+        BitSet matches = area != null ? match(area) : null;
+        for (int index = 0; index < predicates.size() && (matches == null || !matches.isEmpty()); index++ )
+        {
+            Predicate predicate = predicates.get(index);
+            BitSet match = match(predicate);
+            if (matches == null)
+            {
+                matches = match;
+            } else
+            {
+                matches.and(match);
+            }
+        }
+        if (matches == null)
+        {
+            matches = new BitSet(documentCount);
+            matches.set(0, documentCount);
+        }
+        return matches;
+    }
+
+
+    /**
+     * @param predicate The predicate
+     * @return The numbers of the files matching the predicate
+     */
+    BitSet match(Predicate predicate)
+    {
+        BitSet matches = new BitSet(documentCount);
+        Field field = fields.get(predicate.getField());
+        if (field == null)
+        {
+            return matches;
+        }
+
+        if (predicate.matchesTerms())
+        {
+            String term = predicate.getTerm();
+            int index = Arrays.binarySearch(field.terms, term);
+            if (predicate.isPrefix())
+            {
+                for (index = index < 0 ? -index - 1 : index; index < field.terms.length && field.terms[index].startsWith(term); index++ )
+                {
+                    readPostings(field, index, matches);
+                }
+            } else if (index >= 0)
+            {
+                readPostings(field, index, matches);
+            }
+        }
+
+        if (predicate.matchesNumbers() && field.numberCount > 0)
+        {
+            double low = predicate.getLow();
+            double high = predicate.getHigh();
+            int position = (int) field.numberOffset + lowerBound(field, low, predicate.isLowInclusive()) * NUMBER_LENGTH;
+            int end = (int) field.numberOffset + field.numberCount * NUMBER_LENGTH;
+            for (; position < end; position += NUMBER_LENGTH)
+            {
+                double value = buffer.getDouble(position);
+                if (value > high || (value == high && !predicate.isHighInclusive()))
+                {
+                    break;
+                }
+                matches.set(buffer.getInt(position + 8));
+            }
+        }
+        return matches;
+    }
+
+
+    /**
+     * @param area The area
+     * @return The numbers of the files whose location is within the area
+     */
+    BitSet match(GeoArea area)
+    {
+        BitSet matches = new BitSet(documentCount);
+        long[] ranges = GeoHash.cover(area.getBoxes());
+        for (int range = 0; range < ranges.length && locationCount > 0; range += 2)
+        {
+            // The first location whose geohash is in the range
+            int start = 0;
+            int end = locationCount;
+            while (start < end)
+            {
+                int middle = (start + end) >>> 1;
+                if (buffer.getLong((int) locationOffset + middle * LOCATION_LENGTH) < ranges[range])
+                {
+                    start = middle + 1;
+                } else
+                {
+                    end = middle;
+                }
+            }
+
+            for (int position = (int) locationOffset + start * LOCATION_LENGTH; position < locationOffset + locationCount * LOCATION_LENGTH; position += LOCATION_LENGTH)
+            {
+                if (buffer.getLong(position) > ranges[range + 1])
+                {
+                    break;
+                }
+                if (area.contains(buffer.getDouble(position + 8), buffer.getDouble(position + 16)))
+                {
+                    matches.set(buffer.getInt(position + 24));
+                }
+            }
+        }
+        return matches;
+    }
+
+
+    /**
+     * @return The index of the first number of the field that is above the low value, or equal to it if inclusive
+     */
+    private int lowerBound(Field field, double low, boolean inclusive)
+    {
+        int start = 0;
+        int end = field.numberCount;
+        while (start < end)
+        {
+            int middle = (start + end) >>> 1;
+            double value = buffer.getDouble((int) field.numberOffset + middle * NUMBER_LENGTH);
+            if (value < low || (value == low && !inclusive))
+            {
+                start = middle + 1;
+            } else
+            {
+                end = middle;
+            }
+        }
+        return start;
+    }
+
+
+    private void readPostings(Field field, int term, BitSet matches)
+    {
+        int position = (int) field.offsets[term];
+        int document = 0;
+        for (int count = 0; count < field.counts[term]; count++ )
+        {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do
+            {
+                b = buffer.get(position++ );
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            document += delta;
+            matches.set(document);
+        }
+    }
+
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        // The mapping is released when the buffer is garbage collected
+        buffer = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,247 @@
+package net.posick.media.metadata.exif.index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The MetadataIndex queries the index built by the {@link IndexOutputHandler}, finding the files whose metadata
+ * matches a list of {@link Predicate}s, all of which must match, and optionally whose GPS location is within a
+ * {@link GeoArea}.
+ *
+ * Each segment of the index is searched using its memory mapped postings and sorted numbers, so a query reads only
+ * the postings of the terms and the range of numbers it selects. The files recorded as aliases of a matching file are
+ * also matched. A file indexed by several runs is matched only if the metadata indexed by the most recent run matches.
+ * Segments are numbered in the order they are written, so the last segment recording a file, either as a file or as an
+ * alias, supersedes the earlier ones.
+ *
+ * A MetadataIndex is thread safe. Segments added to the index after it is opened are not searched.
+ *
+ * @author posicks
+ */
+public class MetadataIndex implements Closeable
+{
+    private List<IndexSegment> segments = new ArrayList<>();
+
+    private Map<String, List<String>> aliases = new HashMap<>();
+
+    private Map<String, Integer> latestSegments = new HashMap<>();
+
+    private long documentCount;
+
+
+    /**
+     * Opens the index.
+     *
+     * @param directory The directory of the index
+     * @throws IOException if the directory does not exist or a segment cannot be read
+     */
+    public MetadataIndex(Path directory)
+    throws IOException
+    {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + IndexSegment.FILE_EXTENSION))
+        {
+            for (Path file : stream)
+            {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+
+        try
+        {
+            for (Path file : files)
+            {
+                IndexSegment segment = new IndexSegment(file);
+                segments.add(segment);
+                documentCount += segment.getDocumentCount();
+            }
+
+            if (segments.size() > 1)
+            {
+                // Record the last segment of every key, so that entries superseded by a later run are skipped
+                for (int index = 0; index < segments.size(); index++ )
+                {
+                    IndexSegment segment = segments.get(index);
+                    for (int document = 0; document < segment.getDocumentCount(); document++ )
+                    {
+                        latestSegments.put(segment.getKey(document), index);
+                    }
+                    for (String[] alias : segment.getAliases())
+                    {
+                        latestSegments.put(alias[0], index);
+                    }
+                }
+            }
+
+            for (int index = 0; index < segments.size(); index++ )
+            {
+                for (String[] alias : segments.get(index).getAliases())
+                {
+                    if (!isLatest(alias[0], index))
+                    {
+                        continue;
+                    }
+                    List<String> keys = aliases.get(alias[1]);
+                    if (keys == null)
+                    {
+                        keys = new ArrayList<>(1);
+                        aliases.put(alias[1], keys);
+                    }
+                    keys.add(alias[0]);
+                }
+            }
+        } catch (IOException | RuntimeException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * @param key The key of a file
+     * @param segment The index of a segment recording the file
+     * @return true if no later segment records the file
+     */
+    private boolean isLatest(String key, int segment)
+    {
+        Integer latest = latestSegments.get(key);
+        return latest == null || latest == segment;
+    }
+
+
+    /**
+     * @return The number of segments in the index
+     */
+    public int getSegmentCount()
+    {
+        return segments.size();
+    }
+
+
+    /**
+     * @return The number of files indexed, excluding aliases, counting files indexed by several runs once per run
+     */
+    public long getDocumentCount()
+    {
+        return documentCount;
+    }
+
+
+    /**
+     * Finds the files matching the predicates.
+     *
+     * @param predicates The predicates, all of which must match. All files are matched when no predicates are
+     *        specified
+     * @param limit The maximum number of keys returned, or 0 to return all of the keys
+     * @return The keys of the matching files, in the order they were indexed
+     */
+    public List<String> search(List<Predicate> predicates, int limit)
+    {
+        return search(predicates, null, limit);
+    }
+
+
+    /**
+     * Finds the files matching the predicates whose location is within the area.
+     *
+     * @param predicates The predicates, all of which must match
+     * @param area The area the location of the files must be within, or null to match files regardless of location
+     * @param limit The maximum number of keys returned, or 0 to return all of the keys
+     * @return The keys of the matching files, in the order they were indexed
+     */
+    public List<String> search(List<Predicate> predicates, GeoArea area, int limit)
+    {
+        return new ArrayList<>(collect(predicates, area, limit));
+    }
+
+
+    /**
+     * @param predicates The predicates, all of which must match
+     * @return The number of files matching the predicates
+     */
+    public long count(List<Predicate> predicates)
+    {
+        return count(predicates, null);
+    }
+
+
+    /**
+     * @param predicates The predicates, all of which must match
+     * @param area The area the location of the files must be within, or null to match files regardless of location
+     * @return The number of files matching the predicates whose location is within the area
+     */
+    public long count(List<Predicate> predicates, GeoArea area)
+    {
+        return collect(predicates, area, 0).size();
+    }
+
+
+    private Set<String> collect(List<Predicate> predicates, GeoArea area, int limit)
+    {
+        Set<String> keys = new LinkedHashSet<>();
+        for (int segmentIndex = 0; segmentIndex < segments.size(); segmentIndex++ )
+        {
+            IndexSegment segment = segments.get(segmentIndex);
+            BitSet matches = segment.match(predicates, area);
+            for (int document = matches.nextSetBit(0); document >= 0; document = matches.nextSetBit(document + 1))
+            {
+                String key = segment.getKey(document);
+                if (!isLatest(key, segmentIndex))
+                {
+                    // The file was indexed again by a later run
+                    continue;
+                }
+                keys.add(key);
+                List<String> keyAliases = aliases.get(key);
+                if (keyAliases != null)
+                {
+                    for (int index = 0; index < keyAliases.size() && (limit <= 0 || keys.size() < limit); index++ )
+                    {
+                        keys.add(keyAliases.get(index));
+                    }
+                }
+                if (limit > 0 && keys.size() >= limit)
+                {
+                    return keys;
+                }
+            }
+        }
+        return keys;
+    }
+
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        IOException error = null;
+        for (IndexSegment segment : segments)
+        {
+            try
+            {
+                segment.close();
+            } catch (IOException e)
+            {
+                error = e;
+            }
+        }
+        segments.clear();
+        if (error != null)
+        {
+            throw error;
+        }
+    }
+}
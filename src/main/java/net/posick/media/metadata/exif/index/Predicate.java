@@ -0,0 +1,269 @@
+package net.posick.media.metadata.exif.index;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A Predicate selects the files whose metadata has a value of a field matching a comparison, e.g., "Make=Canon",
+ * "ISO>3200" or "DateTimeOriginal>=2016:06".
+ *
+ * Equality matches terms regardless of case, a value ending in "*" matches the terms starting with the value and
+ * "field=*" matches every value of the field. Equality also matches numbers when the value is a number. Ordering
+ * comparisons match numbers. The values of date fields may be a date of any precision, a date compares as the period
+ * it names, so that "DateTimeOriginal=2016" matches the files taken in 2016 and "DateTimeOriginal>2016" the files
+ * taken after 2016.
+ *
+ * @author posicks
+ */
+public class Predicate
+{
+    /**
+     * The comparison of a Predicate.
+     *
+     * @author posicks
+     */
+    public enum Operator
+    {
+        EQ("="), LT("<"), LE("<="), GT(">"), GE(">=");
+
+        private final String symbol;
+
+
+        private Operator(String symbol)
+        {
+            this.symbol = symbol;
+        }
+
+
+        public String getSymbol()
+        {
+            return symbol;
+        }
+
+
+        static Operator forSymbol(String symbol)
+        {
+            for (Operator operator : values())
+            {
+                if (operator.symbol.equals(symbol))
+                {
+                    return operator;
+                }
+            }
+            throw new IllegalArgumentException(String.format("Unknown operator \"%s\"", symbol));
+        }
+    }
+
+
+    private static final Pattern EXPRESSION = Pattern.compile("\\s*([^<>=]+?)\\s*(<=|>=|==|=|<|>)\\s*(.*?)\\s*");
+
+    private final String field;
+
+    private final Operator operator;
+
+    private final String value;
+
+    private final boolean prefix;
+
+    private final double low;
+
+    private final boolean lowInclusive;
+
+    private final double high;
+
+    private final boolean highInclusive;
+
+
+    /**
+     * Creates a Predicate.
+     *
+     * @param name The tag name or alias of the field
+     * @param operator The comparison
+     * @param value The value compared
+     * @throws IllegalArgumentException if the value cannot be compared using the operator
+     */
+    public Predicate(String name, Operator operator, String value)
+    {
+        this.field = IndexFields.getField(name);
+        this.operator = operator;
+        if (field.isEmpty())
+        {
+            throw new IllegalArgumentException(String.format("Invalid field name \"%s\"", name));
+        }
+
+        String term = value.endsWith("*") && operator == Operator.EQ ? value.substring(0, value.length() - 1) : value;
+        this.prefix = term.length() < value.length();
+        this.value = term.trim().toLowerCase(Locale.ROOT);
+
+        double start = Double.NaN;
+        double end = Double.NaN;
+        if (prefix && this.value.isEmpty())
+        {
+            // "field=*" matches every value of the field
+            start = Double.NEGATIVE_INFINITY;
+            end = Double.POSITIVE_INFINITY;
+        } else if (!prefix)
+        {
+            long[] date = IndexFields.isDateField(field) ? IndexFields.parseDate(term) : null;
+            if (date != null)
+            {
+                start = date[0];
+                end = date[1];
+            } else
+            {
+                try
+                {
+                    start = end = Double.parseDouble(term.trim());
+                } catch (NumberFormatException e)
+                {
+                    if (operator != Operator.EQ)
+                    {
+                        throw new IllegalArgumentException(String.format("Invalid value \"%s\" for %s - the value must be a number%s", value, operator.getSymbol(), IndexFields.isDateField(field) ? " or date" : ""));
+                    }
+                }
+            }
+        }
+
+        // A date names a period, [start, end), a number a single value, [start, end]
+        boolean period = end > start;
+        switch (operator)
+        {
+            case LT:
+                low = Double.NEGATIVE_INFINITY;
+                lowInclusive = true;
+                high = start;
+                highInclusive = false;
+                break;
+            case LE:
+                low = Double.NEGATIVE_INFINITY;
+                lowInclusive = true;
+                high = end;
+                highInclusive = !period;
+                break;
+            case GT:
+                low = end;
+                lowInclusive = period;
+                high = Double.POSITIVE_INFINITY;
+                highInclusive = true;
+                break;
+            case GE:
+                low = start;
+                lowInclusive = true;
+                high = Double.POSITIVE_INFINITY;
+                highInclusive = true;
+                break;
+            default:
+                low = start;
+                lowInclusive = true;
+                high = end;
+                highInclusive = !period;
+                break;
+        }
+    }
+
+
+    /**
+     * Parses a Predicate of the form "field operator value", where the operator is one of =, &lt;, &lt;=, &gt; or
+     * &gt;=.
+     *
+     * @param expression The expression
+     * @return The Predicate
+     * @throws IllegalArgumentException if the expression is not a valid Predicate
+     */
+    public static Predicate parse(String expression)
+    {
+        Matcher matcher = EXPRESSION.matcher(expression);
+        if (!matcher.matches() || matcher.group(3).isEmpty())
+        {
+            throw new IllegalArgumentException(String.format("Invalid predicate \"%s\" - predicates have the form \"field=value\", \"field<value\", \"field<=value\", \"field>value\" or \"field>=value\"", expression));
+        }
+        String symbol = matcher.group(2);
+        return new Predicate(matcher.group(1), Operator.forSymbol(symbol.equals("==") ? "=" : symbol), matcher.group(3));
+    }
+
+
+    /**
+     * @return The field compared
+     */
+    public String getField()
+    {
+        return field;
+    }
+
+
+    /**
+     * @return The comparison
+     */
+    public Operator getOperator()
+    {
+        return operator;
+    }
+
+
+    /**
+     * @return The term matched by equality
+     */
+    String getTerm()
+    {
+        return value;
+    }
+
+
+    /**
+     * @return true if equality matches the terms starting with the term
+     */
+    boolean isPrefix()
+    {
+        return prefix;
+    }
+
+
+    /**
+     * @return true if the Predicate matches terms
+     */
+    boolean matchesTerms()
+    {
+        return operator == Operator.EQ && (prefix || !value.isEmpty());
+    }
+
+
+    /**
+     * @return true if the Predicate matches numbers
+     */
+    boolean matchesNumbers()
+    {
+        return !Double.isNaN(low) && !Double.isNaN(high);
+    }
+
+
+    double getLow()
+    {
+        return low;
+    }
+
+
+    boolean isLowInclusive()
+    {
+        return lowInclusive;
+    }
+
+
+    double getHigh()
+    {
+        return high;
+    }
+
+
+    boolean isHighInclusive()
+    {
+        return highInclusive;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return field + operator.getSymbol() + value + (prefix ? "*" : "");
+    }
+}
@@ -0,0 +1,389 @@
+package net.posick.media.metadata.exif.input;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The Checkpoint records the progress of the listing streams of an indexing run, so that an interrupted run can be
+ * resumed without listing or processing the files that were already processed.
+ *
+ * For each listing stream (key prefix) the Checkpoint records whether the listing is complete and the last key
+ * dispatched for processing. Keys are listed in order, so every key of a stream up to and including the last key
+ * dispatched has either been processed or is still in flight. The files in flight are recorded as well, a resumed
+ * run processes the files that were in flight and continues each incomplete listing after its last dispatched key.
+ * A file is only processed once its metadata has been written, so files whose metadata could not be written stay in
+ * flight and are retried by a resumed run.
+ *
+ * The checkpoint is written to a temporary file, forced to the disk, which then replaces the checkpoint file, so
+ * that a run that fails or crashes while saving the checkpoint does not corrupt the previous checkpoint.
+ *
+ * @author posicks
+ */
+public class Checkpoint
+{
+    private static final int MAGIC = 0x4D4D4943;
+
+    private static final int VERSION = 1;
+
+    private static Logger logger = Logger.getLogger(Checkpoint.class.getName());
+
+
+    /**
+     * The progress of a single listing stream.
+     *
+     * @author posicks
+     */
+    private static class Stream
+    {
+        private boolean completed = false;
+
+        private String lastKey;
+    }
+
+
+    private Path file;
+
+    private String inputUri;
+
+    private Map<String, Stream> streams = new LinkedHashMap<>();
+
+    private Map<String, S3Object> inFlight = new LinkedHashMap<>();
+
+    private boolean modified = false;
+
+    private final Object saveLock = new Object();
+
+
+    /**
+     * Creates an empty Checkpoint stored in the specified file.
+     *
+     * @param file The checkpoint file
+     * @param inputUri The input URI of the indexing run
+     */
+    public Checkpoint(Path file, String inputUri)
+    {
+        this.file = file;
+        this.inputUri = inputUri;
+    }
+
+
+    /**
+     * Loads the Checkpoint stored in the specified file.
+     *
+     * @param file The checkpoint file
+     * @param inputUri The input URI of the indexing run, must match the input URI recorded in the checkpoint
+     * @return The Checkpoint, or an empty Checkpoint if the checkpoint file does not exist
+     * @throws IOException
+     */
+    public static Checkpoint load(Path file, String inputUri)
+    throws IOException
+    {
+        Checkpoint checkpoint = new Checkpoint(file, inputUri);
+        if (!Files.exists(file))
+        {
+            logger.logp(Level.INFO, Checkpoint.class.getName(), "load", String.format("Checkpoint \"%s\" not found, indexing from the beginning", file));
+            return checkpoint;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file)))))
+        {
+            if (in.readInt() != MAGIC)
+            {
+                throw new IOException(String.format("\"%s\" is not a checkpoint file", file));
+            }
+            int version = in.readInt();
+            if (version != VERSION)
+            {
+                throw new IOException(String.format("Unsupported checkpoint version %d in \"%s\"", version, file));
+            }
+            String recordedUri = in.readUTF();
+            if (!recordedUri.equals(inputUri))
+            {
+                throw new IOException(String.format("Checkpoint \"%s\" was recorded for \"%s\", not \"%s\"", file, recordedUri, inputUri));
+            }
+
+            int count = in.readInt();
+            for (int index = 0; index < count; index++ )
+            {
+                String prefix = in.readUTF();
+                Stream stream = new Stream();
+                stream.completed = in.readBoolean();
+                stream.lastKey = readString(in);
+                checkpoint.streams.put(prefix, stream);
+            }
+
+            count = in.readInt();
+            for (int index = 0; index < count; index++ )
+            {
+                String key = in.readUTF();
+                long size = in.readLong();
+                String etag = readString(in);
+                long lastModified = in.readLong();
+                checkpoint.inFlight.put(key, new S3Object(key, size, etag, lastModified));
+            }
+        }
+
+        logger.logp(Level.INFO, Checkpoint.class.getName(), "load", String.format("Resuming from checkpoint \"%s\" - %d listing stream(s), %d file(s) in flight", file, checkpoint.streams.size(), checkpoint.inFlight.size()));
+        return checkpoint;
+    }
+
+
+    private static String readString(DataInputStream in)
+    throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+
+    private static void writeString(DataOutputStream out, String value)
+    throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null)
+        {
+            out.writeUTF(value);
+        }
+    }
+
+
+    private static String toStreamKey(String prefix)
+    {
+        return prefix != null ? prefix : "";
+    }
+
+
+    /**
+     * @return true if the Checkpoint does not contain the progress of a previous run
+     */
+    public synchronized boolean isEmpty()
+    {
+        return streams.isEmpty() && inFlight.isEmpty();
+    }
+
+
+    /**
+     * Registers a listing stream.
+     *
+     * @param prefix The key prefix of the listing stream, may be null
+     * @return false if the listing stream is already recorded in the Checkpoint
+     */
+    public synchronized boolean addStream(String prefix)
+    {
+        String streamKey = toStreamKey(prefix);
+        if (streams.containsKey(streamKey))
+        {
+            return false;
+        }
+        streams.put(streamKey, new Stream());
+        modified = true;
+        return true;
+    }
+
+
+    /**
+     * @return The key prefixes of the recorded listing streams whose listings are not complete
+     */
+    public synchronized List<String> getIncompleteStreams()
+    {
+        List<String> prefixes = new ArrayList<>();
+        for (Map.Entry<String, Stream> entry : streams.entrySet())
+        {
+            if (!entry.getValue().completed)
+            {
+                prefixes.add(entry.getKey().isEmpty() ? null : entry.getKey());
+            }
+        }
+        return prefixes;
+    }
+
+
+    /**
+     * @param prefix The key prefix of the listing stream, may be null
+     * @return The last key dispatched by the listing stream, or null if no keys were dispatched
+     */
+    public synchronized String getLastKey(String prefix)
+    {
+        Stream stream = streams.get(toStreamKey(prefix));
+        return stream != null ? stream.lastKey : null;
+    }
+
+
+    /**
+     * @return The files that were in flight when the Checkpoint was recorded
+     */
+    public synchronized List<S3Object> getInFlight()
+    {
+        return new ArrayList<>(inFlight.values());
+    }
+
+
+    /**
+     * Records that the file has been dispatched for processing by the listing stream.
+     *
+     * @param prefix The key prefix of the listing stream, may be null
+     * @param object The file dispatched
+     */
+    public synchronized void dispatched(String prefix, S3Object object)
+    {
+        inFlight.put(object.getKey(), object);
+        Stream stream = streams.get(toStreamKey(prefix));
+        if (stream != null)
+        {
+            stream.lastKey = object.getKey();
+        }
+        modified = true;
+    }
+
+
+    /**
+     * Records that the processing of the file has finished, called once the metadata of the file has been written or
+     * the file did not need to be written, e.g., it is not accepted by the FileHandler.
+     *
+     * @param object The file processed
+     */
+    public synchronized void processed(S3Object object)
+    {
+        inFlight.remove(object.getKey());
+        modified = true;
+    }
+
+
+    /**
+     * Records that the listing of the listing stream is complete.
+     *
+     * @param prefix The key prefix of the listing stream, may be null
+     */
+    public synchronized void completed(String prefix)
+    {
+        Stream stream = streams.get(toStreamKey(prefix));
+        if (stream != null)
+        {
+            stream.completed = true;
+            modified = true;
+        }
+    }
+
+
+    /**
+     * @return true if the listings of all listing streams are complete and no files are in flight
+     */
+    public synchronized boolean isComplete()
+    {
+        if (!inFlight.isEmpty())
+        {
+            return false;
+        }
+        for (Stream stream : streams.values())
+        {
+            if (!stream.completed)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Saves the Checkpoint to its file if it was modified since it was last saved.
+     *
+     * @throws IOException
+     */
+    public void save()
+    throws IOException
+    {
+        // Saves are serialized so that an older checkpoint never replaces a newer one
+        synchronized (saveLock)
+        {
+            byte[] data;
+            synchronized (this)
+            {
+                if (!modified)
+                {
+                    return;
+                }
+                modified = false;
+
+                // The checkpoint is serialized while locked so that it is consistent, and written to the file after
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes)))
+                {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeUTF(inputUri);
+                    out.writeInt(streams.size());
+                    for (Map.Entry<String, Stream> entry : streams.entrySet())
+                    {
+                        out.writeUTF(entry.getKey());
+                        out.writeBoolean(entry.getValue().completed);
+                        writeString(out, entry.getValue().lastKey);
+                    }
+                    out.writeInt(inFlight.size());
+                    for (S3Object object : inFlight.values())
+                    {
+                        out.writeUTF(object.getKey());
+                        out.writeLong(object.getSize());
+                        writeString(out, object.getETag());
+                        out.writeLong(object.getLastModified());
+                    }
+                }
+                data = bytes.toByteArray();
+            }
+
+            Path parent = file.toAbsolutePath().getParent();
+            Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            try
+            {
+                try (BufferedOutputStream out = new BufferedOutputStream(Files.newOutputStream(temp)))
+                {
+                    out.write(data);
+                }
+                try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE))
+                {
+                    channel.force(true);
+                }
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e)
+            {
+                synchronized (this)
+                {
+                    modified = true;
+                }
+                Files.deleteIfExists(temp);
+                throw e;
+            }
+        }
+    }
+
+
+    /**
+     * Deletes the checkpoint file, called once the indexing run has completed.
+     *
+     * @throws IOException
+     */
+    public void delete()
+    throws IOException
+    {
+        synchronized (saveLock)
+        {
+            Files.deleteIfExists(file);
+        }
+    }
+}
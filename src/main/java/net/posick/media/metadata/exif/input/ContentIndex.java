@@ -0,0 +1,356 @@
+package net.posick.media.metadata.exif.input;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The ContentIndex maps the identity of the content of each file indexed to the key of the first file indexed with
+ * that content (the canonical key), so that byte identical copies of a file stored under other keys are recorded as
+ * aliases of the canonical key rather than parsed and written again.
+ *
+ * The identity of the content is either the entity tag and size of the object from the file listing, or a SHA-256
+ * digest of the initial window of the file and its size. Entity tags identify the content without retrieving the
+ * file, but copies uploaded in a different number of parts have different entity tags. The digest identifies copies
+ * regardless of how they were uploaded, but only covers the start of the file, which holds the metadata of the
+ * supported formats.
+ *
+ * Content claimed by a run is pending until the metadata of its canonical file has been written, see
+ * {@link #whenWritten(String)}, so that aliases are only recorded for canonical files that were indexed. When the
+ * canonical file could not be indexed its claim is released and the pending aliases are not recorded.
+ *
+ * The index is optionally stored in a compact, gzip compressed, binary file so that copies of files indexed by
+ * earlier runs are also recognized. The index is written to a temporary file, forced to the disk, which then
+ * replaces the index file, so that an interrupted save or a crash does not corrupt the existing index.
+ *
+ * @author posicks
+ */
+public class ContentIndex
+{
+    public static final String MODE_ETAG = "etag";
+
+    public static final String MODE_HEADER = "header";
+
+    private static final int MAGIC = 0x4D4D4349;
+
+    private static final int VERSION = 1;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static Logger logger = Logger.getLogger(ContentIndex.class.getName());
+
+    private Path file;
+
+    private Map<String, String> canonicalKeys = new ConcurrentHashMap<>();
+
+    // The content claimed by this run whose canonical file has not been written, guarded by itself
+    private Map<String, CompletableFuture<String>> pending = new HashMap<>();
+
+    private AtomicLong aliases = new AtomicLong();
+
+    private volatile boolean modified = false;
+
+
+    /**
+     * Creates a ContentIndex that is not stored.
+     */
+    public ContentIndex()
+    {
+    }
+
+
+    /**
+     * Creates a ContentIndex stored in the specified file, loading the file if it exists.
+     *
+     * @param file The index file
+     * @throws IOException
+     */
+    public ContentIndex(Path file)
+    throws IOException
+    {
+        this.file = file;
+        if (Files.exists(file))
+        {
+            load();
+        }
+    }
+
+
+    /**
+     * @param mode The deduplication mode
+     * @return true if the mode is a valid deduplication mode
+     */
+    public static boolean isValidMode(String mode)
+    {
+        return MODE_ETAG.equals(mode) || MODE_HEADER.equals(mode);
+    }
+
+
+    /**
+     * @param object The object from the file listing
+     * @return The identity of the content of the object, or null if the object has no entity tag
+     */
+    public static String getEtagContentId(S3Object object)
+    {
+        String etag = object.getETag();
+        if (etag == null || etag.isEmpty())
+        {
+            return null;
+        }
+        return "E" + etag + ":" + object.getSize();
+    }
+
+
+    /**
+     * @param header The initial window of the file
+     * @param length The number of bytes in the initial window
+     * @param size The size of the file in bytes, or -1 if not known
+     * @return The identity of the content of the file
+     */
+    public static String getHeaderContentId(byte[] header, int length, long size)
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        digest.update(header, 0, length);
+        byte[] hash = digest.digest();
+
+        StringBuilder builder = new StringBuilder(1 + hash.length * 2 + 21);
+        builder.append('H');
+        for (byte b : hash)
+        {
+            builder.append(HEX_DIGITS[(b >> 4) & 0x0F]).append(HEX_DIGITS[b & 0x0F]);
+        }
+        return builder.append(':').append(size).toString();
+    }
+
+
+    private void load()
+    throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file)))))
+        {
+            if (in.readInt() != MAGIC)
+            {
+                throw new IOException(String.format("\"%s\" is not a content index file", file));
+            }
+            int version = in.readInt();
+            if (version != VERSION)
+            {
+                throw new IOException(String.format("Unsupported content index version %d in \"%s\"", version, file));
+            }
+
+            int count = in.readInt();
+            for (int index = 0; index < count; index++ )
+            {
+                String contentId = in.readUTF();
+                canonicalKeys.put(contentId, in.readUTF());
+            }
+        }
+
+        if (logger.isLoggable(Level.FINE))
+        {
+            logger.logp(Level.FINE, getClass().getName(), "load", String.format("Loaded %d entries from content index \"%s\"", canonicalKeys.size(), file));
+        }
+    }
+
+
+    /**
+     * Claims the content for the key. The first key to claim the content becomes its canonical key.
+     *
+     * @param contentId The identity of the content
+     * @param key The key of the file
+     * @return The canonical key of the content if the content was claimed by another key, otherwise null
+     */
+    public String claim(String contentId, String key)
+    {
+        synchronized (pending)
+        {
+            String canonicalKey = canonicalKeys.putIfAbsent(contentId, key);
+            if (canonicalKey == null)
+            {
+                pending.put(contentId, new CompletableFuture<String>());
+                modified = true;
+                return null;
+            } else if (canonicalKey.equals(key))
+            {
+                // The file is being indexed again
+                return null;
+            }
+            aliases.incrementAndGet();
+            return canonicalKey;
+        }
+    }
+
+
+    /**
+     * @param contentId The identity of the content
+     * @return A CompletableFuture completed with the canonical key of the content once the metadata of the canonical
+     *         file has been written, or completed exceptionally if the canonical file could not be indexed
+     */
+    public CompletableFuture<String> whenWritten(String contentId)
+    {
+        synchronized (pending)
+        {
+            CompletableFuture<String> written = pending.get(contentId);
+            if (written != null)
+            {
+                return written;
+            }
+
+            written = new CompletableFuture<>();
+            String canonicalKey = canonicalKeys.get(contentId);
+            if (canonicalKey != null)
+            {
+                // The canonical file was written by this run or indexed by an earlier run
+                written.complete(canonicalKey);
+            } else
+            {
+                written.completeExceptionally(new IOException(String.format("The canonical file of content \"%s\" was not indexed", contentId)));
+            }
+            return written;
+        }
+    }
+
+
+    /**
+     * Records that the metadata of the canonical file of the content has been written, completing the pending aliases.
+     *
+     * @param contentId The identity of the content
+     * @param key The key of the file
+     */
+    public void written(String contentId, String key)
+    {
+        CompletableFuture<String> written;
+        synchronized (pending)
+        {
+            if (!key.equals(canonicalKeys.get(contentId)))
+            {
+                return;
+            }
+            written = pending.remove(contentId);
+            if (written != null)
+            {
+                // Pending entries are left out of the saved index, see save()
+                modified = true;
+            }
+        }
+        if (written != null)
+        {
+            written.complete(key);
+        }
+    }
+
+
+    /**
+     * Releases the content claimed by the key, e.g., when the file could not be indexed, so that the next copy of
+     * the content is indexed instead. The aliases pending on the content are not recorded.
+     *
+     * @param contentId The identity of the content
+     * @param key The key of the file
+     */
+    public void release(String contentId, String key)
+    {
+        CompletableFuture<String> written;
+        synchronized (pending)
+        {
+            if (!canonicalKeys.remove(contentId, key))
+            {
+                return;
+            }
+            modified = true;
+            written = pending.remove(contentId);
+        }
+        if (written != null)
+        {
+            written.completeExceptionally(new IOException(String.format("The canonical file \"%s\" could not be indexed", key)));
+        }
+    }
+
+
+    /**
+     * @return The number of files recorded as aliases of a canonical key
+     */
+    public long getAliasCount()
+    {
+        return aliases.get();
+    }
+
+
+    /**
+     * Saves the ContentIndex to its file if it is stored and was modified. Content whose canonical file has not been
+     * written yet is left out, so that copies found by a later run are not recorded as aliases of a file that may never
+     * be indexed.
+     *
+     * @throws IOException
+     */
+    public synchronized void save()
+    throws IOException
+    {
+        if (file == null || !modified)
+        {
+            return;
+        }
+        modified = false;
+
+        Path parent = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp)))))
+            {
+                // Copy the entries, the count written must match the entries written while content is still being claimed
+                Map<String, String> snapshot;
+                synchronized (pending)
+                {
+                    snapshot = new HashMap<>(canonicalKeys);
+                    snapshot.keySet().removeAll(pending.keySet());
+                }
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, String> entry : snapshot.entrySet())
+                {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue());
+                }
+            }
+
+            // Forced to the disk before the move, see Manifest#save()
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE))
+            {
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e)
+        {
+            modified = true;
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+}
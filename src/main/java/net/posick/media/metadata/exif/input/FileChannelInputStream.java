@@ -0,0 +1,224 @@
+package net.posick.media.metadata.exif.input;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The FileChannelInputStream is an InputStream that reads a file using positional FileChannel reads.
+ *
+ * The file is read one window at a time into a buffer that is reused for the life of the stream. Only the windows
+ * read by the reader are read from the file, skipping past the end of the current window moves the read position
+ * without reading the skipped bytes. Metadata readers that stop at the end of the metadata segments therefore
+ * only read the header region of the file, rather than streaming the whole file.
+ *
+ * @author posicks
+ */
+public class FileChannelInputStream extends InputStream
+{
+    private FileChannel channel;
+
+    private byte[] buffer;
+
+    private ByteBuffer byteBuffer;
+
+    private long bufferStart = 0;
+
+    private int bufferLength = 0;
+
+    private long position = 0;
+
+    private long size;
+
+    private boolean closed = false;
+
+
+    /**
+     * @param channel The FileChannel of the file, closed when the stream is closed
+     * @param windowSize The size in bytes of the windows read from the file
+     * @throws IOException
+     */
+    public FileChannelInputStream(FileChannel channel, int windowSize)
+    throws IOException
+    {
+        if (windowSize < 1)
+        {
+            throw new IllegalArgumentException("The window size must be greater than 0");
+        }
+        this.channel = channel;
+        this.size = channel.size();
+        this.buffer = new byte[(int) Math.max(1, Math.min(windowSize, size))];
+        this.byteBuffer = ByteBuffer.wrap(buffer);
+    }
+
+
+    /**
+     * @return The length of the file in bytes
+     */
+    public long getLength()
+    {
+        return size;
+    }
+
+
+    /**
+     * @return The current read position within the file
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+
+    /**
+     * Reads the window at the current position into the buffer.
+     *
+     * @return The number of bytes read into the buffer, 0 if the end of the file has been reached
+     * @throws IOException
+     */
+    public int prefetch()
+    throws IOException
+    {
+        return fill() ? bufferLength : 0;
+    }
+
+
+    /**
+     * Copies bytes from the buffer at the current position without advancing the position, reading the window at
+     * the current position if required.
+     *
+     * @param b The buffer into which the bytes are copied
+     * @param off The offset in the buffer
+     * @param len The maximum number of bytes copied
+     * @return The number of bytes copied, 0 if the end of the file has been reached
+     * @throws IOException
+     */
+    public int peek(byte[] b, int off, int len)
+    throws IOException
+    {
+        if (!fill())
+        {
+            return 0;
+        }
+        int offset = (int) (position - bufferStart);
+        int max = Math.min(len, bufferLength - offset);
+        System.arraycopy(buffer, offset, b, off, max);
+        return max;
+    }
+
+
+    /**
+     * Ensures that the buffer contains the current position, reading the window at the current position if required.
+     *
+     * @return false if the end of the file has been reached
+     * @throws IOException
+     */
+    private boolean fill()
+    throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Stream closed");
+        }
+
+        if (position >= bufferStart && position < bufferStart + bufferLength)
+        {
+            return true;
+        }
+
+        if (position >= size)
+        {
+            return false;
+        }
+
+        byteBuffer.clear();
+        long readPosition = position;
+        while (byteBuffer.hasRemaining() && readPosition < size)
+        {
+            int read = channel.read(byteBuffer, readPosition);
+            if (read < 0)
+            {
+                break;
+            }
+            readPosition += read;
+        }
+        bufferStart = position;
+        bufferLength = byteBuffer.position();
+        return bufferLength > 0;
+    }
+
+
+    @Override
+    public int read()
+    throws IOException
+    {
+        if (!fill())
+        {
+            return -1;
+        }
+        return buffer[(int) (position++ - bufferStart)] & 0xFF;
+    }
+
+
+    @Override
+    public int read(byte[] b, int off, int len)
+    throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        if (!fill())
+        {
+            return -1;
+        }
+
+        int offset = (int) (position - bufferStart);
+        int max = Math.min(len, bufferLength - offset);
+        System.arraycopy(buffer, offset, b, off, max);
+        position += max;
+        return max;
+    }
+
+
+    @Override
+    public long skip(long n)
+    throws IOException
+    {
+        if (n <= 0)
+        {
+            return 0;
+        }
+
+        // The skipped bytes are not read, the next read reads the window at the new position
+        n = Math.min(n, size - position);
+        position += Math.max(n, 0);
+        return Math.max(n, 0);
+    }
+
+
+    @Override
+    public int available()
+    throws IOException
+    {
+        if (position >= bufferStart && position < bufferStart + bufferLength)
+        {
+            return (int) (bufferStart + bufferLength - position);
+        }
+        return 0;
+    }
+
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        if (!closed)
+        {
+            closed = true;
+            channel.close();
+        }
+    }
+}
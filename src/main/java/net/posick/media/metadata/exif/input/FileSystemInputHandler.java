@@ -0,0 +1,376 @@
+package net.posick.media.metadata.exif.input;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.posick.media.metadata.Context;
+import net.posick.media.metadata.Pipeline;
+import net.posick.media.metadata.exif.handlers.FileHandler;
+import net.posick.media.metadata.exif.handlers.InputHandler;
+import net.posick.utils.BoundedExecutor;
+
+/**
+ * The FileSystemInputHandler is an InputHandler that retrieves the files from a local or network mounted file system.
+ *
+ * The directory tree is walked in parallel, one fork/join task per directory, and the files matching the file
+ * filters are sent to the fetch stage of the {@link Pipeline}. The fetch stage reads the initial window of each
+ * file using a positional FileChannel read and the file is then parsed by the parse stage, see
+ * {@link FileChannelInputStream}. Only the regions of the file read by the FileHandler are read from disk.
+ *
+ * The file filters are matched against the path of the file relative to the input directory, using '/' as the
+ * separator, so that the same filters can be used for S3 keys and file system paths.
+ *
+ * @author posicks
+ */
+@SuppressWarnings("rawtypes")
+public class FileSystemInputHandler extends InputHandler
+{
+    private static final int DEFAULT_WALK_THREADS = 4;
+
+    private static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+
+
+    /**
+     * The DirectoryTask is a fork/join task that lists a single directory, forking a task for each sub-directory
+     * and submitting each file found to the fetch stage.
+     *
+     * @author posicks
+     */
+    private class DirectoryTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 201610170001L;
+
+        private Path directory;
+
+
+        private DirectoryTask(Path directory)
+        {
+            this.directory = directory;
+        }
+
+
+        @Override
+        protected void compute()
+        {
+            List<DirectoryTask> subtasks = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory))
+            {
+                for (Path path : stream)
+                {
+                    BasicFileAttributes attributes;
+                    try
+                    {
+                        attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    } catch (IOException e)
+                    {
+                        logger.log(Level.WARNING, String.format("Error reading attributes of \"%s\" - %s: %s", path, e.getClass().getSimpleName(), e.getMessage()));
+                        continue;
+                    }
+
+                    if (attributes.isDirectory())
+                    {
+                        DirectoryTask task = new DirectoryTask(path);
+                        task.fork();
+                        subtasks.add(task);
+                    } else if (attributes.isRegularFile())
+                    {
+                        submitFile(path);
+                    }
+                }
+            } catch (IOException e)
+            {
+                logger.log(Level.WARNING, String.format("Error listing directory \"%s\" - %s: %s", directory, e.getClass().getSimpleName(), e.getMessage()), e);
+            }
+
+            for (DirectoryTask task : subtasks)
+            {
+                task.join();
+            }
+        }
+    }
+
+
+    /**
+     * The FileFetchRunner is a Runnable used to read the initial window of a file (fetch stage) before the file is
+     * handed to the parse stage.
+     *
+     * @author posicks
+     */
+    private static class FileFetchRunner implements Runnable
+    {
+        private static Logger logger = Logger.getLogger(FileFetchRunner.class.getName());
+
+        private Path path;
+
+        private FileHandler fileHandler;
+
+        private int windowSize;
+
+        private Executor parseExecutor;
+
+
+        public FileFetchRunner(Path path, FileHandler fileHandler, int windowSize, Executor parseExecutor)
+        {
+            this.path = path;
+            this.fileHandler = fileHandler;
+            this.windowSize = windowSize;
+            this.parseExecutor = parseExecutor;
+        }
+
+
+        @Override
+        public void run()
+        {
+            FileChannel channel = null;
+            FileChannelInputStream in = null;
+            boolean submitted = false;
+            try
+            {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+                in = new FileChannelInputStream(channel, windowSize);
+                in.prefetch();
+
+                // Files that the FileHandler does not accept are skipped without reading more than the initial window
+                String key = path.toUri().toString();
+                byte[] header = new byte[FileHandler.HEADER_LENGTH];
+                if (!fileHandler.accepts(key, header, in.peek(header, 0, header.length)))
+                {
+                    return;
+                }
+
+                parseExecutor.execute(new FileParseRunner(key, in, fileHandler));
+                submitted = true;
+            } catch (IOException e)
+            {
+                logger.log(Level.WARNING, String.format("File unreadable %s: %s - %s", path, e.getClass().getSimpleName(), e.getMessage()));
+            } catch (RejectedExecutionException e)
+            {
+                logger.log(Level.WARNING, String.format("Unable to parse file %s: %s - %s", path, e.getClass().getSimpleName(), e.getMessage()));
+            } finally
+            {
+                if (!submitted && channel != null)
+                {
+                    // The channel is closed directly, the stream is not created if the size of the file can not be read
+                    try
+                    {
+                        channel.close();
+                    } catch (IOException e)
+                    {
+                        logger.log(Level.FINE, "Error closing file", e);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The FileParseRunner is a Runnable used to execute the file parsing (parse stage) concurrently.
+     *
+     * @author posicks
+     */
+    private static class FileParseRunner implements Runnable
+    {
+        private static Logger logger = Logger.getLogger(FileParseRunner.class.getName());
+
+        private String key;
+
+        private FileChannelInputStream in;
+
+        private FileHandler fileHandler;
+
+
+        public FileParseRunner(String key, FileChannelInputStream in, FileHandler fileHandler)
+        {
+            this.key = key;
+            this.in = in;
+            this.fileHandler = fileHandler;
+        }
+
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                CompletableFuture<?> written = fileHandler.process(key, in);
+                written.whenComplete((ignored, failure) ->
+                {
+                    if (failure != null)
+                    {
+                        Throwable error = unwrap(failure);
+                        logger.log(Level.WARNING, String.format("Error writing metadata of file \"%s\": %s - %s", key, error.getClass().getSimpleName(), error.getMessage()));
+                    }
+                });
+
+                if (logger.isLoggable(Level.FINEST))
+                {
+                    logger.logp(Level.FINEST, getClass().getSimpleName(), "run", String.format("Read %d of %d bytes from \"%s\"", in.getPosition(), in.getLength(), key));
+                }
+            } catch (Exception e)
+            {
+                logger.log(Level.WARNING, String.format("Error reading file \"%s\": %s - %s", key, e.getClass().getSimpleName(), e.getMessage()));
+            } finally
+            {
+                try
+                {
+                    in.close();
+                } catch (IOException e)
+                {
+                    logger.log(Level.FINE, "Error closing file", e);
+                }
+            }
+        }
+    }
+
+
+    private int walkThreads;
+
+    private int windowSize;
+
+    private List<Pattern> filters;
+
+    private Path root;
+
+    private Pipeline pipeline;
+
+    private BoundedExecutor executor;
+
+    private AtomicLong filesSubmitted = new AtomicLong();
+
+
+    public FileSystemInputHandler(Context ctx)
+    {
+        super(ctx);
+        this.walkThreads = ctx.get(Context.LIST_THREADS, DEFAULT_WALK_THREADS);
+        this.windowSize = ctx.get(Context.RANGE_SIZE, 0);
+        if (windowSize <= 0)
+        {
+            windowSize = DEFAULT_WINDOW_SIZE;
+        }
+    }
+
+
+    /**
+     * Converts the input URI, either a "file:" URI or a file system path, to a Path.
+     *
+     * @param inputUri The input URI
+     * @return The Path
+     */
+    private static Path toPath(String inputUri)
+    {
+        if (inputUri.startsWith("file:"))
+        {
+            return Paths.get(URI.create(inputUri));
+        }
+        return Paths.get(inputUri);
+    }
+
+
+    /**
+     * Sends the file to the fetch stage if it matches the file filters, blocking while the maximum number of files
+     * are queued.
+     *
+     * @param path The path of the file
+     */
+    private void submitFile(Path path)
+    {
+        String key = root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+        boolean matches = filters == null || filters.isEmpty();
+        if (!matches)
+        {
+            // If filers were provided, only process files that, match one of the specified filters
+            for (Pattern p : filters)
+            {
+                Matcher m = p.matcher(key);
+                if (m.matches())
+                {
+                    matches = true;
+                    break;
+                }
+            }
+        }
+
+        if (matches)
+        {
+            try
+            {
+                executor.execute(new FileFetchRunner(path, fileHandler, windowSize, pipeline.getParseExecutor()));
+                filesSubmitted.incrementAndGet();
+            } catch (RejectedExecutionException e)
+            {
+                logger.log(Level.WARNING, String.format("Unable to schedule file \"%s\" - %s", path, e.getMessage()));
+            }
+        }
+    }
+
+
+    @Override
+    public void process(String inputUri)
+    throws IllegalArgumentException, IOException
+    {
+        this.root = toPath(inputUri).toAbsolutePath().normalize();
+        if (!Files.isDirectory(root))
+        {
+            throw new IllegalArgumentException(String.format("Invalid input \"%s\" - input must be a directory", inputUri));
+        }
+        this.filters = ctx.get(Context.FILE_FILTERS);
+
+        // The Pipeline is created by the Indexer, a private Pipeline is used when executed outside of an Indexer
+        Pipeline sharedPipeline = ctx.get(Context.PIPELINE);
+        this.pipeline = sharedPipeline != null ? sharedPipeline : new Pipeline(ctx);
+        this.executor = pipeline.getFetchExecutor();
+        this.filesSubmitted.set(0);
+
+        ForkJoinPool walkPool = new ForkJoinPool(walkThreads);
+        try
+        {
+            walkPool.invoke(new DirectoryTask(root));
+
+            // Wait for all file read tasks to complete, and all parse tasks when using a private Pipeline.
+            if (sharedPipeline != null)
+            {
+                executor.awaitCompletion();
+            } else
+            {
+                pipeline.awaitCompletion();
+            }
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while processing \"" + inputUri + "\"", e);
+        } finally
+        {
+            walkPool.shutdownNow();
+            if (sharedPipeline == null)
+            {
+                pipeline.shutdown();
+            }
+        }
+
+        if (filesSubmitted.get() == 0)
+        {
+            logger.logp(Level.INFO, getClass().getName(), "process", String.format("No files found in \"%s\"", inputUri));
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package net.posick.media.metadata.exif.input;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The Manifest records the entity tag, size and last modified time of each object indexed, so that objects that
+ * have not changed since they were last indexed can be skipped by subsequent incremental runs.
+ *
+ * The manifest is stored in a compact, gzip compressed, binary file. Entity tags that are hexadecimal digests
+ * (e.g., the MD5 entity tags of objects not uploaded in multiple parts) are stored as their binary value. The
+ * manifest is written to a temporary file, forced to the disk, which then replaces the manifest file, so that an
+ * interrupted save or a crash does not corrupt the existing manifest.
+ *
+ * @author posicks
+ */
+public class Manifest
+{
+    private static final int MAGIC = 0x4D4D494D;
+
+    private static final int VERSION = 1;
+
+    private static final byte ETAG_NONE = 0;
+
+    private static final byte ETAG_HEX = 1;
+
+    private static final byte ETAG_TEXT = 2;
+
+    private static Logger logger = Logger.getLogger(Manifest.class.getName());
+
+
+    /**
+     * The details of an object recorded in the Manifest.
+     *
+     * @author posicks
+     */
+    private static class Entry
+    {
+        private final long size;
+
+        private final long lastModified;
+
+        private final byte etagType;
+
+        private final byte[] etag;
+
+
+        private Entry(long size, long lastModified, byte etagType, byte[] etag)
+        {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.etagType = etagType;
+            this.etag = etag;
+        }
+
+
+        private Entry(S3Object object)
+        {
+            this.size = object.getSize();
+            this.lastModified = object.getLastModified();
+            String value = object.getETag();
+            if (value == null)
+            {
+                etagType = ETAG_NONE;
+                etag = null;
+            } else if (isHex(value))
+            {
+                etagType = ETAG_HEX;
+                etag = decodeHex(value);
+            } else
+            {
+                etagType = ETAG_TEXT;
+                etag = value.getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+
+        private boolean matches(Entry entry)
+        {
+            return size == entry.size && lastModified == entry.lastModified && etagType == entry.etagType && Arrays.equals(etag, entry.etag);
+        }
+    }
+
+
+    private Path file;
+
+    private Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private volatile boolean modified = false;
+
+
+    /**
+     * Creates a Manifest stored in the specified file, loading the file if it exists.
+     *
+     * @param file The manifest file
+     * @throws IOException
+     */
+    public Manifest(Path file)
+    throws IOException
+    {
+        this.file = file;
+        if (Files.exists(file))
+        {
+            load();
+        }
+    }
+
+
+    private static boolean isHex(String value)
+    {
+        int length = value.length();
+        if (length == 0 || (length & 1) != 0)
+        {
+            return false;
+        }
+        for (int index = 0; index < length; index++ )
+        {
+            if (Character.digit(value.charAt(index), 16) < 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static byte[] decodeHex(String value)
+    {
+        byte[] bytes = new byte[value.length() / 2];
+        for (int index = 0; index < bytes.length; index++ )
+        {
+            bytes[index] = (byte) ((Character.digit(value.charAt(index * 2), 16) << 4) | Character.digit(value.charAt(index * 2 + 1), 16));
+        }
+        return bytes;
+    }
+
+
+    private void load()
+    throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file)))))
+        {
+            if (in.readInt() != MAGIC)
+            {
+                throw new IOException(String.format("\"%s\" is not a manifest file", file));
+            }
+            int version = in.readInt();
+            if (version != VERSION)
+            {
+                throw new IOException(String.format("Unsupported manifest version %d in \"%s\"", version, file));
+            }
+
+            int count = in.readInt();
+            for (int index = 0; index < count; index++ )
+            {
+                String key = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                byte etagType = in.readByte();
+                byte[] etag = null;
+                if (etagType != ETAG_NONE)
+                {
+                    etag = new byte[in.readUnsignedShort()];
+                    in.readFully(etag);
+                }
+                entries.put(key, new Entry(size, lastModified, etagType, etag));
+            }
+        }
+
+        if (logger.isLoggable(Level.FINE))
+        {
+            logger.logp(Level.FINE, getClass().getName(), "load", String.format("Loaded %d entries from manifest \"%s\"", entries.size(), file));
+        }
+    }
+
+
+    /**
+     * @return The number of objects recorded in the Manifest
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+
+    /**
+     * Checks whether the object has changed since it was recorded.
+     *
+     * @param object The object from the file listing
+     * @return true if the object is recorded with the same entity tag, size and last modified time
+     */
+    public boolean isUnchanged(S3Object object)
+    {
+        Entry entry = entries.get(object.getKey());
+        return entry != null && entry.matches(new Entry(object));
+    }
+
+
+    /**
+     * Records the object as indexed.
+     *
+     * @param object The object from the file listing
+     */
+    public void record(S3Object object)
+    {
+        entries.put(object.getKey(), new Entry(object));
+        modified = true;
+    }
+
+
+    /**
+     * Saves the Manifest to its file if it was modified.
+     *
+     * @throws IOException
+     */
+    public synchronized void save()
+    throws IOException
+    {
+        if (!modified)
+        {
+            return;
+        }
+        modified = false;
+
+        Path parent = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp)))))
+            {
+                // Copy the entries, the count written must match the entries written while objects are still being recorded
+                Map<String, Entry> snapshot = new HashMap<>(entries);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, Entry> mapEntry : snapshot.entrySet())
+                {
+                    Entry entry = mapEntry.getValue();
+                    out.writeUTF(mapEntry.getKey());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.lastModified);
+                    out.writeByte(entry.etagType);
+                    if (entry.etagType != ETAG_NONE)
+                    {
+                        out.writeShort(entry.etag.length);
+                        out.write(entry.etag);
+                    }
+                }
+            }
+
+            // The temporary file is forced to the disk before it replaces the manifest, so that a crash after the move
+            // cannot leave a manifest whose contents were never written
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE))
+            {
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e)
+        {
+            modified = true;
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+}
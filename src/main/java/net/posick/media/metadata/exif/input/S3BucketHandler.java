@@ -1,31 +1,55 @@
 package net.posick.media.metadata.exif.input;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.LinkedList;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
-import org.apache.http.client.ClientProtocolException;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.xml.sax.Attributes;
 import org.xml.sax.ContentHandler;
 import org.xml.sax.InputSource;
@@ -34,358 +58,1839 @@ import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
 
 import net.posick.media.metadata.Context;
+import net.posick.media.metadata.Pipeline;
 import net.posick.media.metadata.exif.handlers.FileHandler;
 import net.posick.media.metadata.exif.handlers.InputHandler;
+import net.posick.utils.BoundedExecutor;
+import net.posick.utils.CompletionTracker;
+import net.posick.utils.ShortestJobFirstExecutor;
 
 /**
- * The S3BucketHandler is an InputHandler that retrieves the file listing and files from an S3 API data source
- * 
+ * The S3BucketHandler is an InputHandler that retrieves the file listing and files from an S3 API data source.
+ *
+ * The file listing is retrieved page by page using the S3 ListObjects (V1, marker based) or ListObjectsV2
+ * (continuation token based) API until the listing is no longer truncated. Listings may be split across
+ * several key prefixes, and when a delimiter is specified the common prefixes found in a listing are
+ * listed concurrently as well, so that several listing streams feed the same file processing pool.
+ *
+ * The number of files queued for processing is bounded, when the bound is reached the listing streams block
+ * until files complete so that memory use remains flat regardless of the size of the bucket.
+ *
+ * Files are read using HTTP Range requests, see {@link S3RangedInputStream}. The initial window of each file is
+ * retrieved by the fetch stage of the {@link Pipeline} and the file is then parsed by the parse stage, reads past
+ * the initial window are retrieved by the parse stage.
+ *
+ * Files at least as large as the configured large file size are retrieved and parsed by the large file stage of the
+ * Pipeline, using the sizes in the listing, and the other files may be sent to the fetch stage smallest first.
+ *
+ * When asynchronous retrieval is enabled the initial windows are instead requested using a non-blocking
+ * HttpAsyncClient, which keeps a connection per fetch thread alive to the host, so that the number of files being
+ * retrieved is bounded by the capacity of the fetch stage rather than its threads. The fetch stage then only hands
+ * the retrieved files to the parse stage.
+ *
  * @author posicks
  */
 @SuppressWarnings("rawtypes")
 public class S3BucketHandler extends InputHandler
 {
+    private static final int DEFAULT_LIST_THREADS = 4;
+
+    private static final int DEFAULT_LIST_API_VERSION = 2;
+
+    private static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 60;
+
+    private static final int ASYNC_TIMEOUT_MILLIS = 60 * 1000;
+
+
     /**
      * SAX Parser interface.
-     * 
-     * SAX is used so that as the document is parsed FileHandlers can be executed concurrently with each other 
+     *
+     * SAX is used so that as the document is parsed FileHandlers can be executed concurrently with each other
      * and the parsing of the file listing.
-     * 
+     *
+     * A S3Parser parses a single listing page at a time and records the pagination state of the page so that
+     * the next page of the listing can be requested.
+     *
+     * SAX may split the text of an element across several calls to characters(), so the text is accumulated into a
+     * char buffer that is reused for every element of every page parsed, and is only converted once the element ends.
+     * Sizes and dates are parsed directly from the buffer, so the only objects created per file are its key, entity
+     * tag and S3Object.
+     *
      * @author posicks
      */
-    private static class S3Parser implements ContentHandler
+    private class S3Parser implements ContentHandler
     {
-        private static Logger logger = Logger.getLogger(S3Parser.class.getName());
-        
+        private String prefix;
+
         private List<Pattern> filters;
-        
-        private boolean processingKey = false;
-        
-        private ExecutorService executor;
-        
-        private List<Future<Boolean>> futures = new LinkedList<>();
 
-        private String uri;
+        private boolean processingContents = false;
 
-        private CloseableHttpClient httpClient;
+        private boolean processingCommonPrefixes = false;
 
-        private FileHandler fileHandler;
+        private char[] text = new char[256];
+
+        private int textLength = 0;
+
+        private boolean capturing = false;
+
+        private boolean truncated = false;
+
+        private String nextMarker;
+
+        private String nextContinuationToken;
 
-        
-        private S3Parser(Context ctx, CloseableHttpClient httpClient, String uri, List<Pattern> filters, FileHandler fileHandler)
+        private String lastKey;
+
+        private String key;
+
+        private long size;
+
+        private String etag;
+
+        private long lastModified;
+
+        private List<String> commonPrefixes = new ArrayList<>();
+
+
+        private S3Parser(String prefix, List<Pattern> filters)
         {
-            this.httpClient = httpClient;
-            executor = Executors.newWorkStealingPool(ctx.get(Context.MAX_THREADS));
-            this.executor = new ForkJoinPool(ctx.get(Context.MAX_THREADS), ForkJoinPool.defaultForkJoinWorkerThreadFactory, (Thread t, Throwable e) -> 
-            {
-                logger.log(Level.WARNING, String.format("Error occurred while processing S3 bucket: %s - %s", e.getClass().getSimpleName(), e.getMessage()));
-            }, true);
-            this.uri = uri;
+            this.prefix = prefix;
             this.filters = filters;
-            this.fileHandler = fileHandler;
         }
-        
-        
+
+
+        /**
+         * Resets the pagination state so that the parser can be reused for the next listing page.
+         */
+        private void reset()
+        {
+            processingContents = false;
+            processingCommonPrefixes = false;
+            capturing = false;
+            truncated = false;
+            nextMarker = null;
+            nextContinuationToken = null;
+            lastKey = null;
+            commonPrefixes.clear();
+        }
+
+
+        /**
+         * @return The marker or continuation token used to request the listing page following the parsed page,
+         * or null if the parsed page was the last page of the listing.
+         */
+        private String getNextPageMarker()
+        {
+            if (!truncated)
+            {
+                return null;
+            }
+
+            if (listApiVersion >= 2)
+            {
+                return nextContinuationToken;
+            } else if (nextMarker != null)
+            {
+                return nextMarker;
+            } else
+            {
+                // ListObjects V1 only returns NextMarker when a delimiter is specified, the last key is used otherwise
+                String marker = lastKey;
+                for (String prefix : commonPrefixes)
+                {
+                    if (marker == null || prefix.compareTo(marker) > 0)
+                    {
+                        marker = prefix;
+                    }
+                }
+                return marker;
+            }
+        }
+
+
         @Override
         public void setDocumentLocator(Locator locator)
         {
         }
-        
-        
+
+
         @Override
         public void startDocument()
         throws SAXException
         {
         }
-        
-        
+
+
         @Override
         public void endDocument()
         throws SAXException
         {
         }
-        
-        
+
+
         @Override
         public void startPrefixMapping(String prefix, String uri)
         throws SAXException
         {
         }
-        
-        
+
+
         @Override
         public void endPrefixMapping(String prefix)
         throws SAXException
         {
         }
-        
-        
+
+
         @Override
         public void startElement(String uri, String localName, String qName, Attributes atts)
         throws SAXException
         {
             switch (qName)
             {
+                case "Contents":
+                    processingContents = true;
+                    key = null;
+                    size = -1;
+                    etag = null;
+                    lastModified = -1;
+                    break;
                 case "Key":
-                    processingKey = true;
+                case "Size":
+                case "ETag":
+                case "LastModified":
+                    capture(processingContents);
+                    break;
+                case "CommonPrefixes":
+                    processingCommonPrefixes = true;
+                    break;
+                case "Prefix":
+                    capture(processingCommonPrefixes);
+                    break;
+                case "IsTruncated":
+                case "NextMarker":
+                case "NextContinuationToken":
+                    capture(true);
                     break;
             }
         }
-        
-        
+
+
         @Override
         public void endElement(String uri, String localName, String qName)
         throws SAXException
         {
             switch (qName)
             {
+                case "Contents":
+                    // The object is complete, all of the object details have been parsed
+                    processingContents = false;
+                    if (key != null)
+                    {
+                        lastKey = key;
+                        if (matches(key))
+                        {
+                            // Schedule the execution of the FileHandler in another Thread
+                            submitFile(prefix, new S3Object(key, size, etag, lastModified));
+                        }
+                    }
+                    break;
                 case "Key":
-                    processingKey = false;
+                    if (processingContents && capturing)
+                    {
+                        key = parseKey();
+                    }
+                    break;
+                case "Size":
+                    if (processingContents && capturing)
+                    {
+                        size = parseSize();
+                    }
+                    break;
+                case "ETag":
+                    if (processingContents && capturing)
+                    {
+                        etag = parseETag();
+                    }
+                    break;
+                case "LastModified":
+                    if (processingContents && capturing)
+                    {
+                        lastModified = parseLastModified();
+                    }
+                    break;
+                case "CommonPrefixes":
+                    processingCommonPrefixes = false;
+                    break;
+                case "Prefix":
+                    if (processingCommonPrefixes && capturing)
+                    {
+                        commonPrefixes.add(new String(text, 0, textLength));
+                    }
+                    break;
+                case "IsTruncated":
+                    truncated = capturing && parseBoolean();
+                    break;
+                case "NextMarker":
+                    nextMarker = capturing ? new String(text, 0, textLength) : null;
+                    break;
+                case "NextContinuationToken":
+                    nextContinuationToken = capturing ? new String(text, 0, textLength) : null;
                     break;
             }
+            capturing = false;
         }
-        
-        
+
+
         @Override
         public void characters(char[] ch, int start, int length)
         throws SAXException
         {
-            // Call the FileHandler for each file found in the file listings
-            if (processingKey)
+            if (capturing)
             {
-                String key = new String(ch, start, length).trim();
-                if (filters != null && filters.size() > 0)
+                if (textLength + length > text.length)
                 {
-                    // If filers were provided, only process files that, match one of the specified filters 
-                    for (Pattern p : filters)
-                    {
-                        Matcher m = p.matcher(key);
-                        if (m.matches())
-                        {
-                            // Schedule the execution of the FileHandler in another Thread
-                            futures.add(executor.submit(new S3FileRunner(httpClient, uri, key, fileHandler), true));
-                        }
-                    }
-                } else
+                    text = Arrays.copyOf(text, Math.max(text.length * 2, textLength + length));
+                }
+                System.arraycopy(ch, start, text, textLength, length);
+                textLength += length;
+            }
+        }
+
+
+        /**
+         * Starts accumulating the text of the element started, if the element is of interest.
+         *
+         * @param capture true if the text of the element is of interest
+         */
+        private void capture(boolean capture)
+        {
+            capturing = capture;
+            textLength = 0;
+        }
+
+
+        /**
+         * @return The index of the first character of the text that is not whitespace
+         */
+        private int textStart()
+        {
+            int start = 0;
+            while (start < textLength && Character.isWhitespace(text[start]))
+            {
+                start++ ;
+            }
+            return start;
+        }
+
+
+        /**
+         * @param start The index of the first character of the text that is not whitespace
+         * @return The index following the last character of the text that is not whitespace
+         */
+        private int textEnd(int start)
+        {
+            int end = textLength;
+            while (end > start && Character.isWhitespace(text[end - 1]))
+            {
+                end-- ;
+            }
+            return end;
+        }
+
+
+        /**
+         * @param key The file key
+         * @return true if no file filters were provided or the key matches one of the file filters
+         */
+        private boolean matches(String key)
+        {
+            if (filters == null || filters.isEmpty())
+            {
+                return true;
+            }
+
+            // If filers were provided, only process files that, match one of the specified filters
+            for (Pattern p : filters)
+            {
+                Matcher m = p.matcher(key);
+                if (m.matches())
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+
+        private String parseKey()
+        {
+            int start = textStart();
+            return new String(text, start, textEnd(start) - start);
+        }
+
+
+        private long parseSize()
+        {
+            int start = textStart();
+            return parseDigits(start, textEnd(start) - start);
+        }
+
+
+        private String parseETag()
+        {
+            // Entity tags are returned surrounded by quotes
+            int start = textStart();
+            int end = textEnd(start);
+            if (end - start >= 2 && text[start] == '"' && text[end - 1] == '"')
+            {
+                start++ ;
+                end-- ;
+            }
+            return end > start ? new String(text, start, end - start) : null;
+        }
+
+
+        private boolean parseBoolean()
+        {
+            int start = textStart();
+            int end = textEnd(start);
+            String value = "true";
+            if (end - start != value.length())
+            {
+                return false;
+            }
+            for (int index = 0; index < value.length(); index++ )
+            {
+                if (Character.toLowerCase(text[start + index]) != value.charAt(index))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+
+        /**
+         * Parses the LastModified date. The format returned by S3, e.g., 2016-10-10T10:10:10.000Z, is parsed directly
+         * from the text, other ISO-8601 instants are parsed using {@link Instant#parse(CharSequence)}.
+         *
+         * @return The date in milliseconds since the epoch, or -1 if the date is invalid
+         */
+        private long parseLastModified()
+        {
+            int start = textStart();
+            int length = textEnd(start) - start;
+            if ((length == 20 || (length == 24 && text[start + 19] == '.')) && text[start + 4] == '-' && text[start + 7] == '-' && text[start + 10] == 'T' && text[start + 13] == ':' && text[start + 16] == ':' && text[start + length - 1] == 'Z')
+            {
+                long year = parseDigits(start, 4);
+                long month = parseDigits(start + 5, 2);
+                long day = parseDigits(start + 8, 2);
+                long hour = parseDigits(start + 11, 2);
+                long minute = parseDigits(start + 14, 2);
+                long second = parseDigits(start + 17, 2);
+                long millis = length == 24 ? parseDigits(start + 20, 3) : 0;
+                if (year >= 0 && month >= 1 && month <= 12 && day >= 1 && day <= daysInMonth(year, month) && hour >= 0 && hour < 24 && minute >= 0 && minute < 60 && second >= 0 && second < 60 && millis >= 0)
+                {
+                    return (((epochDay(year, month, day) * 24 + hour) * 60 + minute) * 60 + second) * 1000 + millis;
+                }
+            }
+
+            try
+            {
+                return Instant.parse(new String(text, start, length)).toEpochMilli();
+            } catch (DateTimeParseException e)
+            {
+                return -1;
+            }
+        }
+
+
+        /**
+         * @param start The index of the first digit
+         * @param length The number of digits
+         * @return The value of the decimal digits, or -1 if the text is empty, is not all digits or overflows
+         */
+        private long parseDigits(int start, int length)
+        {
+            if (length <= 0 || length > 18)
+            {
+                return -1;
+            }
+            long value = 0;
+            for (int index = start; index < start + length; index++ )
+            {
+                char c = text[index];
+                if (c < '0' || c > '9')
                 {
-                    // Schedule the execution of the FileHandler in another Thread
-                    futures.add(executor.submit(new S3FileRunner(httpClient, uri, key, fileHandler), true));
+                    return -1;
                 }
+                value = value * 10 + (c - '0');
+            }
+            return value;
+        }
+
+
+        private int daysInMonth(long year, long month)
+        {
+            if (month == 2)
+            {
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
             }
+            return month == 4 || month == 6 || month == 9 || month == 11 ? 30 : 31;
+        }
+
+
+        /**
+         * @return The number of days since 1970-01-01 of the date in the proleptic Gregorian calendar
+         */
+        private long epochDay(long year, long month, long day)
+        {
+            // Years start in March so that the leap day is the last day of the year
+            long y = month <= 2 ? year - 1 : year;
+            long era = Math.floorDiv(y, 400);
+            long yearOfEra = y - era * 400;
+            long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+            long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+            return era * 146097 + dayOfEra - 719468;
         }
-        
-        
+
+
         @Override
         public void ignorableWhitespace(char[] ch, int start, int length)
         throws SAXException
         {
         }
-        
-        
+
+
         @Override
         public void processingInstruction(String target, String data)
         throws SAXException
         {
         }
-        
-        
+
+
         @Override
         public void skippedEntity(String name)
         throws SAXException
         {
         }
     }
-    
-    
+
+
     /**
-     * The S3FileRunner is a Runnable to use to execute the file retrieval and parsing processes concurrently
-     * 
+     * The S3ListingRunner is a Runnable used to retrieve all pages of the file listing for a single key prefix.
+     * Multiple S3ListingRunners are executed concurrently, one per listing stream.
+     *
      * @author posicks
      */
-    private static class S3FileRunner implements Runnable
+    private class S3ListingRunner implements Runnable
     {
-        private static Logger logger = Logger.getLogger(S3FileRunner.class.getName());
-        
-        private CloseableHttpClient httpClient;
-        
-        private String uri;
-        
-        private String key;
-        
-        private FileHandler fileHandler;
+        private String prefix;
+
+        private String startAfter;
 
-        
-        public S3FileRunner(CloseableHttpClient httpClient, String uri, String key, FileHandler fileHandler)
+
+        private S3ListingRunner(String prefix, String startAfter)
         {
-            this.httpClient = httpClient;
-            this.uri = uri;
-            this.key = key;
-            this.fileHandler = fileHandler;
+            this.prefix = prefix;
+            this.startAfter = startAfter;
         }
-        
-        
+
+
         @Override
         public void run()
         {
-            String s3Uri = this.uri;
-            s3Uri += s3Uri.endsWith("/") ? key : "/" + key;
-            HttpGet httpGet = new HttpGet(s3Uri);
-            CloseableHttpResponse response = null;
             try
             {
-                response = httpClient.execute(httpGet);
-                HttpEntity entity = response.getEntity();
-                
-                int respCode = response.getStatusLine().getStatusCode();
-                if (respCode == 200)
+                // Each listing stream uses its own XMLReader, XMLReaders are not thread safe
+                XMLReader xmlReader = saxParserFactory.newSAXParser().getXMLReader();
+                S3Parser s3Parser = new S3Parser(prefix, filters);
+                xmlReader.setContentHandler(s3Parser);
+
+                String marker = null;
+                boolean complete = false;
+                int pages = 0;
+                do
                 {
-                    // If the file was successfully retrieved get its InputStream and send it to the FileProcessor.
-                    InputStream in = entity.getContent();
-                    try
+                    s3Parser.reset();
+                    URI listingUri = buildListingUri(prefix, startAfter, marker);
+                    if (!list(listingUri, xmlReader))
+                    {
+                        break;
+                    }
+                    pages++ ;
+
+                    // Fan out across the common prefixes found by the delimiter
+                    for (String commonPrefix : s3Parser.commonPrefixes)
                     {
-                        fileHandler.process(s3Uri, in);
-                    } catch (Exception e)
+                        submitListing(commonPrefix);
+                    }
+
+                    String nextMarker = s3Parser.getNextPageMarker();
+                    if (nextMarker != null && nextMarker.equals(marker))
                     {
-                        logger.log(Level.WARNING, String.format("Error reading file \"%s\": %s - %s", uri, e.getClass().getSimpleName(), e.getMessage()));
+                        logger.log(Level.WARNING, String.format("Listing of \"%s\" returned a repeated marker \"%s\", stopping listing", listingUri, marker));
+                        break;
                     }
-                } else
+                    marker = nextMarker;
+                    complete = marker == null;
+                } while (marker != null);
+
+                if (complete && checkpoint != null)
                 {
-                    // If the file is unreadable send the error to the File processor
-                    logger.log(Level.WARNING, String.format("File unreadable %s: HTTP Request was not successful. Responce Code was %s", s3Uri, "" + respCode));
+                    checkpoint.completed(prefix);
                 }
-            } catch (ClientProtocolException e)
-            {
-                logger.log(Level.WARNING, String.format("Error executing File handler %s: %s", e.getClass().getSimpleName(), e.getMessage()), e);
-            } catch (IOException e)
-            {
-                logger.log(Level.WARNING, String.format("Error executing File handler %s: %s", e.getClass().getSimpleName(), e.getMessage()), e);
-            } finally
+
+                if (logger.isLoggable(Level.FINE))
+                {
+                    logger.logp(Level.FINE, LOG_CLASS_NAME, "run", String.format("Listed %d page(s) for prefix \"%s\"", pages, prefix != null ? prefix : ""));
+                }
+            } catch (ParserConfigurationException | SAXException | URISyntaxException | IOException e)
             {
-                if (response != null)
+                logger.log(Level.WARNING, String.format("Error listing prefix \"%s\" - %s: %s", prefix, e.getClass().getSimpleName(), e.getMessage()), e);
+                if (listingError == null)
                 {
-                    try
-                    {
-                        response.close();
-                    } catch (IOException e)
-                    {
-                        logger.log(Level.FINE, "Error closing HTTP response", e);
-                    }
+                    listingError = e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
                 }
+            } finally
+            {
+                listings.arrive();
             }
         }
     }
-        
-    
-    private PoolingHttpClientConnectionManager httpConnectionManager;
-    
-    private CloseableHttpClient httpClient;
-    
-    private XMLReader xmlReader;
 
-    private S3Parser s3Parser;
-    
-    private int maxThreads;
-    
-    
-    public S3BucketHandler(Context ctx)
-    throws ParserConfigurationException, SAXException
-    {
-        super(ctx);
-        this.maxThreads = ctx.get(Context.MAX_THREADS);
-        
-        httpConnectionManager = new PoolingHttpClientConnectionManager();
-        httpConnectionManager.setMaxTotal(maxThreads);
-        this.httpClient = HttpClients.custom().setConnectionManager(httpConnectionManager).build();
-        
-        SAXParserFactory spf = SAXParserFactory.newInstance();
-        spf.setNamespaceAware(true);
-        SAXParser saxParser = spf.newSAXParser();
-        XMLReader xmlReader = saxParser.getXMLReader();
-        this.xmlReader = xmlReader;
-    }
-    
-    
-    @Override
-    public void process(String inputUri)
-    throws IOException
+
+    /**
+     * The S3FileRunner is a Runnable used to execute the file retrieval (fetch stage) concurrently. The initial window
+     * of the file is read into memory and the HTTP connection is released before the file is handed to the parse stage.
+     *
+     * @author posicks
+     */
+    private static class S3FileRunner implements Runnable
     {
-        // Retrieve the file listings and create a SAX Parser to parse the file keys out of the listings.
-        // The SAX ContentHandler will launch the file processing operations concurrently as files are found.
-        xmlReader.setContentHandler(this.s3Parser = new S3Parser(ctx, httpClient, inputUri, ctx.get(Context.FILE_FILTERS), fileHandler));
-        
-        HttpGet httpGet = new HttpGet(inputUri);
-        httpGet.addHeader("Accept", "application/xml");
-        CloseableHttpResponse response = httpClient.execute(httpGet);
-        try
-        {
-            HttpEntity entity = response.getEntity();
-            
-            int respCode = response.getStatusLine().getStatusCode();
-            if (respCode == 200)
+        private static Logger logger = Logger.getLogger(S3FileRunner.class.getName());
+
+        private CloseableHttpClient httpClient;
+
+        private String uri;
+
+        private S3Object object;
+
+        private FileHandler fileHandler;
+
+        private Manifest manifest;
+
+        private Checkpoint checkpoint;
+
+        private ContentIndex contentIndex;
+
+        private AliasWriter aliasWriter;
+
+        private String dedupMode;
+
+        private int windowSize;
+
+        private Executor parseExecutor;
+
+        private S3RangedInputStream prefetchedIn;
+
+        private int prefetched;
+
+
+        public S3FileRunner(CloseableHttpClient httpClient, String uri, S3Object object, FileHandler fileHandler, Manifest manifest, Checkpoint checkpoint, ContentIndex contentIndex, AliasWriter aliasWriter, String dedupMode, int windowSize, Executor parseExecutor)
+        {
+            this(httpClient, uri, object, fileHandler, manifest, checkpoint, contentIndex, aliasWriter, dedupMode, windowSize, parseExecutor, null, 0);
+        }
+
+
+        /**
+         * Creates a S3FileRunner for a file whose initial window has already been retrieved.
+         */
+        public S3FileRunner(CloseableHttpClient httpClient, String uri, S3Object object, FileHandler fileHandler, Manifest manifest, Checkpoint checkpoint, ContentIndex contentIndex, AliasWriter aliasWriter, String dedupMode, int windowSize, Executor parseExecutor, S3RangedInputStream prefetchedIn, int prefetched)
+        {
+            this.httpClient = httpClient;
+            this.uri = uri;
+            this.object = object;
+            this.fileHandler = fileHandler;
+            this.manifest = manifest;
+            this.checkpoint = checkpoint;
+            this.contentIndex = contentIndex;
+            this.aliasWriter = aliasWriter;
+            this.dedupMode = dedupMode;
+            this.windowSize = windowSize;
+            this.parseExecutor = parseExecutor;
+            this.prefetchedIn = prefetchedIn;
+            this.prefetched = prefetched;
+        }
+
+
+        @Override
+        public void run()
+        {
+            String s3Uri = this.uri;
+            s3Uri += s3Uri.endsWith("/") ? object.getKey() : "/" + object.getKey();
+            S3RangedInputStream in = prefetchedIn != null ? prefetchedIn : new S3RangedInputStream(httpClient, s3Uri, windowSize);
+            boolean submitted = false;
+
+            // The content claimed by the file, released if the file is not handed to the parse stage
+            String contentId = null;
+            if (ContentIndex.MODE_ETAG.equals(dedupMode))
+            {
+                // The entity tag was claimed when the file was listed
+                contentId = ContentIndex.getEtagContentId(object);
+            }
+
+            try
+            {
+                // Retrieve the initial window of the file, unless retrieved asynchronously, and send it to the parse stage,
+                // reads past the initial window are retrieved by the parse stage using HTTP Range requests.
+                int prefetched = prefetchedIn != null ? this.prefetched : in.prefetch();
+
+                // Files that the FileHandler does not accept are skipped without retrieving more than the initial window
+                byte[] header = new byte[FileHandler.HEADER_LENGTH];
+                if (!fileHandler.accepts(s3Uri, header, in.peek(header, 0, header.length)))
+                {
+                    recordProcessed(object, manifest, checkpoint);
+                    return;
+                }
+
+                // Copies of content already indexed are recorded as aliases of the canonical file rather than parsed
+                if (ContentIndex.MODE_HEADER.equals(dedupMode))
+                {
+                    byte[] window = new byte[prefetched];
+                    String headerContentId = ContentIndex.getHeaderContentId(window, in.peek(window, 0, window.length), object.getSize());
+                    if (contentIndex.claim(headerContentId, s3Uri) != null)
+                    {
+                        aliasWriter.write(object, s3Uri, headerContentId);
+                        return;
+                    }
+                    contentId = headerContentId;
+                }
+
+                parseExecutor.execute(new S3ParseRunner(s3Uri, object, in, fileHandler, manifest, checkpoint, contentIndex, contentId));
+                submitted = true;
+            } catch (IOException e)
+            {
+                // If the file is unreadable send the error to the File processor
+                logger.log(Level.WARNING, String.format("File unreadable %s: %s - %s", s3Uri, e.getClass().getSimpleName(), e.getMessage()));
+            } catch (RejectedExecutionException e)
+            {
+                logger.log(Level.WARNING, String.format("Unable to parse file %s: %s - %s", s3Uri, e.getClass().getSimpleName(), e.getMessage()));
+            } finally
+            {
+                // Files that could not be read stay in flight in the checkpoint, so that a resumed run retries them
+                if (!submitted)
+                {
+                    try
+                    {
+                        in.close();
+                    } catch (IOException e)
+                    {
+                        logger.log(Level.FINE, "Error closing ranged input stream", e);
+                    }
+
+                    // The next copy of the content is indexed instead
+                    if (contentId != null)
+                    {
+                        contentIndex.release(contentId, s3Uri);
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The S3ParseRunner is a Runnable used to execute the file parsing (parse stage) concurrently.
+     *
+     * @author posicks
+     */
+    private static class S3ParseRunner implements Runnable
+    {
+        private static Logger logger = Logger.getLogger(S3ParseRunner.class.getName());
+
+        private String s3Uri;
+
+        private S3Object object;
+
+        private S3RangedInputStream in;
+
+        private FileHandler fileHandler;
+
+        private Manifest manifest;
+
+        private Checkpoint checkpoint;
+
+        private ContentIndex contentIndex;
+
+        private String contentId;
+
+
+        public S3ParseRunner(String s3Uri, S3Object object, S3RangedInputStream in, FileHandler fileHandler, Manifest manifest, Checkpoint checkpoint, ContentIndex contentIndex, String contentId)
+        {
+            this.s3Uri = s3Uri;
+            this.object = object;
+            this.in = in;
+            this.fileHandler = fileHandler;
+            this.manifest = manifest;
+            this.checkpoint = checkpoint;
+            this.contentIndex = contentIndex;
+            this.contentId = contentId;
+        }
+
+
+        @Override
+        public void run()
+        {
+            CompletableFuture<?> written = null;
+            try
+            {
+                written = fileHandler.process(s3Uri, in);
+
+                if (logger.isLoggable(Level.FINEST))
+                {
+                    logger.logp(Level.FINEST, getClass().getSimpleName(), "run", String.format("Read %d of %d bytes from \"%s\"", in.getPosition(), in.getLength(), s3Uri));
+                }
+            } catch (Exception e)
+            {
+                logger.log(Level.WARNING, String.format("Error reading file \"%s\": %s - %s", s3Uri, e.getClass().getSimpleName(), e.getMessage()));
+
+                // The next copy of the content is indexed instead
+                if (contentId != null)
+                {
+                    contentIndex.release(contentId, s3Uri);
+                }
+            } finally
+            {
+                try
+                {
+                    in.close();
+                } catch (IOException e)
+                {
+                    logger.log(Level.FINE, "Error closing ranged input stream", e);
+                }
+            }
+
+            if (written != null)
+            {
+                // Only files whose metadata was written are recorded, files that failed stay in flight in the checkpoint
+                // and are retried by a resumed run, or by the next run
+                written.whenComplete((ignored, failure) ->
+                {
+                    if (failure == null)
+                    {
+                        recordProcessed(object, manifest, checkpoint);
+
+                        // The aliases of the content are written once the canonical file has been written
+                        if (contentId != null)
+                        {
+                            contentIndex.written(contentId, s3Uri);
+                        }
+                    } else
+                    {
+                        Throwable error = unwrap(failure);
+                        logger.log(Level.WARNING, String.format("Error writing metadata of file \"%s\": %s - %s", s3Uri, error.getClass().getSimpleName(), error.getMessage()));
+                        if (contentId != null)
+                        {
+                            contentIndex.release(contentId, s3Uri);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+
+    /**
+     * The AliasWriter records copies of content that has already been claimed as aliases of the canonical file of the
+     * content. An alias is only written, and recorded in the manifest and checkpoint, once the metadata of the
+     * canonical file has been written, so that an alias never refers to a file that is not indexed. The writes of the
+     * canonical files may be acknowledged by threads that must not block, e.g., the I/O threads of the datastore
+     * client, so the aliases are written by the alias thread.
+     *
+     * @author posicks
+     */
+    private static class AliasWriter
+    {
+        private static Logger logger = Logger.getLogger(AliasWriter.class.getName());
+
+        private FileHandler fileHandler;
+
+        private ContentIndex contentIndex;
+
+        private Manifest manifest;
+
+        private Checkpoint checkpoint;
+
+        private ExecutorService executor;
+
+        private CompletionTracker pending = new CompletionTracker();
+
+
+        public AliasWriter(FileHandler fileHandler, ContentIndex contentIndex, Manifest manifest, Checkpoint checkpoint)
+        {
+            this.fileHandler = fileHandler;
+            this.contentIndex = contentIndex;
+            this.manifest = manifest;
+            this.checkpoint = checkpoint;
+            this.executor = Executors.newSingleThreadExecutor((Runnable r) ->
+            {
+                Thread thread = new Thread(r, "alias");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+
+        /**
+         * Records the file as an alias of the canonical file of its content once the metadata of the canonical file
+         * has been written. If the canonical file could not be indexed the file is not recorded, it stays in flight in
+         * the checkpoint and is indexed by a resumed run or the next run.
+         *
+         * @param object The file
+         * @param key The URI of the file
+         * @param contentId The identity of the content of the file
+         */
+        public void write(S3Object object, String key, String contentId)
+        {
+            pending.register();
+            contentIndex.whenWritten(contentId).whenCompleteAsync((canonicalKey, failure) ->
+            {
+                try
+                {
+                    if (failure != null)
+                    {
+                        Throwable error = unwrap(failure);
+                        logger.log(Level.WARNING, String.format("Not recording file %s as an alias - %s", key, error.getMessage()));
+                        return;
+                    }
+
+                    CompletableFuture<?> written = fileHandler.alias(key, canonicalKey);
+                    written.whenComplete((ignored, aliasFailure) ->
+                    {
+                        if (aliasFailure == null)
+                        {
+                            recordProcessed(object, manifest, checkpoint);
+                        } else
+                        {
+                            Throwable error = unwrap(aliasFailure);
+                            logger.log(Level.WARNING, String.format("Error recording file %s as an alias of %s: %s - %s", key, canonicalKey, error.getClass().getSimpleName(), error.getMessage()));
+                        }
+                    });
+                } finally
+                {
+                    pending.arrive();
+                }
+            }, executor);
+        }
+
+
+        /**
+         * @return true if aliases are waiting for the metadata of their canonical files to be written
+         */
+        public boolean isPending()
+        {
+            return pending.getOutstanding() > 0;
+        }
+
+
+        /**
+         * Waits until the aliases waiting for their canonical files have been handed to the FileHandler.
+         *
+         * @throws InterruptedException
+         */
+        public void awaitCompletion()
+        throws InterruptedException
+        {
+            pending.await();
+        }
+
+
+        public void shutdown()
+        {
+            executor.shutdownNow();
+        }
+    }
+
+
+    /**
+     * The WindowConsumer reads the response to an asynchronous request for the initial window of a file into memory.
+     * Responses longer than the window, e.g., when the server ignores the Range header, fail the request so that the
+     * file is retrieved using a blocking request instead.
+     *
+     * @author posicks
+     */
+    private static class WindowConsumer extends AsyncByteConsumer<HttpResponse>
+    {
+        private int maxLength;
+
+        private HttpResponse response;
+
+        private ByteArrayOutputStream content;
+
+
+        public WindowConsumer(int maxLength)
+        {
+            this.maxLength = maxLength;
+        }
+
+
+        /* (non-Javadoc)
+         * @see org.apache.http.nio.client.methods.AsyncByteConsumer#onResponseReceived(org.apache.http.HttpResponse)
+         */
+        @Override
+        protected void onResponseReceived(HttpResponse response)
+        throws IOException
+        {
+            HttpEntity entity = response.getEntity();
+            long length = entity != null ? entity.getContentLength() : 0;
+            if (length > maxLength)
+            {
+                throw new IOException(String.format("The response content length %d exceeds the maximum of %d bytes", length, maxLength));
+            }
+            this.response = response;
+            this.content = new ByteArrayOutputStream(length >= 0 ? (int) length : maxLength);
+        }
+
+
+        /* (non-Javadoc)
+         * @see org.apache.http.nio.client.methods.AsyncByteConsumer#onByteReceived(java.nio.ByteBuffer, org.apache.http.nio.IOControl)
+         */
+        @Override
+        protected void onByteReceived(ByteBuffer buffer, IOControl ioctrl)
+        throws IOException
+        {
+            int length = buffer.remaining();
+            if (content.size() + length > maxLength)
+            {
+                throw new IOException(String.format("The response content exceeds the maximum of %d bytes", maxLength));
+            }
+            if (buffer.hasArray())
+            {
+                content.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                buffer.position(buffer.limit());
+            } else
+            {
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                content.write(bytes, 0, length);
+            }
+        }
+
+
+        /* (non-Javadoc)
+         * @see org.apache.http.nio.protocol.AbstractAsyncResponseConsumer#buildResult(org.apache.http.protocol.HttpContext)
+         */
+        @Override
+        protected HttpResponse buildResult(HttpContext context)
+        {
+            response.setEntity(new ByteArrayEntity(content.toByteArray()));
+            return response;
+        }
+    }
+
+
+    private PoolingHttpClientConnectionManager httpConnectionManager;
+
+    private CloseableHttpClient httpClient;
+
+    private SAXParserFactory saxParserFactory;
+
+    private int maxThreads;
+
+    private int listThreads;
+
+    private int listApiVersion;
+
+    private int rangeSize;
+
+    private String delimiter;
+
+    private List<Pattern> filters;
+
+    private String inputUri;
+
+    private String objectUri;
+
+    private Pipeline pipeline;
+
+    private BoundedExecutor executor;
+
+    private ExecutorService listingExecutor;
+
+    private CompletionTracker listings;
+
+    private volatile IOException listingError;
+
+    private AtomicLong filesSubmitted = new AtomicLong();
+
+    private AtomicLong filesUnchanged = new AtomicLong();
+
+    private Manifest manifest;
+
+    private Checkpoint checkpoint;
+
+    private ScheduledExecutorService checkpointExecutor;
+
+    private String dedupMode;
+
+    private ContentIndex contentIndex;
+
+    private AliasWriter aliasWriter;
+
+    private CloseableHttpAsyncClient asyncClient;
+
+    private boolean asyncFetch;
+
+    private Semaphore asyncPermits;
+
+    private CompletionTracker asyncFetches;
+
+    private long largeFileSize;
+
+    private BoundedExecutor largeFileExecutor;
+
+    private ShortestJobFirstExecutor scheduler;
+
+    private AtomicLong filesLarge = new AtomicLong();
+
+
+    public S3BucketHandler(Context ctx)
+    throws ParserConfigurationException, SAXException, IOException
+    {
+        super(ctx);
+        this.maxThreads = ctx.get(Context.MAX_THREADS);
+        int fetchThreads = ctx.get(Context.FETCH_THREADS, maxThreads);
+        int parseThreads = ctx.get(Context.PARSE_THREADS, Runtime.getRuntime().availableProcessors());
+        this.listThreads = ctx.get(Context.LIST_THREADS, DEFAULT_LIST_THREADS);
+        this.listApiVersion = ctx.get(Context.LIST_API_VERSION, DEFAULT_LIST_API_VERSION);
+        this.delimiter = ctx.get(Context.LIST_DELIMITER);
+        this.rangeSize = ctx.get(Context.RANGE_SIZE, 0);
+        if (rangeSize <= 0)
+        {
+            rangeSize = DEFAULT_WINDOW_SIZE;
+        }
+
+        httpConnectionManager = new PoolingHttpClientConnectionManager();
+        // Connections are used by the listing streams, the fetch stage, the parse stage when reading past the initial
+        // window and the large file stage. Files are usually retrieved from a single host, so the per host limit matches
+        // the total.
+        int maxConnections = fetchThreads + parseThreads + listThreads + Pipeline.getLargeFileThreads(ctx);
+        httpConnectionManager.setMaxTotal(maxConnections);
+        httpConnectionManager.setDefaultMaxPerRoute(maxConnections);
+        this.httpClient = HttpClients.custom().setConnectionManager(httpConnectionManager).build();
+
+        if (ctx.get(Context.ASYNC_FETCH, false))
+        {
+            // The asynchronous client keeps a connection per fetch thread alive to the host
+            RequestConfig requestConfig = RequestConfig.custom().setConnectTimeout(ASYNC_TIMEOUT_MILLIS).setSocketTimeout(ASYNC_TIMEOUT_MILLIS).build();
+            this.asyncClient = HttpAsyncClients.custom().setMaxConnTotal(fetchThreads).setMaxConnPerRoute(fetchThreads).setDefaultRequestConfig(requestConfig).build();
+            asyncClient.start();
+        }
+
+        SAXParserFactory spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        // Verify that a parser can be created, listing streams create their own parsers
+        spf.newSAXParser();
+        this.saxParserFactory = spf;
+
+        String manifestFile = ctx.get(Context.MANIFEST_FILE);
+        if (manifestFile != null)
+        {
+            this.manifest = new Manifest(Paths.get(manifestFile));
+        }
+
+        this.dedupMode = ctx.get(Context.DEDUP_MODE);
+        if (dedupMode != null)
+        {
+            if (!ContentIndex.isValidMode(dedupMode))
+            {
+                throw new IllegalArgumentException(String.format("Invalid deduplication mode \"%s\"", dedupMode));
+            }
+            String indexFile = ctx.get(Context.DEDUP_INDEX_FILE);
+            this.contentIndex = indexFile != null ? new ContentIndex(Paths.get(indexFile)) : new ContentIndex();
+        }
+    }
+
+
+    /**
+     * Builds the URI for a single listing page.
+     *
+     * @param prefix The key prefix to list, may be null
+     * @param startAfter The key after which the listing starts, may be null
+     * @param marker The marker (V1) or continuation token (V2) returned by the previous page, null for the first page
+     * @return The URI of the listing page
+     * @throws URISyntaxException
+     */
+    private URI buildListingUri(String prefix, String startAfter, String marker)
+    throws URISyntaxException
+    {
+        URIBuilder builder = new URIBuilder(inputUri);
+        if (listApiVersion >= 2)
+        {
+            builder.setParameter("list-type", "2");
+        }
+        if (prefix != null && prefix.length() > 0)
+        {
+            builder.setParameter("prefix", prefix);
+        }
+        if (delimiter != null && delimiter.length() > 0)
+        {
+            builder.setParameter("delimiter", delimiter);
+        }
+        if (marker != null)
+        {
+            builder.setParameter(listApiVersion >= 2 ? "continuation-token" : "marker", marker);
+        } else if (startAfter != null)
+        {
+            builder.setParameter(listApiVersion >= 2 ? "start-after" : "marker", startAfter);
+        }
+        return builder.build();
+    }
+
+
+    /**
+     * Retrieves and parses a single listing page.
+     *
+     * @param listingUri The URI of the listing page
+     * @param xmlReader The XMLReader used to parse the listing page
+     * @return true if the listing page was retrieved and parsed
+     * @throws IOException
+     */
+    private boolean list(URI listingUri, XMLReader xmlReader)
+    throws IOException
+    {
+        HttpGet httpGet = new HttpGet(listingUri);
+        httpGet.addHeader("Accept", "application/xml");
+        CloseableHttpResponse response = httpClient.execute(httpGet);
+        try
+        {
+            HttpEntity entity = response.getEntity();
+
+            int respCode = response.getStatusLine().getStatusCode();
+            if (respCode == 200)
+            {
+                // File listings returned
+                InputStream in = entity.getContent();
+                Header contentEncoding = entity.getContentType();
+                // Verify the Content Type
+                switch (contentEncoding.getValue())
+                {
+                    case "application/xml":
+                        try
+                        {
+                            xmlReader.parse(new InputSource(in));
+                        } catch (UnsupportedOperationException | SAXException e)
+                        {
+                            throw new IOException(e.getMessage(), e);
+                        }
+                        return true;
+                }
+            } else
+            {
+                logger.log(Level.WARNING, String.format("HTTP Request \"%s\" was not successful. Responce Code was \"%s\"", listingUri, respCode));
+            }
+        } finally
+        {
+            if (response != null)
+            {
+                response.close();
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Schedules the retrieval and processing of the specified file, blocking while the maximum number of files
+     * are queued so that the listing is slowed down to the rate at which files are processed. Files recorded in
+     * the manifest that have not changed since they were recorded are skipped.
+     *
+     * @param prefix The key prefix of the listing stream that found the file, may be null
+     * @param object The file found in the listing
+     * @throws SAXException if the listing thread is interrupted while waiting
+     */
+    private void submitFile(String prefix, S3Object object)
+    throws SAXException
+    {
+        if (isUnchanged(object))
+        {
+            return;
+        }
+
+        // Aliases are dispatched as well, so that an alias that could not be written is retried by a resumed run
+        if (checkpoint != null)
+        {
+            checkpoint.dispatched(prefix, object);
+        }
+
+        if (isDuplicate(object))
+        {
+            return;
+        }
+
+        try
+        {
+            execute(object);
+        } catch (RejectedExecutionException e)
+        {
+            throw new SAXException(String.format("Unable to schedule file \"%s\" - %s", object.getKey(), e.getMessage()), e);
+        }
+    }
+
+
+    /**
+     * @param object The file found in the listing
+     * @return true if the file is recorded in the manifest and has not changed since it was recorded
+     */
+    private boolean isUnchanged(S3Object object)
+    {
+        if (manifest != null && manifest.isUnchanged(object))
+        {
+            filesUnchanged.incrementAndGet();
+            if (logger.isLoggable(Level.FINEST))
+            {
+                logger.logp(Level.FINEST, getClass().getName(), "isUnchanged", String.format("Skipping unchanged file %s", object));
+            }
+            return true;
+        }
+        return false;
+    }
+
+
+    /**
+     * Records the file as an alias of the canonical file when deduplicating by entity tag and the content of the file
+     * has already been claimed by another file, once the canonical file has been written. The file is not retrieved.
+     *
+     * @param object The file found in the listing
+     * @return true if the file was recorded as an alias
+     */
+    private boolean isDuplicate(S3Object object)
+    {
+        if (!ContentIndex.MODE_ETAG.equals(dedupMode))
+        {
+            return false;
+        }
+
+        String contentId = ContentIndex.getEtagContentId(object);
+        if (contentId == null)
+        {
+            return false;
+        }
+
+        String key = getObjectUri(object);
+        if (contentIndex.claim(contentId, key) == null)
+        {
+            return false;
+        }
+
+        aliasWriter.write(object, key, contentId);
+        return true;
+    }
+
+
+    /**
+     * Releases the content claimed by the file when deduplicating by entity tag, called when the file could not be
+     * handed to the fetch stage, so that the next copy of the content is indexed instead.
+     *
+     * @param object The file found in the listing
+     */
+    private void release(S3Object object)
+    {
+        if (ContentIndex.MODE_ETAG.equals(dedupMode))
+        {
+            String contentId = ContentIndex.getEtagContentId(object);
+            if (contentId != null)
             {
-                // File listings returned
-                InputStream in = entity.getContent();
-                Header contentEncoding = entity.getContentType();
-                // Verify the Content Type
-                switch (contentEncoding.getValue())
+                contentIndex.release(contentId, getObjectUri(object));
+            }
+        }
+    }
+
+
+    /**
+     * Records the file in the manifest, and as processed in the checkpoint, once its metadata has been written or
+     * the file did not need to be written.
+     *
+     * @param object The file processed
+     * @param manifest The manifest, may be null
+     * @param checkpoint The checkpoint, may be null
+     */
+    private static void recordProcessed(S3Object object, Manifest manifest, Checkpoint checkpoint)
+    {
+        if (manifest != null)
+        {
+            manifest.record(object);
+        }
+        if (checkpoint != null)
+        {
+            checkpoint.processed(object);
+        }
+    }
+
+
+    /**
+     * @param object The file found in the listing
+     * @return The URI of the file, the unique key of the file
+     */
+    private String getObjectUri(S3Object object)
+    {
+        return objectUri.endsWith("/") ? objectUri + object.getKey() : objectUri + "/" + object.getKey();
+    }
+
+
+    /**
+     * Sends the file to the large file stage if it is a large file, otherwise to the fetch stage, smallest first when
+     * shortest first scheduling is enabled. Blocks while the maximum number of files are queued.
+     *
+     * @param object The file to process
+     * @throws RejectedExecutionException if the thread is interrupted while waiting
+     */
+    private void execute(final S3Object object)
+    throws RejectedExecutionException
+    {
+        try
+        {
+            if (largeFileExecutor != null && object.getSize() >= largeFileSize)
+            {
+                // Large files are retrieved and parsed by the threads of the large file stage
+                largeFileExecutor.execute(new S3FileRunner(httpClient, objectUri, object, fileHandler, manifest, checkpoint, contentIndex, aliasWriter, dedupMode, rangeSize, Runnable::run));
+                filesLarge.incrementAndGet();
+            } else if (scheduler != null)
+            {
+                scheduler.execute(() ->
                 {
-                    case "application/xml":
-                        try
-                        {
-                            xmlReader.parse(new InputSource(in));
-                        } catch (UnsupportedOperationException | SAXException e)
-                        {
-                            throw new IOException(e.getMessage(), e);
-                        }
-                        break;
-                }
+                    try
+                    {
+                        fetch(object);
+                    } catch (RejectedExecutionException e)
+                    {
+                        release(object);
+                        throw e;
+                    }
+                }, object.getSize());
             } else
             {
-                logger.log(Level.WARNING, "HTTP Request was not successful. Responce Code was \"" + respCode + "\"");
+                fetch(object);
             }
-        } finally
+        } catch (RejectedExecutionException e)
         {
-            if (response != null)
+            release(object);
+            throw e;
+        }
+        filesSubmitted.incrementAndGet();
+    }
+
+
+    /**
+     * Sends the file to the fetch stage, blocking while the maximum number of files are queued.
+     *
+     * @param object The file to process
+     * @throws RejectedExecutionException if the thread is interrupted while waiting
+     */
+    private void fetch(S3Object object)
+    throws RejectedExecutionException
+    {
+        if (asyncFetch)
+        {
+            fetchAsync(object);
+        } else
+        {
+            executor.execute(new S3FileRunner(httpClient, objectUri, object, fileHandler, manifest, checkpoint, contentIndex, aliasWriter, dedupMode, rangeSize, pipeline.getParseExecutor()));
+        }
+    }
+
+
+    /**
+     * Requests the initial window of the file using the asynchronous client, blocking while the capacity of the fetch
+     * stage is in use. Once retrieved the file is handed to the fetch stage, which sends it to the parse stage without
+     * blocking on the network. Files whose initial window could not be retrieved asynchronously are retrieved again
+     * by the fetch stage using a blocking request.
+     *
+     * @param object The file to process
+     * @throws RejectedExecutionException if the thread is interrupted while waiting
+     */
+    private void fetchAsync(final S3Object object)
+    throws RejectedExecutionException
+    {
+        try
+        {
+            asyncPermits.acquire();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting to retrieve file", e);
+        }
+        asyncFetches.register();
+
+        final String s3Uri = getObjectUri(object);
+        final S3RangedInputStream in = new S3RangedInputStream(httpClient, s3Uri, rangeSize);
+        FutureCallback<HttpResponse> callback = new FutureCallback<HttpResponse>()
+        {
+            @Override
+            public void completed(HttpResponse response)
             {
-                response.close();
+                try
+                {
+                    Header contentRange = response.getFirstHeader("Content-Range");
+                    int prefetched = in.prefetch(response.getStatusLine().getStatusCode(), contentRange != null ? contentRange.getValue() : null, EntityUtils.toByteArray(response.getEntity()));
+                    dispatch(object, new S3FileRunner(httpClient, objectUri, object, fileHandler, manifest, checkpoint, contentIndex, aliasWriter, dedupMode, rangeSize, pipeline.getParseExecutor(), in, prefetched));
+                } catch (IOException e)
+                {
+                    failed(e);
+                }
+            }
+
+
+            @Override
+            public void failed(Exception e)
+            {
+                if (logger.isLoggable(Level.FINE))
+                {
+                    logger.logp(Level.FINE, S3BucketHandler.class.getName(), "fetchAsync", String.format("Retrying file %s using a blocking request - %s: %s", s3Uri, e.getClass().getSimpleName(), e.getMessage()));
+                }
+                dispatch(object, new S3FileRunner(httpClient, objectUri, object, fileHandler, manifest, checkpoint, contentIndex, aliasWriter, dedupMode, rangeSize, pipeline.getParseExecutor()));
+            }
+
+
+            @Override
+            public void cancelled()
+            {
+                failed(new IOException("Request cancelled"));
             }
+        };
+
+        try
+        {
+            HttpGet request = new HttpGet(s3Uri);
+            request.setHeader("Range", in.getWindowRange());
+            asyncClient.execute(HttpAsyncMethods.create(request), new WindowConsumer(rangeSize), callback);
+        } catch (RuntimeException e)
+        {
+            asyncPermits.release();
+            asyncFetches.arrive();
+            throw new RejectedExecutionException(String.format("Unable to retrieve file \"%s\" - %s", s3Uri, e.getMessage()), e);
+        }
+    }
+
+
+    /**
+     * Hands a file retrieved asynchronously to the fetch stage, returning its permit once the fetch stage is done.
+     *
+     * @param object The file
+     * @param runner The S3FileRunner of the file
+     */
+    private void dispatch(S3Object object, final S3FileRunner runner)
+    {
+        try
+        {
+            executor.execute(() ->
+            {
+                try
+                {
+                    runner.run();
+                } finally
+                {
+                    asyncPermits.release();
+                    asyncFetches.arrive();
+                }
+            });
+        } catch (RejectedExecutionException e)
+        {
+            asyncPermits.release();
+            asyncFetches.arrive();
+            release(object);
+            logger.log(Level.WARNING, String.format("Unable to process file %s: %s - %s", object.getKey(), e.getClass().getSimpleName(), e.getMessage()));
         }
-        
-        // Wait for all file retrieval and parse tasks to complete.
-        List<Future<Boolean>> futures = s3Parser.futures;
-        if (futures != null && futures.size() > 0)
+    }
+
+
+    /**
+     * Schedules the listing of the specified key prefix, unless the key prefix is already recorded in the checkpoint.
+     *
+     * @param prefix The key prefix to list
+     */
+    private void submitListing(String prefix)
+    {
+        if (checkpoint == null || checkpoint.addStream(prefix))
+        {
+            submitListing(prefix, null);
+        }
+    }
+
+
+    /**
+     * Schedules the listing of the specified key prefix.
+     *
+     * @param prefix The key prefix to list
+     * @param startAfter The key after which the listing starts, may be null
+     */
+    private void submitListing(String prefix, String startAfter)
+    {
+        listings.register();
+        try
+        {
+            listingExecutor.execute(new S3ListingRunner(prefix, startAfter));
+        } catch (RuntimeException e)
+        {
+            listings.arrive();
+            throw e;
+        }
+    }
+
+
+    @Override
+    public void process(String inputUri)
+    throws IOException
+    {
+        this.inputUri = inputUri;
+        this.filters = ctx.get(Context.FILE_FILTERS);
+        try
+        {
+            this.objectUri = new URIBuilder(inputUri).removeQuery().build().toString();
+        } catch (URISyntaxException e)
+        {
+            throw new IllegalArgumentException(String.format("Invalid input URI \"%s\" - %s", inputUri, e.getMessage()), e);
+        }
+
+        // The Pipeline is created by the Indexer, a private Pipeline is used when executed outside of an Indexer
+        Pipeline sharedPipeline = ctx.get(Context.PIPELINE);
+        this.pipeline = sharedPipeline != null ? sharedPipeline : new Pipeline(ctx);
+        this.executor = pipeline.getFetchExecutor();
+        this.asyncFetch = asyncClient != null;
+        // Files being retrieved asynchronously and handed to the fetch stage never exceed the capacity of the fetch stage,
+        // so the I/O thread of the client never blocks handing a file to the fetch stage.
+        this.asyncPermits = new Semaphore(executor.getCapacity());
+        this.asyncFetches = new CompletionTracker();
+        this.largeFileSize = ctx.get(Context.LARGE_FILE_SIZE, (Number) 0L).longValue();
+        this.largeFileExecutor = pipeline.getLargeFileExecutor();
+        this.filesLarge.set(0);
+        if (ctx.get(Context.SHORTEST_FIRST, false))
+        {
+            // Files are reordered while waiting for the fetch stage, the queue is as deep as the fetch stage
+            this.scheduler = new ShortestJobFirstExecutor(Runnable::run, executor.getCapacity(), "shortest-first");
+        }
+        this.filesSubmitted.set(0);
+        this.filesUnchanged.set(0);
+        this.listingExecutor = Executors.newFixedThreadPool(listThreads);
+        this.listings = new CompletionTracker();
+        this.listingError = null;
+        startCheckpoints(inputUri);
+        if (dedupMode != null)
         {
-            for (Future<Boolean> future : futures)
+            this.aliasWriter = new AliasWriter(fileHandler, contentIndex, manifest, checkpoint);
+        }
+
+        try
+        {
+            List<S3Object> resumed = Collections.emptyList();
+            if (checkpoint != null && !checkpoint.isEmpty())
+            {
+                // Resume each incomplete listing stream after the last key it dispatched, and process the files that
+                // were in flight when the checkpoint was recorded. Completed listing streams are not listed again.
+                for (String prefix : checkpoint.getIncompleteStreams())
+                {
+                    submitListing(prefix, checkpoint.getLastKey(prefix));
+                }
+                resumed = checkpoint.getInFlight();
+            } else
+            {
+                // Retrieve the file listings and create SAX Parsers to parse the file keys out of the listings. The listing
+                // is split into one listing stream per prefix, the streams are listed concurrently and each SAX ContentHandler
+                // will launch the file processing operations concurrently as files are found.
+                List<String> prefixes = ctx.get(Context.LIST_PREFIXES, Collections.<String>emptyList());
+                if (prefixes == null || prefixes.isEmpty())
+                {
+                    submitListing(null);
+                } else
+                {
+                    for (String prefix : prefixes)
+                    {
+                        submitListing(prefix);
+                    }
+                }
+            }
+
+            for (S3Object object : resumed)
             {
+                if (isUnchanged(object))
+                {
+                    checkpoint.processed(object);
+                    continue;
+                }
+
+                if (isDuplicate(object))
+                {
+                    continue;
+                }
+
                 try
                 {
-                    // Discard the results, the return value just allows us to wait for the Futures to complete executing.
-                    if (!future.isDone() && !future.isCancelled())
+                    execute(object);
+                } catch (RejectedExecutionException e)
+                {
+                    throw new IOException(String.format("Unable to schedule file \"%s\" - %s", object.getKey(), e.getMessage()), e);
+                }
+            }
+
+            try
+            {
+                listings.await();
+                if (scheduler != null)
+                {
+                    scheduler.awaitCompletion();
+                }
+                asyncFetches.await();
+                
+                // Wait for all file retrieval tasks to complete, and all parse tasks when using a private Pipeline.
+                if (sharedPipeline != null)
+                {
+                    executor.awaitCompletion();
+                    if (largeFileExecutor != null)
                     {
-                        future.get();
+                        largeFileExecutor.awaitCompletion();
                     }
-                } catch (InterruptedException e)
+                } else
                 {
-                    logger.log(Level.FINE, "File processor interrupted");
-                } catch (ExecutionException e)
+                    pipeline.awaitCompletion();
+                }
+
+                // Aliases are written once the metadata of their canonical files has been written, which OutputHandlers
+                // that buffer the metadata only acknowledge once flushed
+                if (aliasWriter != null && aliasWriter.isPending())
                 {
-                    logger.log(Level.FINE, String.format("Error executing File processor %s: %s", e.getClass().getSimpleName(), e.getMessage()));
+                    pipeline.awaitCompletion();
+                    fileHandler.flush();
+                    aliasWriter.awaitCompletion();
                 }
-            }            
-        } else
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while processing \"" + inputUri + "\"", e);
+            }
+
+            if (filesLarge.get() > 0)
+            {
+                logger.logp(Level.INFO, getClass().getName(), "process", String.format("Processed %d large file(s) from \"%s\" in the large file stage", filesLarge.get(), inputUri));
+            }
+            if (filesUnchanged.get() > 0)
+            {
+                logger.logp(Level.INFO, getClass().getName(), "process", String.format("Skipped %d unchanged file(s) from \"%s\"", filesUnchanged.get(), inputUri));
+            }
+            if (contentIndex != null && contentIndex.getAliasCount() > 0)
+            {
+                logger.logp(Level.INFO, getClass().getName(), "process", String.format("Recorded %d duplicate file(s) from \"%s\" as aliases", contentIndex.getAliasCount(), inputUri));
+            }
+            if (filesSubmitted.get() == 0 && filesUnchanged.get() == 0)
+            {
+                logger.logp(Level.INFO, getClass().getName(), "process", String.format("No files found from \"%s\"", inputUri));
+            }
+        } finally
+        {
+            listingExecutor.shutdownNow();
+            if (aliasWriter != null)
+            {
+                aliasWriter.shutdown();
+            }
+            if (scheduler != null)
+            {
+                scheduler.shutdown();
+            }
+            if (sharedPipeline == null)
+            {
+                pipeline.shutdown();
+            }
+        }
+
+        if (listingError != null)
+        {
+            throw listingError;
+        }
+    }
+
+
+    /**
+     * Creates or loads the checkpoint if a checkpoint file was specified, and schedules the periodic saving of the
+     * checkpoint.
+     *
+     * @param inputUri The input URI
+     * @throws IOException if the checkpoint could not be loaded
+     */
+    private void startCheckpoints(String inputUri)
+    throws IOException
+    {
+        String checkpointFile = ctx.get(Context.CHECKPOINT_FILE);
+        if (checkpointFile == null)
         {
-            logger.logp(Level.INFO, getClass().getName(), "process", String.format("No files found from \"%s\"", inputUri));
+            return;
         }
+
+        Path path = Paths.get(checkpointFile);
+        checkpoint = ctx.get(Context.CHECKPOINT_RESUME, false) ? Checkpoint.load(path, inputUri) : new Checkpoint(path, inputUri);
+        int interval = ctx.get(Context.CHECKPOINT_INTERVAL, DEFAULT_CHECKPOINT_INTERVAL);
+        checkpointExecutor = Executors.newSingleThreadScheduledExecutor((Runnable r) ->
+        {
+            Thread thread = new Thread(r, "checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointExecutor.scheduleWithFixedDelay(() ->
+        {
+            try
+            {
+                checkpoint.save();
+            } catch (IOException e)
+            {
+                logger.log(Level.WARNING, String.format("Error saving checkpoint \"%s\" - %s: %s", checkpointFile, e.getClass().getSimpleName(), e.getMessage()));
+            }
+        }, interval, interval, TimeUnit.SECONDS);
     }
-    
-    
+
+
     @Override
     public void close()
     throws IOException
     {
-        if (httpClient != null)
+        try
+        {
+            // The InputHandler is closed once all files have been processed, so the manifest records every file processed
+            if (manifest != null)
+            {
+                manifest.save();
+            }
+
+            if (contentIndex != null)
+            {
+                contentIndex.save();
+            }
+
+            // The checkpoint is removed once the run has completed, otherwise the final progress is saved for --resume
+            if (checkpoint != null)
+            {
+                checkpointExecutor.shutdownNow();
+                if (listingError == null && checkpoint.isComplete())
+                {
+                    checkpoint.delete();
+                } else
+                {
+                    checkpoint.save();
+                }
+            }
+        } finally
         {
-            httpClient.close();
+            if (asyncClient != null)
+            {
+                asyncClient.close();
+            }
+            if (httpClient != null)
+            {
+                httpClient.close();
+            }
         }
     }
 }
@@ -0,0 +1,75 @@
+package net.posick.media.metadata.exif.input;
+
+/**
+ * The S3Object contains the details of an object found in an S3 file listing.
+ *
+ * @author posicks
+ */
+public class S3Object
+{
+    private String key;
+
+    private long size;
+
+    private String etag;
+
+    private long lastModified;
+
+
+    /**
+     * @param key The object key
+     * @param size The size of the object in bytes, -1 if unknown
+     * @param etag The entity tag of the object, null if unknown
+     * @param lastModified The last modified time of the object in milliseconds since the epoch, -1 if unknown
+     */
+    public S3Object(String key, long size, String etag, long lastModified)
+    {
+        this.key = key;
+        this.size = size;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+
+    /**
+     * @return The object key
+     */
+    public String getKey()
+    {
+        return key;
+    }
+
+
+    /**
+     * @return The size of the object in bytes, -1 if unknown
+     */
+    public long getSize()
+    {
+        return size;
+    }
+
+
+    /**
+     * @return The entity tag of the object without the surrounding quotes, null if unknown
+     */
+    public String getETag()
+    {
+        return etag;
+    }
+
+
+    /**
+     * @return The last modified time of the object in milliseconds since the epoch, -1 if unknown
+     */
+    public long getLastModified()
+    {
+        return lastModified;
+    }
+
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s [size=%d, etag=%s, lastModified=%d]", key, size, etag, lastModified);
+    }
+}
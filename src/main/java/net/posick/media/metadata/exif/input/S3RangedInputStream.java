@@ -0,0 +1,522 @@
+package net.posick.media.metadata.exif.input;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * The S3RangedInputStream is an InputStream that reads an S3 object using HTTP Range requests.
+ *
+ * Only the initial window of the object is requested when the stream is first read. The next window is
+ * requested only when the reader reads past the end of the current window, and each subsequent window is
+ * twice the size of the previous one up to {@link #MAX_WINDOW_SIZE}. Skipping past the end of the current
+ * window does not download the skipped bytes, the next window simply starts at the new position. Metadata
+ * readers that stop at the end of the metadata segments (e.g., JPEG stops at the Start of Scan segment)
+ * therefore only download the metadata and not the image data.
+ *
+ * The initial window may be {@link #prefetch() prefetched}, reading it into memory and releasing the HTTP
+ * connection, so that the stream can be handed from the thread that fetched it to another thread to be parsed.
+ * The window may also be retrieved by the caller, e.g., using an asynchronous client, and passed to
+ * {@link #prefetch(int, String, byte[])}.
+ *
+ * @author posicks
+ */
+public class S3RangedInputStream extends InputStream
+{
+    public static final int MAX_WINDOW_SIZE = 8 * 1024 * 1024;
+
+    private static Logger logger = Logger.getLogger(S3RangedInputStream.class.getName());
+
+    private CloseableHttpClient httpClient;
+
+    private String uri;
+
+    private int windowSize;
+
+    private long position = 0;
+
+    private long length = -1;
+
+    private long windowStart = 0;
+
+    private long windowEnd = 0;
+
+    private CloseableHttpResponse response;
+
+    private InputStream content;
+
+    private boolean closed = false;
+
+    private int requestedSize;
+
+    private byte[] buffer;
+
+    private long bufferStart;
+
+    private int bufferLength;
+
+
+    /**
+     * Creates a S3RangedInputStream. No request is made until the stream is first read.
+     *
+     * @param httpClient The HTTP Client used to request the object ranges
+     * @param uri The URI of the object
+     * @param windowSize The size in bytes of the initial window requested
+     */
+    public S3RangedInputStream(CloseableHttpClient httpClient, String uri, int windowSize)
+    {
+        if (windowSize < 1)
+        {
+            throw new IllegalArgumentException("The window size must be greater than 0");
+        }
+        this.httpClient = httpClient;
+        this.uri = uri;
+        this.windowSize = windowSize;
+    }
+
+
+    /**
+     * @return The length of the object in bytes, or -1 if the length is not yet known
+     */
+    public long getLength()
+    {
+        return length;
+    }
+
+
+    /**
+     * @return The current read position within the object
+     */
+    public long getPosition()
+    {
+        return position;
+    }
+
+
+    /**
+     * Ensures that the current window contains the current position, requesting the next window if required.
+     *
+     * @return false if the end of the object has been reached
+     * @throws IOException
+     */
+    private boolean ensureWindow()
+    throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Stream closed");
+        }
+
+        if (content != null && position < windowEnd)
+        {
+            return true;
+        }
+
+        releaseWindow();
+
+        if (length >= 0 && position >= length)
+        {
+            return false;
+        }
+
+        windowStart = position;
+        requestedSize = windowSize;
+        long rangeEnd = position + windowSize - 1;
+        HttpGet httpGet = new HttpGet(uri);
+        httpGet.addHeader("Range", "bytes=" + position + "-" + rangeEnd);
+        response = httpClient.execute(httpGet);
+
+        int respCode = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        switch (respCode)
+        {
+            case 206:
+                windowEnd = rangeEnd + 1;
+                Header contentRange = response.getFirstHeader("Content-Range");
+                if (contentRange != null)
+                {
+                    parseContentRange(contentRange.getValue());
+                }
+                break;
+            case 200:
+                // The server ignored the Range header and returned the entire object
+                windowEnd = Long.MAX_VALUE;
+                if (entity != null && entity.getContentLength() >= 0)
+                {
+                    length = entity.getContentLength();
+                }
+                content = entity != null ? entity.getContent() : null;
+                long skip = position;
+                while (content != null && skip > 0)
+                {
+                    long skipped = content.skip(skip);
+                    if (skipped <= 0)
+                    {
+                        break;
+                    }
+                    skip -= skipped;
+                }
+                if (skip > 0)
+                {
+                    length = position;
+                    return false;
+                }
+                return content != null;
+            case 416:
+                // The requested range starts past the end of the object
+                length = position;
+                releaseWindow();
+                return false;
+            default:
+                releaseWindow();
+                throw new IOException(String.format("HTTP Request was not successful. Responce Code was %s", "" + respCode));
+        }
+
+        content = entity != null ? entity.getContent() : null;
+        if (windowSize < MAX_WINDOW_SIZE)
+        {
+            windowSize = (int) Math.min((long) windowSize * 2, MAX_WINDOW_SIZE);
+        }
+        return content != null;
+    }
+
+
+    /**
+     * Sets the end of the current window and the length of the object from the Content-Range of a response.
+     *
+     * @param value The Content-Range header value
+     */
+    private void parseContentRange(String value)
+    {
+        // Content-Range: bytes <first>-<last>/<length>
+        int dash = value.indexOf('-');
+        int slash = value.indexOf('/');
+        try
+        {
+            if (dash > 0 && slash > dash)
+            {
+                windowEnd = Long.parseLong(value.substring(dash + 1, slash).trim()) + 1;
+            }
+            if (slash > 0 && slash + 1 < value.length() && value.charAt(slash + 1) != '*')
+            {
+                length = Long.parseLong(value.substring(slash + 1).trim());
+            }
+        } catch (NumberFormatException e)
+        {
+            logger.log(Level.FINE, String.format("Invalid Content-Range \"%s\" returned for \"%s\"", value, uri));
+        }
+    }
+
+
+    /**
+     * @return The value of the Range header requesting the window at the current position
+     */
+    public String getWindowRange()
+    {
+        return "bytes=" + position + "-" + (position + windowSize - 1);
+    }
+
+
+    /**
+     * Reads the window at the current position into memory and releases the HTTP connection. Reads from the
+     * prefetched window are served from memory, reading past it requests the next window.
+     *
+     * @return The number of bytes prefetched, 0 if the end of the object has been reached
+     * @throws IOException
+     */
+    public int prefetch()
+    throws IOException
+    {
+        if (!ensureWindow())
+        {
+            return 0;
+        }
+
+        int size = (int) Math.min(windowEnd - position, requestedSize);
+        if (length >= 0)
+        {
+            size = (int) Math.min(size, length - position);
+        }
+        byte[] data = new byte[size];
+        int total = 0;
+        while (total < size)
+        {
+            int read = content.read(data, total, size - total);
+            if (read < 0)
+            {
+                break;
+            }
+            total += read;
+        }
+        releaseWindow();
+
+        buffer = data;
+        bufferStart = position;
+        bufferLength = total;
+        if (total < size && length < 0)
+        {
+            length = position + total;
+        }
+        return total;
+    }
+
+
+    /**
+     * Uses the response to a request for the window at the current position, retrieved by the caller, e.g.,
+     * asynchronously, as the prefetched window. The request must have used the {@link #getWindowRange() window
+     * range} of the stream.
+     *
+     * @param statusCode The status code of the response
+     * @param contentRange The Content-Range header of the response, or null if the response has none
+     * @param content The content of the response
+     * @return The number of bytes prefetched, 0 if the end of the object has been reached
+     * @throws IOException if the response was not successful
+     */
+    public int prefetch(int statusCode, String contentRange, byte[] content)
+    throws IOException
+    {
+        if (closed)
+        {
+            throw new IOException("Stream closed");
+        }
+
+        releaseWindow();
+        switch (statusCode)
+        {
+            case 206:
+                requestedSize = windowSize;
+                if (contentRange != null)
+                {
+                    parseContentRange(contentRange);
+                }
+                if (windowSize < MAX_WINDOW_SIZE)
+                {
+                    windowSize = (int) Math.min((long) windowSize * 2, MAX_WINDOW_SIZE);
+                }
+                buffer = content;
+                bufferStart = position;
+                bufferLength = content.length;
+                if (content.length < requestedSize && length < 0)
+                {
+                    length = position + content.length;
+                }
+                return content.length;
+            case 200:
+                // The server ignored the Range header and returned the entire object
+                length = content.length;
+                buffer = content;
+                bufferStart = 0;
+                bufferLength = content.length;
+                return (int) Math.max(0, length - position);
+            case 416:
+                // The requested range starts past the end of the object
+                length = position;
+                return 0;
+            default:
+                throw new IOException(String.format("HTTP Request was not successful. Responce Code was %s", "" + statusCode));
+        }
+    }
+
+
+    /**
+     * Copies bytes from the prefetched window at the current position without advancing the position. No request is
+     * made, only the bytes already prefetched are returned.
+     *
+     * @param b The buffer into which the bytes are copied
+     * @param off The offset in the buffer
+     * @param len The maximum number of bytes copied
+     * @return The number of bytes copied, 0 if the current position is not within the prefetched window
+     */
+    public int peek(byte[] b, int off, int len)
+    {
+        if (!inBuffer())
+        {
+            return 0;
+        }
+        int offset = (int) (position - bufferStart);
+        int max = Math.min(len, bufferLength - offset);
+        System.arraycopy(buffer, offset, b, off, max);
+        return max;
+    }
+
+
+    /**
+     * @return true if the current position is within the prefetched window
+     */
+    private boolean inBuffer()
+    {
+        if (buffer != null)
+        {
+            if (position >= bufferStart && position < bufferStart + bufferLength)
+            {
+                return true;
+            }
+            buffer = null;
+        }
+        return false;
+    }
+
+
+    /**
+     * Releases the HTTP response of the current window.
+     */
+    private void releaseWindow()
+    {
+        if (response != null)
+        {
+            try
+            {
+                response.close();
+            } catch (IOException e)
+            {
+                logger.log(Level.FINE, "Error closing HTTP response", e);
+            }
+        }
+        response = null;
+        content = null;
+        windowEnd = 0;
+    }
+
+
+    @Override
+    public int read()
+    throws IOException
+    {
+        if (inBuffer())
+        {
+            return buffer[(int) (position++ - bufferStart)] & 0xFF;
+        }
+
+        while (ensureWindow())
+        {
+            int b = content.read();
+            if (b >= 0)
+            {
+                position++ ;
+                return b;
+            }
+            endWindow();
+        }
+        return -1;
+    }
+
+
+    @Override
+    public int read(byte[] b, int off, int len)
+    throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        if (inBuffer())
+        {
+            int offset = (int) (position - bufferStart);
+            int max = Math.min(len, bufferLength - offset);
+            System.arraycopy(buffer, offset, b, off, max);
+            position += max;
+            return max;
+        }
+
+        while (ensureWindow())
+        {
+            int max = (int) Math.min(len, windowEnd - position);
+            int read = content.read(b, off, max);
+            if (read > 0)
+            {
+                position += read;
+                return read;
+            }
+            endWindow();
+        }
+        return -1;
+    }
+
+
+    /**
+     * Ends the current window when its content ended before the expected end of the window. The next window is
+     * requested unless the window returned no bytes, which marks the end of the object when its length is unknown.
+     */
+    private void endWindow()
+    {
+        if (position == windowStart)
+        {
+            length = position;
+        }
+        windowEnd = position;
+    }
+
+
+    @Override
+    public long skip(long n)
+    throws IOException
+    {
+        if (n <= 0)
+        {
+            return 0;
+        }
+
+        if (length >= 0)
+        {
+            n = Math.min(n, length - position);
+        }
+
+        if (inBuffer())
+        {
+            // The new position is within or directly after the prefetched window
+            n = Math.min(n, bufferStart + bufferLength - position);
+            position += n;
+            return n;
+        }
+
+        if (content != null && position + n < windowEnd)
+        {
+            // The new position is within the current window
+            long skipped = content.skip(n);
+            if (skipped > 0)
+            {
+                position += skipped;
+                return skipped;
+            }
+        }
+
+        // The new position is past the current window, the skipped bytes are not downloaded
+        releaseWindow();
+        position += n;
+        return n;
+    }
+
+
+    @Override
+    public int available()
+    throws IOException
+    {
+        if (inBuffer())
+        {
+            return (int) (bufferStart + bufferLength - position);
+        }
+        if (content != null && position < windowEnd)
+        {
+            return (int) Math.min(content.available(), windowEnd - position);
+        }
+        return 0;
+    }
+
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        closed = true;
+        buffer = null;
+        releaseWindow();
+    }
+}
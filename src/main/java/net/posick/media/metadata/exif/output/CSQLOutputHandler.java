@@ -1,40 +1,209 @@
 package net.posick.media.metadata.exif.output;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Host;
 import com.datastax.driver.core.Metadata;
 import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.TableMetadata;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
+import com.drew.lang.Rational;
 
 import net.posick.media.metadata.Context;
+import net.posick.media.metadata.exif.GpsLocation;
+import net.posick.media.metadata.exif.MetadataRecord;
+import net.posick.media.metadata.exif.ValueCodec;
 import net.posick.media.metadata.exif.handlers.OutputHandler;
+import net.posick.media.metadata.exif.index.GeoHash;
 
-public class CSQLOutputHandler extends OutputHandler<Map<String, Map<Integer, Map<String, Object>>>>
+/**
+ * The CSQLOutputHandler is an OutputHandler that writes the metadata to a ScyllaDB or Apache Cassandra datastore.
+ * 
+ * The rows of a file all share the same partition key, so they are written as unlogged single partition batches
+ * using the asynchronous API of a single long-lived Session. Batches are routed to a replica of their partition in
+ * the local datacenter (token aware, datacenter aware load balancing) and written by a {@link CSQLWriter}, which
+ * adapts the number of batches in flight to the latency of the cluster and retries the batches the cluster drops
+ * when overloaded. Once the limit is reached output blocks until a batch completes. A write is acknowledged once all
+ * of the batches of the file have been written.
+ * 
+ * The metadata of a file is a single partition, the key of the file, so that it is read as one partition slice, see
+ * {@link #read(String)}. Two layouts are supported:
+ * <ul>
+ * <li>wide (the default) - the metadata_tags table holds a row per tag clustered by directory and tag, with the value
+ * in the column of its type: integers and booleans in value_long, floating point numbers in value_double, rationals
+ * as text in value_text and as a number in value_double, text in value_text and arrays in value_blob. A statement is
+ * prepared for each combination of value columns so that only the columns holding the value are written, rather than
+ * writing null (a tombstone) to the others.</li>
+ * <li>map - the metadata_directories table holds a row per directory with the tag names, value types, values and
+ * descriptions of its tags as frozen maps keyed by tag, each written as a single cell. Values are stored as in the
+ * wide layout's value_text and value_blob columns.</li>
+ * </ul>
+ * The value_type column records the {@link MetadataRecord} type of the value so that it can be decoded. Arrays of
+ * bytes, numbers and rationals are stored in the compact binary form of the {@link ValueCodec}.
+ * 
+ * Earlier versions wrote to the metadata table, whose primary key (key, directory) kept only the last tag of each
+ * directory. When migration is enabled the rows of the metadata table are copied to the current layout before
+ * indexing.
+ * 
+ * Files recorded as copies of another file are written to the metadata_alias table as a single row mapping the key
+ * of the copy to the key of the canonical file, whose metadata is in the metadata table of the layout.
+ * 
+ * The GPS location of a file (see {@link GpsLocation}) is also written to the metadata_geo table, partitioned by the
+ * geohash cell of the location and clustered by its full geohash, so that the files within an area are found by
+ * querying the cells covering the area, see {@link net.posick.media.metadata.exif.index.GeoArea#getCells(int)}.
+ * 
+ * @author posicks
+ */
+public class CSQLOutputHandler extends OutputHandler<MetadataRecord>
 {
+    public static final String LAYOUT_WIDE = "wide";
+    
+    public static final String LAYOUT_MAP = "map";
+    
     private final String createExifTablespace = "CREATE KEYSPACE IF NOT EXISTS exif WITH REPLICATION = { 'class' : 'SimpleStrategy', 'replication_factor' : 3 } AND DURABLE_WRITES = true";
     
-    private final String createExifMetadataTable = "CREATE TABLE IF NOT EXISTS exif.metadata (key varchar, directory varchar, tag int, tag_name varchar, value varchar, description varchar, PRIMARY KEY (key, directory))";
+    private final String createExifTagTable = "CREATE TABLE IF NOT EXISTS exif.metadata_tags (key varchar, directory varchar, tag int, tag_name varchar, value_type int, description varchar, value_long bigint, value_double double, value_text varchar, value_blob blob, PRIMARY KEY ((key), directory, tag))";
+    
+    private final String insertTag = "INSERT INTO exif.metadata_tags (key, directory, tag, tag_name, value_type%s) VALUES (?, ?, ?, ?, ?%s)";
+    
+    private final String selectTags = "SELECT directory, tag, tag_name, value_type, description, value_long, value_double, value_text, value_blob FROM exif.metadata_tags WHERE key = ?";
+    
+    private final String createExifDirectoryTable = "CREATE TABLE IF NOT EXISTS exif.metadata_directories (key varchar, directory varchar, tag_names frozen<map<int, varchar>>, value_types frozen<map<int, int>>, descriptions frozen<map<int, varchar>>, value_texts frozen<map<int, varchar>>, value_blobs frozen<map<int, blob>>, PRIMARY KEY ((key), directory))";
+    
+    private final String insertDirectory = "INSERT INTO exif.metadata_directories (key, directory, tag_names, value_types, descriptions, value_texts, value_blobs) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    
+    private final String selectDirectories = "SELECT directory, tag_names, value_types, descriptions, value_texts, value_blobs FROM exif.metadata_directories WHERE key = ?";
+    
+    private final String selectLegacyMetadata = "SELECT key, directory, tag, tag_name, value, description%s FROM exif.metadata";
+    
+    private final String createExifAliasTable = "CREATE TABLE IF NOT EXISTS exif.metadata_alias (key varchar, canonical_key varchar, PRIMARY KEY (key))";
+    
+    private final String insertAlias = "INSERT INTO exif.metadata_alias (key, canonical_key) VALUES (?, ?)";
+    
+    private final String selectAlias = "SELECT canonical_key FROM exif.metadata_alias WHERE key = ?";
+    
+    private final String createExifGeoTable = "CREATE TABLE IF NOT EXISTS exif.metadata_geo (cell varchar, geohash varchar, key varchar, latitude double, longitude double, altitude double, PRIMARY KEY (cell, geohash, key))";
+    
+    private final String insertGeo = "INSERT INTO exif.metadata_geo (cell, geohash, key, latitude, longitude, altitude) VALUES (?, ?, ?, ?, ?, ?)";
+    
+    /**
+     * The number of characters of the geohash cells partitioning the exif.metadata_geo table, about 39 by 20 km
+     */
+    public static final int GEO_CELL_LENGTH = 4;
+    
+    private static final int GEOHASH_LENGTH = 10;
     
-    private final String insertMetadata = "INSERT INTO exif.metadata (key, directory, tag, tag_name, value, description) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final int DEFAULT_MAX_IN_FLIGHT = 128;
+    
+    private static final int DEFAULT_RETRY_QUEUE = 1024;
+    
+    private static final int MAX_BATCH_SIZE = 64;
+    
+    private static final int MIGRATION_FETCH_SIZE = 1000;
+    
+    private static final long CLOSE_TIMEOUT_SECONDS = 60;
+    
+    // The value columns written for each kind of value, the statements are prepared in this order
+    private static final String[] VALUE_COLUMNS = {"", ", value_long", ", value_double", ", value_text, value_double", ", value_text", ", value_blob"};
+    
+    private static final int VALUE_NULL = 0;
+    
+    private static final int VALUE_LONG = 1;
+    
+    private static final int VALUE_DOUBLE = 2;
+    
+    private static final int VALUE_RATIONAL = 3;
+    
+    private static final int VALUE_TEXT = 4;
+    
+    private static final int VALUE_BLOB = 5;
 
     
     private Cluster cluster;
     
     private Session session;
     
-    private PreparedStatement insertStatement;
+    private boolean mapLayout;
+    
+    private PreparedStatement[] insertTagStatements;
+    
+    private PreparedStatement insertDirectoryStatement;
+    
+    private PreparedStatement selectStatement;
+    
+    private PreparedStatement insertAliasStatement;
+    
+    private PreparedStatement selectAliasStatement;
+    
+    private PreparedStatement insertGeoStatement;
+    
+    private CSQLWriter writer;
+    
+    private ThreadLocal<ValueCodec> valueCodecs = new ThreadLocal<ValueCodec>()
+    {
+        @Override
+        protected ValueCodec initialValue()
+        {
+            return new ValueCodec();
+        }
+    };
+    
+    /**
+     * The tags of a directory written as a row of the map layout.
+     * 
+     * @author posicks
+     */
+    private static class DirectoryRow
+    {
+        Map<Integer, String> tagNames = new HashMap<>();
+        
+        Map<Integer, Integer> valueTypes = new HashMap<>();
+        
+        Map<Integer, String> descriptions = new HashMap<>();
+        
+        Map<Integer, String> valueTexts = new HashMap<>();
+        
+        Map<Integer, ByteBuffer> valueBlobs = new HashMap<>();
+    }
     
     
     public CSQLOutputHandler(Context ctx)
+    throws IOException
     {
         super(ctx);
-        cluster = Cluster.builder().addContactPoint(ctx.get(Context.DATASTORE_URI)).build();
+        String layout = ctx.get(Context.DATASTORE_LAYOUT, LAYOUT_WIDE);
+        if (!isValidLayout(layout))
+        {
+            throw new IOException(String.format("Invalid datastore layout \"%s\" - the layout must be \"%s\" or \"%s\"", layout, LAYOUT_WIDE, LAYOUT_MAP));
+        }
+        this.mapLayout = layout.equals(LAYOUT_MAP);
+        
+        // Batches are single partition, so they are sent to a replica of the partition in the local datacenter
+        DCAwareRoundRobinPolicy.Builder localPolicy = DCAwareRoundRobinPolicy.builder();
+        String localDc = ctx.get(Context.DATASTORE_LOCAL_DC);
+        if (localDc != null)
+        {
+            localPolicy.withLocalDc(localDc);
+        }
+        cluster = Cluster.builder().addContactPoint(ctx.get(Context.DATASTORE_URI)).withLoadBalancingPolicy(new TokenAwarePolicy(localPolicy.build())).build();
         final Metadata metadata = cluster.getMetadata();
         System.out.printf("Connected to cluster: %s\n", metadata.getClusterName());
         for (final Host host : metadata.getAllHosts())
@@ -46,89 +215,519 @@ public class CSQLOutputHandler extends OutputHandler<Map<String, Map<Integer, Ma
 
         Session session = cluster.connect();
         session.execute(createExifTablespace);
-        session.execute(createExifMetadataTable);
+        session.execute(mapLayout ? createExifDirectoryTable : createExifTagTable);
+        session.execute(createExifAliasTable);
+        session.execute(createExifGeoTable);
         this.session = session;
-        this.insertStatement = session.prepare(insertMetadata);
+        
+        if (mapLayout)
+        {
+            this.insertDirectoryStatement = session.prepare(insertDirectory);
+            this.selectStatement = session.prepare(selectDirectories);
+        } else
+        {
+            // A statement per kind of value, with and without a description
+            this.insertTagStatements = new PreparedStatement[VALUE_COLUMNS.length * 2];
+            for (int kind = 0; kind < VALUE_COLUMNS.length; kind++ )
+            {
+                for (int described = 0; described < 2; described++ )
+                {
+                    String columns = (described == 1 ? ", description" : "") + VALUE_COLUMNS[kind];
+                    String values = columns.replaceAll("[^,]+", " ?");
+                    insertTagStatements[kind * 2 + described] = session.prepare(String.format(insertTag, columns, values));
+                }
+            }
+            this.selectStatement = session.prepare(selectTags);
+        }
+        this.insertAliasStatement = session.prepare(insertAlias);
+        this.selectAliasStatement = session.prepare(selectAlias);
+        this.insertGeoStatement = session.prepare(insertGeo);
+        
+        this.writer = new CSQLWriter(session, ctx.get(Context.DATASTORE_MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT), ctx.get(Context.DATASTORE_RETRY_QUEUE, DEFAULT_RETRY_QUEUE));
+        
+        if (ctx.get(Context.DATASTORE_MIGRATE, false))
+        {
+            migrate();
+        }
+    }
+    
+    
+    /**
+     * @param layout The datastore layout
+     * @return true if the layout is a valid datastore layout
+     */
+    public static boolean isValidLayout(String layout)
+    {
+        return LAYOUT_WIDE.equals(layout) || LAYOUT_MAP.equals(layout);
+    }
+    
+    
+    @Override
+    public void output(String key, MetadataRecord data)
+    throws IOException
+    {
+        send(key, data);
     }
-
     
+    
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#write(java.lang.String, java.lang.Object)
+     */
     @Override
-    public void output(String key, Map<String, Map<Integer, Map<String, Object>>> data)
+    public CompletableFuture<Void> write(String key, MetadataRecord data)
+    {
+        try
+        {
+            return send(key, data);
+        } catch (IOException | RuntimeException e)
+        {
+            return failedFuture(e);
+        }
+    }
+    
+    
+    /**
+     * Writes the metadata of a file.
+     * 
+     * @param key The key of the file
+     * @param data The metadata of the file
+     * @return A CompletableFuture completed once all of the batches of the file have been written
+     * @throws IOException
+     */
+    private CompletableFuture<Void> send(String key, MetadataRecord data)
     throws IOException
     {
-        Set<Map.Entry<String, Map<Integer, Map<String, Object>>>> directories = data.entrySet();
-        for (Map.Entry<String, Map<Integer, Map<String, Object>>> directoryEntry : directories)
+        List<CompletableFuture<Void>> writes = new ArrayList<>();
+        if (mapLayout)
         {
-            String directoryName = directoryEntry.getKey();
-            Map<Integer, Map<String, Object>> directory = directoryEntry.getValue();
-            
-            Set<Map.Entry<Integer, Map<String, Object>>> tagEntries = directory.entrySet();
-            for (Map.Entry<Integer, Map<String, Object>> tagEntry : tagEntries)
+            outputDirectories(key, data, writes);
+        } else
+        {
+            outputTags(key, data, writes);
+        }
+        
+        // The location is in another partition, the geohash cell, so it is written on its own
+        GpsLocation location = GpsLocation.fromRecord(data);
+        if (location != null)
+        {
+            String geohash = GeoHash.toString(location.getLatitude(), location.getLongitude(), GEOHASH_LENGTH);
+            writes.add(writer.execute(insertGeoStatement.bind(geohash.substring(0, GEO_CELL_LENGTH), geohash, key, location.getLatitude(), location.getLongitude(), Double.isNaN(location.getAltitude()) ? null : location.getAltitude())));
+        }
+        return writes.size() == 1 ? writes.get(0) : CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()]));
+    }
+    
+    
+    /**
+     * Writes a row per tag to the metadata_tags table.
+     * 
+     * @param key The key of the file
+     * @param data The metadata of the file
+     * @param writes The list the acknowledgements of the batches written are added to
+     * @throws IOException
+     */
+    private void outputTags(String key, MetadataRecord data, List<CompletableFuture<Void>> writes)
+    throws IOException
+    {
+        // All rows of a file share the partition key, so they are written as unlogged single partition batches
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        ValueCodec codec = valueCodecs.get();
+        for (int directory = 0; directory < data.getDirectoryCount(); directory++ )
+        {
+            String directoryName = data.getDirectoryName(directory);
+            int end = data.getTagEnd(directory);
+            for (int index = data.getTagStart(directory); index < end; index++ )
             {
-                Object value;
-                Integer tag = tagEntry.getKey();
-                Map<String, Object> valuesMap = tagEntry.getValue();
-                
-                Object obj = valuesMap.get("Value");
-                if (obj != null)
+                int tag = data.getTagId(index);
+                byte type = codec.encode(data, index);
+                String description = data.getDescription(index);
+                int kind;
+                switch (type)
                 {
-                    Class<?> clazz = obj.getClass();
-                    if (clazz.isArray())
-                    {
-                        if (byte[].class.isAssignableFrom(clazz))
-                        {
-                            value = Arrays.toString((byte[]) obj);
-                        } else if (short[].class.isAssignableFrom(clazz))
-                        {
-                            value = Arrays.toString((short[]) obj);
-                        } else if (int[].class.isAssignableFrom(clazz))
-                        {
-                            value = Arrays.toString((int[]) obj);
-                        } else if (long[].class.isAssignableFrom(clazz))
-                        {
-                            value = Arrays.toString((long[]) obj);
-                        } else if (float[].class.isAssignableFrom(clazz))
-                        {
-                            value = Arrays.toString((float[]) obj);
-                        } else if (double[].class.isAssignableFrom(clazz))
-                        {
-                            value = Arrays.toString((double[]) obj);
-                        } else if (char[].class.isAssignableFrom(clazz))
-                        {
-                            value = Arrays.toString((char[]) obj);
-                        } else
-                        {
-                            value = Arrays.toString((Object[]) obj);
-                        }
-                    } else
-                    {
-                        value = obj;
-                    }
-                } else
-                {
-                    value = null;
+                    case MetadataRecord.TYPE_NULL:
+                        kind = VALUE_NULL;
+                        break;
+                    case MetadataRecord.TYPE_INT:
+                    case MetadataRecord.TYPE_LONG:
+                    case MetadataRecord.TYPE_BOOLEAN:
+                        kind = VALUE_LONG;
+                        break;
+                    case MetadataRecord.TYPE_DOUBLE:
+                        kind = VALUE_DOUBLE;
+                        break;
+                    case MetadataRecord.TYPE_RATIONAL:
+                        kind = VALUE_RATIONAL;
+                        break;
+                    default:
+                        kind = codec.getBinary() != null ? VALUE_BLOB : codec.getText() != null ? VALUE_TEXT : VALUE_NULL;
+                        break;
                 }
                 
-                Session session = cluster.connect();
-                try
+                BoundStatement statement = insertTagStatements[kind * 2 + (description != null ? 1 : 0)].bind()
+                                     .setString(0, key)
+                                     .setString(1, directoryName)
+                                     .setInt(2, tag)
+                                     .setString(3, data.getTagName(index))
+                                     .setInt(4, type);
+                int column = 5;
+                if (description != null)
+                {
+                    statement.setString(column++ , description);
+                }
+                switch (kind)
                 {
-                    session.execute(insertStatement.bind().setString(0, key)
-                                          .setString(1, directoryName)
-                                          .setInt(2, tag)
-                                          .setString(3, (String) valuesMap.get("TagName"))
-                                          .setString(4, value.toString())
-                                          .setString(5, (String) valuesMap.get("Description")));
-                } finally
+                    case VALUE_LONG:
+                        statement.setLong(column, data.getLong(index));
+                        break;
+                    case VALUE_DOUBLE:
+                        statement.setDouble(column, data.getDouble(index));
+                        break;
+                    case VALUE_RATIONAL:
+                        statement.setString(column, codec.getText());
+                        statement.setDouble(column + 1, ((Rational) data.getObject(index)).doubleValue());
+                        break;
+                    case VALUE_TEXT:
+                        statement.setString(column, codec.getText());
+                        break;
+                    case VALUE_BLOB:
+                        statement.setBytes(column, codec.getBinary());
+                        break;
+                }
+                batch.add(statement);
+                if (batch.size() >= MAX_BATCH_SIZE)
                 {
-                    session.close();
+                    writes.add(writer.execute(batch));
+                    batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
                 }
                 
                 if (logger.isLoggable(Level.FINEST))
                 {
-                    logger.logp(Level.FINEST, LOG_CLASS_NAME, "output", String.format("Directory [%s] - %s (%s) = %s (%s)\n", directoryName, tag, valuesMap.get("TagName"), value, valuesMap.get("Description")));
+                    logger.logp(Level.FINEST, LOG_CLASS_NAME, "output", String.format("Directory [%s] - %s (%s) = %s (%s)\n", directoryName, tag, data.getTagName(index), codec.getText() != null ? codec.getText() : codec.getBinary(), description));
+                }
+            }
+        }
+        
+        if (batch.size() > 0)
+        {
+            writes.add(writer.execute(batch));
+        }
+    }
+    
+    
+    /**
+     * Writes a row per directory to the metadata_directories table. The tags of directories with the same name are
+     * written to the same row.
+     * 
+     * @param key The key of the file
+     * @param data The metadata of the file
+     * @param writes The list the acknowledgements of the batches written are added to
+     * @throws IOException
+     */
+    private void outputDirectories(String key, MetadataRecord data, List<CompletableFuture<Void>> writes)
+    throws IOException
+    {
+        Map<String, DirectoryRow> rows = new LinkedHashMap<>();
+        ValueCodec codec = valueCodecs.get();
+        for (int directory = 0; directory < data.getDirectoryCount(); directory++ )
+        {
+            String directoryName = data.getDirectoryName(directory);
+            DirectoryRow row = rows.get(directoryName);
+            if (row == null)
+            {
+                row = new DirectoryRow();
+                rows.put(directoryName, row);
+            }
+            
+            int end = data.getTagEnd(directory);
+            for (int index = data.getTagStart(directory); index < end; index++ )
+            {
+                // Maps can not hold null values, so absent values are left out
+                Integer tag = data.getTagId(index);
+                row.valueTypes.put(tag, (int) codec.encode(data, index));
+                if (data.getTagName(index) != null)
+                {
+                    row.tagNames.put(tag, data.getTagName(index));
+                }
+                if (data.getDescription(index) != null)
+                {
+                    row.descriptions.put(tag, data.getDescription(index));
                 }
+                if (codec.getText() != null)
+                {
+                    row.valueTexts.put(tag, codec.getText());
+                } else if (codec.getBinary() != null)
+                {
+                    row.valueBlobs.put(tag, codec.getBinary());
+                }
+            }
+        }
+        
+        // All rows of a file share the partition key, so they are written as unlogged single partition batches
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        for (Map.Entry<String, DirectoryRow> entry : rows.entrySet())
+        {
+            DirectoryRow row = entry.getValue();
+            batch.add(insertDirectoryStatement.bind(key, entry.getKey(), row.tagNames, row.valueTypes, row.descriptions, row.valueTexts, row.valueBlobs));
+            if (batch.size() >= MAX_BATCH_SIZE)
+            {
+                writes.add(writer.execute(batch));
+                batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
             }
         }
+        
+        if (batch.size() > 0)
+        {
+            writes.add(writer.execute(batch));
+        }
+    }
+    
+    
+    /**
+     * Reads the metadata of a file, or of the file it is a copy of, as a single partition slice. Directories are
+     * returned in the order of their names and tags in the order of their identifiers.
+     * 
+     * @param key The key of the file
+     * @return The metadata of the file, or null if the file has not been indexed
+     * @throws IOException
+     */
+    public MetadataRecord read(String key)
+    throws IOException
+    {
+        try
+        {
+            MetadataRecord record = mapLayout ? readDirectories(key) : readTags(key);
+            if (record == null)
+            {
+                Row alias = session.execute(selectAliasStatement.bind(key)).one();
+                if (alias != null)
+                {
+                    record = mapLayout ? readDirectories(alias.getString(0)) : readTags(alias.getString(0));
+                }
+            }
+            return record;
+        } catch (RuntimeException e)
+        {
+            throw new IOException(String.format("Error reading metadata of \"%s\" - %s: %s", key, e.getClass().getSimpleName(), e.getMessage()), e);
+        }
+    }
+    
+    
+    private MetadataRecord readTags(String key)
+    {
+        MetadataRecord record = null;
+        String directory = null;
+        for (Row row : session.execute(selectStatement.bind(key)))
+        {
+            if (record == null)
+            {
+                record = new MetadataRecord();
+            }
+            if (!row.getString(0).equals(directory))
+            {
+                directory = row.getString(0);
+                record.addDirectory(directory);
+            }
+            
+            byte type = (byte) row.getInt(3);
+            Object value;
+            switch (type)
+            {
+                case MetadataRecord.TYPE_INT:
+                    value = row.isNull(5) ? null : (Object) (int) row.getLong(5);
+                    break;
+                case MetadataRecord.TYPE_LONG:
+                    value = row.isNull(5) ? null : (Object) row.getLong(5);
+                    break;
+                case MetadataRecord.TYPE_BOOLEAN:
+                    value = row.isNull(5) ? null : (Object) (row.getLong(5) != 0);
+                    break;
+                case MetadataRecord.TYPE_DOUBLE:
+                    value = row.isNull(6) ? null : (Object) row.getDouble(6);
+                    break;
+                default:
+                    value = decodeValue(type, row.getString(7), row.getBytes(8));
+                    break;
+            }
+            record.addTag(row.getInt(1), row.getString(2), row.getString(4), value);
+        }
+        return record;
+    }
+    
+    
+    private MetadataRecord readDirectories(String key)
+    {
+        MetadataRecord record = null;
+        for (Row row : session.execute(selectStatement.bind(key)))
+        {
+            if (record == null)
+            {
+                record = new MetadataRecord();
+            }
+            record.addDirectory(row.getString(0));
+            
+            Map<Integer, String> tagNames = row.getMap(1, Integer.class, String.class);
+            Map<Integer, Integer> valueTypes = row.getMap(2, Integer.class, Integer.class);
+            Map<Integer, String> descriptions = row.getMap(3, Integer.class, String.class);
+            Map<Integer, String> valueTexts = row.getMap(4, Integer.class, String.class);
+            Map<Integer, ByteBuffer> valueBlobs = row.getMap(5, Integer.class, ByteBuffer.class);
+            // Every tag has a value type
+            for (Integer tag : new TreeSet<>(valueTypes.keySet()))
+            {
+                record.addTag(tag, tagNames.get(tag), descriptions.get(tag), decodeValue(valueTypes.get(tag).byteValue(), valueTexts.get(tag), valueBlobs.get(tag)));
+            }
+        }
+        return record;
+    }
+    
+    
+    /**
+     * Decodes a value stored as text or in the binary form of the {@link ValueCodec}.
+     * 
+     * @param type The type of the value
+     * @param text The text of the value, or null
+     * @param binary The binary form of the value, or null
+     * @return The value
+     */
+    private static Object decodeValue(byte type, String text, ByteBuffer binary)
+    {
+        if (text == null)
+        {
+            return binary != null ? ValueCodec.decode(type, binary) : null;
+        }
+        
+        try
+        {
+            switch (type)
+            {
+                case MetadataRecord.TYPE_NULL:
+                    return null;
+                case MetadataRecord.TYPE_INT:
+                    return Integer.valueOf(text);
+                case MetadataRecord.TYPE_LONG:
+                    return Long.valueOf(text);
+                case MetadataRecord.TYPE_DOUBLE:
+                    return Double.valueOf(text);
+                case MetadataRecord.TYPE_BOOLEAN:
+                    return Boolean.valueOf(text);
+                case MetadataRecord.TYPE_RATIONAL:
+                    int slash = text.indexOf('/');
+                    return slash < 0 ? new Rational(Long.parseLong(text.trim()), 1) : new Rational(Long.parseLong(text.substring(0, slash).trim()), Long.parseLong(text.substring(slash + 1).trim()));
+                default:
+                    return text;
+            }
+        } catch (NumberFormatException e)
+        {
+            return text;
+        }
+    }
+    
+    
+    /**
+     * Copies the rows of the metadata table written by earlier versions to the current layout. The rows of a file are
+     * contiguous in a scan of the table, so they are collected into a record and written as the metadata of the file.
+     * 
+     * @throws IOException
+     */
+    private void migrate()
+    throws IOException
+    {
+        TableMetadata legacy = cluster.getMetadata().getKeyspace("exif").getTable("metadata");
+        if (legacy == null)
+        {
+            logger.log(Level.INFO, "There is no exif.metadata table to migrate");
+            return;
+        }
+        
+        // Tables created by the earliest versions do not have the binary value columns
+        boolean typed = legacy.getColumn("value_type") != null && legacy.getColumn("value_blob") != null;
+        Statement select = new SimpleStatement(String.format(selectLegacyMetadata, typed ? ", value_type, value_blob" : "")).setFetchSize(MIGRATION_FETCH_SIZE);
+        long start = System.nanoTime();
+        long files = 0;
+        long tags = 0;
+        String key = null;
+        String directory = null;
+        MetadataRecord record = null;
+        try
+        {
+            for (Row row : session.execute(select))
+            {
+                if (!row.getString(0).equals(key))
+                {
+                    if (record != null)
+                    {
+                        output(key, record);
+                        files++ ;
+                    }
+                    key = row.getString(0);
+                    directory = null;
+                    record = new MetadataRecord();
+                }
+                if (!row.getString(1).equals(directory))
+                {
+                    directory = row.getString(1);
+                    record.addDirectory(directory);
+                }
+                
+                byte type = typed && !row.isNull(6) ? (byte) row.getInt(6) : MetadataRecord.TYPE_STRING;
+                record.addTag(row.getInt(2), row.getString(3), row.getString(5), decodeValue(type, row.getString(4), typed ? row.getBytes(7) : null));
+                tags++ ;
+            }
+        } catch (RuntimeException e)
+        {
+            throw new IOException(String.format("Error migrating the exif.metadata table - %s: %s", e.getClass().getSimpleName(), e.getMessage()), e);
+        }
+        if (record != null)
+        {
+            output(key, record);
+            files++ ;
+        }
+        
+        if (logger.isLoggable(Level.INFO))
+        {
+            logger.logp(Level.INFO, LOG_CLASS_NAME, "migrate", String.format("Migrated %d tag(s) of %d file(s) from exif.metadata to the %s layout in %d ms", tags, files, mapLayout ? LAYOUT_MAP : LAYOUT_WIDE, (System.nanoTime() - start) / 1000000));
+        }
+    }
+    
+    
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#outputAlias(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void outputAlias(String key, String canonicalKey)
+    throws IOException
+    {
+        // A single row pointing at the metadata of the canonical file is written in place of the metadata
+        writer.execute(insertAliasStatement.bind(key, canonicalKey));
+    }
+    
+    
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#writeAlias(java.lang.String, java.lang.String)
+     */
+    @Override
+    public CompletableFuture<Void> writeAlias(String key, String canonicalKey)
+    {
+        try
+        {
+            return writer.execute(insertAliasStatement.bind(key, canonicalKey));
+        } catch (IOException | RuntimeException e)
+        {
+            return failedFuture(e);
+        }
+    }
+    
+    
+    /**
+     * A directory of the map layout is a single row whose tag maps are each written as a single cell, so a directory
+     * written in parts would keep only the tags of the last part. The wide layout writes a row per tag and accepts
+     * the metadata of a file in parts.
+     * 
+     * @return false when the map layout is used
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#supportsStreaming()
+     */
+    @Override
+    public boolean supportsStreaming()
+    {
+        return !mapLayout;
     }
     
     
@@ -136,6 +735,12 @@ public class CSQLOutputHandler extends OutputHandler<Map<String, Map<Integer, Ma
     public void close()
     throws IOException
     {
+        // Wait for the batches in flight and waiting to be retried to complete
+        if (writer != null)
+        {
+            writer.close(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        }
+        
         if (session != null)
         {
             try
@@ -0,0 +1,303 @@
+package net.posick.media.metadata.exif.output;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.datastax.driver.core.exceptions.BusyConnectionException;
+import com.datastax.driver.core.exceptions.BusyPoolException;
+import com.datastax.driver.core.exceptions.ConnectionException;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.QueryExecutionException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
+import net.posick.utils.AdaptiveLimiter;
+import net.posick.utils.CompletionTracker;
+
+/**
+ * The CSQLWriter executes the statements of the {@link CSQLOutputHandler} asynchronously, limiting the number of
+ * statements in flight with an {@link AdaptiveLimiter} so that the write rate follows what the cluster sustains.
+ *
+ * Statements that fail because the cluster is overloaded, e.g., write timeouts, overloaded or unavailable
+ * coordinators and busy connections, reduce the limit and are added to a bounded retry queue, from which they are
+ * executed again after an exponential backoff with jitter. Statements that fail for other reasons, that fail
+ * {@link #MAX_ATTEMPTS} times or that do not fit in the retry queue are counted as failed and reported when the
+ * writer is closed. Each statement is acknowledged once it has been written, or has failed, so that the files whose
+ * statements failed are not recorded as indexed.
+ *
+ * @author posicks
+ */
+class CSQLWriter
+{
+    private static Logger logger = Logger.getLogger(CSQLWriter.class.getName());
+
+    static final int MAX_ATTEMPTS = 5;
+
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+
+    private final Session session;
+
+    private final AdaptiveLimiter limiter;
+
+    private final CompletionTracker tracker = new CompletionTracker();
+
+    private final DelayQueue<Retry> retries = new DelayQueue<>();
+
+    private final Semaphore retryPermits;
+
+    private final Thread retryThread;
+
+    private final AtomicLong retried = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+
+    /**
+     * A statement waiting in the retry queue.
+     *
+     * @author posicks
+     */
+    private static class Retry implements Delayed
+    {
+        final Statement statement;
+
+        final CompletableFuture<Void> written;
+
+        final int attempt;
+
+        final long due;
+
+
+        Retry(Statement statement, CompletableFuture<Void> written, int attempt, long delayMillis)
+        {
+            this.statement = statement;
+            this.written = written;
+            this.attempt = attempt;
+            this.due = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        }
+
+
+        @Override
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+
+        @Override
+        public int compareTo(Delayed other)
+        {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+
+
+    /**
+     * @param session The Session the statements are executed on
+     * @param maxInFlight The maximum number of statements in flight
+     * @param retryCapacity The maximum number of statements waiting to be retried
+     */
+    CSQLWriter(Session session, int maxInFlight, int retryCapacity)
+    {
+        this.session = session;
+        // Start below the maximum and let the limit grow to what the cluster sustains
+        this.limiter = new AdaptiveLimiter(Math.max(1, maxInFlight / 4), 1, maxInFlight);
+        this.retryPermits = new Semaphore(retryCapacity);
+        this.retryThread = new Thread(this::retryLoop, "csql-retry");
+        this.retryThread.setDaemon(true);
+        this.retryThread.start();
+    }
+
+
+    /**
+     * Executes the statement asynchronously, blocking while the limit of statements in flight is reached.
+     *
+     * @param statement The statement to execute
+     * @return A CompletableFuture completed once the statement has been written, or completed exceptionally once the
+     *         statement has failed, after any retries
+     * @throws IOException if the statement could not be sent
+     */
+    CompletableFuture<Void> execute(Statement statement)
+    throws IOException
+    {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        tracker.register();
+        try
+        {
+            send(statement, written, 1);
+            return written;
+        } catch (InterruptedException e)
+        {
+            tracker.arrive();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to write metadata");
+        } catch (RuntimeException e)
+        {
+            tracker.arrive();
+            throw new IOException(String.format("Error writing metadata batch - %s: %s", e.getClass().getSimpleName(), e.getMessage()), e);
+        }
+    }
+
+
+    private void send(final Statement statement, final CompletableFuture<Void> written, final int attempt)
+    throws InterruptedException
+    {
+        final long start = limiter.acquire();
+        ResultSetFuture future;
+        try
+        {
+            future = session.executeAsync(statement);
+        } catch (RuntimeException e)
+        {
+            limiter.release();
+            throw e;
+        }
+
+        Futures.addCallback(future, new FutureCallback<ResultSet>()
+        {
+            @Override
+            public void onSuccess(ResultSet result)
+            {
+                limiter.onSuccess(start);
+                tracker.arrive();
+                written.complete(null);
+            }
+
+
+            @Override
+            public void onFailure(Throwable t)
+            {
+                if (isOverloaded(t))
+                {
+                    limiter.onDropped(start);
+                    retry(statement, written, attempt, t);
+                } else
+                {
+                    limiter.release();
+                    fail(written, attempt, t);
+                }
+            }
+        });
+    }
+
+
+    /**
+     * @param t The cause of the failure of a statement
+     * @return true if the statement failed because the cluster, or the connection to it, is overloaded
+     */
+    private static boolean isOverloaded(Throwable t)
+    {
+        return t instanceof QueryExecutionException || t instanceof ConnectionException || t instanceof BusyPoolException || t instanceof BusyConnectionException || t instanceof NoHostAvailableException;
+    }
+
+
+    private void retry(Statement statement, CompletableFuture<Void> written, int attempt, Throwable t)
+    {
+        if (attempt < MAX_ATTEMPTS && retryPermits.tryAcquire())
+        {
+            long backoff = Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << (attempt - 1));
+            retries.add(new Retry(statement, written, attempt + 1, ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1)));
+            retried.incrementAndGet();
+            if (logger.isLoggable(Level.FINE))
+            {
+                logger.logp(Level.FINE, CSQLWriter.class.getName(), "retry", String.format("Retrying metadata batch after attempt %d - %s: %s", attempt, t.getClass().getSimpleName(), t.getMessage()));
+            }
+        } else
+        {
+            fail(written, attempt, t);
+        }
+    }
+
+
+    private void fail(CompletableFuture<Void> written, int attempt, Throwable t)
+    {
+        failed.incrementAndGet();
+        tracker.arrive();
+        logger.log(Level.WARNING, String.format("Error writing metadata batch after %d attempt(s): %s - %s", attempt, t.getClass().getSimpleName(), t.getMessage()));
+        written.completeExceptionally(t);
+    }
+
+
+    private void retryLoop()
+    {
+        while (true)
+        {
+            Retry retry;
+            try
+            {
+                retry = retries.take();
+            } catch (InterruptedException e)
+            {
+                return;
+            }
+            retryPermits.release();
+
+            try
+            {
+                send(retry.statement, retry.written, retry.attempt);
+            } catch (InterruptedException e)
+            {
+                fail(retry.written, retry.attempt, e);
+                return;
+            } catch (RuntimeException e)
+            {
+                fail(retry.written, retry.attempt, e);
+            }
+        }
+    }
+
+
+    /**
+     * Waits for the statements in flight and in the retry queue to complete, then stops retrying.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout argument
+     */
+    void close(long timeout, TimeUnit unit)
+    {
+        try
+        {
+            if (!tracker.await(timeout, unit))
+            {
+                logger.log(Level.WARNING, String.format("Timed out waiting for %d metadata batches to complete", tracker.getOutstanding()));
+            }
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        retryThread.interrupt();
+
+        // Statements still waiting to be retried after the timeout are not written
+        for (Retry retry : retries)
+        {
+            if (retries.remove(retry))
+            {
+                fail(retry.written, retry.attempt, new IOException("Closed before the metadata batch was retried"));
+            }
+        }
+
+        if (retried.get() > 0 && logger.isLoggable(Level.INFO))
+        {
+            logger.logp(Level.INFO, CSQLWriter.class.getName(), "close", String.format("%d metadata batches were retried, the in flight limit ended at %d", retried.get(), limiter.getLimit()));
+        }
+        if (failed.get() > 0)
+        {
+            logger.log(Level.SEVERE, String.format("%d metadata batches failed to be written", failed.get()));
+        }
+    }
+}
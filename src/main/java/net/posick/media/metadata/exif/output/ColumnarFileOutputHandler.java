@@ -0,0 +1,884 @@
+package net.posick.media.metadata.exif.output;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.zip.Deflater;
+
+import net.posick.media.metadata.Context;
+import net.posick.media.metadata.Pipeline;
+import net.posick.media.metadata.exif.MetadataRecord;
+import net.posick.media.metadata.exif.ValueCodec;
+import net.posick.media.metadata.exif.handlers.OutputHandler;
+
+/**
+ * The ColumnarFileOutputHandler is an OutputHandler that writes the metadata to local columnar files, so that
+ * metadata can be indexed without a datastore and the files loaded by analytics tools in bulk.
+ *
+ * Rows are buffered, one row per tag with the same columns as the datastore table, into row groups borrowed from a
+ * pool holding a row group per thread outputting metadata. The rows of a file are added to the row group while it is
+ * borrowed, and threads wait for a row group to be returned when all are in use. When the row group is full its
+ * columns are encoded and compressed by the thread and the row group is appended to the current file, the only step
+ * performed while holding the lock of the file. Files are rolled
+ * over once they reach the maximum file size, and are written with a ".part" suffix that is removed once the file
+ * is complete. The file format is described by {@link ColumnarFileReader}. Writes are acknowledged once the file
+ * holding their rows is complete.
+ *
+ * The datastore URI is the directory the files are written to.
+ *
+ * @author posicks
+ */
+public class ColumnarFileOutputHandler extends OutputHandler<MetadataRecord>
+{
+    static final int MAGIC = 0x4D4D4346;
+
+    static final int VERSION = 1;
+
+    static final byte ENCODING_DICTIONARY = 1;
+
+    static final byte ENCODING_VARINT = 2;
+
+    static final byte ENCODING_BYTE = 3;
+
+    static final byte ENCODING_PLAIN = 4;
+
+    static final String[] COLUMNS = {"key", "directory", "tag", "tag_name", "value_type", "value", "value_blob", "description"};
+
+    static final String FILE_EXTENSION = ".mmc";
+
+    /**
+     * The directory of the rows recording a file as an alias of another file, see {@link #outputAlias(String, String)}
+     */
+    public static final String ALIAS_DIRECTORY = "Alias";
+
+    private static final String PART_EXTENSION = ".part";
+
+    private static final int DEFAULT_ROW_GROUP_SIZE = 64 * 1024;
+
+    private static final int INITIAL_ROW_CAPACITY = 1024;
+
+    private static final long DEFAULT_MAX_FILE_SIZE = 256L * 1024 * 1024;
+
+
+    /**
+     * A growable buffer to which the values of a column are encoded.
+     *
+     * @author posicks
+     */
+    private static class ColumnBuffer extends ByteArrayOutputStream
+    {
+        public ColumnBuffer()
+        {
+            super(4096);
+        }
+
+
+        /**
+         * @return The internal buffer, holding {@link #size()} bytes
+         */
+        public byte[] getBuffer()
+        {
+            return buf;
+        }
+
+
+        public void writeVarint(long value)
+        {
+            while ((value & ~0x7FL) != 0)
+            {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+
+        public void writeBytes(byte[] bytes)
+        {
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+
+        /**
+         * Writes a nullable value as its length plus one followed by its bytes, a length of 0 is a null value.
+         */
+        public void writeNullable(ByteBuffer value)
+        {
+            if (value == null)
+            {
+                writeVarint(0);
+            } else
+            {
+                ByteBuffer duplicate = value.duplicate();
+                writeVarint(duplicate.remaining() + 1L);
+                if (duplicate.hasArray())
+                {
+                    write(duplicate.array(), duplicate.arrayOffset() + duplicate.position(), duplicate.remaining());
+                } else
+                {
+                    while (duplicate.hasRemaining())
+                    {
+                        write(duplicate.get());
+                    }
+                }
+            }
+        }
+
+
+        public void writeNullable(String value)
+        {
+            writeNullable(value != null ? ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)) : null);
+        }
+    }
+
+
+    /**
+     * A dictionary encoded column, each distinct value is stored once per row group and rows store the index of
+     * their value.
+     *
+     * @author posicks
+     */
+    private static class DictionaryColumn
+    {
+        private Map<String, Integer> indexes = new HashMap<>();
+
+        private List<String> values = new ArrayList<>();
+
+        private int[] rows;
+
+
+        public DictionaryColumn(int capacity)
+        {
+            rows = new int[capacity];
+        }
+
+
+        public void grow(int capacity)
+        {
+            rows = Arrays.copyOf(rows, capacity);
+        }
+
+
+        public void set(int row, String value)
+        {
+            if (value == null)
+            {
+                value = "";
+            }
+            Integer index = indexes.get(value);
+            if (index == null)
+            {
+                index = values.size();
+                indexes.put(value, index);
+                values.add(value);
+            }
+            rows[row] = index;
+        }
+
+
+        public void encode(ColumnBuffer buffer, int rowCount)
+        {
+            buffer.writeVarint(values.size());
+            for (String value : values)
+            {
+                buffer.writeBytes(value.getBytes(StandardCharsets.UTF_8));
+            }
+            for (int row = 0; row < rowCount; row++ )
+            {
+                buffer.writeVarint(rows[row]);
+            }
+        }
+
+
+        public void clear()
+        {
+            indexes.clear();
+            values.clear();
+        }
+    }
+
+
+    /**
+     * The rows buffered by the threads borrowing the row group. Values are held by reference until the row group is encoded.
+     *
+     * @author posicks
+     */
+    private class RowGroup
+    {
+        private int maxRows;
+
+        private int capacity;
+
+        private int rowCount = 0;
+
+        private DictionaryColumn keys;
+
+        private DictionaryColumn directories;
+
+        private int[] tags;
+
+        private DictionaryColumn tagNames;
+
+        private byte[] valueTypes;
+
+        private String[] values;
+
+        private ByteBuffer[] valueBlobs;
+
+        private String[] descriptions;
+
+        private ValueCodec codec = new ValueCodec();
+
+        private Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+        private ColumnBuffer column = new ColumnBuffer();
+
+        private ColumnBuffer deflated = new ColumnBuffer();
+
+        private ColumnBuffer compressed = new ColumnBuffer();
+
+        private byte[] deflateBuffer = new byte[16 * 1024];
+
+        private List<CompletableFuture<Void>> acknowledgements = new ArrayList<>();
+
+
+        public RowGroup(int maxRows)
+        {
+            // The columns grow as rows are added, so that threads that output few rows do not hold a full row group
+            this.maxRows = maxRows;
+            this.capacity = Math.min(maxRows, INITIAL_ROW_CAPACITY);
+            keys = new DictionaryColumn(capacity);
+            directories = new DictionaryColumn(capacity);
+            tags = new int[capacity];
+            tagNames = new DictionaryColumn(capacity);
+            valueTypes = new byte[capacity];
+            values = new String[capacity];
+            valueBlobs = new ByteBuffer[capacity];
+            descriptions = new String[capacity];
+        }
+
+
+        public void add(String key, String directory, int tag, String tagName, byte valueType, String value, ByteBuffer valueBlob, String description)
+        throws IOException
+        {
+            if (rowCount == capacity)
+            {
+                grow();
+            }
+            keys.set(rowCount, key);
+            directories.set(rowCount, directory);
+            tags[rowCount] = tag;
+            tagNames.set(rowCount, tagName);
+            valueTypes[rowCount] = valueType;
+            values[rowCount] = value;
+            valueBlobs[rowCount] = valueBlob;
+            descriptions[rowCount] = description;
+            rowCount++ ;
+            if (rowCount == maxRows)
+            {
+                flush();
+            }
+        }
+
+
+        private void grow()
+        {
+            capacity = Math.min(capacity * 2, maxRows);
+            keys.grow(capacity);
+            directories.grow(capacity);
+            tags = Arrays.copyOf(tags, capacity);
+            tagNames.grow(capacity);
+            valueTypes = Arrays.copyOf(valueTypes, capacity);
+            values = Arrays.copyOf(values, capacity);
+            valueBlobs = Arrays.copyOf(valueBlobs, capacity);
+            descriptions = Arrays.copyOf(descriptions, capacity);
+        }
+
+
+        /**
+         * Encodes and compresses the columns of the row group and appends the row group to the current file. The row
+         * group is emptied whether or not the rows could be written, the writes of rows that could not be written are
+         * failed.
+         *
+         * @throws IOException
+         */
+        public void flush()
+        throws IOException
+        {
+            if (rowCount == 0)
+            {
+                // Files without tags have no rows to write
+                acknowledge(acknowledgements, null);
+                return;
+            }
+
+            try
+            {
+                compressed.reset();
+                compressed.writeVarint(rowCount);
+                compressed.writeVarint(COLUMNS.length);
+                for (int index = 0; index < COLUMNS.length; index++ )
+                {
+                    column.reset();
+                    byte encoding = encodeColumn(index);
+                    compressColumn(encoding);
+                }
+
+                writeRowGroup(compressed, rowCount, acknowledgements);
+            } finally
+            {
+                // Release the references to the values
+                keys.clear();
+                directories.clear();
+                tagNames.clear();
+                Arrays.fill(values, 0, rowCount, null);
+                Arrays.fill(valueBlobs, 0, rowCount, null);
+                Arrays.fill(descriptions, 0, rowCount, null);
+                rowCount = 0;
+            }
+        }
+
+
+        private byte encodeColumn(int index)
+        {
+            switch (index)
+            {
+                case 0:
+                    keys.encode(column, rowCount);
+                    return ENCODING_DICTIONARY;
+                case 1:
+                    directories.encode(column, rowCount);
+                    return ENCODING_DICTIONARY;
+                case 2:
+                    for (int row = 0; row < rowCount; row++ )
+                    {
+                        // Zig-zag encoded so that negative tags are also small
+                        column.writeVarint((tags[row] << 1) ^ (tags[row] >> 31));
+                    }
+                    return ENCODING_VARINT;
+                case 3:
+                    tagNames.encode(column, rowCount);
+                    return ENCODING_DICTIONARY;
+                case 4:
+                    column.write(valueTypes, 0, rowCount);
+                    return ENCODING_BYTE;
+                case 5:
+                    for (int row = 0; row < rowCount; row++ )
+                    {
+                        column.writeNullable(values[row]);
+                    }
+                    return ENCODING_PLAIN;
+                case 6:
+                    for (int row = 0; row < rowCount; row++ )
+                    {
+                        column.writeNullable(valueBlobs[row]);
+                    }
+                    return ENCODING_PLAIN;
+                default:
+                    for (int row = 0; row < rowCount; row++ )
+                    {
+                        column.writeNullable(descriptions[row]);
+                    }
+                    return ENCODING_PLAIN;
+            }
+        }
+
+
+        /**
+         * Compresses the encoded column into the row group as its encoding, uncompressed length, compressed length and
+         * compressed bytes.
+         */
+        private void compressColumn(byte encoding)
+        {
+            deflated.reset();
+            deflater.reset();
+            deflater.setInput(column.getBuffer(), 0, column.size());
+            deflater.finish();
+            while (!deflater.finished())
+            {
+                int length = deflater.deflate(deflateBuffer);
+                deflated.write(deflateBuffer, 0, length);
+            }
+            compressed.write(encoding);
+            compressed.writeVarint(column.size());
+            compressed.writeVarint(deflated.size());
+            compressed.write(deflated.getBuffer(), 0, deflated.size());
+        }
+    }
+
+
+    private Path directory;
+
+    private int rowGroupSize;
+
+    private long maxFileSize;
+
+    private String filePrefix;
+
+    private int fileSequence = 0;
+
+    private FileChannel channel;
+
+    private Path partFile;
+
+    private long filePosition;
+
+    private List<Long> rowGroupOffsets = new ArrayList<>();
+
+    private List<CompletableFuture<Void>> fileAcknowledgements = new ArrayList<>();
+
+    private long fileRows;
+
+    private final Object fileLock = new Object();
+
+    private Queue<RowGroup> rowGroups = new ConcurrentLinkedQueue<>();
+
+    private ConcurrentLinkedDeque<RowGroup> idleRowGroups = new ConcurrentLinkedDeque<>();
+
+    private Semaphore rowGroupPermits;
+
+    private int rowGroupCount;
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.AbstractHandler
+     */
+    public ColumnarFileOutputHandler(Context ctx)
+    throws IOException
+    {
+        super(ctx);
+        String uri = ctx.get(Context.DATASTORE_URI);
+        this.directory = uri.startsWith("file:") ? Paths.get(URI.create(uri)) : Paths.get(uri);
+        Files.createDirectories(directory);
+        this.rowGroupSize = ctx.get(Context.OUTPUT_ROW_GROUP_SIZE, DEFAULT_ROW_GROUP_SIZE);
+        this.maxFileSize = ctx.get(Context.OUTPUT_MAX_FILE_SIZE, (Number) DEFAULT_MAX_FILE_SIZE).longValue();
+        this.filePrefix = "metadata-" + System.currentTimeMillis() + "-";
+
+        // Metadata is output by the write stage, or by the parse and large file stages when there is no write stage
+        int writeThreads = ctx.get(Context.WRITE_THREADS, 0);
+        int outputThreads = writeThreads > 0 ? writeThreads : ctx.get(Context.PARSE_THREADS, Runtime.getRuntime().availableProcessors()) + Pipeline.getLargeFileThreads(ctx);
+        this.rowGroupCount = Math.max(1, outputThreads);
+        this.rowGroupPermits = new Semaphore(rowGroupCount);
+    }
+
+
+    /**
+     * Borrows a row group from the pool, creating it if fewer row groups than threads outputting metadata exist, and
+     * waiting for a row group to be returned if all are in use.
+     *
+     * @return The row group
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    private RowGroup borrowRowGroup()
+    throws InterruptedIOException
+    {
+        try
+        {
+            rowGroupPermits.acquire();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a row group");
+        }
+
+        // The most recently returned row group is reused first, so that rarely used row groups do not grow
+        RowGroup rowGroup = idleRowGroups.pollLast();
+        if (rowGroup == null)
+        {
+            rowGroup = new RowGroup(rowGroupSize);
+            rowGroups.add(rowGroup);
+        }
+        return rowGroup;
+    }
+
+
+    private void returnRowGroup(RowGroup rowGroup)
+    {
+        idleRowGroups.addLast(rowGroup);
+        rowGroupPermits.release();
+    }
+
+
+    @Override
+    public void output(String key, MetadataRecord data)
+    throws IOException
+    {
+        add(key, data, null);
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#write(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public CompletableFuture<Void> write(String key, MetadataRecord data)
+    {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        try
+        {
+            add(key, data, written);
+        } catch (IOException | RuntimeException e)
+        {
+            written.completeExceptionally(e);
+        }
+        return written;
+    }
+
+
+    /**
+     * Adds a row per tag of the file to a row group.
+     *
+     * @param key The key of the file
+     * @param data The metadata of the file
+     * @param written The acknowledgement completed once the rows have been written, or null
+     * @throws IOException
+     */
+    private void add(String key, MetadataRecord data, CompletableFuture<Void> written)
+    throws IOException
+    {
+        RowGroup rowGroup = borrowRowGroup();
+        try
+        {
+            ValueCodec codec = rowGroup.codec;
+            for (int directory = 0; directory < data.getDirectoryCount(); directory++ )
+            {
+                String directoryName = data.getDirectoryName(directory);
+                int end = data.getTagEnd(directory);
+                for (int index = data.getTagStart(directory); index < end; index++ )
+                {
+                    byte type = codec.encode(data, index);
+                    rowGroup.add(key, directoryName, data.getTagId(index), data.getTagName(index), type, codec.getText(), codec.getBinary(), data.getDescription(index));
+                }
+            }
+            if (written != null)
+            {
+                rowGroup.acknowledgements.add(written);
+            }
+        } finally
+        {
+            returnRowGroup(rowGroup);
+        }
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#outputAlias(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void outputAlias(String key, String canonicalKey)
+    throws IOException
+    {
+        addAlias(key, canonicalKey, null);
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#writeAlias(java.lang.String, java.lang.String)
+     */
+    @Override
+    public CompletableFuture<Void> writeAlias(String key, String canonicalKey)
+    {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        try
+        {
+            addAlias(key, canonicalKey, written);
+        } catch (IOException | RuntimeException e)
+        {
+            written.completeExceptionally(e);
+        }
+        return written;
+    }
+
+
+    private void addAlias(String key, String canonicalKey, CompletableFuture<Void> written)
+    throws IOException
+    {
+        RowGroup rowGroup = borrowRowGroup();
+        try
+        {
+            rowGroup.add(key, ALIAS_DIRECTORY, 0, "Canonical Key", MetadataRecord.TYPE_STRING, canonicalKey, null, canonicalKey);
+            if (written != null)
+            {
+                rowGroup.acknowledgements.add(written);
+            }
+        } finally
+        {
+            returnRowGroup(rowGroup);
+        }
+    }
+
+
+    /**
+     * Appends the row group to the current file, opening a new file if required and rolling the file over once it
+     * reaches the maximum file size. If the row group cannot be appended the current file is abandoned.
+     *
+     * @param rowGroup The encoded row group
+     * @param rowCount The number of rows in the row group
+     * @param acknowledgements The acknowledgements of the writes of the rows, completed once the file is complete
+     * @throws IOException
+     */
+    private void writeRowGroup(ColumnBuffer rowGroup, int rowCount, List<CompletableFuture<Void>> acknowledgements)
+    throws IOException
+    {
+        synchronized (fileLock)
+        {
+            try
+            {
+                if (channel == null)
+                {
+                    openFile();
+                }
+
+                rowGroupOffsets.add(filePosition);
+                filePosition += write(ByteBuffer.wrap(rowGroup.getBuffer(), 0, rowGroup.size()));
+                fileRows += rowCount;
+            } catch (IOException e)
+            {
+                abandonFile(e);
+                acknowledge(acknowledgements, e);
+                throw e;
+            }
+            fileAcknowledgements.addAll(acknowledgements);
+            acknowledgements.clear();
+
+            if (filePosition >= maxFileSize)
+            {
+                closeFile();
+            }
+        }
+    }
+
+
+    /**
+     * Completes the acknowledgements of writes.
+     *
+     * @param acknowledgements The acknowledgements, cleared once completed
+     * @param error The error writing the rows, or null if the rows were written
+     */
+    private static void acknowledge(List<CompletableFuture<Void>> acknowledgements, IOException error)
+    {
+        for (CompletableFuture<Void> written : acknowledgements)
+        {
+            if (error == null)
+            {
+                written.complete(null);
+            } else
+            {
+                written.completeExceptionally(error);
+            }
+        }
+        acknowledgements.clear();
+    }
+
+
+    private int write(ByteBuffer buffer)
+    throws IOException
+    {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+        return length;
+    }
+
+
+    private void openFile()
+    throws IOException
+    {
+        Path file = directory.resolve(String.format("%s%05d%s%s", filePrefix, fileSequence++ , FILE_EXTENSION, PART_EXTENSION));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        partFile = file;
+        ByteBuffer header = ByteBuffer.allocate(8);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        filePosition = write(header);
+        rowGroupOffsets.clear();
+        fileRows = 0;
+    }
+
+
+    /**
+     * Writes the footer of the current file, the row count and offsets of its row groups followed by the length of the
+     * footer, and renames the file to remove the ".part" suffix. The writes of the rows of the file are then
+     * acknowledged. If the file cannot be completed it is abandoned.
+     *
+     * @throws IOException
+     */
+    private void closeFile()
+    throws IOException
+    {
+        try
+        {
+            completeFile();
+        } catch (IOException e)
+        {
+            abandonFile(e);
+            throw e;
+        }
+        acknowledge(fileAcknowledgements, null);
+    }
+
+
+    /**
+     * Closes and deletes the current part file and fails the writes of the rows already appended to it, so that the
+     * next row group written starts a new file.
+     *
+     * @param error The error writing the file
+     */
+    private void abandonFile(IOException error)
+    {
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            } catch (IOException e)
+            {
+                error.addSuppressed(e);
+            }
+        }
+        if (partFile != null)
+        {
+            try
+            {
+                Files.deleteIfExists(partFile);
+            } catch (IOException e)
+            {
+                error.addSuppressed(e);
+            }
+            logger.logp(Level.WARNING, LOG_CLASS_NAME, "abandonFile", String.format("Deleted the incomplete file \"%s\": %s - %s", partFile, error.getClass().getSimpleName(), error.getMessage()));
+        }
+        acknowledge(fileAcknowledgements, error);
+        channel = null;
+        partFile = null;
+        filePosition = 0;
+        rowGroupOffsets.clear();
+        fileRows = 0;
+    }
+
+
+    private void completeFile()
+    throws IOException
+    {
+        ByteBuffer footer = ByteBuffer.allocate(8 + 4 + rowGroupOffsets.size() * 8 + 8);
+        footer.putLong(fileRows);
+        footer.putInt(rowGroupOffsets.size());
+        for (long offset : rowGroupOffsets)
+        {
+            footer.putLong(offset);
+        }
+        footer.putInt(footer.position()).putInt(MAGIC).flip();
+        write(footer);
+        channel.force(false);
+        channel.close();
+        channel = null;
+
+        String name = partFile.getFileName().toString();
+        Path file = partFile.resolveSibling(name.substring(0, name.length() - PART_EXTENSION.length()));
+        Files.move(partFile, file, StandardCopyOption.ATOMIC_MOVE);
+        partFile = null;
+        if (logger.isLoggable(Level.FINE))
+        {
+            logger.logp(Level.FINE, LOG_CLASS_NAME, "closeFile", String.format("Wrote %d rows in %d row groups to \"%s\"", fileRows, rowGroupOffsets.size(), file));
+        }
+    }
+
+
+    /**
+     * Appends the rows of every row group to the current file and completes the file, so that the writes made before
+     * flush are acknowledged. The next row group written starts a new file.
+     *
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#flush()
+     */
+    @Override
+    public void flush()
+    throws IOException
+    {
+        // Every row group is borrowed, so that no rows are added while the row groups are flushed
+        try
+        {
+            rowGroupPermits.acquire(rowGroupCount);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the row groups");
+        }
+
+        try
+        {
+            for (RowGroup rowGroup : rowGroups)
+            {
+                rowGroup.flush();
+            }
+
+            synchronized (fileLock)
+            {
+                if (channel != null)
+                {
+                    closeFile();
+                }
+            }
+        } finally
+        {
+            rowGroupPermits.release(rowGroupCount);
+        }
+    }
+
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        // The OutputHandler is closed once all files have been processed, so no row group is borrowed
+        IOException error = null;
+        idleRowGroups.clear();
+        RowGroup rowGroup;
+        while ((rowGroup = rowGroups.poll()) != null)
+        {
+            try
+            {
+                rowGroup.flush();
+            } catch (IOException e)
+            {
+                error = e;
+            } finally
+            {
+                rowGroup.deflater.end();
+            }
+        }
+
+        synchronized (fileLock)
+        {
+            if (channel != null)
+            {
+                closeFile();
+            }
+        }
+
+        if (error != null)
+        {
+            throw error;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package net.posick.media.metadata.exif.output;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The ColumnarFileReader reads the files written by the {@link ColumnarFileOutputHandler}.
+ *
+ * A file starts with the magic number 0x4D4D4346 ("MMCF") and the format version as 32 bit integers, followed by
+ * the row groups and the footer. A row group is the number of rows and the number of columns, followed by each
+ * column as its encoding, uncompressed length, compressed length and its Deflate compressed values. The columns are
+ * key, directory, tag, tag_name, value_type, value, value_blob and description. Lengths and counts are unsigned
+ * variable length integers (7 bits per byte, least significant group first). The values of a column are encoded as
+ * <ul>
+ * <li>dictionary - the number of distinct values and the values as length prefixed UTF-8, followed by the index of
+ * the value of each row (key, directory and tag_name)</li>
+ * <li>varint - a zig-zag encoded variable length integer per row (tag)</li>
+ * <li>byte - a byte per row (value_type)</li>
+ * <li>plain - the length plus one of each value followed by its bytes, 0 for null values (value and description as
+ * UTF-8, value_blob as the binary form of the {@link net.posick.media.metadata.exif.ValueCodec})</li>
+ * </ul>
+ * The footer is the total number of rows as a 64 bit integer, the number of row groups as a 32 bit integer and the
+ * 64 bit offset of each row group, followed by the length of the footer and the magic number as 32 bit integers.
+ *
+ * @author posicks
+ */
+public class ColumnarFileReader implements Closeable
+{
+    /**
+     * Receives the rows read from the file.
+     *
+     * @author posicks
+     */
+    public interface RowHandler
+    {
+        void row(String key, String directory, int tag, String tagName, byte valueType, String value, byte[] valueBlob, String description);
+    }
+
+
+    private FileChannel channel;
+
+    private long rowCount;
+
+    private long[] rowGroupOffsets;
+
+    private long footerOffset;
+
+    private Inflater inflater = new Inflater();
+
+
+    /**
+     * Opens the file and reads its footer.
+     *
+     * @param file The file
+     * @throws IOException if the file is not a complete columnar metadata file
+     */
+    public ColumnarFileReader(Path file)
+    throws IOException
+    {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try
+        {
+            long size = channel.size();
+            ByteBuffer header = read(0, 8);
+            if (size < 16 || header.getInt() != ColumnarFileOutputHandler.MAGIC)
+            {
+                throw new IOException(String.format("\"%s\" is not a columnar metadata file", file));
+            }
+            int version = header.getInt();
+            if (version != ColumnarFileOutputHandler.VERSION)
+            {
+                throw new IOException(String.format("Unsupported columnar metadata file version %d in \"%s\"", version, file));
+            }
+
+            ByteBuffer trailer = read(size - 8, 8);
+            int footerLength = trailer.getInt();
+            if (trailer.getInt() != ColumnarFileOutputHandler.MAGIC)
+            {
+                throw new IOException(String.format("\"%s\" is incomplete, the footer is missing", file));
+            }
+            footerOffset = size - 8 - footerLength;
+            ByteBuffer footer = read(footerOffset, footerLength);
+            rowCount = footer.getLong();
+            rowGroupOffsets = new long[footer.getInt()];
+            for (int index = 0; index < rowGroupOffsets.length; index++ )
+            {
+                rowGroupOffsets[index] = footer.getLong();
+            }
+        } catch (IOException | RuntimeException e)
+        {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * @return The number of rows in the file
+     */
+    public long getRowCount()
+    {
+        return rowCount;
+    }
+
+
+    /**
+     * @return The number of row groups in the file
+     */
+    public int getRowGroupCount()
+    {
+        return rowGroupOffsets.length;
+    }
+
+
+    private ByteBuffer read(long position, int length)
+    throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+
+    private static long readVarint(ByteBuffer buffer)
+    {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do
+        {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+
+    private static String readString(ByteBuffer buffer, int length)
+    {
+        String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+
+    /**
+     * Reads the rows of the file in the order they were written.
+     *
+     * @param handler The RowHandler receiving the rows
+     * @throws IOException
+     */
+    public void read(RowHandler handler)
+    throws IOException
+    {
+        for (int index = 0; index < rowGroupOffsets.length; index++ )
+        {
+            long end = index + 1 < rowGroupOffsets.length ? rowGroupOffsets[index + 1] : footerOffset;
+            readRowGroup(read(rowGroupOffsets[index], (int) (end - rowGroupOffsets[index])), handler);
+        }
+    }
+
+
+    private void readRowGroup(ByteBuffer rowGroup, RowHandler handler)
+    throws IOException
+    {
+        int rows = (int) readVarint(rowGroup);
+        int columnCount = (int) readVarint(rowGroup);
+        if (columnCount != ColumnarFileOutputHandler.COLUMNS.length)
+        {
+            throw new IOException(String.format("Unexpected number of columns %d", columnCount));
+        }
+
+        String[][] strings = new String[columnCount][];
+        int[] tags = null;
+        byte[] valueTypes = null;
+        byte[][] valueBlobs = null;
+        for (int column = 0; column < columnCount; column++ )
+        {
+            byte encoding = rowGroup.get();
+            ByteBuffer values = inflate(rowGroup, (int) readVarint(rowGroup), (int) readVarint(rowGroup));
+            switch (encoding)
+            {
+                case ColumnarFileOutputHandler.ENCODING_DICTIONARY:
+                {
+                    String[] dictionary = new String[(int) readVarint(values)];
+                    for (int index = 0; index < dictionary.length; index++ )
+                    {
+                        dictionary[index] = readString(values, (int) readVarint(values));
+                    }
+                    strings[column] = new String[rows];
+                    for (int row = 0; row < rows; row++ )
+                    {
+                        strings[column][row] = dictionary[(int) readVarint(values)];
+                    }
+                    break;
+                }
+                case ColumnarFileOutputHandler.ENCODING_VARINT:
+                    tags = new int[rows];
+                    for (int row = 0; row < rows; row++ )
+                    {
+                        int value = (int) readVarint(values);
+                        tags[row] = (value >>> 1) ^ -(value & 1);
+                    }
+                    break;
+                case ColumnarFileOutputHandler.ENCODING_BYTE:
+                    valueTypes = new byte[rows];
+                    values.get(valueTypes);
+                    break;
+                case ColumnarFileOutputHandler.ENCODING_PLAIN:
+                    if (ColumnarFileOutputHandler.COLUMNS[column].equals("value_blob"))
+                    {
+                        valueBlobs = new byte[rows][];
+                        for (int row = 0; row < rows; row++ )
+                        {
+                            int length = (int) readVarint(values);
+                            if (length > 0)
+                            {
+                                valueBlobs[row] = new byte[length - 1];
+                                values.get(valueBlobs[row]);
+                            }
+                        }
+                    } else
+                    {
+                        strings[column] = new String[rows];
+                        for (int row = 0; row < rows; row++ )
+                        {
+                            int length = (int) readVarint(values);
+                            strings[column][row] = length > 0 ? readString(values, length - 1) : null;
+                        }
+                    }
+                    break;
+                default:
+                    throw new IOException(String.format("Unknown column encoding %d", encoding));
+            }
+        }
+
+        for (int row = 0; row < rows; row++ )
+        {
+            handler.row(strings[0][row], strings[1][row], tags[row], strings[3][row], valueTypes[row], strings[5][row], valueBlobs[row], strings[7][row]);
+        }
+    }
+
+
+    private ByteBuffer inflate(ByteBuffer rowGroup, int length, int compressedLength)
+    throws IOException
+    {
+        byte[] values = new byte[length];
+        inflater.reset();
+        inflater.setInput(rowGroup.array(), rowGroup.arrayOffset() + rowGroup.position(), compressedLength);
+        try
+        {
+            int total = 0;
+            while (total < length && !inflater.finished())
+            {
+                int inflated = inflater.inflate(values, total, length - total);
+                if (inflated == 0 && inflater.needsInput())
+                {
+                    break;
+                }
+                total += inflated;
+            }
+            if (total != length)
+            {
+                throw new IOException("Truncated column");
+            }
+        } catch (DataFormatException e)
+        {
+            throw new IOException(String.format("Corrupt column - %s", e.getMessage()), e);
+        }
+        rowGroup.position(rowGroup.position() + compressedLength);
+        return ByteBuffer.wrap(values);
+    }
+
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        inflater.end();
+        channel.close();
+    }
+}
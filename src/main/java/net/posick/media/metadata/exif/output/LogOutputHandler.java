@@ -0,0 +1,754 @@
+package net.posick.media.metadata.exif.output;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import net.posick.media.metadata.Context;
+import net.posick.media.metadata.exif.MetadataRecord;
+import net.posick.media.metadata.exif.MetadataRecordCodec;
+import net.posick.media.metadata.exif.ValueCodec;
+import net.posick.media.metadata.exif.handlers.OutputHandler;
+
+/**
+ * The LogOutputHandler is an OutputHandler that appends the metadata of each file to a local append-only log, either
+ * as newline delimited JSON or in a compact binary form that can be replayed into another OutputHandler, see
+ * {@link #replay(Path, OutputHandler)}.
+ *
+ * The metadata is encoded by the calling thread and added to a lock-free queue, so output does not wait for the
+ * disk. A single writer thread drains the queue and appends the queued entries to the log in one gathering write,
+ * then forces the entries written to the disk, so that the cost of each force is shared by all of the entries
+ * queued while the previous batch was written (group commit). Output only blocks when the queue holds more than the
+ * maximum number of bytes, i.e., when the disk can not keep up. Writes are acknowledged once their batch has been
+ * forced to the disk.
+ *
+ * The datastore URI is the log file, which is appended to if it exists. The format of the log is specified by the
+ * log format, or otherwise by the extension of the log file, ".jsonl" and ".json" files are written as JSON.
+ *
+ * A binary log starts with the magic number 0x4D4D4C47 ("MMLG") and the format version as 32 bit integers. Each
+ * entry is its length as a 32 bit integer, its kind and its content. The content of a metadata entry is a record
+ * encoded by the {@link MetadataRecordCodec}, the content of an alias entry is the key and the canonical key, each
+ * as their UTF-8 length as a 16 bit integer followed by their bytes.
+ *
+ * @author posicks
+ */
+public class LogOutputHandler extends OutputHandler<MetadataRecord>
+{
+    public static final String FORMAT_JSON = "jsonl";
+
+    public static final String FORMAT_BINARY = "binary";
+
+    private static final int MAGIC = 0x4D4D4C47;
+
+    private static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 8;
+
+    private static final byte ENTRY_METADATA = 0;
+
+    private static final byte ENTRY_ALIAS = 1;
+
+    private static final int MAX_QUEUED_BYTES = 64 * 1024 * 1024;
+
+    private static final int MAX_BATCH_ENTRIES = 1024;
+
+    private static final long MAX_BATCH_BYTES = 8 * 1024 * 1024;
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+
+    /**
+     * The encoders of a single thread.
+     *
+     * @author posicks
+     */
+    private static class Encoder
+    {
+        private MetadataRecordCodec recordCodec = new MetadataRecordCodec();
+
+        private ValueCodec valueCodec = new ValueCodec();
+
+        private StringBuilder json = new StringBuilder(4096);
+    }
+
+
+    /**
+     * An entry waiting to be written, and the acknowledgement of its write if it was requested.
+     *
+     * @author posicks
+     */
+    private static class QueuedEntry
+    {
+        final ByteBuffer entry;
+
+        final CompletableFuture<Void> written;
+
+
+        QueuedEntry(ByteBuffer entry, CompletableFuture<Void> written)
+        {
+            this.entry = entry;
+            this.written = written;
+        }
+    }
+
+
+    private Path file;
+
+    private boolean json;
+
+    private FileChannel channel;
+
+    private Queue<QueuedEntry> queue = new ConcurrentLinkedQueue<>();
+
+    private Semaphore queueCapacity = new Semaphore(MAX_QUEUED_BYTES);
+
+    private Thread writer;
+
+    private volatile boolean writerParked = false;
+
+    private volatile boolean closed = false;
+
+    private volatile IOException writeError;
+
+    private long entriesWritten = 0;
+
+    private ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>()
+    {
+        @Override
+        protected Encoder initialValue()
+        {
+            return new Encoder();
+        }
+    };
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.AbstractHandler
+     */
+    public LogOutputHandler(Context ctx)
+    throws IOException
+    {
+        super(ctx);
+        String uri = ctx.get(Context.DATASTORE_URI);
+        this.file = uri.startsWith("file:") ? Paths.get(URI.create(uri)) : Paths.get(uri);
+        String format = ctx.get(Context.OUTPUT_LOG_FORMAT);
+        if (format == null)
+        {
+            String name = file.getFileName().toString().toLowerCase();
+            format = name.endsWith(".jsonl") || name.endsWith(".json") ? FORMAT_JSON : FORMAT_BINARY;
+        } else if (!isValidFormat(format))
+        {
+            throw new IllegalArgumentException(String.format("Invalid log format \"%s\"", format));
+        }
+        this.json = FORMAT_JSON.equals(format);
+
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null)
+        {
+            Files.createDirectories(parent);
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (!json)
+        {
+            if (channel.size() == 0)
+            {
+                writeHeader(channel);
+            } else
+            {
+                checkHeader(file);
+            }
+        }
+
+        this.writer = new Thread(this::writeLoop, "log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+
+    /**
+     * @param format The log format
+     * @return true if the format is a valid log format
+     */
+    public static boolean isValidFormat(String format)
+    {
+        return FORMAT_JSON.equals(format) || FORMAT_BINARY.equals(format);
+    }
+
+
+    /**
+     * Writes the header of a binary log.
+     *
+     * @param channel The empty log
+     * @throws IOException
+     */
+    static void writeHeader(FileChannel channel)
+    throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        while (header.hasRemaining())
+        {
+            channel.write(header);
+        }
+    }
+
+
+    /**
+     * @param file A binary log
+     * @throws IOException if the file is not a binary log of a supported version
+     */
+    static void checkHeader(Path file)
+    throws IOException
+    {
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining())
+            {
+                if (in.read(header) < 0)
+                {
+                    break;
+                }
+            }
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+            {
+                throw new IOException(String.format("\"%s\" is not a binary metadata log", file));
+            }
+            int version = header.getInt();
+            if (version != VERSION)
+            {
+                throw new IOException(String.format("Unsupported binary metadata log version %d in \"%s\"", version, file));
+            }
+        }
+    }
+
+
+    @Override
+    public void output(String key, MetadataRecord data)
+    throws IOException
+    {
+        enqueue(encode(key, data), null);
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#write(java.lang.String, java.lang.Object)
+     */
+    @Override
+    public CompletableFuture<Void> write(String key, MetadataRecord data)
+    {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        try
+        {
+            enqueue(encode(key, data), written);
+        } catch (IOException | RuntimeException e)
+        {
+            written.completeExceptionally(e);
+        }
+        return written;
+    }
+
+
+    private ByteBuffer encode(String key, MetadataRecord data)
+    {
+        Encoder encoder = encoders.get();
+        if (json)
+        {
+            return encodeJson(encoder, key, data);
+        }
+        return metadataEntry(encoder.recordCodec.encode(key, data));
+    }
+
+
+    /**
+     * @param record The record encoded by a {@link MetadataRecordCodec}
+     * @return The binary log entry of the record
+     */
+    static ByteBuffer metadataEntry(ByteBuffer record)
+    {
+        ByteBuffer entry = ByteBuffer.allocate(5 + record.remaining());
+        entry.putInt(1 + record.remaining()).put(ENTRY_METADATA).put(record).flip();
+        return entry;
+    }
+
+
+    /**
+     * @param key The unique key for the copy
+     * @param canonicalKey The unique key for the file whose metadata was sent to the output
+     * @return The binary log entry of the alias
+     */
+    static ByteBuffer aliasEntry(String key, String canonicalKey)
+    {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] canonicalBytes = canonicalKey.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 2 + keyBytes.length + 2 + canonicalBytes.length;
+        ByteBuffer entry = ByteBuffer.allocate(4 + length);
+        entry.putInt(length).put(ENTRY_ALIAS);
+        entry.putShort((short) keyBytes.length).put(keyBytes);
+        entry.putShort((short) canonicalBytes.length).put(canonicalBytes).flip();
+        return entry;
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#outputAlias(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void outputAlias(String key, String canonicalKey)
+    throws IOException
+    {
+        enqueue(encodeAlias(key, canonicalKey), null);
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#writeAlias(java.lang.String, java.lang.String)
+     */
+    @Override
+    public CompletableFuture<Void> writeAlias(String key, String canonicalKey)
+    {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        try
+        {
+            enqueue(encodeAlias(key, canonicalKey), written);
+        } catch (IOException | RuntimeException e)
+        {
+            written.completeExceptionally(e);
+        }
+        return written;
+    }
+
+
+    private ByteBuffer encodeAlias(String key, String canonicalKey)
+    {
+        if (json)
+        {
+            StringBuilder builder = encoders.get().json;
+            builder.setLength(0);
+            builder.append("{\"key\":");
+            appendString(builder, key);
+            builder.append(",\"alias\":");
+            appendString(builder, canonicalKey);
+            builder.append("}\n");
+            return ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return aliasEntry(key, canonicalKey);
+    }
+
+
+    /**
+     * Adds the entry to the queue of the writer, blocking only while the queue is full.
+     *
+     * @param entry The encoded entry
+     * @param written The acknowledgement completed once the entry has been written, or null
+     * @throws IOException if the log could not be written
+     */
+    private void enqueue(ByteBuffer entry, CompletableFuture<Void> written)
+    throws IOException
+    {
+        if (writeError != null)
+        {
+            throw new IOException(String.format("Unable to write to log \"%s\" - %s", file, writeError.getMessage()), writeError);
+        }
+        if (closed)
+        {
+            throw new IOException(String.format("Log \"%s\" is closed", file));
+        }
+
+        try
+        {
+            queueCapacity.acquire(permits(entry));
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to write to log \"" + file + "\"");
+        }
+
+        queue.offer(new QueuedEntry(entry, written));
+        if (writerParked)
+        {
+            LockSupport.unpark(writer);
+        }
+    }
+
+
+    private static int permits(ByteBuffer entry)
+    {
+        return Math.min(entry.remaining(), MAX_QUEUED_BYTES);
+    }
+
+
+    /**
+     * Drains the queue, writing the queued entries to the log with a single gathering write and forcing them to the
+     * disk once per batch.
+     */
+    private void writeLoop()
+    {
+        ByteBuffer[] batch = new ByteBuffer[MAX_BATCH_ENTRIES];
+        int[] batchPermits = new int[MAX_BATCH_ENTRIES];
+        List<CompletableFuture<Void>> acknowledgements = new ArrayList<>();
+        while (true)
+        {
+            int count = 0;
+            long bytes = 0;
+            QueuedEntry queued;
+            while (count < MAX_BATCH_ENTRIES && bytes < MAX_BATCH_BYTES && (queued = queue.poll()) != null)
+            {
+                batchPermits[count] = permits(queued.entry);
+                batch[count++ ] = queued.entry;
+                bytes += queued.entry.remaining();
+                if (queued.written != null)
+                {
+                    acknowledgements.add(queued.written);
+                }
+            }
+
+            if (count == 0)
+            {
+                if (closed && queue.isEmpty())
+                {
+                    break;
+                }
+                writerParked = true;
+                if (queue.isEmpty() && !closed)
+                {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                writerParked = false;
+                continue;
+            }
+
+            if (writeError == null)
+            {
+                try
+                {
+                    int offset = 0;
+                    while (offset < count)
+                    {
+                        channel.write(batch, offset, count - offset);
+                        while (offset < count && !batch[offset].hasRemaining())
+                        {
+                            offset++ ;
+                        }
+                    }
+                    channel.force(false);
+                    entriesWritten += count;
+                } catch (IOException e)
+                {
+                    writeError = e;
+                    logger.log(Level.SEVERE, String.format("Error writing to log \"%s\" - %s: %s", file, e.getClass().getSimpleName(), e.getMessage()), e);
+                }
+            }
+
+            // Entries are discarded once the log can not be written, so that output does not block indefinitely
+            for (int index = 0; index < count; index++ )
+            {
+                queueCapacity.release(batchPermits[index]);
+            }
+            Arrays.fill(batch, 0, count, null);
+            for (CompletableFuture<Void> written : acknowledgements)
+            {
+                if (writeError == null)
+                {
+                    written.complete(null);
+                } else
+                {
+                    written.completeExceptionally(writeError);
+                }
+            }
+            acknowledgements.clear();
+        }
+    }
+
+
+    /**
+     * Encodes the metadata as a single line of JSON.
+     */
+    private static ByteBuffer encodeJson(Encoder encoder, String key, MetadataRecord data)
+    {
+        StringBuilder builder = encoder.json;
+        if (builder.capacity() > 1024 * 1024)
+        {
+            // Do not retain the builder of an unusually large record
+            encoder.json = builder = new StringBuilder(4096);
+        }
+        builder.setLength(0);
+        builder.append("{\"key\":");
+        appendString(builder, key);
+        builder.append(",\"directories\":[");
+        for (int directory = 0; directory < data.getDirectoryCount(); directory++ )
+        {
+            if (directory > 0)
+            {
+                builder.append(',');
+            }
+            builder.append("{\"directory\":");
+            appendString(builder, data.getDirectoryName(directory));
+            builder.append(",\"tags\":[");
+            int start = data.getTagStart(directory);
+            int end = data.getTagEnd(directory);
+            for (int index = start; index < end; index++ )
+            {
+                if (index > start)
+                {
+                    builder.append(',');
+                }
+                builder.append("{\"tag\":").append(data.getTagId(index));
+                builder.append(",\"name\":");
+                appendString(builder, data.getTagName(index));
+                appendValue(builder, encoder.valueCodec, data, index);
+                builder.append(",\"description\":");
+                appendString(builder, data.getDescription(index));
+                builder.append('}');
+            }
+            builder.append("]}");
+        }
+        builder.append("]}\n");
+        return ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private static void appendValue(StringBuilder builder, ValueCodec codec, MetadataRecord data, int index)
+    {
+        byte type = codec.encode(data, index);
+        builder.append(",\"type\":").append(type).append(",\"value\":");
+        switch (type)
+        {
+            case MetadataRecord.TYPE_INT:
+            case MetadataRecord.TYPE_LONG:
+                builder.append(data.getLong(index));
+                break;
+            case MetadataRecord.TYPE_BOOLEAN:
+                builder.append(data.getLong(index) != 0);
+                break;
+            case MetadataRecord.TYPE_DOUBLE:
+                double value = data.getDouble(index);
+                if (Double.isNaN(value) || Double.isInfinite(value))
+                {
+                    // Not representable as a JSON number
+                    appendString(builder, Double.toString(value));
+                } else
+                {
+                    builder.append(value);
+                }
+                break;
+            default:
+                ByteBuffer binary = codec.getBinary();
+                if (binary != null)
+                {
+                    // Binary values are written as Base64 of the ValueCodec binary form
+                    ByteBuffer encoded = Base64.getEncoder().encode(binary.duplicate());
+                    builder.append('"').append(new String(encoded.array(), 0, encoded.limit(), StandardCharsets.ISO_8859_1)).append('"');
+                } else
+                {
+                    appendString(builder, codec.getText());
+                }
+                break;
+        }
+    }
+
+
+    private static void appendString(StringBuilder builder, String value)
+    {
+        if (value == null)
+        {
+            builder.append("null");
+            return;
+        }
+
+        builder.append('"');
+        for (int index = 0; index < value.length(); index++ )
+        {
+            char c = value.charAt(index);
+            switch (c)
+            {
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                    {
+                        builder.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0x0F]);
+                    } else
+                    {
+                        builder.append(c);
+                    }
+                    break;
+            }
+        }
+        builder.append('"');
+    }
+
+
+    /**
+     * Replays a binary log into an OutputHandler, sending each entry of the log to the OutputHandler in the order the
+     * entries were written.
+     *
+     * @param file The binary log
+     * @param outputHandler The OutputHandler
+     * @return The number of entries replayed
+     * @throws IOException
+     */
+    public static long replay(Path file, OutputHandler<MetadataRecord> outputHandler)
+    throws IOException
+    {
+        checkHeader(file);
+        long entries = 0;
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            in.position(HEADER_SIZE);
+            ByteBuffer length = ByteBuffer.allocate(4);
+            while (readFully(in, length))
+            {
+                length.flip();
+                ByteBuffer entry = ByteBuffer.allocate(length.getInt());
+                length.clear();
+                if (!readFully(in, entry))
+                {
+                    throw new IOException(String.format("Truncated entry at the end of \"%s\"", file));
+                }
+                entry.flip();
+                replayEntry(entry, outputHandler);
+                entries++ ;
+            }
+        }
+        return entries;
+    }
+
+
+    /**
+     * Writes an entry of a binary log to an OutputHandler, see {@link OutputHandler#write(String, Object)}.
+     *
+     * @param entry The kind and content of the entry, without its length
+     * @param outputHandler The OutputHandler
+     * @return A CompletableFuture completed once the OutputHandler has written the entry
+     */
+    static CompletableFuture<Void> writeEntry(ByteBuffer entry, OutputHandler<MetadataRecord> outputHandler)
+    {
+        if (entry.get() == ENTRY_ALIAS)
+        {
+            byte[] key = new byte[entry.getShort() & 0xFFFF];
+            entry.get(key);
+            byte[] canonicalKey = new byte[entry.getShort() & 0xFFFF];
+            entry.get(canonicalKey);
+            return outputHandler.writeAlias(new String(key, StandardCharsets.UTF_8), new String(canonicalKey, StandardCharsets.UTF_8));
+        }
+
+        MetadataRecordCodec.Decoded decoded;
+        try
+        {
+            decoded = MetadataRecordCodec.decode(entry);
+        } catch (IOException e)
+        {
+            return failedFuture(e);
+        }
+        return outputHandler.write(decoded.getKey(), decoded.getRecord());
+    }
+
+
+    /**
+     * Sends an entry of a binary log to an OutputHandler.
+     *
+     * @param entry The kind and content of the entry, without its length
+     * @param outputHandler The OutputHandler
+     * @throws IOException
+     */
+    static void replayEntry(ByteBuffer entry, OutputHandler<MetadataRecord> outputHandler)
+    throws IOException
+    {
+        if (entry.get() == ENTRY_ALIAS)
+        {
+            byte[] key = new byte[entry.getShort() & 0xFFFF];
+            entry.get(key);
+            byte[] canonicalKey = new byte[entry.getShort() & 0xFFFF];
+            entry.get(canonicalKey);
+            outputHandler.outputAlias(new String(key, StandardCharsets.UTF_8), new String(canonicalKey, StandardCharsets.UTF_8));
+        } else
+        {
+            MetadataRecordCodec.Decoded decoded = MetadataRecordCodec.decode(entry);
+            outputHandler.output(decoded.getKey(), decoded.getRecord());
+        }
+    }
+
+
+    /**
+     * @return false if the end of the file was reached before any bytes were read
+     */
+    private static boolean readFully(FileChannel in, ByteBuffer buffer)
+    throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (in.read(buffer) < 0)
+            {
+                if (buffer.position() == 0)
+                {
+                    return false;
+                }
+                throw new IOException("Unexpected end of log");
+            }
+        }
+        return true;
+    }
+
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        closed = true;
+        LockSupport.unpark(writer);
+        try
+        {
+            writer.join();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        } finally
+        {
+            channel.close();
+        }
+
+        if (logger.isLoggable(Level.FINE))
+        {
+            logger.logp(Level.FINE, LOG_CLASS_NAME, "close", String.format("Wrote %d entries to log \"%s\"", entriesWritten, file));
+        }
+        if (writeError != null)
+        {
+            throw writeError;
+        }
+    }
+}
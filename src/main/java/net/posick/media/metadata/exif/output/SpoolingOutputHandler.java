@@ -0,0 +1,684 @@
+package net.posick.media.metadata.exif.output;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+
+import net.posick.media.metadata.Context;
+import net.posick.media.metadata.exif.MetadataRecord;
+import net.posick.media.metadata.exif.MetadataRecordCodec;
+import net.posick.media.metadata.exif.handlers.OutputHandler;
+
+/**
+ * The SpoolingOutputHandler is an OutputHandler that writes the metadata behind another OutputHandler, usually the
+ * {@link CSQLOutputHandler}, through a durable local spool, so that files are parsed at full speed while the
+ * datastore is slow or unavailable, and the metadata of files already parsed is not lost when the process exits.
+ *
+ * Output appends the metadata to the current segment of the spool directory and returns. Segments are binary logs in
+ * the format of the {@link LogOutputHandler}, named by their sequence number, and are rolled over once they reach the
+ * segment size. A drainer thread replays the segments in order into the wrapped OutputHandler at the pace it
+ * acknowledges them, rewinding to the failed entry and retrying with an exponential backoff while it fails. An entry
+ * is only drained once the wrapped OutputHandler has acknowledged its write, see
+ * {@link OutputHandler#write(String, Object)}. Segments whose entries have all been drained are deleted, and the
+ * position drained is saved to the "drained" file of the spool directory each second, so that a restarted process
+ * resumes draining the segments left by the previous process. Entries past the saved position may be written again,
+ * which is safe as writes to the datastore are idempotent.
+ *
+ * Segments are written to the file system cache, so they survive the process exiting or being killed, and are forced
+ * to the disk when they are rolled over and on close.
+ *
+ * On close the drainer is given until the spool is drained, or until it has not drained an entry for 60 seconds, in
+ * which case the remaining entries are left in the spool for the next run.
+ *
+ * @author posicks
+ */
+public class SpoolingOutputHandler extends OutputHandler<MetadataRecord>
+{
+    private static final String SEGMENT_PREFIX = "spool-";
+
+    private static final String SEGMENT_EXTENSION = ".log";
+
+    private static final String POSITION_FILE = "drained";
+
+    private static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final long SAVE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final long INITIAL_BACKOFF_MILLIS = 100;
+
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 60;
+
+    private static final int MAX_IN_FLIGHT = 1024;
+
+    private static final long ACK_WAIT_MILLIS = 100;
+
+
+    /**
+     * An entry written to the wrapped OutputHandler that has not been acknowledged, or the end of a segment that has
+     * been read.
+     *
+     * @author posicks
+     */
+    private static class Delivery
+    {
+        final long segment;
+
+        // The offset of the entry, or -1 for the end of the segment
+        final long offset;
+
+        final long end;
+
+        final CompletableFuture<Void> written;
+
+
+        Delivery(long segment, long offset, long end, CompletableFuture<Void> written)
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.end = end;
+            this.written = written;
+        }
+    }
+
+
+    private final Object lock = new Object();
+
+    private OutputHandler<MetadataRecord> outputHandler;
+
+    private Path directory;
+
+    private long segmentSize;
+
+    // The sequence numbers of the segments that have not been drained, the last is being written, guarded by lock
+    private ArrayDeque<Long> segments = new ArrayDeque<>();
+
+    private FileChannel channel;
+
+    private long sequence;
+
+    private long written;
+
+    private boolean closed = false;
+
+    private volatile boolean stopping = false;
+
+    private long spooled = 0;
+
+    private volatile long drained = 0;
+
+    private long savedSequence = -1;
+
+    private long savedOffset = 0;
+
+    private Thread drainer;
+
+    private ThreadLocal<MetadataRecordCodec> recordCodecs = new ThreadLocal<MetadataRecordCodec>()
+    {
+        @Override
+        protected MetadataRecordCodec initialValue()
+        {
+            return new MetadataRecordCodec();
+        }
+    };
+
+
+    /**
+     * @param ctx The application Context
+     * @param outputHandler The OutputHandler the spool is drained into
+     * @throws IOException if the spool directory can not be opened
+     */
+    public SpoolingOutputHandler(Context ctx, OutputHandler<MetadataRecord> outputHandler)
+    throws IOException
+    {
+        super(ctx);
+        this.outputHandler = outputHandler;
+        String uri = ctx.get(Context.SPOOL_DIRECTORY);
+        this.directory = uri.startsWith("file:") ? Paths.get(URI.create(uri)) : Paths.get(uri);
+        this.segmentSize = ((Number) ctx.get(Context.SPOOL_SEGMENT_SIZE, DEFAULT_SEGMENT_SIZE)).longValue();
+        Files.createDirectories(directory);
+
+        // Segments left by an earlier process are drained first
+        List<Long> existing = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_EXTENSION))
+        {
+            for (Path file : stream)
+            {
+                String name = file.getFileName().toString();
+                try
+                {
+                    existing.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length())));
+                } catch (NumberFormatException e)
+                {
+                    logger.log(Level.WARNING, String.format("Ignoring \"%s\" in spool directory \"%s\"", name, directory));
+                }
+            }
+        }
+        Collections.sort(existing);
+        segments.addAll(existing);
+        readPosition();
+        if (!existing.isEmpty() && logger.isLoggable(Level.INFO))
+        {
+            logger.logp(Level.INFO, LOG_CLASS_NAME, "<init>", String.format("Draining %d segment(s) left in spool \"%s\"", existing.size(), directory));
+        }
+
+        openSegment(existing.isEmpty() ? 0 : existing.get(existing.size() - 1) + 1);
+
+        this.drainer = new Thread(this::drainLoop, "spool-drainer");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+
+    private Path segmentPath(long sequence)
+    {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, sequence, SEGMENT_EXTENSION));
+    }
+
+
+    /**
+     * Creates a new segment and makes it the segment being written. Called with the lock held.
+     */
+    private void openSegment(long sequence)
+    throws IOException
+    {
+        FileChannel channel = FileChannel.open(segmentPath(sequence), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        LogOutputHandler.writeHeader(channel);
+        this.channel = channel;
+        this.sequence = sequence;
+        this.written = LogOutputHandler.HEADER_SIZE;
+        segments.addLast(sequence);
+    }
+
+
+    @Override
+    public void output(String key, MetadataRecord data)
+    throws IOException
+    {
+        append(LogOutputHandler.metadataEntry(recordCodecs.get().encode(key, data)));
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#outputAlias(java.lang.String, java.lang.String)
+     */
+    @Override
+    public void outputAlias(String key, String canonicalKey)
+    throws IOException
+    {
+        append(LogOutputHandler.aliasEntry(key, canonicalKey));
+    }
+
+
+    /* (non-Javadoc)
+     * @see net.posick.media.metadata.exif.handlers.OutputHandler#supportsStreaming()
+     */
+    @Override
+    public boolean supportsStreaming()
+    {
+        // The entries are replayed into the wrapped OutputHandler as they were output
+        return outputHandler.supportsStreaming();
+    }
+
+
+    /**
+     * Appends the entry to the segment being written, rolling the segment over once it reaches the segment size.
+     *
+     * @param entry The encoded entry
+     * @throws IOException
+     */
+    private void append(ByteBuffer entry)
+    throws IOException
+    {
+        synchronized (lock)
+        {
+            if (closed)
+            {
+                throw new IOException(String.format("Spool \"%s\" is closed", directory));
+            }
+            if (written >= segmentSize)
+            {
+                channel.force(false);
+                channel.close();
+                openSegment(sequence + 1);
+            }
+
+            int length = entry.remaining();
+            while (entry.hasRemaining())
+            {
+                channel.write(entry);
+            }
+            // The drainer reads up to the entries written completely
+            written += length;
+            spooled++ ;
+            lock.notifyAll();
+        }
+    }
+
+
+    /**
+     * Replays the segments into the wrapped OutputHandler in order, waiting for entries to be appended once it has
+     * caught up with the segment being written. Up to {@link #MAX_IN_FLIGHT} entries are written without waiting for
+     * their acknowledgement, the drained position only advances over the entries acknowledged in order, and a segment
+     * is only deleted once all of its entries have been acknowledged. When a write fails the drainer waits for the
+     * backoff and rewinds to the failed entry, writing it and the entries after it again.
+     */
+    private void drainLoop()
+    {
+        ArrayDeque<Delivery> window = new ArrayDeque<>();
+        FileChannel in = null;
+        long inSequence = -1;
+        long offset = 0;
+        long ackedSequence = -1;
+        long ackedOffset = 0;
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        long lastSave = System.nanoTime();
+        long lastFlush = System.nanoTime();
+        try
+        {
+            while (true)
+            {
+                // Advance the drained position over the entries acknowledged in order
+                Delivery head;
+                while ((head = window.peekFirst()) != null && head.written.isDone() && !head.written.isCompletedExceptionally())
+                {
+                    window.removeFirst();
+                    if (head.offset < 0)
+                    {
+                        // Every entry of the segment has been acknowledged
+                        Files.deleteIfExists(segmentPath(head.segment));
+                        synchronized (lock)
+                        {
+                            segments.remove(head.segment);
+                        }
+                    } else
+                    {
+                        drained++ ;
+                    }
+                    ackedSequence = head.segment;
+                    ackedOffset = head.end;
+                    backoff = INITIAL_BACKOFF_MILLIS;
+                }
+
+                if (head != null && head.written.isCompletedExceptionally())
+                {
+                    if (stopping)
+                    {
+                        return;
+                    }
+                    Throwable error = getFailure(head.written);
+                    logger.log(Level.WARNING, String.format("Error draining spool \"%s\", retrying in %d ms - %s: %s", directory, backoff, error.getClass().getSimpleName(), error.getMessage()));
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+
+                    // The entries after the failed entry are written again, writes are idempotent
+                    window.clear();
+                    if (in == null || inSequence != head.segment)
+                    {
+                        if (in != null)
+                        {
+                            in.close();
+                        }
+                        in = FileChannel.open(segmentPath(head.segment), StandardOpenOption.READ);
+                        inSequence = head.segment;
+                    }
+                    offset = head.offset;
+                    continue;
+                }
+
+                if (ackedSequence >= 0 && System.nanoTime() - lastSave >= SAVE_INTERVAL_NANOS)
+                {
+                    savePosition(ackedSequence, ackedOffset);
+                    lastSave = System.nanoTime();
+                }
+
+                if (window.size() >= MAX_IN_FLIGHT)
+                {
+                    lastFlush = flush(lastFlush, true);
+                    awaitAcknowledgement(window.peekFirst());
+                    continue;
+                }
+
+                long segment;
+                long limit = 0;
+                boolean sealed = false;
+                synchronized (lock)
+                {
+                    if (stopping)
+                    {
+                        return;
+                    }
+                    segment = in != null ? inSequence : nextSegment(inSequence);
+                    if (segment >= 0)
+                    {
+                        sealed = segment != sequence || closed;
+                        limit = sealed ? Long.MAX_VALUE : written;
+                    }
+                    if (segment < 0 || (segment == inSequence && offset >= limit))
+                    {
+                        // Caught up with the segment being written
+                        if (window.isEmpty())
+                        {
+                            if (segments.isEmpty())
+                            {
+                                return;
+                            }
+                            lock.wait();
+                            continue;
+                        }
+                        segment = -1;
+                    }
+                }
+
+                if (segment < 0)
+                {
+                    // Wait for the entries in flight to be acknowledged, the wrapped OutputHandler may buffer them
+                    lastFlush = flush(lastFlush, false);
+                    awaitAcknowledgement(window.peekFirst());
+                    continue;
+                }
+
+                if (in == null)
+                {
+                    Path file = segmentPath(segment);
+                    LogOutputHandler.checkHeader(file);
+                    in = FileChannel.open(file, StandardOpenOption.READ);
+                    inSequence = segment;
+                    offset = segment == savedSequence ? Math.max(savedOffset, LogOutputHandler.HEADER_SIZE) : LogOutputHandler.HEADER_SIZE;
+                }
+
+                ByteBuffer entry = readEntry(in, inSequence, offset, sealed ? in.size() : limit);
+                if (entry == null)
+                {
+                    if (sealed)
+                    {
+                        // The segment has been read, it is deleted once its entries have been acknowledged
+                        in.close();
+                        in = null;
+                        window.addLast(new Delivery(inSequence, -1, offset, CompletableFuture.<Void>completedFuture(null)));
+                    }
+                    continue;
+                }
+
+                int length = entry.remaining();
+                CompletableFuture<Void> delivered;
+                try
+                {
+                    delivered = LogOutputHandler.writeEntry(entry, outputHandler);
+                } catch (RuntimeException e)
+                {
+                    delivered = failedFuture(e);
+                }
+                window.addLast(new Delivery(inSequence, offset, offset + 4 + length, delivered));
+                offset += 4 + length;
+            }
+        } catch (InterruptedException e)
+        {
+            // Closing
+        } catch (IOException e)
+        {
+            logger.log(Level.SEVERE, String.format("Error reading spool \"%s\" - %s: %s", directory, e.getClass().getSimpleName(), e.getMessage()), e);
+        } finally
+        {
+            try
+            {
+                if (in != null)
+                {
+                    in.close();
+                }
+                if (ackedSequence >= 0)
+                {
+                    savePosition(ackedSequence, ackedOffset);
+                }
+            } catch (IOException e)
+            {
+                logger.log(Level.WARNING, String.format("Error saving the position of spool \"%s\" - %s: %s", directory, e.getClass().getSimpleName(), e.getMessage()), e);
+            }
+        }
+    }
+
+
+    /**
+     * @param after The sequence number of the last segment read, or -1
+     * @return The sequence number of the next segment to read, or -1 if all segments have been read. Called with the
+     *         lock held.
+     */
+    private long nextSegment(long after)
+    {
+        for (long segment : segments)
+        {
+            if (segment > after)
+            {
+                return segment;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Flushes the wrapped OutputHandler so that the entries in flight are acknowledged, at most once per second unless
+     * forced, as OutputHandlers that buffer the entries write them in smaller batches when flushed.
+     *
+     * @param lastFlush The time of the last flush
+     * @param force true to flush regardless of the time of the last flush
+     * @return The time of the last flush
+     */
+    private long flush(long lastFlush, boolean force)
+    {
+        long now = System.nanoTime();
+        if (!force && now - lastFlush < SAVE_INTERVAL_NANOS)
+        {
+            return lastFlush;
+        }
+        try
+        {
+            outputHandler.flush();
+        } catch (IOException e)
+        {
+            // The writes of the entries buffered are failed and written again
+            logger.log(Level.WARNING, String.format("Error flushing the output of spool \"%s\" - %s: %s", directory, e.getClass().getSimpleName(), e.getMessage()));
+        }
+        return now;
+    }
+
+
+    /**
+     * Waits for the entry to be acknowledged, for at most {@link #ACK_WAIT_MILLIS} so that entries appended and the
+     * flushing of the wrapped OutputHandler are not delayed.
+     */
+    private static void awaitAcknowledgement(Delivery delivery)
+    throws InterruptedException
+    {
+        try
+        {
+            delivery.written.get(ACK_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException e)
+        {
+            // Failures are handled by the drain loop
+        }
+    }
+
+
+    private static Throwable getFailure(CompletableFuture<Void> written)
+    {
+        try
+        {
+            written.join();
+        } catch (CompletionException | CancellationException e)
+        {
+            return unwrap(e);
+        }
+        return new IllegalStateException("The write did not fail");
+    }
+
+
+    /**
+     * Reads the entry at the offset of the segment.
+     *
+     * @return The kind and content of the entry, or null if there is no complete entry before the limit
+     */
+    private ByteBuffer readEntry(FileChannel in, long segment, long offset, long limit)
+    throws IOException
+    {
+        if (offset + 4 > limit)
+        {
+            return null;
+        }
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(in, length, offset);
+        length.flip();
+        int size = length.getInt();
+        if (size < 1 || offset + 4 + size > limit)
+        {
+            // Only the last segment of a process that was killed while writing may end with a partial entry
+            logger.log(Level.WARNING, String.format("Discarding the partial entry at the end of \"%s\"", segmentPath(segment)));
+            return null;
+        }
+        ByteBuffer entry = ByteBuffer.allocate(size);
+        readFully(in, entry, offset + 4);
+        entry.flip();
+        return entry;
+    }
+
+
+    private static void readFully(FileChannel in, ByteBuffer buffer, long position)
+    throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (in.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new IOException("Unexpected end of spool segment");
+            }
+        }
+    }
+
+
+    private void readPosition()
+    throws IOException
+    {
+        Path file = directory.resolve(POSITION_FILE);
+        if (Files.exists(file))
+        {
+            String[] position = new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim().split("\\s+");
+            try
+            {
+                savedSequence = Long.parseLong(position[0]);
+                savedOffset = Long.parseLong(position[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+            {
+                logger.log(Level.WARNING, String.format("Ignoring invalid spool position file \"%s\"", file));
+            }
+        }
+    }
+
+
+    private void savePosition(long segment, long offset)
+    throws IOException
+    {
+        Path file = directory.resolve(POSITION_FILE);
+        Path temp = Files.createTempFile(directory, POSITION_FILE, ".tmp");
+        try
+        {
+            Files.write(temp, String.format("%d %d\n", segment, offset).getBytes(StandardCharsets.UTF_8));
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE))
+            {
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e)
+        {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+
+    @Override
+    public void close()
+    throws IOException
+    {
+        long total;
+        synchronized (lock)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            total = spooled;
+            try
+            {
+                channel.force(false);
+            } finally
+            {
+                channel.close();
+                lock.notifyAll();
+            }
+        }
+
+        // Wait for the spool to be drained while the drainer is making progress
+        try
+        {
+            long last = drained;
+            long lastProgress = System.nanoTime();
+            while (drainer.isAlive())
+            {
+                drainer.join(1000);
+                if (drained != last)
+                {
+                    last = drained;
+                    lastProgress = System.nanoTime();
+                } else if (System.nanoTime() - lastProgress > TimeUnit.SECONDS.toNanos(CLOSE_TIMEOUT_SECONDS))
+                {
+                    stopping = true;
+                    drainer.interrupt();
+                    drainer.join();
+                }
+            }
+        } catch (InterruptedException e)
+        {
+            stopping = true;
+            drainer.interrupt();
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (lock)
+        {
+            if (segments.isEmpty())
+            {
+                Files.deleteIfExists(directory.resolve(POSITION_FILE));
+            } else
+            {
+                logger.log(Level.WARNING, String.format("%d segment(s) of spool \"%s\" were not drained and will be drained by the next run", segments.size(), directory));
+            }
+        }
+        if (logger.isLoggable(Level.FINE))
+        {
+            logger.logp(Level.FINE, LOG_CLASS_NAME, "close", String.format("Spooled %d entries and drained %d entries through \"%s\"", total, drained, directory));
+        }
+
+        outputHandler.close();
+    }
+}
@@ -0,0 +1,196 @@
+package net.posick.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The AdaptiveLimiter limits the number of requests in flight to a remote service, adapting the limit to the
+ * latency observed using additive increase, multiplicative decrease (AIMD), the congestion control used by TCP.
+ *
+ * While the latency of completed requests stays within a tolerance of the baseline latency, the lowest latency
+ * observed in the current sampling window, the limit grows by 1 for each limit requests completed. When the
+ * latency exceeds the tolerance the service is queueing requests, so the limit is reduced by a small factor, and
+ * when a request is dropped, e.g., times out or is rejected as overloaded, the limit is halved. The limit is
+ * reduced at most once for the requests in flight when it was last reduced, so that a burst of slow or dropped
+ * requests caused by the same congestion does not collapse the limit.
+ *
+ * {@link #acquire()} blocks the calling thread while the limit is reached, applying backpressure to the producer of
+ * the requests.
+ *
+ * @author posicks
+ */
+public class AdaptiveLimiter
+{
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    private static final long LATENCY_SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final double LATENCY_BACKOFF = 0.9;
+
+    private static final double DROP_BACKOFF = 0.5;
+
+    private static final int SAMPLE_WINDOW = 1000;
+
+    private final Object lock = new Object();
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private double limit;
+
+    private int inFlight = 0;
+
+    private long baselineLatency = Long.MAX_VALUE;
+
+    private long windowLatency = Long.MAX_VALUE;
+
+    private int windowSamples = 0;
+
+    private long lastDecrease = System.nanoTime();
+
+
+    /**
+     * @param initialLimit The initial number of requests allowed in flight
+     * @param minLimit The minimum number of requests allowed in flight
+     * @param maxLimit The maximum number of requests allowed in flight
+     */
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit)
+    {
+        if (minLimit < 1 || maxLimit < minLimit)
+        {
+            throw new IllegalArgumentException(String.format("Invalid limits %d to %d - the minimum must be greater than 0 and not greater than the maximum", minLimit, maxLimit));
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+    }
+
+
+    /**
+     * Acquires a permit to send a request, blocking while the limit is reached. The permit must be returned by
+     * calling {@link #onSuccess(long)}, {@link #onDropped(long)} or {@link #release()} once the request completes.
+     *
+     * @return The time the request started, to be passed to {@link #onSuccess(long)} or {@link #onDropped(long)}
+     * @throws InterruptedException
+     */
+    public long acquire()
+    throws InterruptedException
+    {
+        synchronized (lock)
+        {
+            while (inFlight >= (int) limit)
+            {
+                lock.wait();
+            }
+            inFlight++ ;
+        }
+        return System.nanoTime();
+    }
+
+
+    /**
+     * Returns the permit of a request that completed, adapting the limit to the latency of the request.
+     *
+     * @param start The time the request started, as returned by {@link #acquire()}
+     */
+    public void onSuccess(long start)
+    {
+        long now = System.nanoTime();
+        long latency = now - start;
+        synchronized (lock)
+        {
+            inFlight-- ;
+
+            if (latency < windowLatency)
+            {
+                windowLatency = latency;
+            }
+            if (++windowSamples >= SAMPLE_WINDOW)
+            {
+                // The baseline follows the latency of the service as it changes
+                baselineLatency = windowLatency;
+                windowLatency = Long.MAX_VALUE;
+                windowSamples = 0;
+            }
+            if (latency < baselineLatency)
+            {
+                baselineLatency = latency;
+            }
+
+            if (latency > baselineLatency * LATENCY_TOLERANCE + LATENCY_SLACK_NANOS)
+            {
+                decrease(start, now, LATENCY_BACKOFF);
+            } else if (limit < maxLimit)
+            {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            lock.notifyAll();
+        }
+    }
+
+
+    /**
+     * Returns the permit of a request that was dropped by the service, halving the limit.
+     *
+     * @param start The time the request started, as returned by {@link #acquire()}
+     */
+    public void onDropped(long start)
+    {
+        long now = System.nanoTime();
+        synchronized (lock)
+        {
+            inFlight-- ;
+            decrease(start, now, DROP_BACKOFF);
+            lock.notifyAll();
+        }
+    }
+
+
+    /**
+     * Returns the permit of a request whose outcome says nothing about the load of the service, e.g., a request
+     * that was rejected as invalid, without adapting the limit.
+     */
+    public void release()
+    {
+        synchronized (lock)
+        {
+            inFlight-- ;
+            lock.notifyAll();
+        }
+    }
+
+
+    private void decrease(long start, long now, double factor)
+    {
+        // Requests sent before the last decrease were sent at the higher limit, the decrease already accounts for them
+        if (start - lastDecrease > 0)
+        {
+            limit = Math.max(minLimit, limit * factor);
+            lastDecrease = now;
+        }
+    }
+
+
+    /**
+     * @return The number of requests currently allowed in flight
+     */
+    public int getLimit()
+    {
+        synchronized (lock)
+        {
+            return (int) limit;
+        }
+    }
+
+
+    /**
+     * @return The number of requests in flight
+     */
+    public int getInFlight()
+    {
+        synchronized (lock)
+        {
+            return inFlight;
+        }
+    }
+}
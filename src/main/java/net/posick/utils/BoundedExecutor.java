@@ -0,0 +1,139 @@
+package net.posick.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The BoundedExecutor limits the number of tasks that may be queued or executing within the wrapped
+ * ExecutorService. When the limit is reached {@link #execute(Runnable)} blocks the submitting thread
+ * until a task completes, applying backpressure to the producer of the tasks.
+ *
+ * Task completion is tracked with a {@link CompletionTracker} rather than by retaining a Future per task,
+ * so the memory used remains constant regardless of the number of tasks executed.
+ *
+ * @author posicks
+ */
+public class BoundedExecutor implements Executor
+{
+    private final ExecutorService executor;
+
+    private final Semaphore permits;
+
+    private final CompletionTracker tracker = new CompletionTracker();
+
+    private final int capacity;
+
+
+    /**
+     * @param executor The ExecutorService that executes the tasks
+     * @param capacity The maximum number of tasks queued or executing at any time
+     */
+    public BoundedExecutor(ExecutorService executor, int capacity)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("The capacity must be greater than 0");
+        }
+        this.executor = executor;
+        this.capacity = capacity;
+        this.permits = new Semaphore(capacity);
+    }
+
+
+    /**
+     * @return The maximum number of tasks queued or executing at any time
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+
+    /**
+     * @return The number of tasks queued or executing
+     */
+    public long getOutstanding()
+    {
+        return tracker.getOutstanding();
+    }
+
+
+    /**
+     * Executes the task, blocking until the number of tasks queued or executing is below the capacity.
+     *
+     * @param task The task to execute
+     * @throws RejectedExecutionException if the task cannot be executed or the thread is interrupted while waiting
+     */
+    @Override
+    public void execute(final Runnable task)
+    {
+        try
+        {
+            permits.acquire();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting to execute task", e);
+        }
+
+        tracker.register();
+        try
+        {
+            executor.execute(() ->
+            {
+                try
+                {
+                    task.run();
+                } finally
+                {
+                    permits.release();
+                    tracker.arrive();
+                }
+            });
+        } catch (RuntimeException e)
+        {
+            permits.release();
+            tracker.arrive();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Waits until all tasks executed have completed.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitCompletion()
+    throws InterruptedException
+    {
+        tracker.await();
+    }
+
+
+    /**
+     * Waits until all tasks executed have completed or the timeout elapses.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout argument
+     * @return true if all tasks completed, false if the timeout elapsed
+     * @throws InterruptedException
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit)
+    throws InterruptedException
+    {
+        return tracker.await(timeout, unit);
+    }
+
+
+    /**
+     * Shuts down the wrapped ExecutorService.
+     */
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+}
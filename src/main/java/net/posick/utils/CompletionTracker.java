@@ -0,0 +1,116 @@
+package net.posick.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CompletionTracker counts outstanding units of work and allows a thread to wait until all
+ * registered work has completed. Unlike the java.util.concurrent.Phaser the number of outstanding
+ * parties is not limited to 65535, and unlike retaining java.util.concurrent.Future instances no
+ * per task state is kept, so the memory used is constant regardless of the number of tasks tracked.
+ *
+ * A unit of work may register new units of work before arriving, e.g., a directory listing that
+ * discovers sub-directories, without the tracker completing prematurely.
+ *
+ * @author posicks
+ */
+public class CompletionTracker
+{
+    private final Object lock = new Object();
+
+    private long outstanding = 0;
+
+
+    public CompletionTracker()
+    {
+    }
+
+
+    /**
+     * Registers a new unit of work.
+     */
+    public void register()
+    {
+        synchronized (lock)
+        {
+            outstanding++ ;
+        }
+    }
+
+
+    /**
+     * Marks a previously registered unit of work as complete.
+     */
+    public void arrive()
+    {
+        synchronized (lock)
+        {
+            if (outstanding > 0)
+            {
+                outstanding-- ;
+            }
+
+            if (outstanding == 0)
+            {
+                lock.notifyAll();
+            }
+        }
+    }
+
+
+    /**
+     * @return The number of registered units of work that have not completed
+     */
+    public long getOutstanding()
+    {
+        synchronized (lock)
+        {
+            return outstanding;
+        }
+    }
+
+
+    /**
+     * Waits until all registered units of work have completed.
+     *
+     * @throws InterruptedException
+     */
+    public void await()
+    throws InterruptedException
+    {
+        synchronized (lock)
+        {
+            while (outstanding > 0)
+            {
+                lock.wait();
+            }
+        }
+    }
+
+
+    /**
+     * Waits until all registered units of work have completed or the timeout elapses.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit The unit of the timeout argument
+     * @return true if all units of work completed, false if the timeout elapsed
+     * @throws InterruptedException
+     */
+    public boolean await(long timeout, TimeUnit unit)
+    throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (lock)
+        {
+            while (outstanding > 0)
+            {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package net.posick.utils;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The ShortestJobFirstExecutor holds tasks in a bounded priority queue and hands them to the wrapped Executor
+ * smallest first, so that short tasks do not wait behind long ones. Tasks of the same size are handed over in the
+ * order they were executed.
+ *
+ * Tasks are handed over by a single dispatcher thread, which blocks while the wrapped Executor blocks, e.g., a
+ * {@link BoundedExecutor} at capacity. Tasks therefore accumulate in the priority queue, and the number of tasks
+ * reordered is the capacity of the queue. When the queue is full {@link #execute(Runnable, long)} blocks the
+ * submitting thread, applying backpressure to the producer of the tasks.
+ *
+ * @author posicks
+ */
+public class ShortestJobFirstExecutor
+{
+    private static Logger logger = Logger.getLogger(ShortestJobFirstExecutor.class.getName());
+
+    private final Executor executor;
+
+    private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<>();
+
+    private final Semaphore permits;
+
+    private final CompletionTracker tracker = new CompletionTracker();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final Thread dispatcher;
+
+
+    /**
+     * A task waiting in the priority queue.
+     *
+     * @author posicks
+     */
+    private static class Task implements Comparable<Task>
+    {
+        final Runnable task;
+
+        final long size;
+
+        final long sequence;
+
+
+        Task(Runnable task, long size, long sequence)
+        {
+            this.task = task;
+            this.size = size;
+            this.sequence = sequence;
+        }
+
+
+        @Override
+        public int compareTo(Task other)
+        {
+            int result = Long.compare(size, other.size);
+            return result != 0 ? result : Long.compare(sequence, other.sequence);
+        }
+    }
+
+
+    /**
+     * @param executor The Executor the tasks are handed to
+     * @param capacity The maximum number of tasks waiting in the priority queue
+     * @param name The name of the dispatcher thread
+     */
+    public ShortestJobFirstExecutor(Executor executor, int capacity, String name)
+    {
+        if (capacity < 1)
+        {
+            throw new IllegalArgumentException("The capacity must be greater than 0");
+        }
+        this.executor = executor;
+        this.permits = new Semaphore(capacity);
+        this.dispatcher = new Thread(this::dispatchLoop, name);
+        this.dispatcher.setDaemon(true);
+        this.dispatcher.start();
+    }
+
+
+    /**
+     * Queues the task, blocking while the priority queue is full.
+     *
+     * @param task The task to execute
+     * @param size The size of the task, tasks of unknown size (less than 0) are handed over after all other tasks
+     * @throws RejectedExecutionException if the thread is interrupted while waiting
+     */
+    public void execute(Runnable task, long size)
+    {
+        try
+        {
+            permits.acquire();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting to queue task", e);
+        }
+
+        tracker.register();
+        queue.add(new Task(task, size >= 0 ? size : Long.MAX_VALUE, sequence.getAndIncrement()));
+    }
+
+
+    private void dispatchLoop()
+    {
+        while (true)
+        {
+            Task task;
+            try
+            {
+                task = queue.take();
+            } catch (InterruptedException e)
+            {
+                return;
+            }
+            permits.release();
+
+            try
+            {
+                executor.execute(task.task);
+            } catch (RejectedExecutionException e)
+            {
+                logger.log(Level.WARNING, String.format("Unable to execute task - %s: %s", e.getClass().getSimpleName(), e.getMessage()));
+            } finally
+            {
+                tracker.arrive();
+            }
+        }
+    }
+
+
+    /**
+     * Waits until all tasks queued have been handed to the wrapped Executor.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitCompletion()
+    throws InterruptedException
+    {
+        tracker.await();
+    }
+
+
+    /**
+     * Stops the dispatcher thread, tasks still queued are not handed over.
+     */
+    public void shutdown()
+    {
+        dispatcher.interrupt();
+    }
+}